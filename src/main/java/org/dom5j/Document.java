@@ -149,6 +149,20 @@ public interface Document extends Branch {
      * @since 1.6
      */
     void setXMLEncoding(String encoding);
+
+    /**
+     * Returns a read-only copy of this document. The copy is fully built
+     * before it is returned and holds its state in final fields, so it can be
+     * shared by any number of threads without synchronization. Any attempt to
+     * modify the copy or one of its nodes throws an
+     * <code>UnsupportedOperationException</code>.
+     * 
+     * @return a frozen copy of this document, or this document if it is
+     *         already frozen
+     * 
+     * @since 1.6.3
+     */
+    Document freeze();
 }
 
 /*
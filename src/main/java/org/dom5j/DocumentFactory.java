@@ -28,7 +28,9 @@ import org.dom5j.tree.QNameCache;
 import org.dom5j.util.SimpleSingleton;
 import org.dom5j.util.SingletonStrategy;
 import org.dom5j.xpath.DefaultXPath;
+import org.dom5j.xpath.XPathCache;
 import org.dom5j.xpath.XPathPattern;
+import org.jaxen.FunctionContext;
 import org.jaxen.VariableContext;
 
 /**
@@ -52,6 +54,12 @@ public class DocumentFactory implements Serializable {
     /** Default namespace prefix -> URI mappings for XPath expressions to use */
     private Map<String,String> xpathNamespaceURIs;
 
+    /** Function context for XPath expressions to use, or null for Jaxen's */
+    private transient FunctionContext xpathFunctionContext;
+
+    /** Compiled XPath expressions, or null if they are not cached */
+    private transient XPathCache xpathCache;
+
     private static SingletonStrategy createSingleton() {
         SingletonStrategy result = null;
         
@@ -233,9 +241,47 @@ public class DocumentFactory implements Serializable {
             xpath.setNamespaceURIs(xpathNamespaceURIs);
         }
 
+        if (xpathFunctionContext != null) {
+            xpath.setFunctionContext(xpathFunctionContext);
+        }
+
         return xpath;
     }
 
+    /**
+     * <p>
+     * <code>getCachedXPath</code> returns a compiled XPath expression from
+     * the {@link #getXPathCache() cache} of this factory, compiling it with
+     * {@link #createXPath(String)} if need be. The methods of nodes which
+     * take the text of an expression use it, so that each expression is only
+     * parsed once.
+     * </p>
+     * 
+     * <p>
+     * The instance returned is shared and must not be modified, but it may
+     * be evaluated by several threads at once.
+     * </p>
+     * 
+     * @param xpathExpression
+     *            is the XPath expression to compile
+     * 
+     * @return a shared <code>XPath</code> instance, or a new one if caching
+     *         is disabled
+     * 
+     * @throws InvalidXPathException
+     *             if the XPath expression is invalid
+     */
+    public XPath getCachedXPath(String xpathExpression)
+            throws InvalidXPathException {
+        XPathCache cache = xpathCache;
+
+        if (cache == null) {
+            return createXPath(xpathExpression);
+        }
+
+        return cache.get(xpathExpression);
+    }
+
     /**
      * <p>
      * <code>createXPath</code> parses an XPath expression and creates a new
@@ -353,6 +399,49 @@ public class DocumentFactory implements Serializable {
         this.xpathNamespaceURIs = namespaceURIs;
     }
 
+    /**
+     * DOCUMENT ME!
+     * 
+     * @return the function context used by XPath expressions created by this
+     *         factory, or null if they use the default Jaxen functions
+     */
+    public FunctionContext getXPathFunctionContext() {
+        return xpathFunctionContext;
+    }
+
+    /**
+     * Sets the function context to be used by XPath expressions created by
+     * this factory or by nodes associated with this factory. It is not
+     * serialized with the factory.
+     * 
+     * @param functionContext
+     *            DOCUMENT ME!
+     */
+    public void setXPathFunctionContext(FunctionContext functionContext) {
+        this.xpathFunctionContext = functionContext;
+    }
+
+    /**
+     * DOCUMENT ME!
+     * 
+     * @return the cache of compiled XPath expressions used by
+     *         {@link #getCachedXPath(String)}, or null if caching is disabled
+     */
+    public XPathCache getXPathCache() {
+        return xpathCache;
+    }
+
+    /**
+     * Sets the cache of compiled XPath expressions used by
+     * {@link #getCachedXPath(String)}; null disables caching.
+     * 
+     * @param xpathCache
+     *            DOCUMENT ME!
+     */
+    public void setXPathCache(XPathCache xpathCache) {
+        this.xpathCache = xpathCache;
+    }
+
     // Implementation methods
     // -------------------------------------------------------------------------
 
@@ -407,6 +496,17 @@ public class DocumentFactory implements Serializable {
         return new QNameCache(this);
     }
 
+    /**
+     * Factory method to create the cache of compiled XPath expressions. This
+     * method may be overloaded to size the cache or to return null, which
+     * disables caching.
+     * 
+     * @return DOCUMENT ME!
+     */
+    protected XPathCache createXPathCache() {
+        return new XPathCache(this);
+    }
+
     private void readObject(ObjectInputStream in) throws IOException,
             ClassNotFoundException {
         in.defaultReadObject();
@@ -415,6 +515,7 @@ public class DocumentFactory implements Serializable {
 
     protected void init() {
         cache = createQNameCache();
+        xpathCache = createXPathCache();
     }
 }
 
@@ -34,6 +34,10 @@ public final class DocumentHelper {
         return DocumentFactory.getInstance();
     }
 
+    private static XPath getCachedXPath(String xpathExpression) {
+        return getDocumentFactory().getCachedXPath(xpathExpression);
+    }
+
     // Static helper methods
     public static Document createDocument() {
         return getDocumentFactory().createDocument();
@@ -189,7 +193,7 @@ public final class DocumentHelper {
      * @return the results of all the XPath evaluations as a single list
      */
     public static List<Node> selectNodes(String xpathFilterExpression, List<Node> nodes) {
-        XPath xpath = createXPath(xpathFilterExpression);
+        XPath xpath = getCachedXPath(xpathFilterExpression);
 
         return xpath.selectNodes(nodes);
     }
@@ -209,7 +213,7 @@ public final class DocumentHelper {
      * @return the results of all the XPath evaluations as a single list
      */
     public static List<Node> selectNodes(String xpathFilterExpression, Node node) {
-        XPath xpath = createXPath(xpathFilterExpression);
+        XPath xpath = getCachedXPath(xpathFilterExpression);
 
         return xpath.selectNodes(node);
     }
@@ -226,7 +230,8 @@ public final class DocumentHelper {
      *            is the XPath expression used for comparison
      */
     public static void sort(List<Node> list, String xpathExpression) {
-        XPath xpath = createXPath(xpathExpression);
+        XPath xpath = getCachedXPath(xpathExpression);
+
         xpath.sort(list);
     }
 
@@ -246,7 +251,8 @@ public final class DocumentHelper {
      *            comparisions) will be removed from the List
      */
     public static void sort(List<Node> list, String expression, boolean distinct) {
-        XPath xpath = createXPath(expression);
+        XPath xpath = getCachedXPath(expression);
+
         xpath.sort(list, distinct);
     }
 
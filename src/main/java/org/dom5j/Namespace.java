@@ -81,6 +81,16 @@ public class Namespace extends AbstractNode {
         return CACHE.get(uri);
     }
 
+    /**
+     * Returns the cache shared by the <code>get</code> methods.
+     * 
+     * @return the cache which interns the instances returned by the
+     *         <code>get</code> methods, for its statistics and size bound
+     */
+    public static NamespaceCache getCache() {
+        return CACHE;
+    }
+
     public short getNodeType() {
         return NAMESPACE_NODE;
     }
@@ -7,8 +7,10 @@
 
 package org.dom5j;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 import org.jaxen.FunctionContext;
 import org.jaxen.NamespaceContext;
@@ -157,6 +159,39 @@ public interface XPath extends NodeFilter {
      */
     Node selectSingleNode(Object context);
 
+    /**
+     * <p>
+     * <code>iterate</code> evaluates this XPath expression on the given
+     * {@link Node}or {@link List}of {@link Node}s and returns an iterator
+     * over the results. Where the expression allows, the nodes are found as
+     * the iteration proceeds, so that stopping early saves walking the rest
+     * of the tree and the results are never all held at once.
+     * </p>
+     * 
+     * @param context
+     *            is either a node or a list of nodes on which to evalute the
+     *            XPath
+     * 
+     * @return an iterator over the results in document order
+     */
+    Iterator<Node> iterate(Object context);
+
+    /**
+     * <p>
+     * <code>stream</code> returns the results of {@link #iterate(Object)}as
+     * a sequential stream, so that operations such as
+     * <code>findFirst</code>, <code>limit</code> and <code>anyMatch</code>
+     * stop the evaluation early.
+     * </p>
+     * 
+     * @param context
+     *            is either a node or a list of nodes on which to evalute the
+     *            XPath
+     * 
+     * @return an ordered stream of the results
+     */
+    Stream<Node> stream(Object context);
+
     /**
      * <p>
      * <code>valueOf</code> evaluates this XPath expression and returns the
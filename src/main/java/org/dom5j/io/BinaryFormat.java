@@ -0,0 +1,113 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+/**
+ * <p>
+ * <code>BinaryFormat</code> holds the constants of the binary document
+ * format written by {@link BinaryWriter} and read by {@link BinaryReader}.
+ * </p>
+ *
+ * <p>
+ * A document starts with the magic bytes <code>D5JB</code> and a version
+ * byte, followed by three symbol tables and the body. All numbers are
+ * unsigned varints of seven bits per byte, lowest group first.
+ * </p>
+ *
+ * <ul>
+ * <li>strings: a count, then each string as its UTF-8 byte length and
+ * bytes</li>
+ * <li>namespaces: a count, then the string indexes of each prefix and
+ * URI</li>
+ * <li>names: a count, then the string index of each local name and the
+ * index of its namespace</li>
+ * </ul>
+ *
+ * <p>
+ * A string in the body is a varint <i>v</i>: zero for null, an odd
+ * <i>v</i> for <i>v</i>/2 bytes of UTF-8 which follow, an even <i>v</i> for
+ * string <i>v</i>/2 - 1 of the table. The body is the encoding of the
+ * document, or null, and the top level nodes up to an {@link #END} byte.
+ * Each node starts with its tag byte:
+ * </p>
+ *
+ * <ul>
+ * <li>{@link #ELEMENT}: the name index, the length in bytes of the rest of
+ * the element so that it can be skipped, the number of declared namespaces
+ * and their indexes, the number of attributes with the name index and value
+ * of each, the content and an {@link #END} byte</li>
+ * <li>{@link #TEXT}, {@link #CDATA} and {@link #COMMENT}: the text</li>
+ * <li>{@link #PROCESSING_INSTRUCTION}: the target and data</li>
+ * <li>{@link #ENTITY}: the name and text</li>
+ * <li>{@link #DOCUMENT_TYPE}: the name, public ID and system ID</li>
+ * </ul>
+ */
+final class BinaryFormat {
+    static final byte[] MAGIC = {'D', '5', 'J', 'B'};
+
+    static final int VERSION = 1;
+
+    static final int END = 0;
+
+    static final int ELEMENT = 1;
+
+    static final int TEXT = 2;
+
+    static final int CDATA = 3;
+
+    static final int COMMENT = 4;
+
+    static final int PROCESSING_INSTRUCTION = 5;
+
+    static final int ENTITY = 6;
+
+    static final int DOCUMENT_TYPE = 7;
+
+    /** The longest string values which are shared through the table */
+    static final int MAXIMUM_SHARED_LENGTH = 64;
+
+    private BinaryFormat() {
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
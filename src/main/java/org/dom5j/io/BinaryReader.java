@@ -0,0 +1,471 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.dom5j.Branch;
+import org.dom5j.Document;
+import org.dom5j.DocumentException;
+import org.dom5j.DocumentFactory;
+import org.dom5j.Element;
+import org.dom5j.Namespace;
+import org.dom5j.NodeFilter;
+import org.dom5j.QName;
+
+/**
+ * <p>
+ * <code>BinaryReader</code> reads documents written by {@link BinaryWriter},
+ * building the nodes of its {@link DocumentFactory}.
+ * </p>
+ *
+ * <p>
+ * An element filter leaves out the elements it does not match together with
+ * their content, which is skipped without being decoded. The filter sees each
+ * element with its attributes and namespaces but before its content is read
+ * or it is added to its parent.
+ * </p>
+ */
+public class BinaryReader {
+    /** <code>DocumentFactory</code> used to create new document objects */
+    private DocumentFactory factory;
+
+    /** Selects the elements which are read, or null for all */
+    private NodeFilter elementFilter;
+
+    /** The document being read */
+    private byte[] data;
+
+    private int pos;
+
+    private int limit;
+
+    private String[] strings;
+
+    public BinaryReader() {
+    }
+
+    public BinaryReader(DocumentFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Reads a Document from the given <code>File</code>
+     *
+     * @param file
+     *            is the <code>File</code> to read from.
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if the file cannot be read or is not a binary document
+     */
+    public Document read(File file) throws DocumentException {
+        return read(file.toPath());
+    }
+
+    /**
+     * Reads a Document from the given <code>Path</code>
+     *
+     * @param path
+     *            is the <code>Path</code> to read from.
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if the file cannot be read or is not a binary document
+     */
+    public Document read(Path path) throws DocumentException {
+        try {
+            return read(Files.readAllBytes(path));
+        } catch (IOException e) {
+            throw new DocumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads a Document from the given stream, which is read to its end.
+     *
+     * @param in
+     *            <code>InputStream</code> to read from.
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if the stream cannot be read or is not a binary document
+     */
+    public Document read(InputStream in) throws DocumentException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+            byte[] buffer = new byte[8192];
+            int count;
+
+            while ((count = in.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+
+            return read(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new DocumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads a Document from the given bytes.
+     *
+     * @param bytes
+     *            DOCUMENT ME!
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if the bytes are not a binary document
+     */
+    public Document read(byte[] bytes) throws DocumentException {
+        return read(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Reads a Document from part of the given bytes.
+     *
+     * @param bytes
+     *            DOCUMENT ME!
+     * @param offset
+     *            the index of the first byte of the document
+     * @param length
+     *            the number of bytes available
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if the bytes are not a binary document
+     */
+    public Document read(byte[] bytes, int offset, int length)
+            throws DocumentException {
+        this.data = bytes;
+        this.pos = offset;
+        this.limit = offset + length;
+
+        try {
+            return readDocument();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw invalid("truncated or corrupt data");
+        } finally {
+            data = null;
+            strings = null;
+        }
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return the <code>DocumentFactory</code> used to create document
+     *         objects
+     */
+    public DocumentFactory getDocumentFactory() {
+        if (factory == null) {
+            factory = DocumentFactory.getInstance();
+        }
+
+        return factory;
+    }
+
+    /**
+     * <p>
+     * This sets the <code>DocumentFactory</code> used to create new
+     * documents. This method allows the building of custom DOM4J tree objects
+     * to be implemented easily using a custom derivation of
+     * {@link DocumentFactory}
+     * </p>
+     *
+     * @param documentFactory
+     *            <code>DocumentFactory</code> used to create DOM4J objects
+     */
+    public void setDocumentFactory(DocumentFactory documentFactory) {
+        this.factory = documentFactory;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return the filter selecting the elements which are read, or null
+     */
+    public NodeFilter getElementFilter() {
+        return elementFilter;
+    }
+
+    /**
+     * Sets the filter selecting the elements which are read. Elements which
+     * it does not match are skipped together with their content.
+     *
+     * @param elementFilter
+     *            the filter or null to read all elements
+     */
+    public void setElementFilter(NodeFilter elementFilter) {
+        this.elementFilter = elementFilter;
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private Document readDocument() throws DocumentException {
+        DocumentFactory documentFactory = getDocumentFactory();
+
+        for (int i = 0; i < BinaryFormat.MAGIC.length; i++) {
+            if (readByte() != BinaryFormat.MAGIC[i]) {
+                throw invalid("not a binary document");
+            }
+        }
+
+        int version = readByte();
+
+        if (version != BinaryFormat.VERSION) {
+            throw invalid("unsupported version " + version);
+        }
+
+        strings = new String[readCount()];
+
+        for (int i = 0; i < strings.length; i++) {
+            int length = readCount();
+            strings[i] = decode(length);
+        }
+
+        Namespace[] namespaces = new Namespace[readCount()];
+
+        for (int i = 0; i < namespaces.length; i++) {
+            String prefix = string(readVarint());
+            namespaces[i] = documentFactory.createNamespace(prefix,
+                    string(readVarint()));
+        }
+
+        QName[] qNames = new QName[readCount()];
+
+        for (int i = 0; i < qNames.length; i++) {
+            String name = string(readVarint());
+            qNames[i] = documentFactory.createQName(name,
+                    namespaces[readVarint()]);
+        }
+
+        Document document = documentFactory.createDocument(readString());
+        NodeFilter filter = elementFilter;
+        Branch[] stack = new Branch[32];
+        Branch current = document;
+        int depth = 0;
+
+        while (true) {
+            int tag = readByte();
+
+            switch (tag) {
+                case BinaryFormat.END:
+
+                    if (depth == 0) {
+                        return document;
+                    }
+
+                    // elements are added once complete, so that adding
+                    // their content does not walk up to the document
+                    Branch parent = stack[--depth];
+                    stack[depth] = null;
+                    parent.add((Element) current);
+                    current = parent;
+
+                    break;
+
+                case BinaryFormat.ELEMENT:
+
+                    Element element = documentFactory
+                            .createElement(qNames[readVarint()]);
+                    int length = readVarint();
+                    int end = pos + length;
+
+                    for (int i = readVarint(); i > 0; i--) {
+                        element.add(namespaces[readVarint()]);
+                    }
+
+                    for (int i = readVarint(); i > 0; i--) {
+                        QName qName = qNames[readVarint()];
+                        element.add(documentFactory.createAttribute(element,
+                                qName, readString()));
+                    }
+
+                    if ((filter != null) && !filter.matches(element)) {
+                        pos = end;
+
+                        break;
+                    }
+
+                    if (depth == stack.length) {
+                        Branch[] branches = new Branch[depth * 2];
+                        System.arraycopy(stack, 0, branches, 0, depth);
+                        stack = branches;
+                    }
+
+                    stack[depth++] = current;
+                    current = element;
+
+                    break;
+
+                case BinaryFormat.TEXT:
+                    ((Element) current).addText(readString());
+
+                    break;
+
+                case BinaryFormat.CDATA:
+                    ((Element) current).addCDATA(readString());
+
+                    break;
+
+                case BinaryFormat.COMMENT:
+                    current.add(documentFactory.createComment(readString()));
+
+                    break;
+
+                case BinaryFormat.PROCESSING_INSTRUCTION:
+
+                    String target = readString();
+                    current.add(documentFactory.createProcessingInstruction(
+                            target, readString()));
+
+                    break;
+
+                case BinaryFormat.ENTITY:
+
+                    String name = readString();
+                    current.add(documentFactory.createEntity(name,
+                            readString()));
+
+                    break;
+
+                case BinaryFormat.DOCUMENT_TYPE:
+
+                    String elementName = readString();
+                    String publicId = readString();
+                    document.addDocType(elementName, publicId, readString());
+
+                    break;
+
+                default:
+                    throw invalid("unknown node type " + tag);
+            }
+        }
+    }
+
+    private String readString() throws DocumentException {
+        int value = readVarint();
+
+        if ((value & 1) != 0) {
+            return decode(value >>> 1);
+        } else if (value == 0) {
+            return null;
+        }
+
+        return string((value >>> 1) - 1);
+    }
+
+    private String string(int index) throws DocumentException {
+        if (index >= strings.length) {
+            throw invalid("string " + index + " is not in the table");
+        }
+
+        return strings[index];
+    }
+
+    private String decode(int length) throws DocumentException {
+        if (length > limit - pos) {
+            throw invalid("truncated string");
+        }
+
+        String answer = new String(data, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+
+        return answer;
+    }
+
+    private int readByte() throws DocumentException {
+        if (pos >= limit) {
+            throw invalid("unexpected end of data");
+        }
+
+        return data[pos++];
+    }
+
+    private int readCount() throws DocumentException {
+        int count = readVarint();
+
+        if (count > limit - pos) {
+            throw invalid("count " + count + " exceeds the data");
+        }
+
+        return count;
+    }
+
+    private int readVarint() {
+        int b = data[pos++];
+
+        if (b >= 0) {
+            return b;
+        }
+
+        int answer = b & 0x7F;
+        int shift = 7;
+
+        do {
+            b = data[pos++];
+            answer |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+
+        return answer;
+    }
+
+    private static DocumentException invalid(String message) {
+        return new DocumentException("Invalid binary document: " + message);
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
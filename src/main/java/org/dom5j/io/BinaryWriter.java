@@ -0,0 +1,491 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dom5j.Attribute;
+import org.dom5j.Branch;
+import org.dom5j.Document;
+import org.dom5j.DocumentType;
+import org.dom5j.Element;
+import org.dom5j.Entity;
+import org.dom5j.Namespace;
+import org.dom5j.Node;
+import org.dom5j.ProcessingInstruction;
+import org.dom5j.QName;
+
+/**
+ * <p>
+ * <code>BinaryWriter</code> writes documents in a compact binary format
+ * which {@link BinaryReader} reads back faster than XML text can be parsed,
+ * for caching parsed documents across processes.
+ * </p>
+ *
+ * <p>
+ * Names and namespaces are written once into symbol tables and referred to
+ * by index, short text and attribute values which repeat are written once,
+ * and each element records its length so that readers can skip it. The
+ * format is described by {@link BinaryFormat}.
+ * </p>
+ */
+public class BinaryWriter {
+    private final OutputStream out;
+
+    /** The body of the document being written */
+    private byte[] body = new byte[8192];
+
+    private int size;
+
+    private final Map<String, Integer> stringIndexes;
+
+    private final List<String> strings;
+
+    private final Map<Namespace, Integer> namespaceIndexes;
+
+    private final List<Namespace> namespaces;
+
+    private final Map<QName, Integer> qNameIndexes;
+
+    private final List<QName> qNames;
+
+    public BinaryWriter(OutputStream out) {
+        this.out = out;
+        this.stringIndexes = new HashMap<String, Integer>();
+        this.strings = new ArrayList<String>();
+        this.namespaceIndexes = new IdentityHashMap<Namespace, Integer>();
+        this.namespaces = new ArrayList<Namespace>();
+        this.qNameIndexes = new IdentityHashMap<QName, Integer>();
+        this.qNames = new ArrayList<QName>();
+    }
+
+    /**
+     * Writes the given document.
+     *
+     * @param document
+     *            DOCUMENT ME!
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    public void write(Document document) throws IOException {
+        try {
+            writeString(document.getXMLEncoding());
+
+            DocumentType docType = document.getDocType();
+
+            if (docType != null) {
+                writeByte(BinaryFormat.DOCUMENT_TYPE);
+                writeString(docType.getElementName());
+                writeString(docType.getPublicID());
+                writeString(docType.getSystemID());
+            }
+
+            writeContent(document);
+            writeByte(BinaryFormat.END);
+            writeDocument();
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Writes a document whose root element is a copy of the given element.
+     *
+     * @param element
+     *            DOCUMENT ME!
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    public void write(Element element) throws IOException {
+        try {
+            writeString(null);
+            writeElement(element);
+            writeByte(BinaryFormat.END);
+            writeDocument();
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Flushes the underlying stream.
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    public void close() throws IOException {
+        out.close();
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private void writeContent(Branch branch) throws IOException {
+        for (int i = 0, count = branch.nodeCount(); i < count; i++) {
+            Node node = branch.node(i);
+
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    writeElement((Element) node);
+
+                    break;
+
+                case Node.TEXT_NODE:
+                    writeByte(BinaryFormat.TEXT);
+                    writeSharedString(node.getText());
+
+                    break;
+
+                case Node.CDATA_SECTION_NODE:
+                    writeByte(BinaryFormat.CDATA);
+                    writeString(node.getText());
+
+                    break;
+
+                case Node.COMMENT_NODE:
+                    writeByte(BinaryFormat.COMMENT);
+                    writeString(node.getText());
+
+                    break;
+
+                case Node.PROCESSING_INSTRUCTION_NODE:
+
+                    ProcessingInstruction pi = (ProcessingInstruction) node;
+                    writeByte(BinaryFormat.PROCESSING_INSTRUCTION);
+                    writeSharedString(pi.getTarget());
+                    writeString(pi.getText());
+
+                    break;
+
+                case Node.ENTITY_REFERENCE_NODE:
+                    writeByte(BinaryFormat.ENTITY);
+                    writeSharedString(node.getName());
+                    writeString(((Entity) node).getText());
+
+                    break;
+
+                default:
+
+                    // namespaces are written with their element and the
+                    // document type with the document
+                    break;
+            }
+        }
+    }
+
+    private void writeElement(Element element) throws IOException {
+        writeByte(BinaryFormat.ELEMENT);
+        writeVarint(qNameIndex(element.getQName()));
+
+        // reserve a byte for the length, moving the element if it needs more
+        int lengthPosition = size++;
+        int start = size;
+        int count = element.nodeCount();
+        int declared = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (element.node(i) instanceof Namespace) {
+                declared++;
+            }
+        }
+
+        writeVarint(declared);
+
+        for (int i = 0; (declared > 0) && (i < count); i++) {
+            Node node = element.node(i);
+
+            if (node instanceof Namespace) {
+                writeVarint(namespaceIndex((Namespace) node));
+                declared--;
+            }
+        }
+
+        int attributeCount = element.attributeCount();
+        writeVarint(attributeCount);
+
+        for (int i = 0; i < attributeCount; i++) {
+            Attribute attribute = element.attribute(i);
+            writeVarint(qNameIndex(attribute.getQName()));
+            writeSharedString(attribute.getValue());
+        }
+
+        writeContent(element);
+        writeByte(BinaryFormat.END);
+
+        int length = size - start;
+        int extra = varintSize(length) - 1;
+
+        if (extra > 0) {
+            ensureCapacity(extra);
+            System.arraycopy(body, start, body, start + extra, length);
+            size += extra;
+        }
+
+        int end = size;
+        size = lengthPosition;
+        writeVarint(length);
+        size = end;
+    }
+
+    /**
+     * Writes the symbol tables followed by the body.
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    private void writeDocument() throws IOException {
+        // complete the tables before they are written
+        for (int i = 0, count = qNames.size(); i < count; i++) {
+            QName qName = qNames.get(i);
+            namespaceIndex(qName.getNamespace());
+            stringIndex(qName.getName());
+        }
+
+        for (int i = 0, count = namespaces.size(); i < count; i++) {
+            Namespace namespace = namespaces.get(i);
+            stringIndex(namespace.getPrefix());
+            stringIndex(namespace.getURI());
+        }
+
+        byte[] content = body;
+        int contentSize = size;
+        body = new byte[Math.max(256, strings.size() * 16)];
+        size = 0;
+
+        try {
+            for (int i = 0; i < BinaryFormat.MAGIC.length; i++) {
+                writeByte(BinaryFormat.MAGIC[i]);
+            }
+
+            writeByte(BinaryFormat.VERSION);
+            writeVarint(strings.size());
+
+            for (int i = 0, count = strings.size(); i < count; i++) {
+                writeUTF8(strings.get(i), 0);
+            }
+
+            writeVarint(namespaces.size());
+
+            for (int i = 0, count = namespaces.size(); i < count; i++) {
+                Namespace namespace = namespaces.get(i);
+                writeVarint(stringIndex(namespace.getPrefix()));
+                writeVarint(stringIndex(namespace.getURI()));
+            }
+
+            writeVarint(qNames.size());
+
+            for (int i = 0, count = qNames.size(); i < count; i++) {
+                QName qName = qNames.get(i);
+                writeVarint(stringIndex(qName.getName()));
+                writeVarint(namespaceIndex(qName.getNamespace()));
+            }
+
+            out.write(body, 0, size);
+            out.write(content, 0, contentSize);
+        } finally {
+            body = content;
+        }
+    }
+
+    private void reset() {
+        size = 0;
+        stringIndexes.clear();
+        strings.clear();
+        namespaceIndexes.clear();
+        namespaces.clear();
+        qNameIndexes.clear();
+        qNames.clear();
+
+        if (body.length > (1024 * 1024)) {
+            body = new byte[8192];
+        }
+    }
+
+    private int stringIndex(String value) {
+        Integer index = stringIndexes.get(value);
+
+        if (index == null) {
+            index = Integer.valueOf(strings.size());
+            stringIndexes.put(value, index);
+            strings.add(value);
+        }
+
+        return index.intValue();
+    }
+
+    private int namespaceIndex(Namespace namespace) {
+        Integer index = namespaceIndexes.get(namespace);
+
+        if (index == null) {
+            index = Integer.valueOf(namespaces.size());
+            namespaceIndexes.put(namespace, index);
+            namespaces.add(namespace);
+        }
+
+        return index.intValue();
+    }
+
+    private int qNameIndex(QName qName) {
+        Integer index = qNameIndexes.get(qName);
+
+        if (index == null) {
+            index = Integer.valueOf(qNames.size());
+            qNameIndexes.put(qName, index);
+            qNames.add(qName);
+        }
+
+        return index.intValue();
+    }
+
+    /**
+     * Writes a string, through the table if it is short enough to be worth
+     * sharing.
+     *
+     * @param value
+     *            DOCUMENT ME!
+     */
+    private void writeSharedString(String value) {
+        if ((value != null)
+                && (value.length() <= BinaryFormat.MAXIMUM_SHARED_LENGTH)) {
+            writeVarint((stringIndex(value) + 1) << 1);
+        } else {
+            writeString(value);
+        }
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            writeVarint(0);
+        } else {
+            writeUTF8(value, 1);
+        }
+    }
+
+    /**
+     * Writes the UTF-8 bytes of a string preceded by their length. With a flag
+     * of one the length is shifted left by one and or-ed with the flag.
+     *
+     * @param value
+     *            DOCUMENT ME!
+     * @param flag
+     *            DOCUMENT ME!
+     */
+    private void writeUTF8(String value, int flag) {
+        int length = value.length();
+        boolean ascii = true;
+
+        for (int i = 0; ascii && (i < length); i++) {
+            ascii = value.charAt(i) < 0x80;
+        }
+
+        if (ascii) {
+            writeVarint((length << flag) | flag);
+            ensureCapacity(length);
+
+            for (int i = 0; i < length; i++) {
+                body[size++] = (byte) value.charAt(i);
+            }
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint((bytes.length << flag) | flag);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, body, size, bytes.length);
+            size += bytes.length;
+        }
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        body[size++] = (byte) b;
+    }
+
+    private void writeVarint(int value) {
+        ensureCapacity(5);
+
+        while ((value & ~0x7F) != 0) {
+            body[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        body[size++] = (byte) value;
+    }
+
+    private void ensureCapacity(int count) {
+        if (size + count > body.length) {
+            byte[] bytes = new byte[Math.max(body.length * 2, size + count)];
+            System.arraycopy(body, 0, bytes, 0, size);
+            body = bytes;
+        }
+    }
+
+    private static int varintSize(int value) {
+        int answer = 1;
+
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            answer++;
+        }
+
+        return answer;
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.CharConversionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ * <code>ByteEncodingWriter</code> is the <code>Writer</code> which
+ * {@link XMLWriter}uses for UTF-8, ISO-8859-1 and US-ASCII output. It encodes
+ * characters straight into a reusable byte buffer which is written to an
+ * <code>OutputStream</code> or a <code>WritableByteChannel</code> when full,
+ * rather than passing them through a <code>BufferedWriter</code>, an
+ * <code>OutputStreamWriter</code> and a general purpose
+ * <code>CharsetEncoder</code>.
+ * </p>
+ *
+ * <p>
+ * ASCII characters, which make up all of the markup written by
+ * <code>XMLWriter</code>, are copied one byte per character. A character
+ * which ISO-8859-1 or US-ASCII cannot represent fails the write with a
+ * <code>CharConversionException</code>, as this writer cannot know whether
+ * a character reference would be allowed where it occurs.
+ * <code>XMLWriter</code> escapes such characters in text and attribute
+ * values itself and splits CDATA sections around them. Unpaired surrogates
+ * are written as <code>?</code> just like <code>OutputStreamWriter</code>
+ * does.
+ * </p>
+ */
+class ByteEncodingWriter extends Writer {
+    /** The size of the byte buffer */
+    static final int BUFFER_SIZE = 8192;
+
+    /** Room left in the buffer for the longest encoding of one character */
+    private static final int MAX_CHAR_BYTES = 4;
+
+    /** The number of characters copied out of a String at a time */
+    private static final int CHUNK_SIZE = 1024;
+
+    private final OutputStream out;
+
+    private final WritableByteChannel channel;
+
+    /** The name of the encoding, used in error messages */
+    private final String encoding;
+
+    /** The highest code point the encoding can represent */
+    private final int maximumCodePoint;
+
+    private final byte[] bytes;
+
+    /** The buffer wrapping the bytes for writing to the channel */
+    private final ByteBuffer byteBuffer;
+
+    /** Holds the characters of Strings being encoded */
+    private char[] chunk;
+
+    /** The number of bytes in the buffer */
+    private int position;
+
+    /** A high surrogate whose low surrogate has not been written yet */
+    private char pendingSurrogate;
+
+    private boolean closed;
+
+    public ByteEncodingWriter(OutputStream out, String encoding) {
+        this(out, null, encoding);
+    }
+
+    public ByteEncodingWriter(WritableByteChannel channel, String encoding) {
+        this(null, channel, encoding);
+    }
+
+    private ByteEncodingWriter(OutputStream out, WritableByteChannel channel,
+            String encoding) {
+        if (!isSupported(encoding)) {
+            throw new IllegalArgumentException("Unsupported encoding: "
+                    + encoding);
+        }
+
+        this.out = out;
+        this.channel = channel;
+        this.encoding = encoding;
+        this.maximumCodePoint = maximumCodePoint(encoding);
+        this.bytes = new byte[BUFFER_SIZE];
+        this.byteBuffer = (channel != null) ? ByteBuffer.wrap(bytes) : null;
+    }
+
+    /**
+     * Returns whether the given encoding can be written by this class.
+     *
+     * @param encoding
+     *            the name or an alias of the encoding
+     *
+     * @return true for UTF-8, ISO-8859-1 and US-ASCII
+     */
+    public static boolean isSupported(String encoding) {
+        return maximumCodePoint(encoding) != 0;
+    }
+
+    /**
+     * Returns the highest code point which can be written by this writer.
+     *
+     * @return 0x7F for US-ASCII, 0xFF for ISO-8859-1 or
+     *         {@link Character#MAX_CODE_POINT}for UTF-8
+     */
+    public int getMaximumCodePoint() {
+        return maximumCodePoint;
+    }
+
+    public void write(int c) throws IOException {
+        ensureOpen();
+
+        if (position > (BUFFER_SIZE - MAX_CHAR_BYTES)) {
+            flushBuffer();
+        }
+
+        if ((c < 0x80) && (pendingSurrogate == 0)) {
+            bytes[position++] = (byte) c;
+        } else {
+            char[] single = {(char) c};
+            encode(single, 0, 1);
+        }
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        encode(cbuf, off, off + len);
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        ensureOpen();
+
+        if (chunk == null) {
+            chunk = new char[CHUNK_SIZE];
+        }
+
+        int end = off + len;
+
+        while (off < end) {
+            int count = Math.min(CHUNK_SIZE, end - off);
+            str.getChars(off, off + count, chunk, 0);
+            encode(chunk, 0, count);
+            off += count;
+        }
+    }
+
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        if (!closed) {
+            try {
+                if (pendingSurrogate != 0) {
+                    pendingSurrogate = 0;
+
+                    if (position == BUFFER_SIZE) {
+                        flushBuffer();
+                    }
+
+                    bytes[position++] = (byte) '?';
+                }
+
+                flushBuffer();
+            } finally {
+                closed = true;
+
+                if (out != null) {
+                    out.close();
+                } else {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private void encode(char[] cbuf, int off, int end) throws IOException {
+        byte[] b = bytes;
+        int p = position;
+        int limit = BUFFER_SIZE - MAX_CHAR_BYTES;
+        int i = off;
+
+        if ((pendingSurrogate != 0) && (i < end)) {
+            char high = pendingSurrogate;
+            pendingSurrogate = 0;
+
+            if (p > limit) {
+                position = p;
+                flushBuffer();
+                p = 0;
+            }
+
+            if (Character.isLowSurrogate(cbuf[i])) {
+                p = encodeCodePoint(Character.toCodePoint(high, cbuf[i++]), p);
+            } else {
+                b[p++] = (byte) '?';
+            }
+        }
+
+        while (i < end) {
+            if (p > limit) {
+                position = p;
+                flushBuffer();
+                p = 0;
+            }
+
+            char c = cbuf[i++];
+
+            if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (!Character.isSurrogate(c)) {
+                p = encodeCodePoint(c, p);
+            } else if (Character.isHighSurrogate(c)) {
+                if (i == end) {
+                    // the low surrogate may come with the next write
+                    pendingSurrogate = c;
+                } else if (Character.isLowSurrogate(cbuf[i])) {
+                    p = encodeCodePoint(Character.toCodePoint(c, cbuf[i++]), p);
+                } else {
+                    b[p++] = (byte) '?';
+                }
+            } else {
+                b[p++] = (byte) '?';
+            }
+        }
+
+        position = p;
+    }
+
+    /**
+     * Encodes a character which is not ASCII at the given buffer position.
+     *
+     * @return the position after the encoded character
+     *
+     * @throws CharConversionException
+     *             if the encoding cannot represent the character
+     */
+    private int encodeCodePoint(int c, int p) throws CharConversionException {
+        byte[] b = bytes;
+
+        if (c > maximumCodePoint) {
+            // keep what has been encoded so far
+            position = p;
+
+            throw new CharConversionException("The character U+"
+                    + Integer.toHexString(c).toUpperCase()
+                    + " cannot be written in " + encoding);
+        } else if (maximumCodePoint == 0xFF) {
+            b[p++] = (byte) c;
+        } else if (c < 0x800) {
+            b[p++] = (byte) (0xC0 | (c >> 6));
+            b[p++] = (byte) (0x80 | (c & 0x3F));
+        } else if (c < 0x10000) {
+            b[p++] = (byte) (0xE0 | (c >> 12));
+            b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            b[p++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+            b[p++] = (byte) (0xF0 | (c >> 18));
+            b[p++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+            b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            b[p++] = (byte) (0x80 | (c & 0x3F));
+        }
+
+        return p;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            if (out != null) {
+                out.write(bytes, 0, position);
+            } else {
+                byteBuffer.clear();
+                byteBuffer.limit(position);
+
+                while (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer);
+                }
+            }
+
+            position = 0;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Returns the highest code point the given encoding represents, or 0 if
+     * the encoding is not supported.
+     */
+    private static int maximumCodePoint(String encoding) {
+        Charset charset;
+
+        try {
+            charset = Charset.forName(encoding);
+        } catch (RuntimeException e) {
+            // an illegal, unknown or null name
+            return 0;
+        }
+
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            return Character.MAX_CODE_POINT;
+        } else if (charset.equals(StandardCharsets.ISO_8859_1)) {
+            return 0xFF;
+        } else if (charset.equals(StandardCharsets.US_ASCII)) {
+            return 0x7F;
+        }
+
+        return 0;
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -8,7 +8,10 @@
 package org.dom5j.io;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.dom5j.Element;
 import org.dom5j.ElementHandler;
@@ -26,27 +29,60 @@ import org.dom5j.ElementPath;
  * elements encountered.
  * </p>
  * 
+ * <p>
+ * Handler paths are absolute paths of element names such as
+ * <code>/a/b/c</code>. A step may be <code>*</code> to match any element
+ * and steps may be separated by <code>//</code> to match any number of
+ * elements in between, so <code>//c</code> matches every <code>c</code>
+ * element. When several paths match an element the one with the fewest
+ * wildcards wins, then the one registered first.
+ * </p>
+ * 
+ * <p>
+ * The paths are compiled into a trie which is turned into a deterministic
+ * state machine as elements are encountered. Each open element only keeps
+ * the number of its state, so once the transitions for the element names of
+ * a document have been seen dispatching allocates nothing.
+ * </p>
+ * 
  * @author <a href="mailto:dwhite@equipecom.com">Dave White </a>
  * @version $Revision: 1.11 $
  */
 class DispatchHandler implements ElementHandler {
-    /** Whether the parser is at the root element or not */
-    private boolean atRoot;
+    /** The state of elements which no registered path can match */
+    private static final int DEAD_STATE = 0;
+
+    /** The state before the root element */
+    private static final int START_STATE = 1;
+
+    /** The names of the open elements */
+    private String[] names;
 
-    /** The current path in the XML tree (i.e. /a/b/c) */
-    private String path;
+    /** The states of the open elements, the document being at index 0 */
+    private int[] stateStack;
 
-    /** maintains a stack of previously encountered paths */
-    private ArrayList pathStack;
+    /** The number of open elements */
+    private int depth;
 
-    /** maintains a stack of previously encountered handlers */
-    private ArrayList handlerStack;
+    /** The number of open elements whose handler has been called */
+    private int activeHandlerCount;
 
     /**
      * <code>HashMap</code> maintains the mapping between element paths and
      * handlers
      */
-    private HashMap handlers;
+    private HashMap<String, ElementHandler> handlers;
+
+    /** The registration order of the paths, used to break ties */
+    private HashMap<String, Integer> order;
+
+    private int nextOrder;
+
+    /** The state machine compiled from the paths or null if out of date */
+    private StateMachine machine;
+
+    /** Whether the states of the open elements need to be recomputed */
+    private boolean statesStale;
 
     /**
      * <code>ElementHandler</code> to use by default for element paths with no
@@ -55,11 +91,11 @@ class DispatchHandler implements ElementHandler {
     private ElementHandler defaultHandler;
 
     public DispatchHandler() {
-        atRoot = true;
-        path = "/";
-        pathStack = new ArrayList();
-        handlerStack = new ArrayList();
-        handlers = new HashMap();
+        names = new String[16];
+        stateStack = new int[17];
+        stateStack[0] = START_STATE;
+        handlers = new HashMap<String, ElementHandler>();
+        order = new HashMap<String, Integer>();
     }
 
     /**
@@ -73,7 +109,12 @@ class DispatchHandler implements ElementHandler {
      *            based processor.
      */
     public void addHandler(String handlerPath, ElementHandler handler) {
+        if (!order.containsKey(handlerPath)) {
+            order.put(handlerPath, Integer.valueOf(nextOrder++));
+        }
+
         handlers.put(handlerPath, handler);
+        invalidate();
     }
 
     /**
@@ -86,7 +127,15 @@ class DispatchHandler implements ElementHandler {
      * @return DOCUMENT ME!
      */
     public ElementHandler removeHandler(String handlerPath) {
-        return (ElementHandler) handlers.remove(handlerPath);
+        order.remove(handlerPath);
+
+        ElementHandler answer = handlers.remove(handlerPath);
+
+        if (answer != null) {
+            invalidate();
+        }
+
+        return answer;
     }
 
     /**
@@ -111,7 +160,7 @@ class DispatchHandler implements ElementHandler {
      * @return the registered handler
      */
     public ElementHandler getHandler(String handlerPath) {
-        return (ElementHandler) handlers.get(handlerPath);
+        return handlers.get(handlerPath);
     }
 
     /**
@@ -121,7 +170,7 @@ class DispatchHandler implements ElementHandler {
      * @return number of active handlers
      */
     public int getActiveHandlerCount() {
-        return handlerStack.size();
+        return activeHandlerCount;
     }
 
     /**
@@ -142,12 +191,24 @@ class DispatchHandler implements ElementHandler {
      * they were when object was created.
      */
     public void resetHandlers() {
-        atRoot = true;
-        path = "/";
-        pathStack.clear();
-        handlerStack.clear();
+        resetPath();
         handlers.clear();
+        order.clear();
+        nextOrder = 0;
         defaultHandler = null;
+        invalidate();
+    }
+
+    /**
+     * Resets the current path, keeping the registered handlers. Called at the
+     * start of each document so that a parse which was aborted part way
+     * through does not affect the next one.
+     */
+    public void resetPath() {
+        Arrays.fill(names, 0, depth, null);
+        depth = 0;
+        activeHandlerCount = 0;
+        statesStale = false;
     }
 
     /**
@@ -156,63 +217,379 @@ class DispatchHandler implements ElementHandler {
      * @return the current path for the parse
      */
     public String getPath() {
-        return path;
+        if (depth == 0) {
+            return "/";
+        }
+
+        StringBuffer buffer = new StringBuffer();
+
+        for (int i = 0; i < depth; i++) {
+            buffer.append('/');
+            buffer.append(names[i]);
+        }
+
+        return buffer.toString();
     }
 
     // The following methods implement the ElementHandler interface
     public void onStart(ElementPath elementPath) {
         Element element = elementPath.getCurrent();
+        String name = element.getName();
+        StateMachine stateMachine = getStateMachine();
 
-        // Save the location of the last (i.e. parent) path
-        pathStack.add(path);
-
-        // Calculate the new path
-        if (atRoot) {
-            path = path + element.getName();
-            atRoot = false;
-        } else {
-            path = path + "/" + element.getName();
+        if (depth == names.length) {
+            names = copyOf(names, depth * 2);
+            stateStack = copyOf(stateStack, (depth * 2) + 1);
         }
 
-        if ((handlers != null) && (handlers.containsKey(path))) {
+        int state = stateMachine.next(stateStack[depth], name);
+        names[depth++] = name;
+        stateStack[depth] = state;
+
+        ElementHandler handler = stateMachine.handlers[state];
+
+        if (handler != null) {
             // The current node has a handler associated with it.
-            // Find the handler and save it on the handler stack.
-            ElementHandler handler = (ElementHandler) handlers.get(path);
-            handlerStack.add(handler);
+            activeHandlerCount++;
 
             // Call the handlers onStart method.
             handler.onStart(elementPath);
         } else {
             // No handler is associated with this node, so use the
             // defaultHandler it it exists.
-            if (handlerStack.isEmpty() && (defaultHandler != null)) {
+            if ((activeHandlerCount == 0) && (defaultHandler != null)) {
                 defaultHandler.onStart(elementPath);
             }
         }
     }
 
     public void onEnd(ElementPath elementPath) {
-        if ((handlers != null) && (handlers.containsKey(path))) {
+        StateMachine stateMachine = getStateMachine();
+        ElementHandler handler = stateMachine.handlers[stateStack[depth]];
+
+        if (handler != null) {
             // This node has a handler associated with it.
-            // Find the handler and pop it from the handler stack.
-            ElementHandler handler = (ElementHandler) handlers.get(path);
-            handlerStack.remove(handlerStack.size() - 1);
+            if (activeHandlerCount > 0) {
+                activeHandlerCount--;
+            }
 
             // Call the handlers onEnd method
             handler.onEnd(elementPath);
         } else {
             // No handler is associated with this node, so use the
             // defaultHandler it it exists.
-            if (handlerStack.isEmpty() && (defaultHandler != null)) {
+            if ((activeHandlerCount == 0) && (defaultHandler != null)) {
                 defaultHandler.onEnd(elementPath);
             }
         }
 
         // Set path back to its parent
-        path = (String) pathStack.remove(pathStack.size() - 1);
+        if (depth > 0) {
+            names[--depth] = null;
+        }
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Drops the compiled paths after a handler has been added or removed,
+     * which may happen while elements are open.
+     */
+    private void invalidate() {
+        machine = null;
+        statesStale = depth > 0;
+    }
+
+    private StateMachine getStateMachine() {
+        if (machine == null) {
+            machine = new StateMachine(compile());
+        }
+
+        if (statesStale) {
+            // replay the open elements through the new state machine
+            for (int i = 0; i < depth; i++) {
+                stateStack[i + 1] = machine.next(stateStack[i], names[i]);
+            }
+
+            statesStale = false;
+        }
+
+        return machine;
+    }
+
+    private PathNode compile() {
+        PathNode root = new PathNode();
+
+        for (Map.Entry<String, ElementHandler> entry : handlers.entrySet()) {
+            String handlerPath = entry.getKey();
+
+            if ((handlerPath == null) || !handlerPath.startsWith("/")) {
+                // relative paths never match, just like before
+                continue;
+            }
+
+            Integer index = order.get(handlerPath);
+            root.add(handlerPath, entry.getValue(), (index != null) ? index
+                    .intValue() : Integer.MAX_VALUE);
+        }
+
+        return root;
+    }
+
+    private static String[] copyOf(String[] array, int length) {
+        String[] answer = new String[length];
+        System.arraycopy(array, 0, answer, 0, array.length);
+
+        return answer;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] answer = new int[length];
+        System.arraycopy(array, 0, answer, 0, array.length);
+
+        return answer;
+    }
+
+    /**
+     * A node of the trie of handler paths. A node reached through
+     * <code>//</code> also matches any number of elements before its
+     * children.
+     */
+    private static class PathNode {
+        /** The child nodes keyed by element name */
+        private final Map<String, PathNode> children;
+
+        /** The node reached through a <code>*</code> step or null */
+        private PathNode anyChild;
+
+        /** The node reached through <code>//</code> or null */
+        private PathNode descendants;
+
+        /** Whether this node was reached through <code>//</code> */
+        private final boolean loop;
+
+        private final int id;
+
+        private final int[] counter;
+
+        private ElementHandler handler;
+
+        private int wildcards;
+
+        private int order;
+
+        PathNode() {
+            this(new int[1], false);
+        }
+
+        private PathNode(int[] counter, boolean loop) {
+            this.children = new HashMap<String, PathNode>();
+            this.counter = counter;
+            this.loop = loop;
+            this.id = counter[0]++;
+        }
+
+        void add(String handlerPath, ElementHandler elementHandler, int index) {
+            PathNode node = this;
+            int count = 0;
+            int start = 1;
+            int length = handlerPath.length();
+
+            while (start < length) {
+                if (handlerPath.charAt(start) == '/') {
+                    // a "//" step
+                    node = node.descendants();
+                    count++;
+                    start++;
+
+                    continue;
+                }
+
+                int end = handlerPath.indexOf('/', start);
+
+                if (end < 0) {
+                    end = length;
+                }
+
+                String step = handlerPath.substring(start, end);
+
+                if ("*".equals(step)) {
+                    node = node.anyChild();
+                    count++;
+                } else {
+                    node = node.child(step);
+                }
+
+                start = end + 1;
+            }
+
+            if ((node == this) || node.loop
+                    || handlerPath.endsWith("/")) {
+                // a path such as "/" or "/a//" selects no element
+                return;
+            }
+
+            if ((node.handler == null) || (count < node.wildcards)
+                    || ((count == node.wildcards) && (index < node.order))) {
+                node.handler = elementHandler;
+                node.wildcards = count;
+                node.order = index;
+            }
+        }
+
+        /**
+         * Adds this node and the nodes reachable from it without consuming an
+         * element to the given set.
+         */
+        void addClosure(Map<Integer, PathNode> set) {
+            if (set.put(Integer.valueOf(id), this) == null) {
+                if (descendants != null) {
+                    descendants.addClosure(set);
+                }
+            }
+        }
+
+        /**
+         * Adds the nodes reached from this node by an element with the given
+         * name to the given set.
+         */
+        void addNext(String name, Map<Integer, PathNode> set) {
+            PathNode child = children.get(name);
+
+            if (child != null) {
+                child.addClosure(set);
+            }
+
+            if (anyChild != null) {
+                anyChild.addClosure(set);
+            }
+
+            if (loop) {
+                addClosure(set);
+            }
+        }
+
+        private PathNode child(String name) {
+            PathNode answer = children.get(name);
+
+            if (answer == null) {
+                answer = new PathNode(counter, false);
+                children.put(name, answer);
+            }
+
+            return answer;
+        }
+
+        private PathNode anyChild() {
+            if (anyChild == null) {
+                anyChild = new PathNode(counter, false);
+            }
+
+            return anyChild;
+        }
+
+        private PathNode descendants() {
+            if (descendants == null) {
+                descendants = new PathNode(counter, true);
+            }
+
+            return descendants;
+        }
+    }
+
+    /**
+     * The deterministic state machine for a trie. Each state stands for a set
+     * of trie nodes and is created the first time it is reached.
+     */
+    private static class StateMachine {
+        /** The handler of each state or null */
+        ElementHandler[] handlers;
+
+        /** The trie nodes of each state */
+        private final List<PathNode[]> nodeSets;
+
+        /** The transitions of each state keyed by element name */
+        private final List<Map<String, Integer>> transitions;
+
+        /** The states keyed by the ids of their sorted trie nodes */
+        private final Map<String, Integer> states;
+
+        StateMachine(PathNode root) {
+            handlers = new ElementHandler[8];
+            nodeSets = new ArrayList<PathNode[]>();
+            transitions = new ArrayList<Map<String, Integer>>();
+            states = new HashMap<String, Integer>();
+
+            state(new HashMap<Integer, PathNode>());
+
+            Map<Integer, PathNode> start = new HashMap<Integer, PathNode>();
+            root.addClosure(start);
+            state(start);
+        }
+
+        int next(int state, String name) {
+            if (state == DEAD_STATE) {
+                return DEAD_STATE;
+            }
+
+            Map<String, Integer> map = transitions.get(state);
+            Integer answer = map.get(name);
+
+            if (answer == null) {
+                Map<Integer, PathNode> set = new HashMap<Integer, PathNode>();
+                PathNode[] nodes = nodeSets.get(state);
+
+                for (int i = 0; i < nodes.length; i++) {
+                    nodes[i].addNext(name, set);
+                }
+
+                answer = Integer.valueOf(state(set));
+                map.put(name, answer);
+            }
+
+            return answer.intValue();
+        }
+
+        private int state(Map<Integer, PathNode> set) {
+            Integer[] ids = set.keySet().toArray(new Integer[set.size()]);
+            Arrays.sort(ids);
+
+            String key = Arrays.toString(ids);
+            Integer state = states.get(key);
+
+            if (state != null) {
+                return state.intValue();
+            }
+
+            int answer = nodeSets.size();
+            PathNode[] nodes = new PathNode[ids.length];
+            PathNode best = null;
+
+            for (int i = 0; i < ids.length; i++) {
+                nodes[i] = set.get(ids[i]);
+
+                if ((nodes[i].handler != null)
+                        && ((best == null)
+                                || (nodes[i].wildcards < best.wildcards)
+                                || ((nodes[i].wildcards == best.wildcards)
+                                        && (nodes[i].order < best.order)))) {
+                    best = nodes[i];
+                }
+            }
+
+            if (answer == handlers.length) {
+                ElementHandler[] newHandlers = new ElementHandler[answer * 2];
+                System.arraycopy(handlers, 0, newHandlers, 0, answer);
+                handlers = newHandlers;
+            }
+
+            handlers[answer] = (best != null) ? best.handler : null;
+            nodeSets.add(nodes);
+            transitions.add(new HashMap<String, Integer>());
+            states.put(key, Integer.valueOf(answer));
 
-        if (pathStack.size() == 0) {
-            atRoot = true;
+            return answer;
         }
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * <code>LazyBuffer</code> holds the bytes of a document read by
+ * {@link LazyReader} for as long as its elements may be materialized. Files
+ * are memory mapped in segments of 1 GB, so documents larger than a single
+ * <code>ByteBuffer</code> can address are supported and the bytes which are
+ * never looked at again are left to the operating system.
+ * </p>
+ */
+final class LazyBuffer {
+    /** The number of bits of a position addressing a byte within a segment */
+    private static final int SEGMENT_SHIFT = 30;
+
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private static final int SEGMENT_MASK = (int) (SEGMENT_SIZE - 1);
+
+    private final ByteBuffer[] segments;
+
+    private final long length;
+
+    private LazyBuffer(ByteBuffer[] segments, long length) {
+        this.segments = segments;
+        this.length = length;
+    }
+
+    /**
+     * Maps the whole of the given file.
+     *
+     * @param channel
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    static LazyBuffer map(FileChannel channel) throws IOException {
+        long length = channel.size();
+        int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        ByteBuffer[] segments = new ByteBuffer[Math.max(count, 1)];
+
+        if (count == 0) {
+            segments[0] = ByteBuffer.allocate(0);
+        }
+
+        for (int i = 0; i < count; i++) {
+            long position = i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    position, Math.min(SEGMENT_SIZE, length - position));
+        }
+
+        return new LazyBuffer(segments, length);
+    }
+
+    static LazyBuffer wrap(byte[] bytes, int offset, int length) {
+        ByteBuffer segment = ByteBuffer.wrap(bytes, offset, length).slice();
+
+        return new LazyBuffer(new ByteBuffer[] {segment}, length);
+    }
+
+    long length() {
+        return length;
+    }
+
+    byte get(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)]
+                .get((int) position & SEGMENT_MASK);
+    }
+
+    /**
+     * Copies bytes, which may span segments, into the given array.
+     *
+     * @param position
+     *            the position of the first byte
+     * @param bytes
+     *            DOCUMENT ME!
+     * @param offset
+     *            DOCUMENT ME!
+     * @param count
+     *            the number of bytes to copy
+     */
+    void get(long position, byte[] bytes, int offset, int count) {
+        while (count > 0) {
+            ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)]
+                    .duplicate();
+            int index = (int) position & SEGMENT_MASK;
+            int n = Math.min(count, segment.limit() - index);
+            segment.position(index);
+            segment.get(bytes, offset, n);
+            position += n;
+            offset += n;
+            count -= n;
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
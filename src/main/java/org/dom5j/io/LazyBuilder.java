@@ -0,0 +1,1157 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.dom5j.Document;
+import org.dom5j.DocumentException;
+import org.dom5j.DocumentFactory;
+import org.dom5j.Element;
+import org.dom5j.Namespace;
+import org.dom5j.Node;
+import org.dom5j.QName;
+
+/**
+ * <p>
+ * <code>LazyBuilder</code> creates the nodes of a document read by
+ * {@link LazyReader} from its bytes and skeleton, one {@link LazyElement} at
+ * a time. The document has been checked by {@link LazyScanner}, so only
+ * what the scan did not resolve, unbound prefixes and duplicate attributes,
+ * can fail here; such failures are thrown as an
+ * <code>IllegalStateException</code> wrapping a
+ * <code>DocumentException</code>, as the element methods materializing the
+ * content do not declare one.
+ * </p>
+ *
+ * <p>
+ * Like {@link NativeParser}, names are looked up in a symbol table straight
+ * from the bytes and cache the {@link QName} they resolved to last, and short
+ * whitespace text is shared. The table lives as long as the document.
+ * </p>
+ */
+final class LazyBuilder {
+    /** The longest whitespace text which is shared through the symbols */
+    private static final int MAXIMUM_SHARED_WHITESPACE = 64;
+
+    /** The number of symbols after which new names are no longer kept */
+    private static final int MAXIMUM_SYMBOLS = 16 * 1024;
+
+    private final LazyBuffer buffer;
+
+    private final Charset charset;
+
+    private final String systemId;
+
+    private final DocumentFactory factory;
+
+    private final boolean stripWhitespaceText;
+
+    private final boolean ignoreComments;
+
+    private final long[] starts;
+
+    private final long[] contentEnds;
+
+    private final int[] sizes;
+
+    private long pos;
+
+    /** The element being materialized */
+    private LazyElement materializing;
+
+    private byte[] bytes = new byte[256];
+
+    private final StringBuilder text = new StringBuilder();
+
+    private Symbol[] symbols = new Symbol[256];
+
+    private int symbolCount;
+
+    /** The elements being built below the element being materialized */
+    private Element[] openElements = new Element[16];
+
+    private int depth;
+
+    private int[] namespaceMarks = new int[16];
+
+    private String[] namespacePrefixes = new String[16];
+
+    private Namespace[] namespaces = new Namespace[16];
+
+    private int namespaceCount;
+
+    /** Prefixes resolved through the ancestors of the element */
+    private String[] inheritedPrefixes = new String[4];
+
+    private Namespace[] inheritedNamespaces = new Namespace[4];
+
+    private int inheritedCount;
+
+    /** The name of the start tag read last */
+    private Symbol elementName;
+
+    private Symbol[] attributeNames = new Symbol[16];
+
+    private String[] attributeValues = new String[16];
+
+    private int attributeCount;
+
+    LazyBuilder(LazyBuffer buffer, LazyScanner scanner, Charset charset,
+            String systemId, DocumentFactory factory,
+            boolean stripWhitespaceText, boolean ignoreComments) {
+        this.buffer = buffer;
+        this.charset = charset;
+        this.systemId = systemId;
+        this.factory = factory;
+        this.stripWhitespaceText = stripWhitespaceText;
+        this.ignoreComments = ignoreComments;
+
+        int count = scanner.count;
+        this.starts = trim(scanner.starts, count);
+        this.contentEnds = trim(scanner.contentEnds, count);
+        this.sizes = trim(scanner.sizes, count);
+    }
+
+    /**
+     * Creates the document with its prolog, root and trailing nodes. The
+     * content of the root is left to be materialized.
+     *
+     * @param scanner
+     *            DOCUMENT ME!
+     * @param encoding
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     *
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    synchronized Document createDocument(LazyScanner scanner,
+            String encoding) throws DocumentException {
+        Document document = factory.createDocument(encoding);
+        document.setName(systemId);
+
+        try {
+            parseMisc(document, scanner.prologStart, scanner.rootStart);
+
+            pos = starts[0];
+            document.add(createLazyElement(0));
+
+            parseMisc(document, scanner.rootEnd, buffer.length());
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof DocumentException) {
+                throw (DocumentException) e.getCause();
+            }
+
+            throw e;
+        } finally {
+            release();
+        }
+
+        return document;
+    }
+
+    /**
+     * Builds the content of the given element, unless that has been done
+     * already.
+     *
+     * @param element
+     *            DOCUMENT ME!
+     */
+    synchronized void materialize(LazyElement element) {
+        if (element.isMaterialized()) {
+            return;
+        }
+
+        try {
+            build(element);
+        } finally {
+            release();
+        }
+
+        element.materialized();
+    }
+
+    static boolean isCharacter(int c) {
+        return ((c >= 0x20) && (c <= 0xD7FF)) || (c == '\n') || (c == '\t')
+                || (c == '\r') || ((c >= 0xE000) && (c <= 0xFFFD))
+                || ((c >= 0x10000) && (c <= Character.MAX_CODE_POINT));
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private void build(LazyElement element) {
+        int entry = element.getEntry();
+        long end = contentEnds[entry];
+        List<Node> list = element.rawContentList();
+
+        if (end < 0) {
+            return;
+        }
+
+        materializing = element;
+        pos = element.getContentStart();
+
+        int next = entry + 1;
+        int last = entry + sizes[entry];
+        Element current = null;
+
+        while (pos < end) {
+            Node node = null;
+
+            if (buffer.get(pos) != '<') {
+                node = parseText();
+            } else {
+                byte c = buffer.get(pos + 1);
+
+                if (c == '/') {
+                    skipTag();
+                    node = openElements[--depth];
+                    openElements[depth] = null;
+                    namespaceCount = namespaceMarks[depth];
+                    current = (depth > 0) ? openElements[depth - 1] : null;
+
+                    if (current != null) {
+                        // added to its parent at its start tag
+                        continue;
+                    }
+                } else if (c == '?') {
+                    node = parseProcessingInstruction();
+                } else if (c == '!') {
+                    node = parseDeclaration();
+                } else if ((depth == 0) && (next < last)
+                        && (pos == starts[next])) {
+                    node = createLazyElement(next);
+                    pos = contentEnds[next];
+                    skipTag();
+                    next += sizes[next];
+                } else {
+                    int mark = namespaceCount;
+                    boolean empty = parseStartTag();
+                    Element child = factory.createElement(elementQName());
+                    addAttributes(child, mark);
+
+                    if (current != null) {
+                        current.add(child);
+                    }
+
+                    if (empty) {
+                        namespaceCount = mark;
+                        node = child;
+                    } else {
+                        if (depth == openElements.length) {
+                            openElements = grow(openElements);
+
+                            int[] marks = new int[depth * 2];
+                            System.arraycopy(namespaceMarks, 0, marks, 0,
+                                    depth);
+                            namespaceMarks = marks;
+                        }
+
+                        namespaceMarks[depth] = mark;
+                        openElements[depth++] = child;
+                        current = child;
+
+                        continue;
+                    }
+
+                    if (current != null) {
+                        continue;
+                    }
+                }
+            }
+
+            if (node != null) {
+                if (current != null) {
+                    current.add(node);
+                } else {
+                    list.add(node);
+                    node.setParent(element);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the element of the given skeleton entry from its start tag at
+     * the current position, leaving the position after the start tag.
+     *
+     * @param entry
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    private LazyElement createLazyElement(int entry) {
+        int mark = namespaceCount;
+        parseStartTag();
+
+        LazyElement element = new LazyElement(elementQName(), this, entry,
+                pos);
+        addAttributes(element, mark);
+        namespaceCount = mark;
+
+        if (contentEnds[entry] < 0) {
+            element.materialized();
+        }
+
+        return element;
+    }
+
+    private void addAttributes(Element element, int mark) {
+        if (namespaceCount > mark) {
+            List<Node> list = (element instanceof LazyElement)
+                    ? ((LazyElement) element).rawContentList() : null;
+
+            for (int i = mark; i < namespaceCount; i++) {
+                if (list != null) {
+                    list.add(namespaces[i]);
+                    namespaces[i].setParent(element);
+                } else {
+                    element.add(namespaces[i]);
+                }
+            }
+        }
+
+        for (int i = 0; i < attributeCount; i++) {
+            QName qName = attributeQName(attributeNames[i]);
+            element.add(factory.createAttribute(element, qName,
+                    attributeValues[i]));
+            attributeValues[i] = null;
+        }
+    }
+
+    /**
+     * Reads a start tag, declaring its namespaces and keeping its name and
+     * attributes.
+     *
+     * @return whether the element is empty
+     */
+    private boolean parseStartTag() {
+        pos++;
+        elementName = scanName();
+        attributeCount = 0;
+
+        while (true) {
+            skipWhitespace();
+
+            byte b = buffer.get(pos);
+
+            if (b == '>') {
+                pos++;
+
+                return false;
+            } else if (b == '/') {
+                pos += 2;
+
+                return true;
+            }
+
+            Symbol name = scanName();
+            skipWhitespace();
+            pos++;
+            skipWhitespace();
+
+            String value = scanAttributeValue();
+
+            if (name.kind == Symbol.DEFAULT_NAMESPACE) {
+                declareNamespace("", value);
+            } else if (name.kind == Symbol.PREFIXED_NAMESPACE) {
+                declareNamespace(name.localName, value);
+            } else {
+                for (int i = 0; i < attributeCount; i++) {
+                    if (attributeNames[i] == name) {
+                        throw error("Attribute \"" + name.name
+                                + "\" was already specified for element \""
+                                + elementName.name + "\".");
+                    }
+                }
+
+                if (attributeCount == attributeNames.length) {
+                    attributeNames = grow(attributeNames);
+                    attributeValues = grow(attributeValues);
+                }
+
+                attributeNames[attributeCount] = name;
+                attributeValues[attributeCount++] = value;
+            }
+        }
+    }
+
+    private Node parseText() {
+        long start = pos;
+        long segment = pos;
+        boolean whitespace = true;
+        boolean references = false;
+        boolean carriageReturns = false;
+        text.setLength(0);
+
+        while (true) {
+            byte b = buffer.get(pos);
+
+            if (b == '<') {
+                break;
+            } else if (b == '&') {
+                appendDecoded(segment, pos, false);
+                pos++;
+                parseReference();
+                segment = pos;
+                references = true;
+                whitespace = false;
+
+                continue;
+            } else if (b == '\r') {
+                carriageReturns = true;
+            } else if (whitespace && (b != ' ') && (b != '\n')
+                    && (b != '\t')) {
+                whitespace = false;
+            }
+
+            pos++;
+        }
+
+        if (whitespace && stripWhitespaceText) {
+            return null;
+        }
+
+        String value;
+
+        if (references) {
+            appendDecoded(segment, pos, false);
+            value = text.toString();
+        } else if (whitespace && !carriageReturns
+                && (pos - start <= MAXIMUM_SHARED_WHITESPACE)) {
+            value = symbol(start, (int) (pos - start), hash(start, pos)).name;
+        } else {
+            value = normalizeLineBreaks(decode(start, pos));
+        }
+
+        return factory.createText(value);
+    }
+
+    private void parseReference() {
+        if (buffer.get(pos) == '#') {
+            pos++;
+
+            int radix = 10;
+
+            if (buffer.get(pos) == 'x') {
+                pos++;
+                radix = 16;
+            }
+
+            int codePoint = 0;
+
+            while (true) {
+                byte c = buffer.get(pos++);
+
+                if (c == ';') {
+                    break;
+                }
+
+                codePoint = (codePoint * radix) + Character.digit(c, radix);
+            }
+
+            text.appendCodePoint(codePoint);
+
+            return;
+        }
+
+        byte first = buffer.get(pos);
+        byte second = buffer.get(pos + 1);
+
+        if (first == 'l') {
+            text.append('<');
+        } else if (first == 'g') {
+            text.append('>');
+        } else if (first == 'q') {
+            text.append('"');
+        } else if (second == 'm') {
+            text.append('&');
+        } else {
+            text.append('\'');
+        }
+
+        while (buffer.get(pos++) != ';') {
+            // skip the rest of the name
+        }
+    }
+
+    private String scanAttributeValue() {
+        byte quote = buffer.get(pos++);
+        long segment = pos;
+        boolean plain = true;
+        text.setLength(0);
+
+        while (true) {
+            byte b = buffer.get(pos);
+
+            if (b == quote) {
+                break;
+            } else if (b == '&') {
+                appendDecoded(segment, pos, true);
+                pos++;
+                parseReference();
+                segment = pos;
+                plain = false;
+
+                continue;
+            } else if ((b >= 0) && (b < ' ')) {
+                plain = false;
+            }
+
+            pos++;
+        }
+
+        String value;
+
+        if (plain) {
+            value = decode(segment, pos);
+        } else {
+            appendDecoded(segment, pos, true);
+            value = text.toString();
+        }
+
+        pos++;
+
+        return value;
+    }
+
+    private Node parseDeclaration() {
+        if (buffer.get(pos + 2) == '-') {
+            pos += 4;
+
+            String comment = scanUntil("-->");
+
+            return ignoreComments ? null : factory.createComment(comment);
+        }
+
+        pos += 9;
+
+        return factory.createCDATA(scanUntil("]]>"));
+    }
+
+    private Node parseProcessingInstruction() {
+        pos += 2;
+
+        String target = scanName().name;
+        String data = "";
+
+        if (skipWhitespace()) {
+            data = scanUntil("?>");
+        } else {
+            pos += 2;
+        }
+
+        return factory.createProcessingInstruction(target, data);
+    }
+
+    /**
+     * Reads the comments, processing instructions and document type of the
+     * prolog or the end of the document.
+     *
+     * @param document
+     *            DOCUMENT ME!
+     * @param from
+     *            DOCUMENT ME!
+     * @param to
+     *            DOCUMENT ME!
+     */
+    private void parseMisc(Document document, long from, long to) {
+        pos = from;
+
+        while (true) {
+            skipWhitespace(to);
+
+            if (pos >= to) {
+                return;
+            }
+
+            byte c = buffer.get(pos + 1);
+            Node node;
+
+            if (c == '?') {
+                node = parseProcessingInstruction();
+            } else if (buffer.get(pos + 2) == '-') {
+                node = parseDeclaration();
+            } else {
+                parseDocumentType(document);
+                node = null;
+            }
+
+            if (node != null) {
+                document.add(node);
+            }
+        }
+    }
+
+    private void parseDocumentType(Document document) {
+        pos += 9;
+        skipWhitespace();
+
+        String name = scanName().name;
+        String publicId = null;
+        String documentTypeSystemId = null;
+        skipWhitespace();
+
+        byte b = buffer.get(pos);
+
+        if (b == 'P') {
+            pos += 6;
+            skipWhitespace();
+            publicId = scanLiteral();
+            skipWhitespace();
+            documentTypeSystemId = scanLiteral();
+        } else if (b == 'S') {
+            pos += 6;
+            skipWhitespace();
+            documentTypeSystemId = scanLiteral();
+        }
+
+        skipWhitespace();
+
+        if (buffer.get(pos) == '[') {
+            skipInternalSubset();
+            skipWhitespace();
+        }
+
+        pos++;
+        document.addDocType(name, publicId, documentTypeSystemId);
+    }
+
+    private void skipInternalSubset() {
+        byte quote = 0;
+        boolean comment = false;
+
+        for (pos++; ; pos++) {
+            byte b = buffer.get(pos);
+
+            if (comment) {
+                if ((b == '-') && (buffer.get(pos + 1) == '-')
+                        && (buffer.get(pos + 2) == '>')) {
+                    comment = false;
+                    pos += 2;
+                }
+            } else if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if ((b == '"') || (b == '\'')) {
+                quote = b;
+            } else if ((b == '<') && (buffer.get(pos + 1) == '!')
+                    && (buffer.get(pos + 2) == '-')) {
+                comment = true;
+                pos += 3;
+            } else if (b == ']') {
+                pos++;
+
+                return;
+            }
+        }
+    }
+
+    private String scanLiteral() {
+        byte quote = buffer.get(pos++);
+        long start = pos;
+
+        while (buffer.get(pos) != quote) {
+            pos++;
+        }
+
+        return decode(start, pos++);
+    }
+
+    /**
+     * Reads bytes up to the given terminator, which is skipped.
+     *
+     * @param terminator
+     *            DOCUMENT ME!
+     *
+     * @return the text read with its line breaks normalized
+     */
+    private String scanUntil(String terminator) {
+        byte first = (byte) terminator.charAt(0);
+        int length = terminator.length();
+        long start = pos;
+
+        while (true) {
+            if (buffer.get(pos) == first) {
+                int i = 1;
+
+                while ((i < length)
+                        && (buffer.get(pos + i) == terminator.charAt(i))) {
+                    i++;
+                }
+
+                if (i == length) {
+                    break;
+                }
+            }
+
+            pos++;
+        }
+
+        String value = normalizeLineBreaks(decode(start, pos));
+        pos += length;
+
+        return value;
+    }
+
+    /**
+     * Skips an end tag, or the end of the tag of a recorded element.
+     */
+    private void skipTag() {
+        while (buffer.get(pos) != '>') {
+            pos++;
+        }
+
+        pos++;
+    }
+
+    private Symbol scanName() {
+        long start = pos;
+        int hash = 0;
+
+        while (true) {
+            byte b = buffer.get(pos);
+
+            if ((b >= 0) && ((b <= ' ') || (b == '>') || (b == '/')
+                    || (b == '=') || (b == '?') || (b == ';'))) {
+                break;
+            }
+
+            hash = (31 * hash) + b;
+            pos++;
+        }
+
+        return symbol(start, (int) (pos - start), hash);
+    }
+
+    private int hash(long start, long end) {
+        int hash = 0;
+
+        for (long i = start; i < end; i++) {
+            hash = (31 * hash) + buffer.get(i);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Finds or adds the symbol for the given bytes.
+     *
+     * @param start
+     *            DOCUMENT ME!
+     * @param length
+     *            DOCUMENT ME!
+     * @param hash
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    private Symbol symbol(long start, int length, int hash) {
+        Symbol[] table = symbols;
+        int index = hash & (table.length - 1);
+
+        search: for (Symbol symbol = table[index]; symbol != null;
+                symbol = symbol.next) {
+            if ((symbol.hash == hash) && (symbol.bytes.length == length)) {
+                byte[] candidate = symbol.bytes;
+
+                for (int i = 0; i < length; i++) {
+                    if (candidate[i] != buffer.get(start + i)) {
+                        continue search;
+                    }
+                }
+
+                return symbol;
+            }
+        }
+
+        byte[] key = new byte[length];
+        buffer.get(start, key, 0, length);
+
+        Symbol symbol = new Symbol(key, hash, new String(key, charset));
+
+        if (symbolCount < MAXIMUM_SYMBOLS) {
+            symbol.next = table[index];
+            table[index] = symbol;
+
+            if (++symbolCount > ((table.length * 3) / 4)) {
+                rehash();
+            }
+        }
+
+        return symbol;
+    }
+
+    private void rehash() {
+        Symbol[] table = new Symbol[symbols.length * 2];
+
+        for (int i = 0; i < symbols.length; i++) {
+            Symbol symbol = symbols[i];
+
+            while (symbol != null) {
+                Symbol next = symbol.next;
+                int index = symbol.hash & (table.length - 1);
+                symbol.next = table[index];
+                table[index] = symbol;
+                symbol = next;
+            }
+        }
+
+        symbols = table;
+    }
+
+    private QName elementQName() {
+        Symbol name = elementName;
+        Namespace namespace;
+
+        if (name.prefix == null) {
+            namespace = findNamespace("");
+        } else {
+            namespace = findNamespace(name.prefix);
+
+            if (namespace == null) {
+                throw error("The prefix \"" + name.prefix + "\" for element \""
+                        + name.name + "\" is not bound.");
+            }
+        }
+
+        if (name.elementNamespace != namespace) {
+            name.elementQName = factory.createQName(name.localName, namespace);
+            name.elementNamespace = namespace;
+        }
+
+        return name.elementQName;
+    }
+
+    private QName attributeQName(Symbol name) {
+        Namespace namespace = Namespace.NO_NAMESPACE;
+
+        if (name.prefix != null) {
+            namespace = findNamespace(name.prefix);
+
+            if (namespace == null) {
+                throw error("The prefix \"" + name.prefix
+                        + "\" for attribute \"" + name.name
+                        + "\" is not bound.");
+            }
+        }
+
+        if (name.attributeNamespace != namespace) {
+            name.attributeQName = factory.createQName(name.localName,
+                    namespace);
+            name.attributeNamespace = namespace;
+        }
+
+        return name.attributeQName;
+    }
+
+    private void declareNamespace(String prefix, String uri) {
+        if (namespaceCount == namespaces.length) {
+            namespacePrefixes = grow(namespacePrefixes);
+            namespaces = grow(namespaces);
+        }
+
+        namespacePrefixes[namespaceCount] = prefix;
+        namespaces[namespaceCount++] = factory.createNamespace(prefix, uri);
+    }
+
+    /**
+     * Finds the namespace of a prefix among the declarations read so far and
+     * then those in scope of the element being materialized.
+     *
+     * @param prefix
+     *            DOCUMENT ME!
+     *
+     * @return the namespace, NO_NAMESPACE for an undeclared default
+     *         namespace or null if the prefix is not bound
+     */
+    private Namespace findNamespace(String prefix) {
+        for (int i = namespaceCount - 1; i >= 0; i--) {
+            if (namespacePrefixes[i].equals(prefix)) {
+                return namespaces[i];
+            }
+        }
+
+        for (int i = 0; i < inheritedCount; i++) {
+            if (inheritedPrefixes[i].equals(prefix)) {
+                return inheritedNamespaces[i];
+            }
+        }
+
+        Namespace namespace;
+
+        if (materializing != null) {
+            namespace = materializing.getNamespaceForPrefix(prefix);
+        } else if (prefix.equals("xml")) {
+            namespace = Namespace.XML_NAMESPACE;
+        } else {
+            namespace = (prefix.length() == 0) ? Namespace.NO_NAMESPACE
+                    : null;
+        }
+
+        if (inheritedCount == inheritedPrefixes.length) {
+            inheritedPrefixes = grow(inheritedPrefixes);
+            inheritedNamespaces = grow(inheritedNamespaces);
+        }
+
+        inheritedPrefixes[inheritedCount] = prefix;
+        inheritedNamespaces[inheritedCount++] = namespace;
+
+        return namespace;
+    }
+
+    private boolean skipWhitespace() {
+        return skipWhitespace(Long.MAX_VALUE);
+    }
+
+    private boolean skipWhitespace(long to) {
+        long start = pos;
+
+        while (pos < to) {
+            byte b = buffer.get(pos);
+
+            if ((b != ' ') && (b != '\n') && (b != '\t') && (b != '\r')) {
+                break;
+            }
+
+            pos++;
+        }
+
+        return pos > start;
+    }
+
+    private String decode(long start, long end) {
+        int length = (int) (end - start);
+
+        if (length > bytes.length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+
+        buffer.get(start, bytes, 0, length);
+
+        return new String(bytes, 0, length, charset);
+    }
+
+    /**
+     * Appends the decoded bytes to the text, normalizing line breaks and,
+     * in attribute values, whitespace.
+     *
+     * @param start
+     *            DOCUMENT ME!
+     * @param end
+     *            DOCUMENT ME!
+     * @param attribute
+     *            DOCUMENT ME!
+     */
+    private void appendDecoded(long start, long end, boolean attribute) {
+        if (start == end) {
+            return;
+        }
+
+        String value = normalizeLineBreaks(decode(start, end));
+
+        if (attribute) {
+            value = value.replace('\n', ' ').replace('\t', ' ');
+        }
+
+        text.append(value);
+    }
+
+    private static String normalizeLineBreaks(String value) {
+        if (value.indexOf('\r') < 0) {
+            return value;
+        }
+
+        return value.replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    private IllegalStateException error(String message) {
+        long line = 1;
+
+        for (long i = 0; i < pos; i++) {
+            if (buffer.get(i) == '\n') {
+                line++;
+            }
+        }
+
+        String id = (systemId != null) ? systemId : "";
+        DocumentException exception = new DocumentException("Error on line "
+                + line + " of document " + id + " : " + message);
+
+        return new IllegalStateException(exception.getMessage(), exception);
+    }
+
+    /**
+     * Drops the state of the element materialized last.
+     */
+    private void release() {
+        for (int i = 0; i < depth; i++) {
+            openElements[i] = null;
+        }
+
+        for (int i = 0; i < attributeCount; i++) {
+            attributeValues[i] = null;
+        }
+
+        materializing = null;
+        depth = 0;
+        namespaceCount = 0;
+        inheritedCount = 0;
+        attributeCount = 0;
+
+        if (bytes.length > 64 * 1024) {
+            bytes = new byte[256];
+        }
+
+        if (text.length() > 64 * 1024) {
+            text.setLength(0);
+            text.trimToSize();
+        }
+    }
+
+    private static long[] trim(long[] array, int length) {
+        long[] answer = new long[length];
+        System.arraycopy(array, 0, answer, 0, length);
+
+        return answer;
+    }
+
+    private static int[] trim(int[] array, int length) {
+        int[] answer = new int[length];
+        System.arraycopy(array, 0, answer, 0, length);
+
+        return answer;
+    }
+
+    private static Element[] grow(Element[] array) {
+        Element[] answer = new Element[array.length * 2];
+        System.arraycopy(array, 0, answer, 0, array.length);
+
+        return answer;
+    }
+
+    private static Symbol[] grow(Symbol[] array) {
+        Symbol[] answer = new Symbol[array.length * 2];
+        System.arraycopy(array, 0, answer, 0, array.length);
+
+        return answer;
+    }
+
+    private static String[] grow(String[] array) {
+        String[] answer = new String[array.length * 2];
+        System.arraycopy(array, 0, answer, 0, array.length);
+
+        return answer;
+    }
+
+    private static Namespace[] grow(Namespace[] array) {
+        Namespace[] answer = new Namespace[array.length * 2];
+        System.arraycopy(array, 0, answer, 0, array.length);
+
+        return answer;
+    }
+
+    /**
+     * A name or whitespace string found in the document, with the
+     * <code>QName</code> it resolved to last.
+     */
+    private static final class Symbol {
+        static final int NAME = 0;
+
+        static final int DEFAULT_NAMESPACE = 1;
+
+        static final int PREFIXED_NAMESPACE = 2;
+
+        final byte[] bytes;
+
+        final int hash;
+
+        final String name;
+
+        final String prefix;
+
+        final String localName;
+
+        final int kind;
+
+        Symbol next;
+
+        Namespace elementNamespace;
+
+        QName elementQName;
+
+        Namespace attributeNamespace;
+
+        QName attributeQName;
+
+        Symbol(byte[] bytes, int hash, String name) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.name = name;
+
+            int colon = name.indexOf(':');
+
+            if (colon > 0) {
+                this.prefix = name.substring(0, colon);
+                this.localName = name.substring(colon + 1);
+            } else {
+                this.prefix = null;
+                this.localName = name;
+            }
+
+            if ("xmlns".equals(name)) {
+                this.kind = DEFAULT_NAMESPACE;
+            } else if ("xmlns".equals(prefix)) {
+                this.kind = PREFIXED_NAMESPACE;
+            } else {
+                this.kind = NAME;
+            }
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.util.List;
+
+import org.dom5j.Element;
+import org.dom5j.Namespace;
+import org.dom5j.Node;
+import org.dom5j.QName;
+import org.dom5j.tree.BaseElement;
+
+/**
+ * <p>
+ * <code>LazyElement</code> is an element of a document read by
+ * {@link LazyReader} whose content is built from the bytes of the document
+ * the first time it is needed. Its name, attributes and namespace
+ * declarations are there from the start; anything which looks at its
+ * content, such as {@link #content()}, {@link #elements()}, {@link
+ * #getText()} or {@link #nodeCount()}, materializes it first.
+ * </p>
+ *
+ * <p>
+ * Materializing creates the child elements large enough to have been
+ * recorded by the reader as <code>LazyElement</code> instances, which are
+ * in turn materialized on demand, and builds the smaller ones completely.
+ * Once materialized it behaves like any other element and may be modified.
+ * </p>
+ *
+ * <p>
+ * Materializing is synchronized on the document it belongs to, so a lazy
+ * document which is not modified may be read by several threads.
+ * </p>
+ */
+public class LazyElement extends BaseElement {
+    /** Builds the content, or null once it has been built */
+    private volatile LazyBuilder builder;
+
+    /** The entry of this element in the skeleton of the document */
+    private final int entry;
+
+    /** The offset of the content after the start tag */
+    private final long contentStart;
+
+    LazyElement(QName qname, LazyBuilder builder, int entry,
+            long contentStart) {
+        super(qname);
+        this.builder = builder;
+        this.entry = entry;
+        this.contentStart = contentStart;
+    }
+
+    /**
+     * Returns whether the content of this element has been built.
+     *
+     * @return true if the content has been built
+     */
+    public boolean isMaterialized() {
+        return builder == null;
+    }
+
+    public Namespace getNamespaceForPrefix(String prefix) {
+        LazyBuilder source = builder;
+
+        if (source != null) {
+            synchronized (source) {
+                if (builder != null) {
+                    return findNamespace(prefix);
+                }
+            }
+        }
+
+        return super.getNamespaceForPrefix(prefix);
+    }
+
+    public void setContent(List<Node> content) {
+        builder = null;
+        super.setContent(content);
+    }
+
+    public void clearContent() {
+        builder = null;
+        super.clearContent();
+    }
+
+    public Object clone() {
+        LazyElement answer = (LazyElement) super.clone();
+
+        if (answer != this) {
+            answer.builder = null;
+            answer.content = null;
+            answer.attributes = null;
+            answer.appendAttributes(this);
+            answer.appendContent(this);
+        }
+
+        return answer;
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    protected List<Node> contentList() {
+        LazyBuilder source = builder;
+
+        if (source != null) {
+            source.materialize(this);
+        }
+
+        return super.contentList();
+    }
+
+    int getEntry() {
+        return entry;
+    }
+
+    long getContentStart() {
+        return contentStart;
+    }
+
+    /**
+     * Returns the content list without materializing it, for the builder.
+     *
+     * @return the content built so far
+     */
+    List<Node> rawContentList() {
+        return super.contentList();
+    }
+
+    void materialized() {
+        builder = null;
+    }
+
+    /**
+     * Looks up a prefix without materializing this element, whose content
+     * only holds its namespace declarations so far.
+     *
+     * @param prefix
+     *            is the prefix to look up, or null for the default namespace
+     *
+     * @return the namespace in scope for the prefix, or null if none is
+     */
+    private Namespace findNamespace(String prefix) {
+        if (prefix == null) {
+            prefix = "";
+        }
+
+        if (prefix.equals(getNamespacePrefix())) {
+            return getNamespace();
+        } else if (prefix.equals("xml")) {
+            return Namespace.XML_NAMESPACE;
+        }
+
+        if (content != null) {
+            for (int i = 0, size = content.size(); i < size; i++) {
+                Object object = content.get(i);
+
+                if (!(object instanceof Namespace)) {
+                    // the content being built follows the declarations
+                    break;
+                }
+
+                Namespace namespace = (Namespace) object;
+
+                if (prefix.equals(namespace.getPrefix())) {
+                    return namespace;
+                }
+            }
+        }
+
+        Element parent = getParent();
+
+        if (parent != null) {
+            Namespace answer = parent.getNamespaceForPrefix(prefix);
+
+            if (answer != null) {
+                return answer;
+            }
+        }
+
+        return (prefix.length() == 0) ? Namespace.NO_NAMESPACE : null;
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.dom5j.Document;
+import org.dom5j.DocumentException;
+import org.dom5j.DocumentFactory;
+
+/**
+ * <p>
+ * <code>LazyReader</code> reads documents whose content is only built when
+ * it is looked at. Reading makes one pass over the bytes, checking that the
+ * document is well-formed and recording the offsets of its larger elements,
+ * and returns a document whose root is a {@link LazyElement}. Each
+ * <code>LazyElement</code> builds its content from the bytes the first time
+ * its content is asked for; branches which are never visited cost an entry
+ * of 20 bytes in the skeleton or nothing at all.
+ * </p>
+ *
+ * <p>
+ * Elements smaller than the {@link #getMinimumLazySize() minimum lazy size}
+ * are not recorded and are built completely together with their parent, so
+ * the skeleton stays small. A parent with many small children, such as the
+ * root of a flat record file, creates all of them once its content is
+ * needed.
+ * </p>
+ *
+ * <p>
+ * The bytes are kept for the life of the document: files are memory mapped
+ * and other input is held in memory. The encoding must be ASCII compatible,
+ * such as UTF-8 or ISO-8859-1, and the document must not declare general
+ * entities. The external subset is not read. Unbound prefixes and duplicate
+ * attributes are only found when the element holding them is materialized
+ * and are then thrown as an <code>IllegalStateException</code>. Adjacent
+ * text is always merged into one node.
+ * </p>
+ */
+public class LazyReader {
+    /** The default minimum size in bytes of the elements recorded */
+    public static final int DEFAULT_MINIMUM_LAZY_SIZE = 1024;
+
+    /** <code>DocumentFactory</code> used to create new document objects */
+    private DocumentFactory factory;
+
+    /** Should we ignore whitespace only text nodes */
+    private boolean stripWhitespaceText = false;
+
+    /** Should we ignore comments */
+    private boolean ignoreComments = false;
+
+    /** The size from which elements are materialized on their own */
+    private int minimumLazySize = DEFAULT_MINIMUM_LAZY_SIZE;
+
+    public LazyReader() {
+    }
+
+    public LazyReader(DocumentFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Reads a Document from the given <code>File</code>, which is memory
+     * mapped.
+     *
+     * @param file
+     *            is the <code>File</code> to read from.
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(File file) throws DocumentException {
+        return read(file.toPath());
+    }
+
+    /**
+     * Reads a Document from the given <code>Path</code>, which is memory
+     * mapped.
+     *
+     * @param path
+     *            is the <code>Path</code> to read from.
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(Path path) throws DocumentException {
+        String systemId = path.toAbsolutePath().toUri().toString();
+        LazyBuffer buffer;
+
+        try {
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.READ);
+
+            try {
+                buffer = LazyBuffer.map(channel);
+            } finally {
+                // the mappings stay valid
+                channel.close();
+            }
+        } catch (UnsupportedOperationException e) {
+            try {
+                byte[] bytes = Files.readAllBytes(path);
+                buffer = LazyBuffer.wrap(bytes, 0, bytes.length);
+            } catch (IOException ex) {
+                throw new DocumentException(ex.getMessage(), ex);
+            }
+        } catch (IOException e) {
+            throw new DocumentException(e.getMessage(), e);
+        }
+
+        return read(buffer, systemId);
+    }
+
+    /**
+     * Reads a Document from the given stream, which is read to its end and
+     * kept in memory.
+     *
+     * @param in
+     *            <code>InputStream</code> to read from.
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(InputStream in) throws DocumentException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+            byte[] buffer = new byte[8192];
+            int count;
+
+            while ((count = in.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+
+            return read(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new DocumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads a Document from the given bytes, which must not be changed while
+     * the document is in use.
+     *
+     * @param bytes
+     *            DOCUMENT ME!
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(byte[] bytes) throws DocumentException {
+        return read(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Reads a Document from part of the given bytes, which must not be
+     * changed while the document is in use.
+     *
+     * @param bytes
+     *            DOCUMENT ME!
+     * @param offset
+     *            the offset of the document in the bytes
+     * @param length
+     *            the length of the document in bytes
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(byte[] bytes, int offset, int length)
+            throws DocumentException {
+        return read(LazyBuffer.wrap(bytes, offset, length), null);
+    }
+
+    // Properties
+    // -------------------------------------------------------------------------
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return the <code>DocumentFactory</code> used to create document
+     *         objects
+     */
+    public DocumentFactory getDocumentFactory() {
+        if (factory == null) {
+            factory = DocumentFactory.getInstance();
+        }
+
+        return factory;
+    }
+
+    /**
+     * <p>
+     * This sets the <code>DocumentFactory</code> used to create the
+     * document, the elements too small to be materialized on their own and
+     * the other nodes. Lazy elements are always {@link LazyElement}
+     * instances.
+     * </p>
+     *
+     * @param documentFactory
+     *            <code>DocumentFactory</code> used to create DOM4J objects
+     */
+    public void setDocumentFactory(DocumentFactory documentFactory) {
+        this.factory = documentFactory;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return true if whitespace only text nodes are stripped
+     */
+    public boolean isStripWhitespaceText() {
+        return stripWhitespaceText;
+    }
+
+    /**
+     * Sets whether whitespace only text nodes are stripped
+     *
+     * @param stripWhitespaceText
+     *            DOCUMENT ME!
+     */
+    public void setStripWhitespaceText(boolean stripWhitespaceText) {
+        this.stripWhitespaceText = stripWhitespaceText;
+    }
+
+    /**
+     * Returns whether we should ignore comments or not.
+     *
+     * @return boolean
+     */
+    public boolean isIgnoreComments() {
+        return ignoreComments;
+    }
+
+    /**
+     * Sets whether we should ignore comments or not.
+     *
+     * @param ignoreComments
+     *            whether we should ignore comments or not.
+     */
+    public void setIgnoreComments(boolean ignoreComments) {
+        this.ignoreComments = ignoreComments;
+    }
+
+    public int getMinimumLazySize() {
+        return minimumLazySize;
+    }
+
+    /**
+     * Sets the size in bytes, tags included, from which elements are
+     * recorded and materialized on their own. Smaller values make
+     * materializing finer grained at the cost of a larger skeleton.
+     *
+     * @param minimumLazySize
+     *            DOCUMENT ME!
+     */
+    public void setMinimumLazySize(int minimumLazySize) {
+        if (minimumLazySize <= 0) {
+            throw new IllegalArgumentException(
+                    "minimumLazySize must be positive: " + minimumLazySize);
+        }
+
+        this.minimumLazySize = minimumLazySize;
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private Document read(LazyBuffer buffer, String systemId)
+            throws DocumentException {
+        LazyScanner scanner = new LazyScanner(buffer, systemId,
+                minimumLazySize);
+        scanner.scan();
+
+        String encoding = (scanner.encoding != null) ? scanner.encoding
+                : "UTF-8";
+        Charset charset;
+
+        try {
+            charset = Charset.forName(encoding);
+        } catch (IllegalCharsetNameException e) {
+            throw unsupportedEncoding(encoding, systemId, e);
+        } catch (UnsupportedCharsetException e) {
+            throw unsupportedEncoding(encoding, systemId, e);
+        }
+
+        if (!isASCIICompatible(charset)) {
+            throw new DocumentException("Only ASCII compatible encodings can "
+                    + "be read lazily: " + encoding);
+        }
+
+        LazyBuilder builder = new LazyBuilder(buffer, scanner, charset,
+                systemId, getDocumentFactory(), stripWhitespaceText,
+                ignoreComments);
+
+        return builder.createDocument(scanner, encoding);
+    }
+
+    private static boolean isASCIICompatible(Charset charset) {
+        byte[] bytes = "<?xml =\"'&;/>".getBytes(charset);
+
+        return new String(bytes, StandardCharsets.ISO_8859_1)
+                .equals("<?xml =\"'&;/>");
+    }
+
+    private static DocumentException unsupportedEncoding(String encoding,
+            String systemId, Exception e) {
+        return new DocumentException("Error on line 1 of document "
+                + ((systemId != null) ? systemId : "")
+                + " : Invalid encoding name \"" + encoding + "\".", e);
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -0,0 +1,910 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.nio.charset.StandardCharsets;
+
+import org.dom5j.DocumentException;
+
+/**
+ * <p>
+ * <code>LazyScanner</code> makes the single pass of {@link LazyReader} over
+ * the bytes of a document. It checks that the document is well-formed and
+ * records its skeleton: the offsets of the elements which are large enough to
+ * be materialized on their own, in document order.
+ * </p>
+ *
+ * <p>
+ * Entry <code>i</code> of the skeleton holds the offset of the start tag of
+ * its element, the offset of its end tag and the number of entries in the
+ * subtree it heads, itself included, so that its recorded children are the
+ * entries following it, each skipping the subtree of the one before. The
+ * entry of an element smaller than the minimum size is dropped at its end
+ * tag; the entries of its descendants, which are smaller still, have been
+ * dropped already, so it is always the last one. The root is always
+ * recorded.
+ * </p>
+ *
+ * <p>
+ * Names are compared as bytes and not resolved, so unbound prefixes and
+ * duplicate attributes are only reported when the element holding them is
+ * materialized.
+ * </p>
+ */
+final class LazyScanner {
+    /** The number of bytes copied from the buffer at a time */
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    /** Whether a byte ends a name, indexed by byte */
+    private static final boolean[] NAME_END = new boolean[128];
+
+    static {
+        for (int c = 0; c <= ' '; c++) {
+            NAME_END[c] = true;
+        }
+
+        String delimiters = "<>/=?!\"'&;[]%";
+
+        for (int i = 0; i < delimiters.length(); i++) {
+            NAME_END[delimiters.charAt(i)] = true;
+        }
+    }
+
+    private final LazyBuffer buffer;
+
+    private final long length;
+
+    private final String systemId;
+
+    private final int minimumLazySize;
+
+    private long pos;
+
+    /** A copy of the bytes from the position on, faster to read than a map */
+    private final byte[] window = new byte[WINDOW_SIZE];
+
+    /** The offset of the first byte of the window */
+    private long windowStart;
+
+    private int windowLength;
+
+    /** The encoding declared by the document, or null */
+    String encoding;
+
+    /** The offset after the byte order mark and the XML declaration */
+    long prologStart;
+
+    /** The offset of the start tag of the root element */
+    long rootStart = -1;
+
+    /** The offset after the end tag of the root element */
+    long rootEnd = -1;
+
+    /** The offset of the start tag of each recorded element */
+    long[] starts = new long[64];
+
+    /** The offset of the end tag of each recorded element, or -1 if empty */
+    long[] contentEnds = new long[64];
+
+    /** The number of entries in the subtree of each recorded element */
+    int[] sizes = new int[64];
+
+    /** The number of recorded elements */
+    int count;
+
+    /** The entry of each open element */
+    private int[] openEntries = new int[32];
+
+    /** The offset of the name of each open element */
+    private long[] nameStarts = new long[32];
+
+    /** The length of the name of each open element */
+    private int[] nameLengths = new int[32];
+
+    private int depth;
+
+    private boolean documentType;
+
+    LazyScanner(LazyBuffer buffer, String systemId, int minimumLazySize) {
+        this.buffer = buffer;
+        this.length = buffer.length();
+        this.systemId = systemId;
+        this.minimumLazySize = minimumLazySize;
+    }
+
+    void scan() throws DocumentException {
+        if ((length >= 3) && (at(0) == (byte) 0xEF)
+                && (at(1) == (byte) 0xBB)
+                && (at(2) == (byte) 0xBF)) {
+            pos = 3;
+        } else if (length >= 2) {
+            byte b0 = at(0);
+            byte b1 = at(1);
+
+            if (((b0 == (byte) 0xFE) && (b1 == (byte) 0xFF))
+                    || ((b0 == (byte) 0xFF) && (b1 == (byte) 0xFE))
+                    || (b0 == 0) || (b1 == 0)) {
+                throw error("Only ASCII compatible encodings can be read "
+                        + "lazily.");
+            }
+        }
+
+        if (startsWith("<?xml") && (pos + 5 < length)
+                && isWhitespace(at(pos + 5))) {
+            pos += 6;
+            scanXMLDeclaration();
+        }
+
+        prologStart = pos;
+
+        while (pos < length) {
+            if (at(pos) != '<') {
+                scanText();
+            } else if (pos + 1 == length) {
+                throw endOfFile();
+            } else {
+                byte c = at(pos + 1);
+
+                if (c == '/') {
+                    scanEndTag();
+                } else if (c == '?') {
+                    pos += 2;
+                    scanProcessingInstruction();
+                } else if (c == '!') {
+                    scanDeclaration();
+                } else {
+                    scanStartTag();
+                }
+            }
+        }
+
+        if (depth > 0) {
+            throw endOfFile();
+        } else if (rootStart < 0) {
+            throw error("Premature end of file.");
+        }
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private void scanXMLDeclaration() throws DocumentException {
+        while (true) {
+            skipWhitespace();
+
+            if (peek() == '?') {
+                pos++;
+                expect('>');
+
+                return;
+            }
+
+            long nameStart = pos;
+            int nameLength = scanName();
+            skipWhitespace();
+            expect('=');
+            skipWhitespace();
+
+            long valueStart = pos + 1;
+            scanAttributeValue();
+
+            if (string(nameStart, nameLength).equals("encoding")) {
+                encoding = string(valueStart, (int) (pos - valueStart - 1));
+            }
+        }
+    }
+
+    private void scanStartTag() throws DocumentException {
+        if ((depth == 0) && (rootStart >= 0)) {
+            throw error("The markup in the document following the root "
+                    + "element must be well-formed.");
+        }
+
+        long start = pos++;
+        long nameStart = pos;
+        int nameLength = scanName();
+        boolean empty = false;
+
+        while (true) {
+            boolean separated = skipWhitespace();
+            byte b = peek();
+
+            if (b == '>') {
+                pos++;
+
+                break;
+            } else if (b == '/') {
+                pos++;
+                expect('>');
+                empty = true;
+
+                break;
+            } else if (!separated) {
+                throw error("Element type \"" + string(nameStart, nameLength)
+                        + "\" must be followed by either attribute "
+                        + "specifications, \">\" or \"/>\".");
+            }
+
+            scanName();
+            skipWhitespace();
+            expect('=');
+            skipWhitespace();
+            scanAttributeValue();
+        }
+
+        if (depth == 0) {
+            rootStart = start;
+
+            if (empty) {
+                addEntry(start);
+                contentEnds[0] = -1;
+                sizes[0] = 1;
+                rootEnd = pos;
+
+                return;
+            }
+        } else if (empty) {
+            // an empty element is created together with its parent
+            return;
+        }
+
+        if (depth == openEntries.length) {
+            openEntries = grow(openEntries);
+            nameStarts = grow(nameStarts);
+            nameLengths = grow(nameLengths);
+        }
+
+        openEntries[depth] = addEntry(start);
+        nameStarts[depth] = nameStart;
+        nameLengths[depth++] = nameLength;
+    }
+
+    private void scanEndTag() throws DocumentException {
+        long endTag = pos;
+        pos += 2;
+
+        long nameStart = pos;
+        int nameLength = scanName();
+
+        if (depth == 0) {
+            throw error("The end-tag for element type \""
+                    + string(nameStart, nameLength)
+                    + "\" has no matching start-tag.");
+        }
+
+        long openStart = nameStarts[depth - 1];
+        int openLength = nameLengths[depth - 1];
+        boolean matches = openLength == nameLength;
+
+        for (int i = 0; matches && (i < nameLength); i++) {
+            matches = at(openStart + i) == at(nameStart + i);
+        }
+
+        if (!matches) {
+            String name = string(openStart, openLength);
+
+            throw error("The element type \"" + name
+                    + "\" must be terminated by the matching end-tag \"</"
+                    + name + ">\".");
+        }
+
+        skipWhitespace();
+        expect('>');
+
+        int entry = openEntries[--depth];
+
+        if (depth == 0) {
+            rootEnd = pos;
+        } else if ((pos - starts[entry]) < minimumLazySize) {
+            count = entry;
+
+            return;
+        }
+
+        contentEnds[entry] = endTag;
+        sizes[entry] = count - entry;
+    }
+
+    private void scanText() throws DocumentException {
+        boolean outside = depth == 0;
+
+        while (pos < length) {
+            int index = window(pos);
+            byte[] bytes = window;
+            int limit = windowLength;
+
+            while (index < limit) {
+                byte b = bytes[index];
+
+                if (b == '<') {
+                    pos = windowStart + index;
+
+                    return;
+                } else if (b == '&') {
+                    pos = windowStart + index;
+
+                    if (outside) {
+                        throw contentOutsideRoot();
+                    }
+
+                    pos++;
+                    scanReference();
+
+                    break;
+                } else if ((b >= 0) && (b <= ' ')) {
+                    if (!isWhitespace(b)) {
+                        pos = windowStart + index;
+
+                        throw invalidCharacter(b);
+                    }
+                } else if (outside) {
+                    pos = windowStart + index;
+
+                    throw contentOutsideRoot();
+                }
+
+                index++;
+            }
+
+            if (index == limit) {
+                pos = windowStart + limit;
+            }
+        }
+    }
+
+    /**
+     * Checks a reference after its <code>&amp;</code>. Only character
+     * references and the predefined entities are allowed.
+     *
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private void scanReference() throws DocumentException {
+        if (peek() == '#') {
+            pos++;
+            scanCharacterReference();
+
+            return;
+        }
+
+        long nameStart = pos;
+        int nameLength = scanName();
+        expect(';');
+
+        if (!isPredefinedEntity(nameStart, nameLength)) {
+            throw error("The entity \"" + string(nameStart, nameLength)
+                    + "\" was referenced, but not declared.");
+        }
+    }
+
+    private boolean isPredefinedEntity(long start, int nameLength) {
+        byte first = at(start);
+
+        if (nameLength == 2) {
+            return ((first == 'l') || (first == 'g')) && (at(start + 1) == 't');
+        } else if (nameLength == 3) {
+            return (first == 'a') && (at(start + 1) == 'm')
+                    && (at(start + 2) == 'p');
+        } else if (nameLength == 4) {
+            return ((first == 'q') && (at(start + 1) == 'u')
+                    && (at(start + 2) == 'o') && (at(start + 3) == 't'))
+                    || ((first == 'a') && (at(start + 1) == 'p')
+                    && (at(start + 2) == 'o') && (at(start + 3) == 's'));
+        }
+
+        return false;
+    }
+
+    private void scanCharacterReference() throws DocumentException {
+        int radix = 10;
+
+        if (peek() == 'x') {
+            pos++;
+            radix = 16;
+        }
+
+        int codePoint = 0;
+        int digits = 0;
+
+        while (true) {
+            byte c = peek();
+
+            if (c == ';') {
+                pos++;
+
+                break;
+            }
+
+            int digit = Character.digit(c, radix);
+
+            if ((digit < 0) || (c > 'f')) {
+                throw error("A decimal or hexadecimal character reference "
+                        + "must end with ';'.");
+            }
+
+            codePoint = (codePoint * radix) + digit;
+            digits++;
+            pos++;
+
+            if (codePoint > Character.MAX_CODE_POINT) {
+                break;
+            }
+        }
+
+        if ((digits == 0) || !LazyBuilder.isCharacter(codePoint)) {
+            throw error("Character reference \"&#" + codePoint
+                    + "\" is an invalid XML character.");
+        }
+    }
+
+    private void scanAttributeValue() throws DocumentException {
+        byte quote = peek();
+
+        if ((quote != '"') && (quote != '\'')) {
+            throw error("Open quote is expected for attribute value.");
+        }
+
+        pos++;
+
+        while (true) {
+            byte b = peek();
+
+            if (b == quote) {
+                pos++;
+
+                return;
+            } else if (b == '<') {
+                throw error("The value of attribute must not contain the "
+                        + "'<' character.");
+            } else if (b == '&') {
+                pos++;
+                scanReference();
+
+                continue;
+            } else if ((b >= 0) && (b < ' ') && !isWhitespace(b)) {
+                throw invalidCharacter(b);
+            }
+
+            pos++;
+        }
+    }
+
+    private void scanDeclaration() throws DocumentException {
+        if (startsWith("<!--")) {
+            pos += 4;
+            scanUntil("--");
+            expect('>');
+        } else if (startsWith("<![CDATA[")) {
+            if (depth == 0) {
+                throw contentOutsideRoot();
+            }
+
+            pos += 9;
+            scanUntil("]]>");
+        } else if (startsWith("<!DOCTYPE")) {
+            if ((rootStart >= 0) || documentType) {
+                throw error("The document type declaration must appear "
+                        + "before the first element in the document.");
+            }
+
+            pos += 9;
+            scanDocumentType();
+            documentType = true;
+        } else {
+            throw error("The markup in the document must be well-formed.");
+        }
+    }
+
+    private void scanProcessingInstruction() throws DocumentException {
+        long nameStart = pos;
+        int nameLength = scanName();
+
+        if (string(nameStart, nameLength).equalsIgnoreCase("xml")) {
+            throw error("The processing instruction target matching "
+                    + "\"[xX][mM][lL]\" is not allowed.");
+        }
+
+        if (!skipWhitespace()) {
+            expect('?');
+            expect('>');
+        } else {
+            scanUntil("?>");
+        }
+    }
+
+    private void scanDocumentType() throws DocumentException {
+        if (!skipWhitespace()) {
+            throw error("White space is required after \"<!DOCTYPE\".");
+        }
+
+        scanName();
+        skipWhitespace();
+
+        if (startsWith("PUBLIC")) {
+            pos += 6;
+            skipWhitespace();
+            scanLiteral();
+            skipWhitespace();
+            scanLiteral();
+        } else if (startsWith("SYSTEM")) {
+            pos += 6;
+            skipWhitespace();
+            scanLiteral();
+        }
+
+        skipWhitespace();
+
+        if (peek() == '[') {
+            pos++;
+            scanInternalSubset();
+            skipWhitespace();
+        }
+
+        expect('>');
+    }
+
+    /**
+     * Skips the internal subset, rejecting general entity declarations as
+     * their references could not be expanded when materializing.
+     *
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private void scanInternalSubset() throws DocumentException {
+        while (true) {
+            skipWhitespace();
+
+            byte b = peek();
+
+            if (b == ']') {
+                pos++;
+
+                return;
+            } else if (b == '%') {
+                pos++;
+                scanName();
+                expect(';');
+            } else if (startsWith("<!--")) {
+                pos += 4;
+                scanUntil("--");
+                expect('>');
+            } else if (startsWith("<?")) {
+                pos += 2;
+                scanName();
+                scanUntil("?>");
+            } else if (startsWith("<!ENTITY")) {
+                pos += 8;
+                skipWhitespace();
+
+                if (peek() != '%') {
+                    long nameStart = pos;
+                    int nameLength = scanName();
+
+                    throw error("The entity \""
+                            + string(nameStart, nameLength)
+                            + "\" is declared in the internal subset, which "
+                            + "lazy reading does not support.");
+                }
+
+                skipMarkupDeclaration();
+            } else if (startsWith("<!")) {
+                skipMarkupDeclaration();
+            } else {
+                throw error("The markup declarations contained or pointed "
+                        + "to by the document type declaration must be "
+                        + "well-formed.");
+            }
+        }
+    }
+
+    private void skipMarkupDeclaration() throws DocumentException {
+        byte quote = 0;
+
+        while (true) {
+            byte b = peek();
+            pos++;
+
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if ((b == '"') || (b == '\'')) {
+                quote = b;
+            } else if (b == '>') {
+                return;
+            }
+        }
+    }
+
+    private void scanLiteral() throws DocumentException {
+        byte quote = peek();
+
+        if ((quote != '"') && (quote != '\'')) {
+            throw error("The system identifier must begin with either a "
+                    + "single or double quote character.");
+        }
+
+        pos++;
+        scanUntil((quote == '"') ? "\"" : "'");
+    }
+
+    /**
+     * Skips bytes up to and including the given terminator.
+     *
+     * @param terminator
+     *            DOCUMENT ME!
+     *
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private void scanUntil(String terminator) throws DocumentException {
+        byte first = (byte) terminator.charAt(0);
+
+        while (true) {
+            byte b = peek();
+
+            if ((b == first) && startsWith(terminator)) {
+                pos += terminator.length();
+
+                return;
+            } else if ((b >= 0) && (b < ' ') && !isWhitespace(b)) {
+                throw invalidCharacter(b);
+            }
+
+            pos++;
+        }
+    }
+
+    /**
+     * Skips a name.
+     *
+     * @return the length of the name in bytes
+     *
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private int scanName() throws DocumentException {
+        long start = pos;
+
+        search: while (pos < length) {
+            int index = window(pos);
+            byte[] bytes = window;
+            int limit = windowLength;
+
+            for (; index < limit; index++) {
+                byte b = bytes[index];
+
+                if ((b >= 0) && NAME_END[b]) {
+                    pos = windowStart + index;
+
+                    break search;
+                }
+            }
+
+            pos = windowStart + limit;
+        }
+
+        if (pos == start) {
+            if (pos == length) {
+                throw endOfFile();
+            }
+
+            throw error("A name was expected but \""
+                    + (char) at(pos) + "\" was found.");
+        }
+
+        return (int) (pos - start);
+    }
+
+    private byte at(long position) {
+        long index = position - windowStart;
+
+        if ((index >= 0) && (index < windowLength)) {
+            return window[(int) index];
+        }
+
+        return load(position);
+    }
+
+    /**
+     * Reads a byte outside the window, moving the window on if the byte
+     * lies ahead of it. Bytes behind it, such as the name of an open
+     * element, are read from the buffer.
+     *
+     * @param position
+     *            DOCUMENT ME!
+     *
+     * @return the byte at the position
+     */
+    private byte load(long position) {
+        if (position < windowStart) {
+            return buffer.get(position);
+        }
+
+        return window[window(position)];
+    }
+
+    /**
+     * Makes sure the window holds the given position, which must not lie
+     * behind the current position.
+     *
+     * @param position
+     *            DOCUMENT ME!
+     *
+     * @return the index of the position in the window
+     */
+    private int window(long position) {
+        long index = position - windowStart;
+
+        if ((index < 0) || (index >= windowLength)) {
+            // lookahead moves the window to the current position
+            windowStart = Math.min(pos, position);
+            windowLength = (int) Math.min(WINDOW_SIZE, length - windowStart);
+            buffer.get(windowStart, window, 0, windowLength);
+            index = position - windowStart;
+        }
+
+        return (int) index;
+    }
+
+    private int addEntry(long start) {
+        if (count == starts.length) {
+            int size = count * 2;
+            long[] newStarts = new long[size];
+            long[] newContentEnds = new long[size];
+            int[] newSizes = new int[size];
+            System.arraycopy(starts, 0, newStarts, 0, count);
+            System.arraycopy(contentEnds, 0, newContentEnds, 0, count);
+            System.arraycopy(sizes, 0, newSizes, 0, count);
+            starts = newStarts;
+            contentEnds = newContentEnds;
+            sizes = newSizes;
+        }
+
+        starts[count] = start;
+
+        return count++;
+    }
+
+    private boolean skipWhitespace() {
+        long start = pos;
+
+        while ((pos < length) && isWhitespace(at(pos))) {
+            pos++;
+        }
+
+        return pos > start;
+    }
+
+    private byte peek() throws DocumentException {
+        if (pos >= length) {
+            throw endOfFile();
+        }
+
+        return at(pos);
+    }
+
+    private void expect(char c) throws DocumentException {
+        if (peek() != c) {
+            throw error("\"" + c + "\" was expected but \""
+                    + (char) at(pos) + "\" was found.");
+        }
+
+        pos++;
+    }
+
+    private boolean startsWith(String s) {
+        int n = s.length();
+
+        if (pos + n > length) {
+            return false;
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (at(pos + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String string(long start, int byteCount) {
+        byte[] bytes = new byte[byteCount];
+        buffer.get(start, bytes, 0, byteCount);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private DocumentException error(String message) {
+        long line = 1;
+        long end = Math.min(pos, length);
+
+        for (long i = 0; i < end; i++) {
+            if (at(i) == '\n') {
+                line++;
+            }
+        }
+
+        String id = (systemId != null) ? systemId : "";
+
+        return new DocumentException("Error on line " + line
+                + " of document " + id + " : " + message);
+    }
+
+    private DocumentException endOfFile() {
+        return error("XML document structures must start and end within "
+                + "the same entity.");
+    }
+
+    private DocumentException contentOutsideRoot() {
+        return error((rootStart >= 0)
+                ? "Content is not allowed in trailing section."
+                : "Content is not allowed in prolog.");
+    }
+
+    private DocumentException invalidCharacter(byte b) {
+        return error("An invalid XML character (Unicode: 0x"
+                + Integer.toHexString(b) + ") was found in the element "
+                + "content of the document.");
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return (b == ' ') || (b == '\n') || (b == '\t') || (b == '\r');
+    }
+
+    private static int[] grow(int[] array) {
+        int[] answer = new int[array.length * 2];
+        System.arraycopy(array, 0, answer, 0, array.length);
+
+        return answer;
+    }
+
+    private static long[] grow(long[] array) {
+        long[] answer = new long[array.length * 2];
+        System.arraycopy(array, 0, answer, 0, array.length);
+
+        return answer;
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * <code>MappedFileInputStream</code> reads a file through memory mapped
+ * windows, so the bytes are copied straight from the page cache into the
+ * parser's buffer without a read system call for each buffer full. Files of
+ * any size can be read since only one window is mapped at a time.
+ * </p>
+ *
+ * <p>
+ * Small files gain nothing from being mapped, which is why
+ * {@link SAXReader}only maps files from
+ * {@link SAXReader#DEFAULT_MEMORY_MAPPING_THRESHOLD}bytes.
+ * </p>
+ */
+class MappedFileInputStream extends InputStream {
+    /** The number of bytes mapped at a time */
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+
+    /** The file position after the mapped window */
+    private long position;
+
+    /** The file position after the last byte to read */
+    private final long end;
+
+    private MappedByteBuffer window;
+
+    MappedFileInputStream(FileChannel channel) throws IOException {
+        this(channel, 0, channel.size());
+    }
+
+    MappedFileInputStream(FileChannel channel, long position, long length) {
+        this.channel = channel;
+        this.position = position;
+        this.end = position + length;
+    }
+
+    public int read() throws IOException {
+        if (!nextWindow()) {
+            return -1;
+        }
+
+        return window.get() & 0xFF;
+    }
+
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        if (!nextWindow()) {
+            return -1;
+        }
+
+        int count = Math.min(length, window.remaining());
+        window.get(bytes, offset, count);
+
+        return count;
+    }
+
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+
+        long remaining = (window != null) ? window.remaining() : 0;
+
+        if (n <= remaining) {
+            window.position(window.position() + (int) n);
+
+            return n;
+        }
+
+        // drop the window and continue after the skipped bytes
+        long skipped = Math.min(n, remaining + (end - position));
+        position += skipped - remaining;
+        window = null;
+
+        return skipped;
+    }
+
+    public int available() throws IOException {
+        long remaining = ((window != null) ? window.remaining() : 0)
+                + (end - position);
+
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    public void close() throws IOException {
+        window = null;
+        position = end;
+        channel.close();
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Maps the next window once the current one has been read.
+     * 
+     * @return false at the end of the file
+     */
+    private boolean nextWindow() throws IOException {
+        if ((window != null) && window.hasRemaining()) {
+            return true;
+        }
+
+        if (position >= end) {
+            window = null;
+
+            return false;
+        }
+
+        long size = Math.min(WINDOW_SIZE, end - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        position += size;
+
+        return true;
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -0,0 +1,2096 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dom5j.Branch;
+import org.dom5j.Document;
+import org.dom5j.DocumentException;
+import org.dom5j.DocumentFactory;
+import org.dom5j.Element;
+import org.dom5j.ElementHandler;
+import org.dom5j.Namespace;
+import org.dom5j.QName;
+
+/**
+ * <p>
+ * <code>NativeParser</code> is the non-validating, namespace aware XML 1.0
+ * parser behind {@link NativeReader}. It tokenizes a character buffer and
+ * builds the nodes of the document as it goes, without SAX events or
+ * <code>Attributes</code> objects in between.
+ * </p>
+ *
+ * <p>
+ * Names are looked up in a symbol table straight from the buffer, so the
+ * <code>String</code> of a name is only created the first time it is seen.
+ * Each symbol caches the {@link QName} it resolved to last together with the
+ * {@link Namespace} in scope at the time, so an element or attribute name
+ * usually costs neither a <code>String</code> nor a {@link
+ * org.dom5j.tree.QNameCache} lookup. Text which is only whitespace, such as
+ * indentation, is shared through the same table.
+ * </p>
+ *
+ * <p>
+ * Entities declared in the internal subset of the document type are
+ * expanded, and attribute defaults declared there are added to the elements
+ * which do not specify them. Nothing outside the document is read: a
+ * document which refers to an external subset, references an external entity
+ * or uses a parameter entity is rejected rather than parsed without it.
+ * </p>
+ */
+class NativeParser {
+    /** The initial size of the character buffer */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** The longest whitespace text which is shared through the symbols */
+    private static final int MAXIMUM_SHARED_WHITESPACE = 64;
+
+    /** The number of symbols above which the table is dropped between parses */
+    private static final int MAXIMUM_SYMBOLS = 16 * 1024;
+
+    /** The namespace which the prefix xmlns is bound to */
+    private static final String XMLNS_NAMESPACE_URI = 
+            "http://www.w3.org/2000/xmlns/";
+
+    /** The number of characters entities may expand to within a document */
+    private static final int MAXIMUM_ENTITY_EXPANSION = 1024 * 1024;
+
+    /** Whether a character ends a name, indexed by character */
+    private static final boolean[] NAME_END = new boolean[128];
+
+    static {
+        for (int c = 0; c <= ' '; c++) {
+            NAME_END[c] = true;
+        }
+
+        String delimiters = "<>/=?!\"'&;[]%";
+
+        for (int i = 0; i < delimiters.length(); i++) {
+            NAME_END[delimiters.charAt(i)] = true;
+        }
+    }
+
+    private final DocumentFactory factory;
+
+    private boolean stripWhitespaceText;
+
+    private boolean ignoreComments;
+
+    private ElementHandler elementHandler;
+
+    private ElementStack elementStack;
+
+    private Reader in;
+
+    private String systemId;
+
+    private char[] buf = new char[BUFFER_SIZE];
+
+    private int pos;
+
+    private int limit;
+
+    /** The start of the token being read, kept when the buffer is refilled */
+    private int tokenStart;
+
+    private boolean eof;
+
+    /** The number of lines dropped from the buffer so far */
+    private int lineBase;
+
+    /** Collects text which has to be copied out of the buffer */
+    private char[] text = new char[256];
+
+    private int textLength;
+
+    private Symbol[] symbols = new Symbol[1024];
+
+    private int symbolCount;
+
+    private Document document;
+
+    private Element current;
+
+    private boolean rootSeen;
+
+    /** The names of the open elements */
+    private Symbol[] openNames = new Symbol[32];
+
+    private int depth;
+
+    /** The namespace count at the start of each open element */
+    private int[] namespaceMarks = new int[32];
+
+    private String[] namespacePrefixes = new String[16];
+
+    private Namespace[] namespaces = new Namespace[16];
+
+    private int namespaceCount;
+
+    private Symbol[] attributeNames = new Symbol[16];
+
+    private String[] attributeValues = new String[16];
+
+    private int attributeCount;
+
+    /** The internal entities declared by the document type */
+    private Map<String, String> entities;
+
+    /** The attributes declared by the document type keyed by element name */
+    private Map<String, List<DeclaredAttribute>> attributeDeclarations;
+
+    private int entityExpansion;
+
+    NativeParser(DocumentFactory factory) {
+        this.factory = factory;
+    }
+
+    DocumentFactory getDocumentFactory() {
+        return factory;
+    }
+
+    void setStripWhitespaceText(boolean stripWhitespaceText) {
+        this.stripWhitespaceText = stripWhitespaceText;
+    }
+
+    void setIgnoreComments(boolean ignoreComments) {
+        this.ignoreComments = ignoreComments;
+    }
+
+    /**
+     * Sets the handler notified of each element, or null for none.
+     *
+     * @param dispatchHandler
+     *            DOCUMENT ME!
+     */
+    void setDispatchHandler(DispatchHandler dispatchHandler) {
+        this.elementHandler = dispatchHandler;
+
+        if (dispatchHandler != null) {
+            dispatchHandler.resetPath();
+
+            if (elementStack == null) {
+                elementStack = new ElementStack();
+            }
+        }
+
+        if (elementStack != null) {
+            elementStack.setDispatchHandler(dispatchHandler);
+        }
+    }
+
+    /**
+     * Parses a document.
+     *
+     * @param reader
+     *            the characters of the document
+     * @param documentSystemId
+     *            the system ID of the document or null
+     * @param encoding
+     *            the encoding the characters were decoded from or null
+     *
+     * @return the document
+     *
+     * @throws DocumentException
+     *             if the document is not well formed or cannot be read
+     */
+    Document parse(Reader reader, String documentSystemId, String encoding)
+            throws DocumentException {
+        this.in = reader;
+        this.systemId = documentSystemId;
+
+        try {
+            parseDocument(encoding);
+
+            return document;
+        } catch (IOException e) {
+            throw new DocumentException(e.getMessage(), e);
+        } finally {
+            release();
+        }
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private void parseDocument(String encoding) throws IOException,
+            DocumentException {
+        fill();
+
+        if ((pos < limit) && (buf[pos] == '\uFEFF')) {
+            pos++;
+        }
+
+        if (ensure(6) && startsWith("<?xml") && isWhitespace(buf[pos + 5])) {
+            pos += 6;
+
+            String declared = parseXMLDeclaration();
+
+            if (declared != null) {
+                encoding = declared;
+            }
+        }
+
+        document = factory.createDocument(encoding);
+        document.setName(systemId);
+
+        while (true) {
+            tokenStart = pos;
+
+            if ((pos == limit) && !fill()) {
+                break;
+            }
+
+            if (buf[pos] != '<') {
+                parseText();
+            } else if (!ensure(2)) {
+                throw error("XML document structures must start and end "
+                        + "within the same entity.");
+            } else {
+                char c = buf[pos + 1];
+
+                if (c == '/') {
+                    pos += 2;
+                    parseEndTag();
+                } else if (c == '?') {
+                    pos += 2;
+                    parseProcessingInstruction();
+                } else if (c == '!') {
+                    parseDeclaration();
+                } else {
+                    pos++;
+                    parseStartTag();
+                }
+            }
+        }
+
+        if (depth > 0) {
+            throw endOfFile();
+        } else if (!rootSeen) {
+            throw error("Premature end of file.");
+        }
+    }
+
+    /**
+     * Reads the pseudo attributes of the XML declaration.
+     *
+     * @return the declared encoding or null
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private String parseXMLDeclaration() throws IOException,
+            DocumentException {
+        String encoding = null;
+
+        while (true) {
+            skipWhitespace();
+
+            if (peek() == '?') {
+                pos++;
+                expect('>');
+
+                return encoding;
+            }
+
+            Symbol name = scanName();
+            skipWhitespace();
+            expect('=');
+            skipWhitespace();
+
+            String value = scanAttributeValue();
+
+            if ("encoding".equals(name.name)) {
+                encoding = value;
+            }
+        }
+    }
+
+    private void parseStartTag() throws IOException, DocumentException {
+        if (rootSeen && (depth == 0)) {
+            throw error("The markup in the document following the root "
+                    + "element must be well-formed.");
+        }
+
+        Symbol name = scanQualifiedName();
+        int namespaceMark = namespaceCount;
+        boolean empty = false;
+        attributeCount = 0;
+
+        while (true) {
+            boolean separated = skipWhitespace();
+            char c = peek();
+
+            if (c == '>') {
+                pos++;
+
+                break;
+            } else if (c == '/') {
+                pos++;
+                expect('>');
+                empty = true;
+
+                break;
+            } else if (!separated) {
+                throw error("Element type \"" + name.name
+                        + "\" must be followed by either attribute "
+                        + "specifications, \">\" or \"/>\".");
+            }
+
+            Symbol attributeName = scanQualifiedName();
+            skipWhitespace();
+            expect('=');
+            skipWhitespace();
+
+            String value = scanAttributeValue();
+
+            if (attributeName.kind == Symbol.DEFAULT_NAMESPACE) {
+                declareNamespace("", value);
+            } else if (attributeName.kind == Symbol.PREFIXED_NAMESPACE) {
+                declareNamespace(attributeName.localName, value);
+            } else {
+                for (int i = 0; i < attributeCount; i++) {
+                    if (attributeNames[i] == attributeName) {
+                        throw error("Attribute \"" + attributeName.name
+                                + "\" was already specified for element \""
+                                + name.name + "\".");
+                    }
+                }
+
+                if (attributeCount == attributeNames.length) {
+                    attributeNames = grow(attributeNames);
+                    attributeValues = grow(attributeValues);
+                }
+
+                addAttribute(attributeName, value);
+            }
+        }
+
+        if (attributeDeclarations != null) {
+            List<DeclaredAttribute> declared = attributeDeclarations
+                    .get(name.name);
+
+            if (declared != null) {
+                applyDeclarations(declared, namespaceMark);
+            }
+        }
+
+        Branch branch = current;
+
+        if (branch == null) {
+            branch = document;
+        }
+
+        Element element = branch.addElement(elementQName(name));
+
+        for (int i = namespaceMark; i < namespaceCount; i++) {
+            element.add(namespaces[i]);
+        }
+
+        for (int i = 0; i < attributeCount; i++) {
+            QName qName = attributeQName(attributeNames[i]);
+
+            // distinct prefixes may be bound to the same namespace
+            if ((attributeNames[i].prefix != null)
+                    && (element.attribute(qName) != null)) {
+                throw error("Attribute \"" + qName.getName()
+                        + "\" bound to namespace \"" + qName.getNamespaceURI()
+                        + "\" was already specified for element \""
+                        + name.name + "\".");
+            }
+
+            element.add(factory.createAttribute(element, qName,
+                    attributeValues[i]));
+            attributeValues[i] = null;
+        }
+
+        if (depth == openNames.length) {
+            openNames = grow(openNames);
+
+            int[] marks = new int[depth * 2];
+            System.arraycopy(namespaceMarks, 0, marks, 0, depth);
+            namespaceMarks = marks;
+        }
+
+        openNames[depth] = name;
+        namespaceMarks[depth++] = namespaceMark;
+        rootSeen = true;
+        current = element;
+
+        if (elementHandler != null) {
+            elementStack.pushElement(element);
+            elementHandler.onStart(elementStack);
+        }
+
+        if (empty) {
+            endElement();
+        }
+    }
+
+    private void addAttribute(Symbol attributeName, String value) {
+        if (attributeCount == attributeNames.length) {
+            attributeNames = grow(attributeNames);
+            attributeValues = grow(attributeValues);
+        }
+
+        attributeNames[attributeCount] = attributeName;
+        attributeValues[attributeCount++] = value;
+    }
+
+    /**
+     * Normalizes the specified attributes of a tokenized type and adds the
+     * declared defaults of those which are not specified.
+     *
+     * @param declared
+     *            the attributes declared for the element
+     * @param namespaceMark
+     *            the number of namespaces in scope before the element
+     */
+    private void applyDeclarations(List<DeclaredAttribute> declared,
+            int namespaceMark) throws DocumentException {
+        for (int i = 0, size = declared.size(); i < size; i++) {
+            DeclaredAttribute declaration = declared.get(i);
+            Symbol attributeName = declaration.name;
+
+            if (attributeName.kind != Symbol.NAME) {
+                String prefix = (attributeName.kind == Symbol.DEFAULT_NAMESPACE)
+                        ? "" : attributeName.localName;
+
+                if ((declaration.defaultValue != null)
+                        && !isDeclared(prefix, namespaceMark)) {
+                    declareNamespace(prefix, declaration.defaultValue);
+                }
+
+                continue;
+            }
+
+            int index = -1;
+
+            for (int j = 0; j < attributeCount; j++) {
+                if (attributeNames[j] == attributeName) {
+                    index = j;
+
+                    break;
+                }
+            }
+
+            if (index >= 0) {
+                if (!declaration.cdata) {
+                    attributeValues[index] = collapseSpaces(attributeValues[index]);
+                }
+            } else if (declaration.defaultValue != null) {
+                addAttribute(attributeName, declaration.defaultValue);
+            }
+        }
+    }
+
+    private boolean isDeclared(String prefix, int namespaceMark) {
+        for (int i = namespaceMark; i < namespaceCount; i++) {
+            if (namespacePrefixes[i].equals(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void parseEndTag() throws IOException, DocumentException {
+        Symbol name = scanName();
+
+        if ((depth == 0) || (openNames[depth - 1] != name)) {
+            if (depth == 0) {
+                throw error("The end-tag for element type \"" + name.name
+                        + "\" has no matching start-tag.");
+            }
+
+            throw error("The element type \"" + openNames[depth - 1].name
+                    + "\" must be terminated by the matching end-tag \"</"
+                    + openNames[depth - 1].name + ">\".");
+        }
+
+        skipWhitespace();
+        expect('>');
+        endElement();
+    }
+
+    private void endElement() {
+        Element element = current;
+        namespaceCount = namespaceMarks[--depth];
+        openNames[depth] = null;
+
+        if (elementHandler != null) {
+            elementHandler.onEnd(elementStack);
+            elementStack.popElement();
+
+            // the handler may have detached the element
+            current = elementStack.peekElement();
+        } else {
+            current = (depth > 0) ? element.getParent() : null;
+        }
+    }
+
+    private void parseText() throws IOException, DocumentException {
+        textLength = 0;
+
+        boolean whitespace = true;
+
+        while (true) {
+            if (pos == limit) {
+                appendText(tokenStart, pos);
+                tokenStart = pos;
+
+                if (!fill()) {
+                    break;
+                }
+            }
+
+            char c = buf[pos];
+
+            if (c == '<') {
+                break;
+            } else if (c > ' ') {
+                if (c == '&') {
+                    appendText(tokenStart, pos);
+                    pos++;
+                    parseReference(false);
+                    tokenStart = pos;
+
+                    continue;
+                } else if ((c == '>') && (pos >= tokenStart + 2)
+                        && (buf[pos - 1] == ']') && (buf[pos - 2] == ']')) {
+                    throw error("The character sequence \"]]>\" must not "
+                            + "appear in content unless used to mark the "
+                            + "end of a CDATA section.");
+                } else if (c >= '\uFFFE') {
+                    throw invalidCharacter(c);
+                }
+
+                whitespace = false;
+            } else if (c == '\r') {
+                appendText(tokenStart, pos);
+                append('\n');
+                pos++;
+
+                if (ensure(1) && (buf[pos] == '\n')) {
+                    pos++;
+                }
+
+                tokenStart = pos;
+
+                continue;
+            } else if (!isWhitespace(c)) {
+                throw invalidCharacter(c);
+            }
+
+            pos++;
+        }
+
+        String value;
+
+        if (textLength == 0) {
+            int length = pos - tokenStart;
+
+            if (length == 0) {
+                return;
+            } else if (whitespace) {
+                if ((current == null) || stripWhitespaceText) {
+                    return;
+                }
+
+                value = sharedText(buf, tokenStart, length);
+            } else {
+                if (current == null) {
+                    throw contentOutsideRoot();
+                }
+
+                value = new String(buf, tokenStart, length);
+            }
+        } else {
+            appendText(tokenStart, pos);
+
+            for (int i = 0; whitespace && (i < textLength); i++) {
+                whitespace = Character.isWhitespace(text[i]);
+            }
+
+            if (whitespace) {
+                if ((current == null) || stripWhitespaceText) {
+                    return;
+                }
+
+                value = sharedText(text, 0, textLength);
+            } else {
+                if (current == null) {
+                    throw contentOutsideRoot();
+                }
+
+                value = new String(text, 0, textLength);
+            }
+        }
+
+        current.addText(value);
+    }
+
+    /**
+     * Reads a reference after its <code>&amp;</code>. Character references
+     * and the predefined entities are appended to the text, other entities
+     * are inserted into the buffer to be read in place of the reference.
+     *
+     * @param attribute
+     *            whether the reference is in an attribute value
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private void parseReference(boolean attribute) throws IOException,
+            DocumentException {
+        tokenStart = pos;
+
+        if (peek() == '#') {
+            pos++;
+            appendCodePoint(scanCharacterReference());
+
+            return;
+        }
+
+        Symbol name = scanName();
+        expect(';');
+
+        String entity = name.name;
+
+        if ("lt".equals(entity)) {
+            append('<');
+        } else if ("gt".equals(entity)) {
+            append('>');
+        } else if ("amp".equals(entity)) {
+            append('&');
+        } else if ("quot".equals(entity)) {
+            append('"');
+        } else if ("apos".equals(entity)) {
+            append('\'');
+        } else {
+            String replacement = (entities != null) ? entities.get(entity)
+                    : null;
+
+            if (replacement != null) {
+                expand(replacement, attribute);
+            } else if ((entities == null) || !entities.containsKey(entity)) {
+                throw error("The entity \"" + entity
+                        + "\" was referenced, but not declared.");
+            } else if (attribute) {
+                throw error("The external entity reference \"&" + entity
+                        + ";\" is not permitted in an attribute value.");
+            } else {
+                throw error("The external entity \"" + entity
+                        + "\" cannot be read by NativeReader; "
+                        + "use SAXReader for this document.");
+            }
+        }
+    }
+
+    /**
+     * Reads a character reference after its <code>&amp;#</code>.
+     *
+     * @return the code point referenced
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private int scanCharacterReference() throws IOException,
+            DocumentException {
+        int radix = 10;
+
+        if (peek() == 'x') {
+            pos++;
+            radix = 16;
+        }
+
+        int codePoint = 0;
+        int digits = 0;
+
+        while (true) {
+            char c = peek();
+
+            if (c == ';') {
+                pos++;
+
+                break;
+            }
+
+            int digit = Character.digit(c, radix);
+
+            if ((digit < 0) || (c > 'f')) {
+                throw error("A decimal or hexadecimal character reference "
+                        + "must end with ';'.");
+            }
+
+            codePoint = (codePoint * radix) + digit;
+            digits++;
+            pos++;
+
+            if (codePoint > Character.MAX_CODE_POINT) {
+                break;
+            }
+        }
+
+        if ((digits == 0) || !isCharacter(codePoint)) {
+            throw error("Character reference \"&#" + codePoint
+                    + "\" is an invalid XML character.");
+        }
+
+        return codePoint;
+    }
+
+    /**
+     * Reads a quoted attribute value, normalizing its whitespace.
+     *
+     * @return the value
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private String scanAttributeValue() throws IOException, DocumentException {
+        char quote = peek();
+
+        if ((quote != '"') && (quote != '\'')) {
+            throw error("Open quote is expected for attribute value.");
+        }
+
+        tokenStart = ++pos;
+        textLength = 0;
+
+        while (true) {
+            if (pos == limit) {
+                appendText(tokenStart, pos);
+                tokenStart = pos;
+
+                if (!fill()) {
+                    throw endOfFile();
+                }
+            }
+
+            char c = buf[pos];
+
+            if (c == quote) {
+                break;
+            } else if (c < ' ') {
+                if (c == '\r') {
+                    if (ensure(2) && (buf[pos + 1] == '\n')) {
+                        // the line break counts as one space
+                        appendText(tokenStart, pos);
+                        tokenStart = ++pos;
+                    }
+                } else if (!isWhitespace(c)) {
+                    throw invalidCharacter(c);
+                }
+
+                buf[pos] = ' ';
+            } else if (c == '<') {
+                throw error("The value of attribute must not contain the "
+                        + "'<' character.");
+            } else if (c == '&') {
+                appendText(tokenStart, pos);
+                pos++;
+                parseReference(true);
+                tokenStart = pos;
+
+                continue;
+            } else if (c >= '\uFFFE') {
+                throw invalidCharacter(c);
+            }
+
+            pos++;
+        }
+
+        String value;
+
+        if (textLength == 0) {
+            value = new String(buf, tokenStart, pos - tokenStart);
+        } else {
+            appendText(tokenStart, pos);
+            value = new String(text, 0, textLength);
+        }
+
+        pos++;
+
+        return value;
+    }
+
+    private void parseDeclaration() throws IOException, DocumentException {
+        if (ensure(4) && startsWith("<!--")) {
+            pos += 4;
+
+            String comment = scanUntil("--");
+            expect('>');
+
+            if (!ignoreComments) {
+                if (current != null) {
+                    current.addComment(comment);
+                } else {
+                    document.addComment(comment);
+                }
+            }
+        } else if (ensure(9) && startsWith("<![CDATA[")) {
+            if (current == null) {
+                throw contentOutsideRoot();
+            }
+
+            pos += 9;
+            current.addCDATA(scanUntil("]]>"));
+        } else if (ensure(9) && startsWith("<!DOCTYPE")) {
+            if (rootSeen || (document.getDocType() != null)) {
+                throw error("The document type declaration must appear "
+                        + "before the first element in the document.");
+            }
+
+            pos += 9;
+            parseDocumentType();
+        } else {
+            throw error("The markup in the document must be well-formed.");
+        }
+    }
+
+    private void parseProcessingInstruction() throws IOException,
+            DocumentException {
+        Symbol target = scanName();
+
+        if ("xml".equalsIgnoreCase(target.name)) {
+            throw error("The processing instruction target matching "
+                    + "\"[xX][mM][lL]\" is not allowed.");
+        }
+
+        String data = "";
+
+        if (!skipWhitespace()) {
+            expect('?');
+            expect('>');
+        } else {
+            data = scanUntil("?>");
+        }
+
+        if (current != null) {
+            current.addProcessingInstruction(target.name, data);
+        } else {
+            document.addProcessingInstruction(target.name, data);
+        }
+    }
+
+    private void parseDocumentType() throws IOException, DocumentException {
+        if (!skipWhitespace()) {
+            throw error("White space is required after \"<!DOCTYPE\".");
+        }
+
+        String name = scanName().name;
+        String publicId = null;
+        String documentTypeSystemId = null;
+
+        skipWhitespace();
+
+        if (ensure(6) && startsWith("PUBLIC")) {
+            pos += 6;
+            skipWhitespace();
+            publicId = scanLiteral();
+            skipWhitespace();
+            documentTypeSystemId = scanLiteral();
+        } else if (ensure(6) && startsWith("SYSTEM")) {
+            pos += 6;
+            skipWhitespace();
+            documentTypeSystemId = scanLiteral();
+        }
+
+        if (documentTypeSystemId != null) {
+            throw error("The external document type definition \""
+                    + documentTypeSystemId + "\" cannot be read by "
+                    + "NativeReader; use SAXReader for this document.");
+        }
+
+        skipWhitespace();
+
+        if (peek() == '[') {
+            pos++;
+            parseInternalSubset();
+            skipWhitespace();
+        }
+
+        expect('>');
+        document.addDocType(name, publicId, documentTypeSystemId);
+    }
+
+    /**
+     * Reads the internal subset, keeping the general entity declarations.
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private void parseInternalSubset() throws IOException, DocumentException {
+        while (true) {
+            skipWhitespace();
+            tokenStart = pos;
+
+            char c = peek();
+
+            if (c == ']') {
+                pos++;
+
+                return;
+            } else if (c == '%') {
+                pos++;
+
+                String entity = scanName().name;
+                throw error("The parameter entity \"%" + entity
+                        + ";\" cannot be expanded by NativeReader; "
+                        + "use SAXReader for this document.");
+            } else if (ensure(4) && startsWith("<!--")) {
+                pos += 4;
+                scanUntil("--");
+                expect('>');
+            } else if (ensure(2) && startsWith("<?")) {
+                pos += 2;
+                scanName();
+                scanUntil("?>");
+            } else if (ensure(8) && startsWith("<!ENTITY")) {
+                pos += 8;
+                parseEntityDeclaration();
+            } else if (ensure(9) && startsWith("<!ATTLIST")) {
+                pos += 9;
+                parseAttributeListDeclaration();
+            } else if (ensure(2) && startsWith("<!")) {
+                skipMarkupDeclaration();
+            } else {
+                throw error("The markup declarations contained or pointed "
+                        + "to by the document type declaration must be "
+                        + "well-formed.");
+            }
+        }
+    }
+
+    private void parseEntityDeclaration() throws IOException,
+            DocumentException {
+        skipWhitespace();
+
+        boolean parameter = false;
+
+        if (peek() == '%') {
+            pos++;
+            parameter = true;
+            skipWhitespace();
+        }
+
+        String name = scanName().name;
+        skipWhitespace();
+
+        String value = null;
+        char c = peek();
+
+        if ((c == '"') || (c == '\'')) {
+            value = scanEntityValue();
+        } else {
+            // an external entity; its notation, if any, is skipped
+            skipMarkupDeclaration();
+            pos--;
+        }
+
+        skipWhitespace();
+        expect('>');
+
+        if (!parameter) {
+            if (entities == null) {
+                entities = new HashMap<String, String>();
+            }
+
+            // the first declaration is binding
+            if (!entities.containsKey(name)) {
+                entities.put(name, value);
+            }
+        }
+    }
+
+    /**
+     * Reads an attribute-list declaration, keeping the type and default
+     * value of each attribute. As in SAXReader, the first declaration of an
+     * attribute is binding.
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private void parseAttributeListDeclaration() throws IOException,
+            DocumentException {
+        requireWhitespace("<!ATTLIST");
+
+        String elementName = scanName().name;
+
+        while (true) {
+            boolean separated = skipWhitespace();
+
+            if (peek() == '>') {
+                pos++;
+
+                return;
+            } else if (!separated) {
+                throw error("White space is required before the attribute "
+                        + "name in the declaration of element \""
+                        + elementName + "\".");
+            }
+
+            Symbol attributeName = scanName();
+            requireWhitespace(attributeName.name);
+
+            boolean cdata = false;
+
+            if (peek() == '(') {
+                skipEnumeration();
+            } else {
+                String type = scanName().name;
+
+                if ("NOTATION".equals(type)) {
+                    requireWhitespace(type);
+                    skipEnumeration();
+                } else if ("CDATA".equals(type)) {
+                    cdata = true;
+                } else if (!"ID".equals(type) && !"IDREF".equals(type)
+                        && !"IDREFS".equals(type) && !"ENTITY".equals(type)
+                        && !"ENTITIES".equals(type) && !"NMTOKEN".equals(type)
+                        && !"NMTOKENS".equals(type)) {
+                    throw error("The type \"" + type + "\" of attribute \""
+                            + attributeName.name + "\" is not valid.");
+                }
+            }
+
+            requireWhitespace(attributeName.name);
+
+            String value = null;
+
+            if (ensure(9) && startsWith("#REQUIRED")) {
+                pos += 9;
+            } else if (ensure(8) && startsWith("#IMPLIED")) {
+                pos += 8;
+            } else {
+                if (ensure(6) && startsWith("#FIXED")) {
+                    pos += 6;
+                    requireWhitespace("#FIXED");
+                }
+
+                value = scanAttributeValue();
+
+                if (!cdata) {
+                    value = collapseSpaces(value);
+                }
+            }
+
+            declareAttribute(elementName, new DeclaredAttribute(
+                    attributeName, cdata, value));
+        }
+    }
+
+    private void declareAttribute(String elementName,
+            DeclaredAttribute declaration) {
+        if (attributeDeclarations == null) {
+            attributeDeclarations = new HashMap<String, List<DeclaredAttribute>>();
+        }
+
+        List<DeclaredAttribute> declared = attributeDeclarations
+                .get(elementName);
+
+        if (declared == null) {
+            declared = new ArrayList<DeclaredAttribute>(4);
+            attributeDeclarations.put(elementName, declared);
+        }
+
+        for (int i = 0, size = declared.size(); i < size; i++) {
+            if (declared.get(i).name == declaration.name) {
+                return;
+            }
+        }
+
+        declared.add(declaration);
+    }
+
+    /**
+     * Skips an enumerated attribute type up to and including its closing
+     * parenthesis.
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private void skipEnumeration() throws IOException, DocumentException {
+        expect('(');
+
+        while (true) {
+            tokenStart = pos;
+
+            char c = peek();
+            pos++;
+
+            if (c == ')') {
+                return;
+            } else if ((c == '>') || (c == '"') || (c == '\'')) {
+                throw error("The enumerated type must end with \")\".");
+            }
+        }
+    }
+
+    private void requireWhitespace(String after) throws IOException,
+            DocumentException {
+        if (!skipWhitespace()) {
+            throw error("White space is required after \"" + after + "\".");
+        }
+    }
+
+    /**
+     * Normalizes the value of an attribute whose type is not CDATA by
+     * dropping leading and trailing spaces and collapsing runs of spaces.
+     *
+     * @param value
+     *            the value after the normalization of all attributes
+     *
+     * @return DOCUMENT ME!
+     */
+    private static String collapseSpaces(String value) {
+        int length = value.length();
+
+        if ((length == 0) || ((value.charAt(0) != ' ')
+                && (value.charAt(length - 1) != ' ')
+                && (value.indexOf("  ") < 0))) {
+            return value;
+        }
+
+        StringBuilder answer = new StringBuilder(length);
+        boolean space = false;
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+
+            if (c == ' ') {
+                space = answer.length() > 0;
+            } else {
+                if (space) {
+                    answer.append(' ');
+                    space = false;
+                }
+
+                answer.append(c);
+            }
+        }
+
+        return answer.toString();
+    }
+
+    /**
+     * Reads the literal value of an entity, replacing its character
+     * references. Entity references are kept and expanded where the entity is
+     * used.
+     *
+     * @return the replacement text
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private String scanEntityValue() throws IOException, DocumentException {
+        char quote = peek();
+        tokenStart = ++pos;
+        textLength = 0;
+
+        while (true) {
+            if (pos == limit) {
+                appendText(tokenStart, pos);
+                tokenStart = pos;
+
+                if (!fill()) {
+                    throw endOfFile();
+                }
+            }
+
+            char c = buf[pos];
+
+            if (c == quote) {
+                break;
+            } else if ((c == '&') && ensure(2) && (buf[pos + 1] == '#')) {
+                appendText(tokenStart, pos);
+                pos += 2;
+                appendCodePoint(scanCharacterReference());
+                tokenStart = pos;
+
+                continue;
+            } else if (c == '\r') {
+                appendText(tokenStart, pos);
+                append('\n');
+                pos++;
+
+                if (ensure(1) && (buf[pos] == '\n')) {
+                    pos++;
+                }
+
+                tokenStart = pos;
+
+                continue;
+            } else if (((c < ' ') && !isWhitespace(c)) || (c >= '\uFFFE')) {
+                throw error("An invalid XML character (Unicode: 0x"
+                        + Integer.toHexString(c) + ") was found in the "
+                        + "literal entity value.");
+            }
+
+            pos++;
+        }
+
+        appendText(tokenStart, pos);
+        pos++;
+
+        return new String(text, 0, textLength);
+    }
+
+    /**
+     * Skips a markup declaration up to and including its closing
+     * <code>&gt;</code>.
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private void skipMarkupDeclaration() throws IOException,
+            DocumentException {
+        char quote = 0;
+
+        while (true) {
+            tokenStart = pos;
+
+            char c = peek();
+            pos++;
+
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if ((c == '"') || (c == '\'')) {
+                quote = c;
+            } else if (c == '>') {
+                return;
+            }
+        }
+    }
+
+    private String scanLiteral() throws IOException, DocumentException {
+        char quote = peek();
+
+        if ((quote != '"') && (quote != '\'')) {
+            throw error("The system identifier must begin with either a "
+                    + "single or double quote character.");
+        }
+
+        pos++;
+
+        return scanUntil(String.valueOf(quote));
+    }
+
+    /**
+     * Reads characters up to the given terminator, which is skipped.
+     *
+     * @param terminator
+     *            DOCUMENT ME!
+     *
+     * @return the characters read with their line breaks normalized
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private String scanUntil(String terminator) throws IOException,
+            DocumentException {
+        char first = terminator.charAt(0);
+        int length = terminator.length();
+        tokenStart = pos;
+        textLength = 0;
+
+        while (true) {
+            if (pos == limit) {
+                appendText(tokenStart, pos);
+                tokenStart = pos;
+
+                if (!fill()) {
+                    throw endOfFile();
+                }
+            }
+
+            char c = buf[pos];
+
+            if (c == first) {
+                if (!ensure(length)) {
+                    throw endOfFile();
+                } else if (startsWith(terminator)) {
+                    break;
+                }
+            } else if (c == '\r') {
+                appendText(tokenStart, pos);
+                append('\n');
+                pos++;
+
+                if (ensure(1) && (buf[pos] == '\n')) {
+                    pos++;
+                }
+
+                tokenStart = pos;
+
+                continue;
+            } else if (((c < ' ') && !isWhitespace(c)) || (c >= '\uFFFE')) {
+                throw invalidCharacter(c);
+            }
+
+            pos++;
+        }
+
+        String value;
+
+        if (textLength == 0) {
+            value = new String(buf, tokenStart, pos - tokenStart);
+        } else {
+            appendText(tokenStart, pos);
+            value = new String(text, 0, textLength);
+        }
+
+        pos += length;
+
+        return value;
+    }
+
+    /**
+     * Reads a name and returns its symbol.
+     *
+     * @return DOCUMENT ME!
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private Symbol scanName() throws IOException, DocumentException {
+        tokenStart = pos;
+
+        int hash = 0;
+
+        while (true) {
+            if ((pos == limit) && !fill()) {
+                throw endOfFile();
+            }
+
+            char c = buf[pos];
+
+            if ((c < 128) && NAME_END[c]) {
+                break;
+            }
+
+            hash = (31 * hash) + c;
+            pos++;
+        }
+
+        int length = pos - tokenStart;
+
+        if (length == 0) {
+            throw error("A name was expected but \"" + buf[pos]
+                    + "\" was found.");
+        }
+
+        Symbol symbol = symbol(buf, tokenStart, length, hash);
+
+        if (!symbol.isName) {
+            throw error("\"" + symbol.name + "\" is not a legal XML name.");
+        }
+
+        return symbol;
+    }
+
+    /**
+     * Reads an element or attribute name, which must also be a legal
+     * qualified name.
+     *
+     * @return DOCUMENT ME!
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     * @throws DocumentException
+     *             DOCUMENT ME!
+     */
+    private Symbol scanQualifiedName() throws IOException, DocumentException {
+        Symbol symbol = scanName();
+
+        if (!symbol.isQualifiedName) {
+            throw error("The name \"" + symbol.name
+                    + "\" is not a legal qualified name.");
+        }
+
+        return symbol;
+    }
+
+    private String sharedText(char[] chars, int start, int length) {
+        if (length > MAXIMUM_SHARED_WHITESPACE) {
+            return new String(chars, start, length);
+        }
+
+        int hash = 0;
+
+        for (int i = start, end = start + length; i < end; i++) {
+            hash = (31 * hash) + chars[i];
+        }
+
+        return symbol(chars, start, length, hash).name;
+    }
+
+    /**
+     * Finds or adds the symbol for the given characters.
+     *
+     * @param chars
+     *            DOCUMENT ME!
+     * @param start
+     *            DOCUMENT ME!
+     * @param length
+     *            DOCUMENT ME!
+     * @param hash
+     *            the <code>String</code> hash code of the characters
+     *
+     * @return DOCUMENT ME!
+     */
+    private Symbol symbol(char[] chars, int start, int length, int hash) {
+        Symbol[] table = symbols;
+        int index = hash & (table.length - 1);
+
+        search: for (Symbol symbol = table[index]; symbol != null;
+                symbol = symbol.next) {
+            if ((symbol.hash == hash) && (symbol.chars.length == length)) {
+                char[] candidate = symbol.chars;
+
+                for (int i = 0; i < length; i++) {
+                    if (candidate[i] != chars[start + i]) {
+                        continue search;
+                    }
+                }
+
+                return symbol;
+            }
+        }
+
+        Symbol symbol = new Symbol(chars, start, length, hash);
+        symbol.next = table[index];
+        table[index] = symbol;
+
+        if (++symbolCount > ((table.length * 3) / 4)) {
+            rehash();
+        }
+
+        return symbol;
+    }
+
+    private void rehash() {
+        Symbol[] table = new Symbol[symbols.length * 2];
+
+        for (int i = 0; i < symbols.length; i++) {
+            Symbol symbol = symbols[i];
+
+            while (symbol != null) {
+                Symbol next = symbol.next;
+                int index = symbol.hash & (table.length - 1);
+                symbol.next = table[index];
+                table[index] = symbol;
+                symbol = next;
+            }
+        }
+
+        symbols = table;
+    }
+
+    private QName elementQName(Symbol name) throws DocumentException {
+        Namespace namespace;
+
+        if (name.prefix == null) {
+            namespace = findNamespace("");
+        } else {
+            namespace = findNamespace(name.prefix);
+
+            if (namespace == null) {
+                throw error("The prefix \"" + name.prefix + "\" for element \""
+                        + name.name + "\" is not bound.");
+            }
+        }
+
+        if (namespace == null) {
+            namespace = Namespace.NO_NAMESPACE;
+        }
+
+        if (name.elementNamespace != namespace) {
+            name.elementQName = factory.createQName(name.localName, namespace);
+            name.elementNamespace = namespace;
+        }
+
+        return name.elementQName;
+    }
+
+    private QName attributeQName(Symbol name) throws DocumentException {
+        Namespace namespace = Namespace.NO_NAMESPACE;
+
+        if (name.prefix != null) {
+            namespace = findNamespace(name.prefix);
+
+            if (namespace == null) {
+                throw error("The prefix \"" + name.prefix
+                        + "\" for attribute \"" + name.name
+                        + "\" is not bound.");
+            }
+        }
+
+        if (name.attributeNamespace != namespace) {
+            name.attributeQName = factory.createQName(name.localName,
+                    namespace);
+            name.attributeNamespace = namespace;
+        }
+
+        return name.attributeQName;
+    }
+
+    private void declareNamespace(String prefix, String uri)
+            throws DocumentException {
+        if ("xmlns".equals(prefix) || XMLNS_NAMESPACE_URI.equals(uri)) {
+            throw error("The prefix \"xmlns\" cannot be bound to any "
+                    + "namespace explicitly; neither can the namespace for "
+                    + "\"xmlns\" be bound to any prefix explicitly.");
+        } else if ("xml".equals(prefix)
+                != Namespace.XML_NAMESPACE.getURI().equals(uri)) {
+            throw error("The prefix \"xml\" cannot be bound to any namespace "
+                    + "other than its usual namespace; neither can the "
+                    + "namespace for \"xml\" be bound to any prefix other "
+                    + "than \"xml\".");
+        } else if ("xml".equals(prefix)) {
+            // always in scope
+            return;
+        } else if ((prefix.length() > 0) && (uri.length() == 0)) {
+            throw error("The value of the attribute \"xmlns:" + prefix
+                    + "\" is invalid. Prefixed namespace bindings may not "
+                    + "be empty.");
+        }
+
+        if (namespaceCount == namespaces.length) {
+            namespacePrefixes = grow(namespacePrefixes);
+            namespaces = grow(namespaces);
+        }
+
+        namespacePrefixes[namespaceCount] = prefix;
+        namespaces[namespaceCount++] = factory.createNamespace(prefix, uri);
+    }
+
+    private Namespace findNamespace(String prefix) {
+        for (int i = namespaceCount - 1; i >= 0; i--) {
+            if (namespacePrefixes[i].equals(prefix)) {
+                return namespaces[i];
+            }
+        }
+
+        return "xml".equals(prefix) ? Namespace.XML_NAMESPACE : null;
+    }
+
+    /**
+     * Expands the replacement text of an entity. Plain text is appended to
+     * the text, anything with markup or references is inserted at the current
+     * position to be read in place of the reference.
+     *
+     * @param replacement
+     *            DOCUMENT ME!
+     * @param attribute
+     *            whether the reference is in an attribute value
+     *
+     * @throws DocumentException
+     *             if entities expand to more than the limit
+     */
+    private void expand(String replacement, boolean attribute)
+            throws DocumentException {
+        int length = replacement.length();
+        entityExpansion += length;
+
+        if (entityExpansion > MAXIMUM_ENTITY_EXPANSION) {
+            throw error("The parser has encountered more than \""
+                    + MAXIMUM_ENTITY_EXPANSION
+                    + "\" characters of entity expansions in this document.");
+        }
+
+        if ((replacement.indexOf('<') < 0) && (replacement.indexOf('&') < 0)) {
+            for (int i = 0; i < length; i++) {
+                char c = replacement.charAt(i);
+                append((attribute && isWhitespace(c)) ? ' ' : c);
+            }
+
+            return;
+        } else if (attribute && (replacement.indexOf('<') >= 0)) {
+            throw error("The value of attribute must not contain the "
+                    + "'<' character.");
+        }
+
+        if (limit + length > buf.length) {
+            compact();
+
+            if (limit + length > buf.length) {
+                char[] chars = new char[Math.max(buf.length * 2, limit
+                        + length)];
+                System.arraycopy(buf, 0, chars, 0, limit);
+                buf = chars;
+            }
+        }
+
+        System.arraycopy(buf, pos, buf, pos + length, limit - pos);
+        replacement.getChars(0, length, buf, pos);
+        limit += length;
+    }
+
+    private boolean skipWhitespace() throws IOException {
+        boolean skipped = false;
+
+        while (((pos < limit) || fill()) && isWhitespace(buf[pos])) {
+            pos++;
+            skipped = true;
+        }
+
+        return skipped;
+    }
+
+    private char peek() throws IOException, DocumentException {
+        if ((pos == limit) && !fill()) {
+            throw endOfFile();
+        }
+
+        return buf[pos];
+    }
+
+    private void expect(char c) throws IOException, DocumentException {
+        if (peek() != c) {
+            throw error("The character \"" + c + "\" was expected but \""
+                    + buf[pos] + "\" was found.");
+        }
+
+        pos++;
+    }
+
+    private boolean startsWith(String s) {
+        for (int i = 0, size = s.length(); i < size; i++) {
+            if (buf[pos + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Makes sure the given number of characters is available.
+     *
+     * @param count
+     *            DOCUMENT ME!
+     *
+     * @return false if the document ends first
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    private boolean ensure(int count) throws IOException {
+        while (limit - pos < count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads more characters into the buffer, keeping those from the start of
+     * the current token.
+     *
+     * @return false at the end of the document
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+
+        compact();
+
+        if (limit == buf.length) {
+            char[] chars = new char[buf.length * 2];
+            System.arraycopy(buf, 0, chars, 0, limit);
+            buf = chars;
+        }
+
+        int count = in.read(buf, limit, buf.length - limit);
+
+        while (count == 0) {
+            count = in.read(buf, limit, buf.length - limit);
+        }
+
+        if (count < 0) {
+            eof = true;
+
+            return false;
+        }
+
+        limit += count;
+
+        return true;
+    }
+
+    private void compact() {
+        int start = Math.min(tokenStart, pos);
+
+        if (start > 0) {
+            lineBase += countLines(start);
+            System.arraycopy(buf, start, buf, 0, limit - start);
+            limit -= start;
+            pos -= start;
+            tokenStart -= start;
+        }
+    }
+
+    private int countLines(int end) {
+        int lines = 0;
+
+        for (int i = 0; i < end; i++) {
+            if (buf[i] == '\n') {
+                lines++;
+            }
+        }
+
+        return lines;
+    }
+
+    private void appendText(int start, int end) {
+        int length = end - start;
+
+        if (length > 0) {
+            if (textLength + length > text.length) {
+                growText(textLength + length);
+            }
+
+            System.arraycopy(buf, start, text, textLength, length);
+            textLength += length;
+        }
+    }
+
+    private void append(char c) {
+        if (textLength == text.length) {
+            growText(textLength + 1);
+        }
+
+        text[textLength++] = c;
+    }
+
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            append((char) codePoint);
+        } else {
+            append(Character.highSurrogate(codePoint));
+            append(Character.lowSurrogate(codePoint));
+        }
+    }
+
+    private void growText(int length) {
+        char[] chars = new char[Math.max(text.length * 2, length)];
+        System.arraycopy(text, 0, chars, 0, textLength);
+        text = chars;
+    }
+
+    private void release() {
+        in = null;
+        document = null;
+        current = null;
+        entities = null;
+        attributeDeclarations = null;
+        entityExpansion = 0;
+        rootSeen = false;
+        pos = 0;
+        limit = 0;
+        tokenStart = 0;
+        eof = false;
+        lineBase = 0;
+        textLength = 0;
+
+        for (int i = 0; i < depth; i++) {
+            openNames[i] = null;
+        }
+
+        for (int i = 0; i < attributeCount; i++) {
+            attributeValues[i] = null;
+        }
+
+        depth = 0;
+        namespaceCount = 0;
+        attributeCount = 0;
+
+        if (elementStack != null) {
+            elementStack.clear();
+        }
+
+        if (text.length > BUFFER_SIZE) {
+            text = new char[256];
+        }
+
+        if (buf.length > BUFFER_SIZE) {
+            buf = new char[BUFFER_SIZE];
+        }
+
+        if (symbolCount > MAXIMUM_SYMBOLS) {
+            symbols = new Symbol[1024];
+            symbolCount = 0;
+        }
+    }
+
+    private DocumentException error(String message) {
+        int line = lineBase + countLines(Math.min(pos, limit)) + 1;
+        String id = (systemId != null) ? systemId : "";
+
+        return new DocumentException("Error on line " + line
+                + " of document " + id + " : " + message);
+    }
+
+    private DocumentException endOfFile() {
+        return error("XML document structures must start and end within "
+                + "the same entity.");
+    }
+
+    private DocumentException contentOutsideRoot() {
+        return error(rootSeen ? "Content is not allowed in trailing section."
+                : "Content is not allowed in prolog.");
+    }
+
+    private DocumentException invalidCharacter(char c) {
+        return error("An invalid XML character (Unicode: 0x"
+                + Integer.toHexString(c) + ") was found in the element "
+                + "content of the document.");
+    }
+
+    private static boolean isWhitespace(char c) {
+        return (c == ' ') || (c == '\n') || (c == '\t') || (c == '\r');
+    }
+
+    private static boolean isCharacter(int c) {
+        return ((c >= 0x20) && (c <= 0xD7FF)) || (c == '\n') || (c == '\t')
+                || (c == '\r') || ((c >= 0xE000) && (c <= 0xFFFD))
+                || ((c >= 0x10000) && (c <= Character.MAX_CODE_POINT));
+    }
+
+    private static boolean isName(char[] chars) {
+        if ((chars.length == 0) || !isNameStartChar(chars[0])) {
+            return false;
+        }
+
+        for (int i = 1; i < chars.length; i++) {
+            if (!isNameChar(chars[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns whether the character may start a name. Surrogates are
+     * accepted, as the supplementary characters from U+10000 to U+EFFFF are.
+     *
+     * @param c
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    private static boolean isNameStartChar(char c) {
+        if (c < 128) {
+            return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'))
+                    || (c == '_') || (c == ':');
+        }
+
+        return ((c >= 0xC0) && (c <= 0xD6)) || ((c >= 0xD8) && (c <= 0xF6))
+                || ((c >= 0xF8) && (c <= 0x2FF))
+                || ((c >= 0x370) && (c <= 0x37D))
+                || ((c >= 0x37F) && (c <= 0x1FFF)) || (c == 0x200C)
+                || (c == 0x200D) || ((c >= 0x2070) && (c <= 0x218F))
+                || ((c >= 0x2C00) && (c <= 0x2FEF))
+                || ((c >= 0x3001) && (c <= 0xDFFF))
+                || ((c >= 0xF900) && (c <= 0xFDCF))
+                || ((c >= 0xFDF0) && (c <= 0xFFFD));
+    }
+
+    private static boolean isNameChar(char c) {
+        return isNameStartChar(c) || ((c >= '0') && (c <= '9')) || (c == '-')
+                || (c == '.') || (c == 0xB7) || ((c >= 0x300) && (c <= 0x36F))
+                || (c == 0x203F) || (c == 0x2040);
+    }
+
+    private static Symbol[] grow(Symbol[] array) {
+        Symbol[] answer = new Symbol[array.length * 2];
+        System.arraycopy(array, 0, answer, 0, array.length);
+
+        return answer;
+    }
+
+    private static String[] grow(String[] array) {
+        String[] answer = new String[array.length * 2];
+        System.arraycopy(array, 0, answer, 0, array.length);
+
+        return answer;
+    }
+
+    private static Namespace[] grow(Namespace[] array) {
+        Namespace[] answer = new Namespace[array.length * 2];
+        System.arraycopy(array, 0, answer, 0, array.length);
+
+        return answer;
+    }
+
+    /**
+     * An attribute declared by the document type.
+     */
+    private static final class DeclaredAttribute {
+        final Symbol name;
+
+        /** Whether the attribute is of type CDATA and so not normalized */
+        final boolean cdata;
+
+        /** The default value or null if the attribute has none */
+        final String defaultValue;
+
+        DeclaredAttribute(Symbol name, boolean cdata, String defaultValue) {
+            this.name = name;
+            this.cdata = cdata;
+            this.defaultValue = defaultValue;
+        }
+    }
+
+    /**
+     * A name or whitespace string found in a document, with the
+     * <code>QName</code> it resolved to last.
+     */
+    private static final class Symbol {
+        static final int NAME = 0;
+
+        static final int DEFAULT_NAMESPACE = 1;
+
+        static final int PREFIXED_NAMESPACE = 2;
+
+        final char[] chars;
+
+        final int hash;
+
+        final String name;
+
+        final String prefix;
+
+        final String localName;
+
+        final int kind;
+
+        /** Whether the characters form an XML name */
+        final boolean isName;
+
+        /** Whether the characters form a namespace qualified name */
+        final boolean isQualifiedName;
+
+        Symbol next;
+
+        Namespace elementNamespace;
+
+        QName elementQName;
+
+        Namespace attributeNamespace;
+
+        QName attributeQName;
+
+        Symbol(char[] buffer, int start, int length, int hash) {
+            this.chars = new char[length];
+            System.arraycopy(buffer, start, chars, 0, length);
+            this.hash = hash;
+            this.name = new String(chars);
+
+            int colon = name.indexOf(':');
+
+            if (colon > 0) {
+                this.prefix = name.substring(0, colon);
+                this.localName = name.substring(colon + 1);
+            } else {
+                this.prefix = null;
+                this.localName = name;
+            }
+
+            this.isName = isName(chars);
+            this.isQualifiedName = isName
+                    && ((colon < 0) || ((prefix.length() > 0)
+                            && (localName.length() > 0)
+                            && (localName.indexOf(':') < 0)
+                            && isNameStartChar(localName.charAt(0))));
+
+            if ("xmlns".equals(name)) {
+                this.kind = DEFAULT_NAMESPACE;
+            } else if ("xmlns".equals(prefix)) {
+                this.kind = PREFIXED_NAMESPACE;
+            } else {
+                this.kind = NAME;
+            }
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
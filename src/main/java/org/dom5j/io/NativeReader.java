@@ -0,0 +1,617 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.dom5j.Document;
+import org.dom5j.DocumentException;
+import org.dom5j.DocumentFactory;
+import org.dom5j.ElementHandler;
+import org.xml.sax.InputSource;
+
+/**
+ * <p>
+ * <code>NativeReader</code> reads DOM4J documents with a built in
+ * non-validating, namespace aware XML 1.0 parser rather than through SAX. It
+ * builds the nodes of the document directly from its character buffer,
+ * without <code>Attributes</code> objects, a string per text event or a
+ * second namespace stack, and notifies the same {@link ElementHandler}
+ * instances as {@link SAXReader}.
+ * </p>
+ *
+ * <p>
+ * Entities and attribute defaults declared in the internal subset of the
+ * document type are applied, but nothing outside the document is read: a
+ * document which refers to an external subset, references an external entity
+ * or uses a parameter entity is rejected with a
+ * <code>DocumentException</code> rather than read without it. Use
+ * {@link SAXReader} for such documents or for documents which need
+ * validating. Adjacent text is always merged into one node.
+ * </p>
+ *
+ * <p>
+ * Like <code>SAXReader</code>, an instance reads one document at a time.
+ * </p>
+ */
+public class NativeReader {
+    /** The number of bytes looked at to detect the encoding */
+    protected static final int DECLARATION_SIZE = 256;
+
+    /** <code>DocumentFactory</code> used to create new document objects */
+    private DocumentFactory factory;
+
+    /** DispatchHandler to call when each <code>Element</code> is encountered */
+    private DispatchHandler dispatchHandler;
+
+    /** Should we ignore whitespace only text nodes */
+    private boolean stripWhitespaceText = false;
+
+    /** Should we ignore comments */
+    private boolean ignoreComments = false;
+
+    /** Encoding of the byte streams read, or null to detect it */
+    private String encoding = null;
+
+    /** The parser, which keeps its buffers and names between documents */
+    private NativeParser parser;
+
+    public NativeReader() {
+    }
+
+    public NativeReader(DocumentFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Reads a Document from the given <code>File</code>
+     *
+     * @param file
+     *            is the <code>File</code> to read from.
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(File file) throws DocumentException {
+        return read(file.toPath());
+    }
+
+    /**
+     * Reads a Document from the given <code>Path</code>. Large files are
+     * memory mapped, as with {@link SAXReader#read(Path)}.
+     *
+     * @param path
+     *            is the <code>Path</code> to read from.
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(Path path) throws DocumentException {
+        String systemId = path.toAbsolutePath().toUri().toString();
+        InputStream in = null;
+
+        try {
+            if (path.getFileSystem() == FileSystems.getDefault()) {
+                FileChannel channel = FileChannel.open(path,
+                        StandardOpenOption.READ);
+
+                long size = channel.size();
+
+                if (size >= SAXReader.DEFAULT_MEMORY_MAPPING_THRESHOLD) {
+                    in = new MappedFileInputStream(channel);
+                } else {
+                    in = Channels.newInputStream(channel);
+                }
+            } else {
+                in = Files.newInputStream(path);
+            }
+
+            return read(in, systemId);
+        } catch (IOException e) {
+            throw new DocumentException(e.getMessage(), e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a Document from the given <code>URL</code>
+     *
+     * @param url
+     *            <code>URL</code> to read from.
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(URL url) throws DocumentException {
+        InputStream in = null;
+
+        try {
+            in = url.openStream();
+
+            return read(in, url.toExternalForm());
+        } catch (IOException e) {
+            throw new DocumentException(e.getMessage(), e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a Document from the given stream, detecting its encoding from
+     * its byte order mark or XML declaration unless an encoding has been set.
+     *
+     * @param in
+     *            <code>InputStream</code> to read from.
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(InputStream in) throws DocumentException {
+        return read(in, null);
+    }
+
+    /**
+     * Reads a Document from the given stream
+     *
+     * @param in
+     *            <code>InputStream</code> to read from.
+     * @param systemId
+     *            is the system ID of the document, used in error messages
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(InputStream in, String systemId)
+            throws DocumentException {
+        String charset = encoding;
+
+        try {
+            PushbackInputStream stream = new PushbackInputStream(in,
+                    DECLARATION_SIZE);
+
+            if (charset == null) {
+                charset = detectEncoding(stream);
+            }
+
+            Reader reader = new InputStreamReader(stream, Charset
+                    .forName(charset));
+
+            return parse(reader, systemId, charset);
+        } catch (IllegalCharsetNameException e) {
+            throw unsupportedEncoding(charset, systemId, e);
+        } catch (UnsupportedCharsetException e) {
+            throw unsupportedEncoding(charset, systemId, e);
+        } catch (IOException e) {
+            throw new DocumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads a Document from the given <code>Reader</code>
+     *
+     * @param reader
+     *            is the reader for the input
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(Reader reader) throws DocumentException {
+        return read(reader, null);
+    }
+
+    /**
+     * Reads a Document from the given <code>Reader</code>
+     *
+     * @param reader
+     *            is the reader for the input
+     * @param systemId
+     *            is the system ID of the document, used in error messages
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(Reader reader, String systemId)
+            throws DocumentException {
+        return parse(reader, systemId, null);
+    }
+
+    /**
+     * Reads a Document from the character stream, byte stream or system ID of
+     * the given <code>InputSource</code>, in that order.
+     *
+     * @param in
+     *            <code>InputSource</code> to read from.
+     *
+     * @return the newly created Document instance
+     *
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(InputSource in) throws DocumentException {
+        if (in.getCharacterStream() != null) {
+            return read(in.getCharacterStream(), in.getSystemId());
+        } else if (in.getByteStream() != null) {
+            String oldEncoding = encoding;
+
+            if (in.getEncoding() != null) {
+                encoding = in.getEncoding();
+            }
+
+            try {
+                return read(in.getByteStream(), in.getSystemId());
+            } finally {
+                encoding = oldEncoding;
+            }
+        } else if (in.getSystemId() != null) {
+            try {
+                return read(new URL(in.getSystemId()));
+            } catch (MalformedURLException e) {
+                return read(new File(in.getSystemId()));
+            }
+        }
+
+        throw new DocumentException("The input source has no content");
+    }
+
+    // Properties
+    // -------------------------------------------------------------------------
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return the <code>DocumentFactory</code> used to create document
+     *         objects
+     */
+    public DocumentFactory getDocumentFactory() {
+        if (factory == null) {
+            factory = DocumentFactory.getInstance();
+        }
+
+        return factory;
+    }
+
+    /**
+     * <p>
+     * This sets the <code>DocumentFactory</code> used to create new
+     * documents. This method allows the building of custom DOM4J tree objects
+     * to be implemented easily using a custom derivation of
+     * {@link DocumentFactory}
+     * </p>
+     *
+     * @param documentFactory
+     *            <code>DocumentFactory</code> used to create DOM4J objects
+     */
+    public void setDocumentFactory(DocumentFactory documentFactory) {
+        this.factory = documentFactory;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return true if whitespace only text nodes are stripped
+     */
+    public boolean isStripWhitespaceText() {
+        return stripWhitespaceText;
+    }
+
+    /**
+     * Sets whether whitespace only text nodes are stripped
+     *
+     * @param stripWhitespaceText
+     *            DOCUMENT ME!
+     */
+    public void setStripWhitespaceText(boolean stripWhitespaceText) {
+        this.stripWhitespaceText = stripWhitespaceText;
+    }
+
+    /**
+     * Returns whether we should ignore comments or not.
+     *
+     * @return boolean
+     */
+    public boolean isIgnoreComments() {
+        return ignoreComments;
+    }
+
+    /**
+     * Sets whether we should ignore comments or not.
+     *
+     * @param ignoreComments
+     *            whether we should ignore comments or not.
+     */
+    public void setIgnoreComments(boolean ignoreComments) {
+        this.ignoreComments = ignoreComments;
+    }
+
+    /**
+     * Returns the encoding used to read byte streams.
+     *
+     * @return the encoding or null if it is detected for each document
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Sets the encoding used to read byte streams, overriding their byte
+     * order mark and XML declaration.
+     *
+     * @param encoding
+     *            the encoding or null to detect it for each document
+     */
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Adds the <code>ElementHandler</code> to be called when the specified
+     * path is encounted.
+     *
+     * @param path
+     *            is the path to be handled
+     * @param handler
+     *            is the <code>ElementHandler</code> to be called by the event
+     *            based processor.
+     */
+    public void addHandler(String path, ElementHandler handler) {
+        getDispatchHandler().addHandler(path, handler);
+    }
+
+    /**
+     * Removes the <code>ElementHandler</code> from the event based processor,
+     * for the specified path.
+     *
+     * @param path
+     *            is the path to remove the <code>ElementHandler</code> for.
+     */
+    public void removeHandler(String path) {
+        getDispatchHandler().removeHandler(path);
+    }
+
+    /**
+     * When multiple <code>ElementHandler</code> instances have been
+     * registered, this will set a default <code>ElementHandler</code> to be
+     * called for any path which does <b>NOT </b> have a handler registered.
+     *
+     * @param handler
+     *            is the <code>ElementHandler</code> to be called by the event
+     *            based processor.
+     */
+    public void setDefaultHandler(ElementHandler handler) {
+        getDispatchHandler().setDefaultHandler(handler);
+    }
+
+    /**
+     * This method clears out all the existing handlers and default handler
+     * setting things back as if no handler existed. Useful when reusing an
+     * object instance.
+     */
+    public void resetHandlers() {
+        getDispatchHandler().resetHandlers();
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    protected DispatchHandler getDispatchHandler() {
+        if (dispatchHandler == null) {
+            dispatchHandler = new DispatchHandler();
+        }
+
+        return dispatchHandler;
+    }
+
+    protected void setDispatchHandler(DispatchHandler dispatchHandler) {
+        this.dispatchHandler = dispatchHandler;
+    }
+
+    /**
+     * Detects the encoding of a byte stream from its byte order mark or its
+     * XML declaration, leaving the stream as it was.
+     *
+     * @param in
+     *            the stream, which must be able to push back {@link
+     *            #DECLARATION_SIZE} bytes
+     *
+     * @return the name of the encoding
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    protected String detectEncoding(PushbackInputStream in)
+            throws IOException {
+        byte[] bytes = new byte[DECLARATION_SIZE];
+        int length = 0;
+
+        while (length < bytes.length) {
+            int count = in.read(bytes, length, bytes.length - length);
+
+            if (count < 0) {
+                break;
+            }
+
+            length += count;
+
+            // stop at the end of the XML declaration
+            if (length >= 5) {
+                int i = length - count;
+
+                while ((i < length) && (bytes[i] != '>')) {
+                    i++;
+                }
+
+                if (i < length) {
+                    break;
+                }
+            }
+        }
+
+        in.unread(bytes, 0, length);
+
+        if (length >= 2) {
+            int b0 = bytes[0] & 0xFF;
+            int b1 = bytes[1] & 0xFF;
+
+            if (((b0 == 0xFE) && (b1 == 0xFF))
+                    || ((b0 == 0xFF) && (b1 == 0xFE))) {
+                return "UTF-16";
+            } else if ((b0 == '<') && (b1 == 0)) {
+                return "UTF-16LE";
+            } else if ((b0 == 0) && (b1 == '<')) {
+                return "UTF-16BE";
+            }
+        }
+
+        int start = 0;
+
+        if ((length >= 3) && ((bytes[0] & 0xFF) == 0xEF)
+                && ((bytes[1] & 0xFF) == 0xBB) && ((bytes[2] & 0xFF) == 0xBF)) {
+            start = 3;
+        }
+
+        String declared = declaredEncoding(bytes, start, length);
+
+        return (declared != null) ? declared : "UTF-8";
+    }
+
+    private Document parse(Reader reader, String systemId, String charset)
+            throws DocumentException {
+        DocumentFactory documentFactory = getDocumentFactory();
+
+        if ((parser == null)
+                || (parser.getDocumentFactory() != documentFactory)) {
+            parser = new NativeParser(documentFactory);
+        }
+
+        parser.setStripWhitespaceText(stripWhitespaceText);
+        parser.setIgnoreComments(ignoreComments);
+        parser.setDispatchHandler(dispatchHandler);
+
+        return parser.parse(reader, systemId, charset);
+    }
+
+    private static String declaredEncoding(byte[] bytes, int start, int end) {
+        String declaration = new String(bytes, start, end - start,
+                StandardCharsets.ISO_8859_1);
+
+        if (!declaration.startsWith("<?xml")) {
+            return null;
+        }
+
+        int close = declaration.indexOf("?>");
+        int index = declaration.indexOf("encoding");
+
+        if ((index < 0) || ((close >= 0) && (index > close))) {
+            return null;
+        }
+
+        index = declaration.indexOf('=', index);
+
+        while ((index >= 0) && (++index < declaration.length())) {
+            char quote = declaration.charAt(index);
+
+            if ((quote == '"') || (quote == '\'')) {
+                int endQuote = declaration.indexOf(quote, index + 1);
+
+                return (endQuote > 0) ? declaration.substring(index + 1,
+                        endQuote) : null;
+            } else if (quote > ' ') {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    private static DocumentException unsupportedEncoding(String charset,
+            String systemId, Exception e) {
+        return new DocumentException("Error on line 1 of document "
+                + ((systemId != null) ? systemId : "")
+                + " : Invalid encoding name \"" + charset + "\".", e);
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
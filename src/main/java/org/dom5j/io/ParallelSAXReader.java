@@ -0,0 +1,751 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+import org.dom5j.Branch;
+import org.dom5j.DocumentException;
+import org.dom5j.DocumentFactory;
+import org.dom5j.Element;
+import org.dom5j.ElementHandler;
+import org.dom5j.ElementPath;
+import org.dom5j.util.CloseableIterator;
+import org.xml.sax.InputSource;
+
+/**
+ * <p>
+ * <code>ParallelSAXReader</code> parses large record-oriented documents, a
+ * root holding a long run of identical record elements, on several threads.
+ * The file is split into chunks at record start tags found by scanning the
+ * bytes; each chunk is memory mapped and parsed by its own {@link SAXReader}
+ * with the original prolog and ancestor start tags prepended and the closing
+ * tags appended, so namespace declarations, entity declarations and the
+ * encoding of the document apply to every chunk.
+ * </p>
+ *
+ * <p>
+ * The records are detached and either passed to a callback by
+ * {@link #read(File, String, Consumer)}, in document order on the calling
+ * thread or as soon as they are parsed on the worker threads, or returned
+ * in document order by the iterator of {@link #iterate(File, String)}. At
+ * most twice as many chunks as threads are in flight at once.
+ * </p>
+ *
+ * <p>
+ * The split relies on the byte layout of the document, as chunk boundaries
+ * are found by looking for the text <code>&lt;record</code>, for the name
+ * of the record element, without parsing what comes before it:
+ * </p>
+ * <ul>
+ * <li>The encoding must be ASCII compatible, such as UTF-8 or ISO-8859-1.
+ * Documents starting with a UTF-16 byte order mark or a zero byte are
+ * rejected.</li>
+ * <li>The start tag of a record element must not occur inside a comment, a
+ * CDATA section or a processing instruction. A chunk which ends inside one
+ * of these, meaning that the next boundary was taken from it, is rejected
+ * with a <code>DocumentException</code>.</li>
+ * <li>Elements with the name of the record element must not occur at any
+ * other depth, whether nested inside a record or elsewhere in the document,
+ * and the end tag of the parent of the records must not occur after the
+ * last record other than where that parent ends. A boundary taken from such
+ * an element usually leaves a chunk which is not well formed, which is
+ * reported as a parse error of that chunk, but this is not guaranteed.</li>
+ * </ul>
+ *
+ * <p>
+ * The chunks share no state, so throughput can grow with the number of
+ * threads until the disk or the callback becomes the limit.
+ * </p>
+ */
+public class ParallelSAXReader {
+    /** The default number of bytes in a chunk */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /** The number of bytes read at a time when scanning for boundaries */
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] COMMENT_START = {'<', '!', '-', '-'};
+
+    private static final byte[] CDATA_START = {'<', '!', '[', 'C', 'D', 'A',
+            'T', 'A', '['};
+
+    private static final byte[] INSTRUCTION_START = {'<', '?'};
+
+    private DocumentFactory documentFactory;
+
+    private int threadCount;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    private boolean ordered = true;
+
+    public ParallelSAXReader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelSAXReader(int threadCount) {
+        this(DocumentFactory.getInstance(), threadCount);
+    }
+
+    public ParallelSAXReader(DocumentFactory factory, int threadCount) {
+        this.documentFactory = factory;
+        setThreadCount(threadCount);
+    }
+
+    /**
+     * <p>
+     * Reads the records at the given path one at a time, in document order
+     * whether or not this reader is ordered. The chunks are parsed ahead on
+     * the worker threads while the consumer works through the records.
+     * </p>
+     *
+     * <p>
+     * As with {@link SAXReader#iterate(InputSource, String)} the iterator
+     * should be exhausted or closed, and an error is thrown from
+     * <code>hasNext()</code> as an <code>IllegalStateException</code>
+     * caused by the <code>DocumentException</code>.
+     * </p>
+     *
+     * @param file
+     *            is the file to read
+     * @param path
+     *            the absolute path of the record elements, whose steps are
+     *            the qualified names used in the file
+     *
+     * @return an iterator over the detached record elements
+     */
+    public CloseableIterator<Element> iterate(File file, String path) {
+        // fail on a bad path here rather than from hasNext()
+        parsePath(path);
+
+        RecordIterator iterator = new RecordIterator(this, file, path);
+        iterator.start();
+
+        return iterator;
+    }
+
+    /**
+     * <p>
+     * Reads the records at the given path, such as <code>/root/record</code>,
+     * passing each of them detached to the callback.
+     * </p>
+     *
+     * @param file
+     *            is the file to read
+     * @param path
+     *            the absolute path of the record elements, whose steps are
+     *            the qualified names used in the file
+     * @param callback
+     *            receives the records; it must be thread safe if this reader
+     *            is not ordered
+     *
+     * @throws DocumentException
+     *             if the file cannot be split or a chunk fails to parse
+     */
+    public void read(File file, String path, Consumer<? super Element> callback)
+            throws DocumentException {
+        read(file, path, callback, ordered);
+    }
+
+    // Properties
+    // -------------------------------------------------------------------------
+    public DocumentFactory getDocumentFactory() {
+        return documentFactory;
+    }
+
+    public void setDocumentFactory(DocumentFactory documentFactory) {
+        this.documentFactory = documentFactory;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public void setThreadCount(int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount must be positive: "
+                    + threadCount);
+        }
+
+        this.threadCount = threadCount;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the approximate number of bytes parsed by each task. Chunks end
+     * at the first record start tag after this many bytes.
+     *
+     * @param chunkSize
+     *            the number of bytes after which a chunk ends
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: "
+                    + chunkSize);
+        }
+
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Sets whether records are delivered in document order on the calling
+     * thread, which is the default, or as they are parsed on the worker
+     * threads.
+     *
+     * @param ordered
+     *            true to deliver the records in document order
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Factory Method to allow the readers of the chunks to be configured
+     *
+     * @return a new reader for one chunk
+     */
+    protected SAXReader createSAXReader() {
+        return new SAXReader(documentFactory);
+    }
+
+    protected ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "dom5j-parallel-reader");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Reads the records, passing them to the callback on the calling thread
+     * in document order if <code>inOrder</code> is true or on the worker
+     * threads otherwise.
+     */
+    void read(File file, String path, Consumer<? super Element> callback,
+            boolean inOrder) throws DocumentException {
+        String[] steps = parsePath(path);
+        RandomAccessFile raf = null;
+        ExecutorService executor = null;
+
+        try {
+            raf = new RandomAccessFile(file, "r");
+
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            byte[] recordStart = ("<" + steps[steps.length - 1])
+                    .getBytes("ISO-8859-1");
+            byte[] parentEnd = ("</" + steps[steps.length - 2])
+                    .getBytes("ISO-8859-1");
+
+            long first = findForward(channel, 0, length, recordStart);
+
+            if (first < 0) {
+                return;
+            }
+
+            long last = findBackward(channel, first, length, parentEnd);
+
+            if (last < 0) {
+                throw new DocumentException("No end tag found for "
+                        + steps[steps.length - 2] + " in " + file);
+            }
+
+            byte[] prefix = readBytes(channel, 0, (int) first);
+            byte[] suffix = readBytes(channel, last, (int) (length - last));
+            checkEncoding(prefix, file);
+
+            String markup = unclosedMarkup(ByteBuffer.wrap(prefix));
+
+            if (markup != null) {
+                throw new DocumentException("The first start tag of "
+                        + steps[steps.length - 1] + " in " + file
+                        + " is inside " + markup);
+            }
+
+            String localPath = localPath(steps);
+            String systemId = file.getAbsoluteFile().toURI().toString();
+            executor = createExecutor();
+
+            Deque<Future<List<Element>>> pending =
+                    new ArrayDeque<Future<List<Element>>>();
+            long start = first;
+
+            while (start < last) {
+                long end = findForward(channel, Math.min(start + chunkSize,
+                        last), last, recordStart);
+
+                if (end < 0) {
+                    end = last;
+                }
+
+                if (end - start > Integer.MAX_VALUE) {
+                    throw new DocumentException("Chunk of " + (end - start)
+                            + " bytes at offset " + start + " is too large");
+                }
+
+                ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+                        start, end - start);
+                pending.add(executor.submit(new ChunkParser(prefix, chunk,
+                        suffix, systemId, localPath, start,
+                        inOrder ? null : callback)));
+                start = end;
+
+                if (pending.size() >= (2 * threadCount)) {
+                    deliver(pending.removeFirst(), callback);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                deliver(pending.removeFirst(), callback);
+            }
+        } catch (IOException e) {
+            throw new DocumentException(e.getMessage(), e);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void deliver(Future<List<Element>> future,
+            Consumer<? super Element> callback) throws DocumentException {
+        List<Element> records;
+
+        try {
+            records = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentException("Interrupted while reading", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof DocumentException) {
+                throw (DocumentException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new DocumentException(cause.getMessage(), cause);
+        }
+
+        if (records != null) {
+            for (int i = 0, size = records.size(); i < size; i++) {
+                callback.accept(records.get(i));
+            }
+        }
+    }
+
+    private static String[] parsePath(String path) {
+        if ((path == null) || !path.startsWith("/")) {
+            throw new IllegalArgumentException("Not an absolute path: " + path);
+        }
+
+        String[] steps = path.substring(1).split("/");
+
+        if (steps.length < 2) {
+            throw new IllegalArgumentException("The path must name the root "
+                    + "and the record elements: " + path);
+        }
+
+        return steps;
+    }
+
+    /**
+     * @return the path matched against the local names by DispatchHandler
+     */
+    private static String localPath(String[] steps) {
+        StringBuilder buffer = new StringBuilder();
+
+        for (int i = 0; i < steps.length; i++) {
+            int index = steps[i].indexOf(':');
+            buffer.append('/').append(steps[i].substring(index + 1));
+        }
+
+        return buffer.toString();
+    }
+
+    private static void checkEncoding(byte[] prefix, File file)
+            throws DocumentException {
+        if ((prefix.length >= 2)
+                && (((prefix[0] == (byte) 0xFE) && (prefix[1] == (byte) 0xFF))
+                || ((prefix[0] == (byte) 0xFF) && (prefix[1] == (byte) 0xFE))
+                || (prefix[0] == 0) || (prefix[1] == 0))) {
+            throw new DocumentException("Only ASCII compatible encodings "
+                    + "can be split: " + file);
+        }
+    }
+
+    private static byte[] readBytes(FileChannel channel, long position,
+            int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Scans the bytes for comments, CDATA sections and processing
+     * instructions.
+     *
+     * @return a description of the one left open at the end, or null
+     */
+    private static String unclosedMarkup(ByteBuffer buffer) {
+        final int text = 0;
+        final int comment = 1;
+        final int cdata = 2;
+        final int instruction = 3;
+        int state = text;
+
+        for (int i = buffer.position(), end = buffer.limit(); i < end; i++) {
+            byte b = buffer.get(i);
+
+            if (state == text) {
+                if (b == '<') {
+                    if (startsWith(buffer, i, COMMENT_START)) {
+                        state = comment;
+                        i += COMMENT_START.length - 1;
+                    } else if (startsWith(buffer, i, CDATA_START)) {
+                        state = cdata;
+                        i += CDATA_START.length - 1;
+                    } else if (startsWith(buffer, i, INSTRUCTION_START)) {
+                        state = instruction;
+                        i += INSTRUCTION_START.length - 1;
+                    }
+                }
+            } else if (b == '>') {
+                byte b1 = buffer.get(i - 1);
+                byte b2 = buffer.get(i - 2);
+
+                if (((state == comment) && (b1 == '-') && (b2 == '-'))
+                        || ((state == cdata) && (b1 == ']') && (b2 == ']'))
+                        || ((state == instruction) && (b1 == '?'))) {
+                    state = text;
+                }
+            }
+        }
+
+        if (state == comment) {
+            return "a comment";
+        } else if (state == cdata) {
+            return "a CDATA section";
+        } else if (state == instruction) {
+            return "a processing instruction";
+        }
+
+        return null;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int offset,
+            byte[] pattern) {
+        if (offset + pattern.length > buffer.limit()) {
+            return false;
+        }
+
+        for (int i = 1; i < pattern.length; i++) {
+            if (buffer.get(offset + i) != pattern[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return (b == ' ') || (b == '\t') || (b == '\r') || (b == '\n')
+                || (b == '/') || (b == '>');
+    }
+
+    /**
+     * @return the offset of the first tag starting with the pattern in the
+     *         range, or -1
+     */
+    private static long findForward(FileChannel channel, long from, long to,
+            byte[] pattern) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE
+                + pattern.length + 1);
+        byte[] bytes = buffer.array();
+
+        for (long position = from; position < to;
+                position += SCAN_BUFFER_SIZE) {
+            buffer.clear();
+
+            int count = fill(channel, buffer, position, to);
+
+            for (int i = 0, n = Math.min(count, SCAN_BUFFER_SIZE); i < n; i++) {
+                if ((bytes[i] == '<') && matches(bytes, i, count, pattern)) {
+                    return position + i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the offset of the last tag starting with the pattern in the
+     *         range, or -1
+     */
+    private static long findBackward(FileChannel channel, long from, long to,
+            byte[] pattern) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE
+                + pattern.length + 1);
+        byte[] bytes = buffer.array();
+
+        for (long position = Math.max(from, to - SCAN_BUFFER_SIZE); ; position =
+                Math.max(from, position - SCAN_BUFFER_SIZE)) {
+            buffer.clear();
+
+            int count = fill(channel, buffer, position, to);
+
+            for (int i = Math.min(count, SCAN_BUFFER_SIZE) - 1; i >= 0; i--) {
+                if ((bytes[i] == '<') && matches(bytes, i, count, pattern)) {
+                    return position + i;
+                }
+            }
+
+            if (position == from) {
+                return -1;
+            }
+        }
+    }
+
+    private static int fill(FileChannel channel, ByteBuffer buffer,
+            long position, long to) throws IOException {
+        buffer.limit((int) Math.min(buffer.capacity(), to - position));
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+
+        return buffer.position();
+    }
+
+    private static boolean matches(byte[] bytes, int offset, int count,
+            byte[] pattern) {
+        int end = offset + pattern.length;
+
+        if (end >= count) {
+            return false;
+        }
+
+        for (int i = 1; i < pattern.length; i++) {
+            if (bytes[offset + i] != pattern[i]) {
+                return false;
+            }
+        }
+
+        return isDelimiter(bytes[end]);
+    }
+
+    /**
+     * Parses one chunk, collecting its records or passing them to the
+     * callback
+     */
+    private class ChunkParser implements Callable<List<Element>>,
+            ElementHandler {
+        private final byte[] prefix;
+
+        private final ByteBuffer chunk;
+
+        private final byte[] suffix;
+
+        private final String systemId;
+
+        private final String path;
+
+        private final long offset;
+
+        private final Consumer<? super Element> callback;
+
+        private final List<Element> records;
+
+        ChunkParser(byte[] prefix, ByteBuffer chunk, byte[] suffix,
+                String systemId, String path, long offset,
+                Consumer<? super Element> callback) {
+            this.prefix = prefix;
+            this.chunk = chunk;
+            this.suffix = suffix;
+            this.systemId = systemId;
+            this.path = path;
+            this.offset = offset;
+            this.callback = callback;
+            this.records = (callback == null) ? new ArrayList<Element>()
+                    : null;
+        }
+
+        public List<Element> call() throws DocumentException {
+            String markup = unclosedMarkup(chunk);
+
+            if (markup != null) {
+                throw new DocumentException("The chunk at offset " + offset
+                        + " ends inside " + markup + ", so the next chunk "
+                        + "does not start at a record");
+            }
+
+            SAXReader reader = createSAXReader();
+            reader.addHandler(path, this);
+
+            InputStream in = new SequenceInputStream(
+                    new SequenceInputStream(new ByteArrayInputStream(prefix),
+                            new ByteBufferInputStream(chunk)),
+                    new ByteArrayInputStream(suffix));
+
+            // resolves relative DTD and entity references against the file
+            InputSource source = new InputSource(in);
+            source.setSystemId(systemId);
+
+            try {
+                reader.read(source);
+            } catch (DocumentException e) {
+                throw new DocumentException("Error in the chunk at offset "
+                        + offset + ": " + e.getMessage(), e);
+            }
+
+            return records;
+        }
+
+        public void onStart(ElementPath elementPath) {
+        }
+
+        public void onEnd(ElementPath elementPath) {
+            Element record = elementPath.getCurrent();
+            Branch parent = record.getParent();
+            record.detach();
+
+            if (parent != null) {
+                parent.clearContent();
+            }
+
+            if (callback != null) {
+                callback.accept(record);
+            } else {
+                records.add(record);
+            }
+        }
+    }
+
+    /**
+     * An <code>InputStream</code> reading a mapped chunk of the file
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : (-1);
+        }
+
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+
+            return count;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
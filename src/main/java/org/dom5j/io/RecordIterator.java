@@ -0,0 +1,290 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.File;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+import org.dom5j.Branch;
+import org.dom5j.DocumentException;
+import org.dom5j.Element;
+import org.dom5j.ElementHandler;
+import org.dom5j.ElementPath;
+import org.dom5j.util.CloseableIterator;
+import org.xml.sax.InputSource;
+
+/**
+ * <p>
+ * <code>RecordIterator</code> implements {@link SAXReader#iterate}and
+ * {@link ParallelSAXReader#iterate}. A parser thread reads the document,
+ * detaching each element found at the record path and handing it over
+ * through a bounded queue, so memory use is bounded by the queue capacity
+ * rather than by the size of the document.
+ * </p>
+ */
+class RecordIterator implements CloseableIterator<Element>, ElementHandler,
+        Consumer<Element>, Runnable {
+    /** The number of records which may wait for the consumer */
+    static final int CAPACITY = 16;
+
+    /** How long close() waits for the parser thread to stop */
+    static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    /** Marks the end of the records */
+    private static final Object END = new Object();
+
+    /** The reader of a single document, or null */
+    private final SAXReader reader;
+
+    private final InputSource source;
+
+    /** The reader of a split file, or null */
+    private final ParallelSAXReader parallelReader;
+
+    private final File file;
+
+    private final String path;
+
+    private final BlockingQueue<Object> queue;
+
+    /** The handler registered for the path before this iteration */
+    private ElementHandler previousHandler;
+
+    private Thread parserThread;
+
+    /** The next item taken from the queue but not yet returned */
+    private Object next;
+
+    private volatile boolean closed;
+
+    RecordIterator(SAXReader reader, InputSource source, String path) {
+        this.reader = reader;
+        this.source = source;
+        this.parallelReader = null;
+        this.file = null;
+        this.path = path;
+        this.queue = new ArrayBlockingQueue<Object>(CAPACITY);
+    }
+
+    RecordIterator(ParallelSAXReader parallelReader, File file, String path) {
+        this.reader = null;
+        this.source = null;
+        this.parallelReader = parallelReader;
+        this.file = file;
+        this.path = path;
+        this.queue = new ArrayBlockingQueue<Object>(CAPACITY);
+    }
+
+    /**
+     * Registers this iterator with the reader and starts the parser thread.
+     */
+    void start() {
+        if (reader != null) {
+            DispatchHandler dispatchHandler = reader.getDispatchHandler();
+            previousHandler = dispatchHandler.getHandler(path);
+            dispatchHandler.addHandler(path, this);
+        }
+
+        parserThread = new Thread(this, "dom5j-iterate " + path);
+        parserThread.setDaemon(true);
+        parserThread.start();
+    }
+
+    public boolean hasNext() {
+        if (next == null) {
+            if (closed) {
+                return false;
+            }
+
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+
+                return false;
+            }
+        }
+
+        if (next instanceof DocumentException) {
+            DocumentException exception = (DocumentException) next;
+            next = END;
+            throw new IllegalStateException(exception.getMessage(), exception);
+        }
+
+        return next != END;
+    }
+
+    public Element next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Element answer = (Element) next;
+        next = null;
+
+        return answer;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops the parser thread and waits up to
+     * {@link #CLOSE_TIMEOUT_MILLIS}for it to finish, so that the reader can
+     * be used again once this method returns.
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            next = END;
+            queue.clear();
+            parserThread.interrupt();
+
+            try {
+                parserThread.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // ElementHandler interface
+    // -------------------------------------------------------------------------
+    public void onStart(ElementPath elementPath) {
+        if (closed) {
+            throw new IterationClosed();
+        }
+    }
+
+    public void onEnd(ElementPath elementPath) {
+        Element record = elementPath.getCurrent();
+        Branch parent = record.getParent();
+
+        if (parent == null) {
+            parent = record.getDocument();
+        }
+
+        record.detach();
+
+        // drop the text between records too
+        if (parent != null) {
+            parent.clearContent();
+        }
+
+        accept(record);
+    }
+
+    // Consumer interface
+    // -------------------------------------------------------------------------
+    public void accept(Element record) {
+        try {
+            if (!closed) {
+                queue.put(record);
+            }
+        } catch (InterruptedException e) {
+            // close() was called while the queue was full
+        }
+
+        if (closed) {
+            throw new IterationClosed();
+        }
+    }
+
+    // Runnable interface
+    // -------------------------------------------------------------------------
+    public void run() {
+        Object last = END;
+
+        try {
+            if (reader != null) {
+                reader.read(source);
+            } else {
+                parallelReader.read(file, path, this, true);
+            }
+        } catch (DocumentException e) {
+            if (!closed) {
+                last = e;
+            }
+        } catch (IterationClosed e) {
+            // the consumer has gone
+        } finally {
+            if (reader != null) {
+                DispatchHandler dispatchHandler = reader.getDispatchHandler();
+
+                if (previousHandler != null) {
+                    dispatchHandler.addHandler(path, previousHandler);
+                } else {
+                    dispatchHandler.removeHandler(path);
+                }
+            }
+        }
+
+        try {
+            if (!closed) {
+                queue.put(last);
+            }
+        } catch (InterruptedException e) {
+            // closed while waiting for space
+        }
+    }
+
+    /**
+     * Thrown through the parser to stop it once the iterator is closed
+     */
+    private static class IterationClosed extends RuntimeException {
+        IterationClosed() {
+            super("The iterator has been closed");
+        }
+
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
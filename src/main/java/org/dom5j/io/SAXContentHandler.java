@@ -197,6 +197,7 @@ public class SAXContentHandler extends DefaultHandler implements
 
         if ((elementHandler != null)
                 && (elementHandler instanceof DispatchHandler)) {
+            ((DispatchHandler) elementHandler).resetPath();
             elementStack.setDispatchHandler((DispatchHandler) elementHandler);
         }
 
@@ -9,23 +9,19 @@ package org.dom5j.io;
 
 import java.io.Externalizable;
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
-import org.dom5j.Namespace;
-import org.dom5j.QName;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.DTDHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.ext.DeclHandler;
 import org.xml.sax.ext.LexicalHandler;
-import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.DefaultHandler;
 
 /**
@@ -55,178 +51,245 @@ import org.xml.sax.helpers.DefaultHandler;
  *  
  * </pre>
  * 
+ * <p>
+ * The events are appended to a stream of opcodes, each followed by its
+ * operands as varints of seven bits per byte. Names, URIs, attribute types
+ * and values are operands indexing a table of strings, in which the strings
+ * of up to 64 characters are shared. Character data is copied into blocks of
+ * <code>char</code> and only its length is recorded, as the blocks are
+ * filled in order. Replaying walks the stream and passes the strings and
+ * blocks on as they are, so it creates no objects per event and may be
+ * repeated as often as needed.
+ * </p>
+ *
+ * <p>
+ * The serialized form holds the string table, the stream and the character
+ * data, each character as a varint.
+ * </p>
+ *
  * @author Todd Wolff (Bluestem Software)
  */
 public class SAXEventRecorder extends DefaultHandler implements LexicalHandler,
         DeclHandler, DTDHandler, Externalizable {
-    public static final long serialVersionUID = 1;
+    public static final long serialVersionUID = 2;
+
+    private static final int END = 0;
+
+    private static final int PROCESSING_INSTRUCTION = 1;
+
+    private static final int START_PREFIX_MAPPING = 2;
+
+    private static final int END_PREFIX_MAPPING = 3;
+
+    private static final int START_DOCUMENT = 4;
+
+    private static final int END_DOCUMENT = 5;
+
+    private static final int START_ELEMENT = 6;
+
+    private static final int END_ELEMENT = 7;
 
-    private static final byte STRING = 0;
+    private static final int CHARACTERS = 8;
 
-    private static final byte OBJECT = 1;
+    private static final int START_DTD = 9;
 
-    private static final byte NULL = 2;
+    private static final int END_DTD = 10;
 
-    private List events = new ArrayList();
+    private static final int START_ENTITY = 11;
 
-    private Map prefixMappings = new HashMap();
+    private static final int END_ENTITY = 12;
+
+    private static final int START_CDATA = 13;
+
+    private static final int END_CDATA = 14;
+
+    private static final int COMMENT = 15;
+
+    private static final int ELEMENT_DECL = 16;
+
+    private static final int ATTRIBUTE_DECL = 17;
+
+    private static final int INTERNAL_ENTITY_DECL = 18;
+
+    private static final int EXTERNAL_ENTITY_DECL = 19;
+
+    /** The version of the serialized form */
+    private static final int FORMAT_VERSION = 2;
+
+    /** The longest strings which are shared through the table */
+    private static final int MAXIMUM_SHARED_LENGTH = 64;
+
+    /** The number of characters of a block */
+    private static final int BLOCK_SIZE = 16384;
+
+    /** Longer character data is given a block of its own if need be */
+    private static final int MAXIMUM_BLOCK_WASTE = BLOCK_SIZE / 8;
 
     private static final String XMLNS = "xmlns";
 
     private static final String EMPTY_STRING = "";
 
+    /** The opcodes and operands of the events, as varints */
+    private byte[] ops = new byte[1024];
+
+    private int size;
+
+    /** The strings indexed by the operands, where index 0 is null */
+    private String[] strings = new String[64];
+
+    private int stringCount = 1;
+
+    /** The indexes of the shared strings */
+    private Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+
+    private char[][] blocks = new char[4][];
+
+    /** Places the character data in the blocks */
+    private CharLayout layout = new CharLayout();
+
+    /** The indexes of the prefixes declared as attributes, as a stack */
+    private int[] declaredPrefixes = new int[16];
+
+    private int declaredCount;
+
+    /** The number of prefixes declared as attributes of each open element */
+    private int[] elementDeclarations = new int[16];
+
+    private int depth;
+
     public SAXEventRecorder() {
     }
 
     public void replay(ContentHandler handler) throws SAXException {
-        SAXEvent saxEvent;
-        Iterator itr = events.iterator();
+        EventReader reader = new EventReader(ops, size, strings, blocks);
+        RecordedAttributes attributes = new RecordedAttributes(strings);
 
-        while (itr.hasNext()) {
-            saxEvent = (SAXEvent) itr.next();
+        while (reader.hasNext()) {
+            int event = reader.next();
 
-            switch (saxEvent.event) {
+            switch (event) {
                 // replay to ContentHandler
-                case SAXEvent.PROCESSING_INSTRUCTION:
-                    handler.processingInstruction((String) saxEvent.getParm(0),
-                            (String) saxEvent.getParm(1));
+                case PROCESSING_INSTRUCTION:
+                    handler.processingInstruction(reader.string(), reader
+                            .string());
 
                     break;
 
-                case SAXEvent.START_PREFIX_MAPPING:
-                    handler.startPrefixMapping((String) saxEvent.getParm(0),
-                            (String) saxEvent.getParm(1));
+                case START_PREFIX_MAPPING:
+                    handler.startPrefixMapping(reader.string(), reader
+                            .string());
 
                     break;
 
-                case SAXEvent.END_PREFIX_MAPPING:
-                    handler.endPrefixMapping((String) saxEvent.getParm(0));
+                case END_PREFIX_MAPPING:
+                    handler.endPrefixMapping(reader.string());
 
                     break;
 
-                case SAXEvent.START_DOCUMENT:
+                case START_DOCUMENT:
                     handler.startDocument();
 
                     break;
 
-                case SAXEvent.END_DOCUMENT:
+                case END_DOCUMENT:
                     handler.endDocument();
 
                     break;
 
-                case SAXEvent.START_ELEMENT:
-
-                    AttributesImpl attributes = new AttributesImpl();
-                    List attParmList = (List) saxEvent.getParm(3);
-
-                    if (attParmList != null) {
-                        Iterator attsItr = attParmList.iterator();
-
-                        while (attsItr.hasNext()) {
-                            String[] attParms = (String[]) attsItr.next();
-                            attributes.addAttribute(attParms[0], attParms[1],
-                                    attParms[2], attParms[3], attParms[4]);
-                        }
-                    }
+                case START_ELEMENT:
 
-                    handler.startElement((String) saxEvent.getParm(0),
-                            (String) saxEvent.getParm(1), (String) saxEvent
-                                    .getParm(2), attributes);
+                    String namespaceURI = reader.string();
+                    String localName = reader.string();
+                    String qualifiedName = reader.string();
+                    attributes.read(reader);
+                    handler.startElement(namespaceURI, localName,
+                            qualifiedName, attributes);
 
                     break;
 
-                case SAXEvent.END_ELEMENT:
-                    handler.endElement((String) saxEvent.getParm(0),
-                            (String) saxEvent.getParm(1), (String) saxEvent
-                                    .getParm(2));
+                case END_ELEMENT:
+                    handler.endElement(reader.string(), reader.string(),
+                            reader.string());
 
                     break;
 
-                case SAXEvent.CHARACTERS:
+                case CHARACTERS:
 
-                    char[] chars = (char[]) saxEvent.getParm(0);
-                    int start = ((Integer) saxEvent.getParm(1)).intValue();
-                    int end = ((Integer) saxEvent.getParm(2)).intValue();
-                    handler.characters(chars, start, end);
+                    int length = reader.next();
+                    char[] chars = reader.chars(length);
+                    handler.characters(chars, reader.offset(), length);
 
                     break;
 
                 // replay to LexicalHandler
-                case SAXEvent.START_DTD:
-                    ((LexicalHandler) handler).startDTD((String) saxEvent
-                            .getParm(0), (String) saxEvent.getParm(1),
-                            (String) saxEvent.getParm(2));
+                case START_DTD:
+                    ((LexicalHandler) handler).startDTD(reader.string(),
+                            reader.string(), reader.string());
 
                     break;
 
-                case SAXEvent.END_DTD:
+                case END_DTD:
                     ((LexicalHandler) handler).endDTD();
 
                     break;
 
-                case SAXEvent.START_ENTITY:
-                    ((LexicalHandler) handler).startEntity((String) saxEvent
-                            .getParm(0));
+                case START_ENTITY:
+                    ((LexicalHandler) handler).startEntity(reader.string());
 
                     break;
 
-                case SAXEvent.END_ENTITY:
-                    ((LexicalHandler) handler).endEntity((String) saxEvent
-                            .getParm(0));
+                case END_ENTITY:
+                    ((LexicalHandler) handler).endEntity(reader.string());
 
                     break;
 
-                case SAXEvent.START_CDATA:
+                case START_CDATA:
                     ((LexicalHandler) handler).startCDATA();
 
                     break;
 
-                case SAXEvent.END_CDATA:
+                case END_CDATA:
                     ((LexicalHandler) handler).endCDATA();
 
                     break;
 
-                case SAXEvent.COMMENT:
+                case COMMENT:
 
-                    char[] cchars = (char[]) saxEvent.getParm(0);
-                    int cstart = ((Integer) saxEvent.getParm(1)).intValue();
-                    int cend = ((Integer) saxEvent.getParm(2)).intValue();
-                    ((LexicalHandler) handler).comment(cchars, cstart, cend);
+                    int clength = reader.next();
+                    char[] cchars = reader.chars(clength);
+                    ((LexicalHandler) handler).comment(cchars, reader
+                            .offset(), clength);
 
                     break;
 
                 // replay to DeclHandler
-                case SAXEvent.ELEMENT_DECL:
-                    ((DeclHandler) handler).elementDecl((String) saxEvent
-                            .getParm(0), (String) saxEvent.getParm(1));
+                case ELEMENT_DECL:
+                    ((DeclHandler) handler).elementDecl(reader.string(),
+                            reader.string());
 
                     break;
 
-                case SAXEvent.ATTRIBUTE_DECL:
-                    ((DeclHandler) handler).attributeDecl((String) saxEvent
-                            .getParm(0), (String) saxEvent.getParm(1),
-                            (String) saxEvent.getParm(2), (String) saxEvent
-                                    .getParm(3), (String) saxEvent.getParm(4));
+                case ATTRIBUTE_DECL:
+                    ((DeclHandler) handler).attributeDecl(reader.string(),
+                            reader.string(), reader.string(), reader
+                                    .string(), reader.string());
 
                     break;
 
-                case SAXEvent.INTERNAL_ENTITY_DECL:
-                    ((DeclHandler) handler).internalEntityDecl(
-                            (String) saxEvent.getParm(0), (String) saxEvent
-                                    .getParm(1));
+                case INTERNAL_ENTITY_DECL:
+                    ((DeclHandler) handler).internalEntityDecl(reader
+                            .string(), reader.string());
 
                     break;
 
-                case SAXEvent.EXTERNAL_ENTITY_DECL:
-                    ((DeclHandler) handler).externalEntityDecl(
-                            (String) saxEvent.getParm(0), (String) saxEvent
-                                    .getParm(1), (String) saxEvent.getParm(2));
+                case EXTERNAL_ENTITY_DECL:
+                    ((DeclHandler) handler).externalEntityDecl(reader
+                            .string(), reader.string(), reader.string());
 
                     break;
 
                 default:
-                    throw new SAXException("Unrecognized event: "
-                            + saxEvent.event);
+                    throw new SAXException("Unrecognized event: " + event);
             }
         }
     }
@@ -235,332 +298,713 @@ public class SAXEventRecorder extends DefaultHandler implements LexicalHandler,
     // -------------------------------------------------------------------------
     public void processingInstruction(String target, String data)
             throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.PROCESSING_INSTRUCTION);
-        saxEvent.addParm(target);
-        saxEvent.addParm(data);
-        events.add(saxEvent);
+        append(PROCESSING_INSTRUCTION);
+        appendString(target);
+        appendString(data);
     }
 
     public void startPrefixMapping(String prefix, String uri)
             throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.START_PREFIX_MAPPING);
-        saxEvent.addParm(prefix);
-        saxEvent.addParm(uri);
-        events.add(saxEvent);
+        append(START_PREFIX_MAPPING);
+        appendString(prefix);
+        appendString(uri);
     }
 
     public void endPrefixMapping(String prefix) throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.END_PREFIX_MAPPING);
-        saxEvent.addParm(prefix);
-        events.add(saxEvent);
+        append(END_PREFIX_MAPPING);
+        appendString(prefix);
     }
 
     public void startDocument() throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.START_DOCUMENT);
-        events.add(saxEvent);
+        append(START_DOCUMENT);
     }
 
     public void endDocument() throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.END_DOCUMENT);
-        events.add(saxEvent);
+        append(END_DOCUMENT);
     }
 
     public void startElement(String namespaceURI, String localName,
             String qualifiedName, Attributes attributes) throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.START_ELEMENT);
-        saxEvent.addParm(namespaceURI);
-        saxEvent.addParm(localName);
-        saxEvent.addParm(qualifiedName);
-
-        QName qName = null;
-        if (namespaceURI != null) {
-            qName = new QName(localName, Namespace.get(namespaceURI));
-        } else {
-            qName = new QName(localName);
-        }
-
-        if ((attributes != null) && (attributes.getLength() > 0)) {
-            List attParmList = new ArrayList(attributes.getLength());
-            String[] attParms = null;
-
-            for (int i = 0; i < attributes.getLength(); i++) {
+        int length = (attributes != null) ? attributes.getLength() : 0;
+        int count = 0;
+        int declarations = 0;
+
+        for (int i = 0; i < length; i++) {
+            String attLocalName = attributes.getLocalName(i);
+
+            if (attLocalName.startsWith(XMLNS)) {
+                // if SAXWriter is writing a DOMDocument, namespace
+                // decls are treated as attributes. record a start
+                // prefix mapping event
+                String prefix = null;
+                if (attLocalName.length() > 5) {
+                    prefix = attLocalName.substring(6);
+                } else {
+                    prefix = EMPTY_STRING;
+                }
 
-                String attLocalName = attributes.getLocalName(i);
+                int index = stringIndex(prefix);
+                append(START_PREFIX_MAPPING);
+                append(index);
+                appendString(attributes.getValue(i));
 
-                if (attLocalName.startsWith(XMLNS)) {
+                // 'register' the prefix so that we can generate
+                // an end prefix mapping event within endElement
+                if (declaredCount == declaredPrefixes.length) {
+                    declaredPrefixes = Arrays.copyOf(declaredPrefixes,
+                            declaredCount * 2);
+                }
 
-                    // if SAXWriter is writing a DOMDocument, namespace
-                    // decls are treated as attributes. record a start
-                    // prefix mapping event
-                    String prefix = null;
-                    if (attLocalName.length() > 5) {
-                        prefix = attLocalName.substring(6);
-                    } else {
-                        prefix = EMPTY_STRING;
-                    }
+                declaredPrefixes[declaredCount++] = index;
+                declarations++;
+            } else {
+                count++;
+            }
+        }
 
-                    SAXEvent prefixEvent = new SAXEvent(
-                            SAXEvent.START_PREFIX_MAPPING);
-                    prefixEvent.addParm(prefix);
-                    prefixEvent.addParm(attributes.getValue(i));
-                    events.add(prefixEvent);
-
-                    // 'register' the prefix so that we can generate
-                    // an end prefix mapping event within endElement
-                    List prefixes = (List) prefixMappings.get(qName);
-                    if (prefixes == null) {
-                        prefixes = new ArrayList();
-                        prefixMappings.put(qName, prefixes);
-                    }
-                    prefixes.add(prefix);
+        if (depth == elementDeclarations.length) {
+            elementDeclarations = Arrays.copyOf(elementDeclarations,
+                    depth * 2);
+        }
 
-                } else {
+        elementDeclarations[depth++] = declarations;
 
-                    attParms = new String[5];
-                    attParms[0] = attributes.getURI(i);
-                    attParms[1] = attLocalName;
-                    attParms[2] = attributes.getQName(i);
-                    attParms[3] = attributes.getType(i);
-                    attParms[4] = attributes.getValue(i);
-                    attParmList.add(attParms);
+        append(START_ELEMENT);
+        appendString(namespaceURI);
+        appendString(localName);
+        appendString(qualifiedName);
+        append(count);
 
-                }
+        for (int i = 0; i < length; i++) {
+            String attLocalName = attributes.getLocalName(i);
 
+            if (!attLocalName.startsWith(XMLNS)) {
+                appendString(attributes.getURI(i));
+                appendString(attLocalName);
+                appendString(attributes.getQName(i));
+                appendString(attributes.getType(i));
+                appendString(attributes.getValue(i));
             }
-
-            saxEvent.addParm(attParmList);
         }
-
-        events.add(saxEvent);
     }
 
     public void endElement(String namespaceURI, String localName, String qName)
             throws SAXException {
-
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.END_ELEMENT);
-        saxEvent.addParm(namespaceURI);
-        saxEvent.addParm(localName);
-        saxEvent.addParm(qName);
-        events.add(saxEvent);
+        append(END_ELEMENT);
+        appendString(namespaceURI);
+        appendString(localName);
+        appendString(qName);
 
         // check to see if a we issued a start prefix mapping event
         // for DOMDocument namespace decls
+        if (depth > 0) {
+            int declarations = elementDeclarations[--depth];
+            declaredCount -= declarations;
 
-        QName elementName = null;
-        if (namespaceURI != null) {
-            elementName = new QName(localName, Namespace.get(namespaceURI));
-        } else {
-            elementName = new QName(localName);
-        }
-
-        List prefixes = (List) prefixMappings.get(elementName);
-        if (prefixes != null) {
-            Iterator itr = prefixes.iterator();
-            while (itr.hasNext()) {
-                SAXEvent prefixEvent = 
-                        new SAXEvent(SAXEvent.END_PREFIX_MAPPING);
-                prefixEvent.addParm(itr.next());
-                events.add(prefixEvent);
+            for (int i = 0; i < declarations; i++) {
+                append(END_PREFIX_MAPPING);
+                append(declaredPrefixes[declaredCount + i]);
             }
         }
-
     }
 
-    public void characters(char[] ch, int start, int end) throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.CHARACTERS);
-        saxEvent.addParm(ch);
-        saxEvent.addParm(new Integer(start));
-        saxEvent.addParm(new Integer(end));
-        events.add(saxEvent);
+    public void characters(char[] ch, int start, int length)
+            throws SAXException {
+        append(CHARACTERS);
+        appendCharacters(ch, start, length);
     }
 
     // LexicalHandler interface
     // -------------------------------------------------------------------------
     public void startDTD(String name, String publicId, String systemId)
             throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.START_DTD);
-        saxEvent.addParm(name);
-        saxEvent.addParm(publicId);
-        saxEvent.addParm(systemId);
-        events.add(saxEvent);
+        append(START_DTD);
+        appendString(name);
+        appendString(publicId);
+        appendString(systemId);
     }
 
     public void endDTD() throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.END_DTD);
-        events.add(saxEvent);
+        append(END_DTD);
     }
 
     public void startEntity(String name) throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.START_ENTITY);
-        saxEvent.addParm(name);
-        events.add(saxEvent);
+        append(START_ENTITY);
+        appendString(name);
     }
 
     public void endEntity(String name) throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.END_ENTITY);
-        saxEvent.addParm(name);
-        events.add(saxEvent);
+        append(END_ENTITY);
+        appendString(name);
     }
 
     public void startCDATA() throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.START_CDATA);
-        events.add(saxEvent);
+        append(START_CDATA);
     }
 
     public void endCDATA() throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.END_CDATA);
-        events.add(saxEvent);
+        append(END_CDATA);
     }
 
-    public void comment(char[] ch, int start, int end) throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.COMMENT);
-        saxEvent.addParm(ch);
-        saxEvent.addParm(new Integer(start));
-        saxEvent.addParm(new Integer(end));
-        events.add(saxEvent);
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        append(COMMENT);
+        appendCharacters(ch, start, length);
     }
 
     // DeclHandler interface
     // -------------------------------------------------------------------------
     public void elementDecl(String name, String model) throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.ELEMENT_DECL);
-        saxEvent.addParm(name);
-        saxEvent.addParm(model);
-        events.add(saxEvent);
+        append(ELEMENT_DECL);
+        appendString(name);
+        appendString(model);
     }
 
     public void attributeDecl(String eName, String aName, String type,
             String valueDefault, String value) throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.ATTRIBUTE_DECL);
-        saxEvent.addParm(eName);
-        saxEvent.addParm(aName);
-        saxEvent.addParm(type);
-        saxEvent.addParm(valueDefault);
-        saxEvent.addParm(value);
-        events.add(saxEvent);
+        append(ATTRIBUTE_DECL);
+        appendString(eName);
+        appendString(aName);
+        appendString(type);
+        appendString(valueDefault);
+        appendString(value);
     }
 
     public void internalEntityDecl(String name, String value)
             throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.INTERNAL_ENTITY_DECL);
-        saxEvent.addParm(name);
-        saxEvent.addParm(value);
-        events.add(saxEvent);
+        append(INTERNAL_ENTITY_DECL);
+        appendString(name);
+        appendString(value);
     }
 
     public void externalEntityDecl(String name, String publicId, String sysId)
             throws SAXException {
-        SAXEvent saxEvent = new SAXEvent(SAXEvent.EXTERNAL_ENTITY_DECL);
-        saxEvent.addParm(name);
-        saxEvent.addParm(publicId);
-        saxEvent.addParm(sysId);
-        events.add(saxEvent);
+        append(EXTERNAL_ENTITY_DECL);
+        appendString(name);
+        appendString(publicId);
+        appendString(sysId);
     }
 
+    /**
+     * Writes the string table, the events as they are held and then the
+     * character data of the events in their order.
+     *
+     * @param out
+     *            DOCUMENT ME!
+     *
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
     public void writeExternal(ObjectOutput out) throws IOException {
-        if (events == null) {
-            out.writeByte(NULL);
-        } else {
-            out.writeByte(OBJECT);
-            out.writeObject(events);
+        out.writeByte(FORMAT_VERSION);
+        writeVarint(out, stringCount - 1);
+
+        for (int i = 1; i < stringCount; i++) {
+            String value = strings[i];
+            int length = value.length();
+            writeVarint(out, length);
+
+            for (int j = 0; j < length; j++) {
+                writeVarint(out, value.charAt(j));
+            }
+        }
+
+        writeVarint(out, size);
+        out.write(ops, 0, size);
+
+        EventReader reader = new EventReader(ops, size, strings, blocks);
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+
+            if ((event == CHARACTERS) || (event == COMMENT)) {
+                int length = reader.next();
+                char[] chars = reader.chars(length);
+
+                for (int j = reader.offset(), end = j + length; j < end; j++) {
+                    writeVarint(out, chars[j]);
+                }
+            } else {
+                reader.skip(event);
+            }
         }
     }
 
     public void readExternal(ObjectInput in) throws ClassNotFoundException,
             IOException {
-        if (in.readByte() != NULL) {
-            events = (List) in.readObject();
+        int version = in.readUnsignedByte();
+
+        if (version != FORMAT_VERSION) {
+            throw new InvalidObjectException("Unsupported format version: "
+                    + version);
+        }
+
+        int count = readVarint(in) + 1;
+        strings = new String[Math.max(count, 64)];
+        stringCount = count;
+        stringIndexes = new HashMap<String, Integer>();
+
+        char[] chars = new char[64];
+
+        for (int i = 1; i < count; i++) {
+            int length = readVarint(in);
+
+            if (length > chars.length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+
+            readChars(in, chars, 0, length);
+
+            String value = new String(chars, 0, length);
+            strings[i] = value;
+
+            if (length <= MAXIMUM_SHARED_LENGTH) {
+                stringIndexes.put(value, Integer.valueOf(i));
+            }
+        }
+
+        size = readVarint(in);
+        ops = new byte[size];
+        in.readFully(ops);
+
+        blocks = new char[4][];
+        layout = new CharLayout();
+        declaredCount = 0;
+        depth = 0;
+
+        // check the events while reading their character data
+        EventReader reader = new EventReader(ops, size, strings, null);
+
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if ((event == CHARACTERS) || (event == COMMENT)) {
+                    int length = reader.next();
+                    int index = reserve(length);
+                    readChars(in, blocks[index], layout.offset, length);
+                } else if ((event > END) && (event <= EXTERNAL_ENTITY_DECL)) {
+                    for (int i = operandCount(event); i > 0; i--) {
+                        readStringIndex(reader);
+                    }
+
+                    if (event == START_ELEMENT) {
+                        int attributes = reader.next();
+
+                        if ((attributes < 0) || (attributes > size)) {
+                            throw new InvalidObjectException(
+                                    "Invalid attribute count: " + attributes);
+                        }
+
+                        for (int i = attributes * 5; i > 0; i--) {
+                            readStringIndex(reader);
+                        }
+                    }
+                } else {
+                    throw new InvalidObjectException("Unrecognized event: "
+                            + event);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new InvalidObjectException("Truncated event: "
+                    + e.getMessage());
+        }
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private void append(int value) {
+        if ((size + 5) > ops.length) {
+            ops = Arrays.copyOf(ops, ops.length * 2);
+        }
+
+        while ((value & ~0x7F) != 0) {
+            ops[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        ops[size++] = (byte) value;
+    }
+
+    private void appendString(String value) {
+        append(stringIndex(value));
+    }
+
+    private void appendCharacters(char[] ch, int start, int length) {
+        append(length);
+
+        int index = reserve(length);
+        System.arraycopy(ch, start, blocks[index], layout.offset, length);
+    }
+
+    /**
+     * Places character data of the given length, creating its block if need
+     * be.
+     *
+     * @param length
+     *            DOCUMENT ME!
+     *
+     * @return the index of the block, the offset being that of the layout
+     */
+    private int reserve(int length) {
+        int index = layout.place(length);
+
+        if (layout.created) {
+            if (index == blocks.length) {
+                blocks = Arrays.copyOf(blocks, index * 2);
+            }
+
+            blocks[index] = new char[(index == layout.block) ? BLOCK_SIZE
+                    : length];
+        }
+
+        return index;
+    }
+
+    private int stringIndex(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        boolean shared = value.length() <= MAXIMUM_SHARED_LENGTH;
+
+        if (shared) {
+            Integer index = stringIndexes.get(value);
+
+            if (index != null) {
+                return index.intValue();
+            }
+        }
+
+        if (stringCount == strings.length) {
+            strings = Arrays.copyOf(strings, stringCount * 2);
+        }
+
+        int index = stringCount++;
+        strings[index] = value;
+
+        if (shared) {
+            stringIndexes.put(value, Integer.valueOf(index));
+        }
+
+        return index;
+    }
+
+    private void readStringIndex(EventReader reader) throws IOException {
+        int index = reader.next();
+
+        if ((index < 0) || (index >= stringCount)) {
+            throw new InvalidObjectException("Invalid string index: "
+                    + index);
         }
     }
 
-    // SAXEvent inner class
+    /**
+     * Returns the number of operands of an event other than character data,
+     * which for a start element are followed by its attributes.
+     *
+     * @param event
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    private static int operandCount(int event) {
+        switch (event) {
+            case START_DOCUMENT:
+            case END_DOCUMENT:
+            case END_DTD:
+            case START_CDATA:
+            case END_CDATA:
+                return 0;
+
+            case END_PREFIX_MAPPING:
+            case START_ENTITY:
+            case END_ENTITY:
+                return 1;
+
+            case PROCESSING_INSTRUCTION:
+            case START_PREFIX_MAPPING:
+            case ELEMENT_DECL:
+            case INTERNAL_ENTITY_DECL:
+                return 2;
+
+            case START_ELEMENT:
+            case END_ELEMENT:
+            case START_DTD:
+            case EXTERNAL_ENTITY_DECL:
+                return 3;
+
+            case ATTRIBUTE_DECL:
+                return 5;
+
+            default:
+                throw new IllegalStateException("Unrecognized event: "
+                        + event);
+        }
+    }
+
+    private static void readChars(ObjectInput in, char[] chars, int offset,
+            int length) throws IOException {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            chars[i] = (char) readVarint(in);
+        }
+    }
+
+    private static void writeVarint(ObjectOutput out, int value)
+            throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+
+    private static int readVarint(ObjectInput in) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new InvalidObjectException("Malformed varint");
+    }
+
+    // CharLayout inner class
     // -------------------------------------------------------------------------
-    static class SAXEvent implements Externalizable {
-        public static final long serialVersionUID = 1;
 
-        static final byte PROCESSING_INSTRUCTION = 1;
+    /**
+     * Places character data in the blocks. Data which does not fit in the
+     * block being filled starts a new block, unless it is long enough to
+     * waste much of one, in which case it is given a block of its own. The
+     * placement only depends on the lengths, so replaying finds the data by
+     * placing the same lengths again.
+     */
+    private static final class CharLayout {
+        /** The index of the block being filled */
+        int block = -1;
 
-        static final byte START_PREFIX_MAPPING = 2;
+        /** The number of characters used of the block being filled */
+        int blockLength;
 
-        static final byte END_PREFIX_MAPPING = 3;
+        int blockCount;
 
-        static final byte START_DOCUMENT = 4;
+        /** The offset of the data last placed */
+        int offset;
 
-        static final byte END_DOCUMENT = 5;
+        /** Whether the data last placed starts a new block */
+        boolean created;
 
-        static final byte START_ELEMENT = 6;
+        int place(int length) {
+            if ((block >= 0) && (length <= (BLOCK_SIZE - blockLength))) {
+                offset = blockLength;
+                blockLength += length;
+                created = false;
 
-        static final byte END_ELEMENT = 7;
+                return block;
+            }
 
-        static final byte CHARACTERS = 8;
+            offset = 0;
+            created = true;
 
-        static final byte START_DTD = 9;
+            if (length > MAXIMUM_BLOCK_WASTE) {
+                return blockCount++;
+            }
 
-        static final byte END_DTD = 10;
+            block = blockCount++;
+            blockLength = length;
 
-        static final byte START_ENTITY = 11;
+            return block;
+        }
+    }
+
+    // EventReader inner class
+    // -------------------------------------------------------------------------
 
-        static final byte END_ENTITY = 12;
+    /**
+     * Reads the opcodes and operands of the events in order.
+     */
+    private static final class EventReader {
+        private final byte[] ops;
 
-        static final byte START_CDATA = 13;
+        private final int size;
 
-        static final byte END_CDATA = 14;
+        private final String[] strings;
 
-        static final byte COMMENT = 15;
+        private final char[][] blocks;
 
-        static final byte ELEMENT_DECL = 16;
+        private final CharLayout layout = new CharLayout();
 
-        static final byte ATTRIBUTE_DECL = 17;
+        private int position;
 
-        static final byte INTERNAL_ENTITY_DECL = 18;
+        EventReader(byte[] ops, int size, String[] strings,
+                char[][] blocks) {
+            this.ops = ops;
+            this.size = size;
+            this.strings = strings;
+            this.blocks = blocks;
+        }
 
-        static final byte EXTERNAL_ENTITY_DECL = 19;
+        boolean hasNext() {
+            return position < size;
+        }
 
-        protected byte event;
+        int next() {
+            byte[] ops = this.ops;
+            int b = ops[position++];
 
-        protected List parms;
+            if (b >= 0) {
+                return b;
+            }
 
-        public SAXEvent() {
+            int value = b & 0x7F;
+
+            for (int shift = 7;; shift += 7) {
+                b = ops[position++];
+                value |= (b & 0x7F) << shift;
+
+                if (b >= 0) {
+                    return value;
+                }
+            }
         }
 
-        SAXEvent(byte event) {
-            this.event = event;
+        String string() {
+            return strings[next()];
         }
 
-        void addParm(Object parm) {
-            if (parms == null) {
-                parms = new ArrayList(3);
+        /**
+         * Returns the block holding the next character data of the given
+         * length, which starts at {@link #offset()}.
+         *
+         * @param length
+         *            DOCUMENT ME!
+         *
+         * @return DOCUMENT ME!
+         */
+        char[] chars(int length) {
+            return blocks[layout.place(length)];
+        }
+
+        int offset() {
+            return layout.offset;
+        }
+
+        void skip(int event) {
+            for (int i = operandCount(event); i > 0; i--) {
+                next();
             }
 
-            parms.add(parm);
+            if (event == START_ELEMENT) {
+                for (int i = next() * 5; i > 0; i--) {
+                    next();
+                }
+            }
         }
+    }
 
-        Object getParm(int index) {
-            if ((parms != null) && (index < parms.size())) {
-                return parms.get(index);
-            } else {
-                return null;
+    // RecordedAttributes inner class
+    // -------------------------------------------------------------------------
+
+    /**
+     * The attributes of the start element being replayed, whose string
+     * indexes are read from the operands of its event.
+     */
+    private static final class RecordedAttributes implements Attributes {
+        private final String[] strings;
+
+        private int[] indexes = new int[40];
+
+        private int length;
+
+        RecordedAttributes(String[] strings) {
+            this.strings = strings;
+        }
+
+        void read(EventReader reader) {
+            length = reader.next();
+
+            int count = length * 5;
+
+            if (count > indexes.length) {
+                indexes = new int[count];
+            }
+
+            for (int i = 0; i < count; i++) {
+                indexes[i] = reader.next();
             }
         }
 
-        public void writeExternal(ObjectOutput out) throws IOException {
-            out.writeByte(event);
+        public int getLength() {
+            return length;
+        }
 
-            if (parms == null) {
-                out.writeByte(NULL);
-            } else {
-                out.writeByte(OBJECT);
-                out.writeObject(parms);
+        public String getURI(int index) {
+            return get(index, 0);
+        }
+
+        public String getLocalName(int index) {
+            return get(index, 1);
+        }
+
+        public String getQName(int index) {
+            return get(index, 2);
+        }
+
+        public String getType(int index) {
+            return get(index, 3);
+        }
+
+        public String getValue(int index) {
+            return get(index, 4);
+        }
+
+        public int getIndex(String uri, String localName) {
+            for (int i = 0; i < length; i++) {
+                if (uri.equals(get(i, 0)) && localName.equals(get(i, 1))) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        public int getIndex(String qName) {
+            for (int i = 0; i < length; i++) {
+                if (qName.equals(get(i, 2))) {
+                    return i;
+                }
             }
+
+            return -1;
         }
 
-        public void readExternal(ObjectInput in) throws ClassNotFoundException,
-                IOException {
-            event = in.readByte();
+        public String getType(String uri, String localName) {
+            return getType(getIndex(uri, localName));
+        }
+
+        public String getType(String qName) {
+            return getType(getIndex(qName));
+        }
 
-            if (in.readByte() != NULL) {
-                parms = (List) in.readObject();
+        public String getValue(String uri, String localName) {
+            return getValue(getIndex(uri, localName));
+        }
+
+        public String getValue(String qName) {
+            return getValue(getIndex(qName));
+        }
+
+        private String get(int index, int field) {
+            if ((index < 0) || (index >= length)) {
+                return null;
             }
+
+            return strings[indexes[(index * 5) + field]];
         }
     }
 }
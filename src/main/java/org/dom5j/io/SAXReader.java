@@ -7,18 +7,35 @@
 
 package org.dom5j.io;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.Serializable;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.dom5j.Document;
 import org.dom5j.DocumentException;
 import org.dom5j.DocumentFactory;
+import org.dom5j.Element;
 import org.dom5j.ElementHandler;
+import org.dom5j.util.CloseableIterator;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
@@ -76,6 +93,13 @@ import org.xml.sax.helpers.XMLReaderFactory;
  * @version $Revision: 1.58 $
  */
 public class SAXReader {
+    /** The default number of bytes read at a time from files and channels */
+    public static final int DEFAULT_READ_BUFFER_SIZE = 64 * 1024;
+
+    /** The default size from which files are memory mapped */
+    public static final long DEFAULT_MEMORY_MAPPING_THRESHOLD = 
+            16L * 1024 * 1024;
+
     private static final String SAX_STRING_INTERNING = 
             "http://xml.org/sax/features/string-interning";
     private static final String SAX_NAMESPACE_PREFIXES = 
@@ -95,6 +119,18 @@ public class SAXReader {
     /** <code>XMLReader</code> used to parse the SAX events */
     private XMLReader xmlReader;
 
+    /** Whether the <code>XMLReader</code> was supplied rather than created */
+    private boolean xmlReaderSupplied;
+
+    /** The class name the supplied <code>XMLReader</code> was created from */
+    private String xmlReaderClassName;
+
+    /** The SAX features set through {@link #setFeature(String, boolean)} */
+    private Map<String, Boolean> features;
+
+    /** The SAX properties set through {@link #setProperty(String, Object)} */
+    private Map<String, Object> properties;
+
     /** Whether validation should occur */
     private boolean validating;
 
@@ -134,6 +170,12 @@ public class SAXReader {
     /** The SAX filter used to filter SAX events */
     private XMLFilter xmlFilter;
 
+    /** The number of bytes read at a time from files and channels */
+    private int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+
+    /** The size from which files are memory mapped */
+    private long memoryMappingThreshold = DEFAULT_MEMORY_MAPPING_THRESHOLD;
+
     public SAXReader() {
     }
 
@@ -151,26 +193,24 @@ public class SAXReader {
     }
 
     public SAXReader(XMLReader xmlReader) {
-        this.xmlReader = xmlReader;
+        setXMLReader(xmlReader);
     }
 
     public SAXReader(XMLReader xmlReader, boolean validating) {
-        this.xmlReader = xmlReader;
+        setXMLReader(xmlReader);
         this.validating = validating;
     }
 
     public SAXReader(String xmlReaderClassName) throws SAXException {
         if (xmlReaderClassName != null) {
-            this.xmlReader = XMLReaderFactory
-                    .createXMLReader(xmlReaderClassName);
+            setXMLReaderClassName(xmlReaderClassName);
         }
     }
 
     public SAXReader(String xmlReaderClassName, boolean validating)
             throws SAXException {
         if (xmlReaderClassName != null) {
-            this.xmlReader = XMLReaderFactory
-                    .createXMLReader(xmlReaderClassName);
+            setXMLReaderClassName(xmlReaderClassName);
         }
 
         this.validating = validating;
@@ -195,6 +235,12 @@ public class SAXReader {
      */
     public void setProperty(String name, Object value) throws SAXException {
         getXMLReader().setProperty(name, value);
+
+        if (properties == null) {
+            properties = new LinkedHashMap<String, Object>();
+        }
+
+        properties.put(name, value);
     }
 
     /**
@@ -215,6 +261,12 @@ public class SAXReader {
      */
     public void setFeature(String name, boolean value) throws SAXException {
         getXMLReader().setFeature(name, value);
+
+        if (features == null) {
+            features = new LinkedHashMap<String, Boolean>();
+        }
+
+        features.put(name, Boolean.valueOf(value));
     }
 
     /**
@@ -246,22 +298,76 @@ public class SAXReader {
             String path = file.getAbsolutePath();
 
             if (path != null) {
-                // Code taken from Ant FileUtils
-                StringBuffer sb = new StringBuffer("file://");
+                source.setSystemId(fileSystemId(path));
+            }
 
-                // add an extra slash for filesystems with drive-specifiers
-                if (!path.startsWith(File.separator)) {
-                    sb.append("/");
-                }
+            return read(source);
+        } catch (FileNotFoundException e) {
+            throw new DocumentException(e.getMessage(), e);
+        }
+    }
 
-                path = path.replace('\\', '/');
-                sb.append(path);
+    /**
+     * <p>
+     * Reads a Document from the given <code>Path</code>. Files of at least
+     * the {@link #getMemoryMappingThreshold() memory mapping threshold}are
+     * memory mapped, others are read {@link #getReadBufferSize()}bytes at a
+     * time.
+     * </p>
+     * 
+     * @param path
+     *            is the <code>Path</code> to read from.
+     * 
+     * @return the newly created Document instance
+     * 
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(Path path) throws DocumentException {
+        InputStream in;
 
-                source.setSystemId(sb.toString());
+        try {
+            if (path.getFileSystem() == FileSystems.getDefault()) {
+                in = openChannel(FileChannel.open(path));
+            } else {
+                in = openChannel(Files.newByteChannel(path));
             }
+        } catch (IOException e) {
+            throw new DocumentException(e.getMessage(), e);
+        }
 
-            return read(source);
-        } catch (FileNotFoundException e) {
+        try {
+            // unlike read(File) the URI escapes characters such as '#'
+            return read(in, path.toAbsolutePath().toUri().toString());
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // the document has been read
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Reads a Document from the given channel, starting at its current
+     * position. A <code>FileChannel</code> with at least the
+     * {@link #getMemoryMappingThreshold() memory mapping threshold}bytes
+     * left is memory mapped.
+     * </p>
+     * 
+     * @param channel
+     *            <code>ReadableByteChannel</code> to read from.
+     * 
+     * @return the newly created Document instance
+     * 
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(ReadableByteChannel channel) throws DocumentException {
+        try {
+            return read(openChannel(channel));
+        } catch (IOException e) {
             throw new DocumentException(e.getMessage(), e);
         }
     }
@@ -485,6 +591,113 @@ public class SAXReader {
         }
     }
 
+    /**
+     * <p>
+     * Reads the records of a document one at a time. Each element at the
+     * given path, such as <code>/feed/entry</code>, is returned fully built
+     * and detached once its end tag has been parsed. Records are discarded
+     * from the document as they are handed over, so memory use stays bounded
+     * by a few records however large the document is.
+     * </p>
+     * 
+     * <p>
+     * The document is parsed by a separate thread which waits while the
+     * consumer falls behind. The iterator must be exhausted or closed before
+     * this reader is used again; closing waits for the parser thread to stop.
+     * A parse error is thrown from
+     * <code>hasNext()</code> as an <code>IllegalStateException</code> caused
+     * by the <code>DocumentException</code>.
+     * </p>
+     * 
+     * @param in
+     *            <code>InputSource</code> to read from.
+     * @param path
+     *            the absolute path of the record elements
+     * 
+     * @return an iterator over the detached record elements
+     */
+    public CloseableIterator<Element> iterate(InputSource in, String path) {
+        RecordIterator iterator = new RecordIterator(this, in, path);
+        iterator.start();
+
+        return iterator;
+    }
+
+    /**
+     * <p>
+     * Reads the records of a document one at a time from the given stream.
+     * </p>
+     * 
+     * @param in
+     *            <code>InputStream</code> to read from.
+     * @param path
+     *            the absolute path of the record elements
+     * 
+     * @return an iterator over the detached record elements
+     * 
+     * @see #iterate(InputSource, String)
+     */
+    public CloseableIterator<Element> iterate(InputStream in, String path) {
+        InputSource source = new InputSource(in);
+        if (this.encoding != null) {
+            source.setEncoding(this.encoding);
+        }
+
+        return iterate(source, path);
+    }
+
+    /**
+     * <p>
+     * Reads the records of a document one at a time from the given
+     * <code>Reader</code>.
+     * </p>
+     * 
+     * @param reader
+     *            is the reader for the input
+     * @param path
+     *            the absolute path of the record elements
+     * 
+     * @return an iterator over the detached record elements
+     * 
+     * @see #iterate(InputSource, String)
+     */
+    public CloseableIterator<Element> iterate(Reader reader, String path) {
+        InputSource source = new InputSource(reader);
+        if (this.encoding != null) {
+            source.setEncoding(this.encoding);
+        }
+
+        return iterate(source, path);
+    }
+
+    /**
+     * <p>
+     * Returns the records of a document as a sequential stream. Closing the
+     * stream stops the parser thread.
+     * </p>
+     * 
+     * @param in
+     *            <code>InputSource</code> to read from.
+     * @param path
+     *            the absolute path of the record elements
+     * 
+     * @return a stream of the detached record elements
+     * 
+     * @see #iterate(InputSource, String)
+     */
+    public Stream<Element> stream(InputSource in, String path) {
+        final CloseableIterator<Element> iterator = iterate(in, path);
+        Spliterator<Element> spliterator = Spliterators.spliteratorUnknownSize(
+                iterator, Spliterator.ORDERED | Spliterator.NONNULL);
+
+        return StreamSupport.stream(spliterator, false).onClose(
+                new Runnable() {
+                    public void run() {
+                        iterator.close();
+                    }
+                });
+    }
+
     // Properties
     // -------------------------------------------------------------------------
 
@@ -725,6 +938,58 @@ public class SAXReader {
      */
     public void setXMLReader(XMLReader reader) {
         this.xmlReader = reader;
+        this.xmlReaderSupplied = (reader != null);
+        this.xmlReaderClassName = null;
+        this.features = null;
+        this.properties = null;
+    }
+
+    /**
+     * Returns the number of bytes read at a time by {@link #read(Path)}and
+     * {@link #read(ReadableByteChannel)}.
+     * 
+     * @return DOCUMENT ME!
+     */
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    /**
+     * Sets the number of bytes read at a time by {@link #read(Path)}and
+     * {@link #read(ReadableByteChannel)}.
+     * 
+     * @param readBufferSize
+     *            DOCUMENT ME!
+     */
+    public void setReadBufferSize(int readBufferSize) {
+        if (readBufferSize <= 0) {
+            throw new IllegalArgumentException("Illegal buffer size: "
+                    + readBufferSize);
+        }
+
+        this.readBufferSize = readBufferSize;
+    }
+
+    /**
+     * Returns the size in bytes from which files are memory mapped.
+     * 
+     * @return DOCUMENT ME!
+     */
+    public long getMemoryMappingThreshold() {
+        return memoryMappingThreshold;
+    }
+
+    /**
+     * Sets the size in bytes from which files read by {@link #read(Path)}or
+     * {@link #read(ReadableByteChannel)}are memory mapped.
+     * <code>Long.MAX_VALUE</code> turns memory mapping off and 0 maps every
+     * file.
+     * 
+     * @param memoryMappingThreshold
+     *            DOCUMENT ME!
+     */
+    public void setMemoryMappingThreshold(long memoryMappingThreshold) {
+        this.memoryMappingThreshold = memoryMappingThreshold;
     }
 
     /**
@@ -762,6 +1027,7 @@ public class SAXReader {
     public void setXMLReaderClassName(String xmlReaderClassName)
             throws SAXException {
         setXMLReader(XMLReaderFactory.createXMLReader(xmlReaderClassName));
+        this.xmlReaderClassName = xmlReaderClassName;
     }
 
     /**
@@ -833,6 +1099,66 @@ public class SAXReader {
     // Implementation methods
     // -------------------------------------------------------------------------
 
+    /**
+     * Returns the <code>XMLReader</code> without creating one.
+     * 
+     * @return the current <code>XMLReader</code> or null if none has been
+     *         created or supplied yet
+     */
+    XMLReader peekXMLReader() {
+        return xmlReader;
+    }
+
+    /**
+     * Returns whether the <code>XMLReader</code> was passed to a constructor,
+     * to {@link #setXMLReader(XMLReader)}or to
+     * {@link #setXMLReaderClassName(String)}rather than created by this
+     * reader.
+     * 
+     * @return DOCUMENT ME!
+     */
+    boolean isXMLReaderSupplied() {
+        return xmlReaderSupplied;
+    }
+
+    /**
+     * Returns the class name the <code>XMLReader</code> was created from.
+     * 
+     * @return the class name or null if the <code>XMLReader</code> was not
+     *         supplied by class name
+     */
+    String getXMLReaderClassName() {
+        return xmlReaderClassName;
+    }
+
+    /**
+     * Returns the SAX features set through {@link #setFeature(String,
+     * boolean)} since the <code>XMLReader</code> was last replaced.
+     * 
+     * @return DOCUMENT ME!
+     */
+    Map<String, Boolean> getFeatures() {
+        if (features == null) {
+            return Collections.emptyMap();
+        }
+
+        return features;
+    }
+
+    /**
+     * Returns the SAX properties set through {@link #setProperty(String,
+     * Object)} since the <code>XMLReader</code> was last replaced.
+     * 
+     * @return DOCUMENT ME!
+     */
+    Map<String, Object> getProperties() {
+        if (properties == null) {
+            return Collections.emptyMap();
+        }
+
+        return properties;
+    }
+
     /**
      * Installs any XMLFilter objects required to allow the SAX event stream to
      * be filtered and preprocessed before it gets to dom4j.
@@ -968,6 +1294,34 @@ public class SAXReader {
         return new SAXContentHandler(getDocumentFactory(), dispatchHandler);
     }
 
+    /**
+     * Opens a stream over the channel which is memory mapped if it is a large
+     * enough <code>FileChannel</code>.
+     * 
+     * @param channel
+     *            DOCUMENT ME!
+     * 
+     * @return DOCUMENT ME!
+     * 
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    protected InputStream openChannel(ReadableByteChannel channel)
+            throws IOException {
+        if (channel instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) channel;
+            long position = fileChannel.position();
+            long length = fileChannel.size() - position;
+
+            if (length >= memoryMappingThreshold) {
+                return new MappedFileInputStream(fileChannel, position, length);
+            }
+        }
+
+        return new BufferedInputStream(Channels.newInputStream(channel),
+                readBufferSize);
+    }
+
     protected EntityResolver createDefaultEntityResolver(String systemId) {
         String prefix = null;
 
@@ -982,6 +1336,24 @@ public class SAXReader {
         return new SAXEntityResolver(prefix);
     }
 
+    /**
+     * Returns the <code>file:</code> URI used as the system ID of a file.
+     */
+    private static String fileSystemId(String path) {
+        // Code taken from Ant FileUtils
+        StringBuilder sb = new StringBuilder(path.length() + 8);
+        sb.append("file://");
+
+        // add an extra slash for filesystems with drive-specifiers
+        if (!path.startsWith(File.separator)) {
+            sb.append("/");
+        }
+
+        sb.append(path.replace('\\', '/'));
+
+        return sb.toString();
+    }
+
     protected static class SAXEntityResolver implements EntityResolver,
             Serializable {
         protected String uriPrefix;
@@ -0,0 +1,605 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dom5j.Document;
+import org.dom5j.DocumentException;
+import org.dom5j.DocumentFactory;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+
+/**
+ * <p>
+ * <code>SAXReaderPool</code> is a thread safe source of configured
+ * {@link SAXReader}instances. Creating a <code>SAXReader</code> for every
+ * small message means looking up a SAX parser factory and setting up a new
+ * parser each time, which can cost more than parsing the message; the pool
+ * keeps readers, together with their <code>XMLReader</code>, for reuse.
+ * </p>
+ *
+ * <p>
+ * The settings of the pooled readers are copied from a template reader when
+ * the pool is created: the <code>DocumentFactory</code>, validation, the
+ * entity resolver, the error handler, the encoding, the text handling and
+ * buffering options, the <code>XMLReader</code> class if it was given by name
+ * and the SAX features and properties set through
+ * {@link SAXReader#setFeature(String, boolean)}and
+ * {@link SAXReader#setProperty(String, Object)}. If the template's
+ * <code>XMLReader</code> has already been created, the entity and DTD
+ * handling features and properties it reports are copied as well, so that a
+ * parser hardened directly through {@link SAXReader#getXMLReader()}stays
+ * hardened. A template with an <code>XMLFilter</code> or with an
+ * <code>XMLReader</code> instance that was not given by class name is
+ * rejected, as neither can be copied.
+ * </p>
+ *
+ * <p>
+ * SAX features and properties set on the pool are applied to each new
+ * <code>XMLReader</code>, so they should be set before the pool is first
+ * used. When a reader is returned its handlers are removed and all the
+ * settings above are restored. A reader is discarded instead if SAX features
+ * or properties were set on it while it was borrowed, or if its parser
+ * reports other entity and DTD handling settings than when it was created.
+ * Other features and properties set directly on the
+ * <code>XMLReader</code> can not be detected, so borrowers must not change
+ * them.
+ * </p>
+ *
+ * <p>
+ * Each reader must be released once, to the pool it was borrowed from.
+ * Readers which are never released stay referenced by the pool.
+ * </p>
+ *
+ */
+public class SAXReaderPool {
+    /** The default number of idle readers kept */
+    public static final int DEFAULT_MAXIMUM_IDLE = 16;
+
+    /** Replaces the handlers of idle parsers so they keep no document */
+    private static final DefaultHandler2 NO_HANDLER = new DefaultHandler2();
+
+    private static final String SAX_LEXICAL_HANDLER = 
+            "http://xml.org/sax/properties/lexical-handler";
+
+    private static final String SAX_DECL_HANDLER = 
+            "http://xml.org/sax/properties/declaration-handler";
+
+    /** The features copied from an already created template parser */
+    private static final String[] TEMPLATE_FEATURES = {
+            "http://apache.org/xml/features/disallow-doctype-decl",
+            "http://xml.org/sax/features/external-general-entities",
+            "http://xml.org/sax/features/external-parameter-entities",
+            "http://apache.org/xml/features/nonvalidating/load-external-dtd",
+            "http://javax.xml.XMLConstants/feature/secure-processing",
+            "http://apache.org/xml/features/xinclude" };
+
+    /** The properties copied from an already created template parser */
+    private static final String[] TEMPLATE_PROPERTIES = {
+            "http://javax.xml.XMLConstants/property/accessExternalDTD",
+            "http://javax.xml.XMLConstants/property/accessExternalSchema",
+            "http://apache.org/xml/properties/security-manager" };
+
+    private final DocumentFactory factory;
+
+    private final String xmlReaderClassName;
+
+    private final boolean validating;
+
+    private final EntityResolver entityResolver;
+
+    private final ErrorHandler errorHandler;
+
+    private final String encoding;
+
+    private final boolean stringInternEnabled;
+
+    private final boolean includeInternalDTDDeclarations;
+
+    private final boolean includeExternalDTDDeclarations;
+
+    private final boolean mergeAdjacentText;
+
+    private final boolean stripWhitespaceText;
+
+    private final boolean ignoreComments;
+
+    private final int readBufferSize;
+
+    private final long memoryMappingThreshold;
+
+    /** The SAX features applied to new parsers */
+    private final ConcurrentMap<String, Boolean> features;
+
+    /** The SAX properties applied to new parsers */
+    private final ConcurrentMap<String, Object> properties;
+
+    private final Queue<PooledReader> idleReaders;
+
+    /** The readers which have been borrowed and not yet released */
+    private final Map<SAXReader, PooledReader> borrowedReaders;
+
+    private final AtomicInteger idleCount;
+
+    private final int maximumIdle;
+
+    public SAXReaderPool() {
+        this(new SAXReader());
+    }
+
+    public SAXReaderPool(SAXReader template) {
+        this(template, DEFAULT_MAXIMUM_IDLE);
+    }
+
+    /**
+     * Creates a pool of readers configured like the given reader.
+     * 
+     * @param template
+     *            the reader whose settings are copied
+     * @param maximumIdle
+     *            the maximum number of returned readers kept for reuse
+     * 
+     * @throws IllegalArgumentException
+     *             if the template has an <code>XMLFilter</code> or an
+     *             <code>XMLReader</code> instance not given by class name
+     */
+    public SAXReaderPool(SAXReader template, int maximumIdle) {
+        if (maximumIdle < 0) {
+            throw new IllegalArgumentException("Illegal maximum idle count: "
+                    + maximumIdle);
+        }
+
+        if (template.getXMLFilter() != null) {
+            throw new IllegalArgumentException("The XMLFilter of the template "
+                    + "can not be copied to pooled readers");
+        }
+
+        if (template.isXMLReaderSupplied()
+                && (template.getXMLReaderClassName() == null)) {
+            throw new IllegalArgumentException("The XMLReader of the template "
+                    + "can not be copied to pooled readers, "
+                    + "give its class name instead");
+        }
+
+        this.factory = template.getDocumentFactory();
+        this.xmlReaderClassName = template.getXMLReaderClassName();
+        this.validating = template.isValidating();
+        this.entityResolver = template.getEntityResolver();
+        this.errorHandler = template.getErrorHandler();
+        this.encoding = template.getEncoding();
+        this.stringInternEnabled = template.isStringInternEnabled();
+        this.includeInternalDTDDeclarations = template
+                .isIncludeInternalDTDDeclarations();
+        this.includeExternalDTDDeclarations = template
+                .isIncludeExternalDTDDeclarations();
+        this.mergeAdjacentText = template.isMergeAdjacentText();
+        this.stripWhitespaceText = template.isStripWhitespaceText();
+        this.ignoreComments = template.isIgnoreComments();
+        this.readBufferSize = template.getReadBufferSize();
+        this.memoryMappingThreshold = template.getMemoryMappingThreshold();
+        this.features = new ConcurrentHashMap<String, Boolean>();
+        this.properties = new ConcurrentHashMap<String, Object>();
+
+        XMLReader templateReader = template.peekXMLReader();
+
+        if (templateReader != null) {
+            copyTemplateSettings(templateReader);
+        }
+
+        features.putAll(template.getFeatures());
+        properties.putAll(template.getProperties());
+        this.idleReaders = new ConcurrentLinkedQueue<PooledReader>();
+        this.borrowedReaders = Collections.synchronizedMap(
+                new IdentityHashMap<SAXReader, PooledReader>());
+        this.idleCount = new AtomicInteger();
+        this.maximumIdle = maximumIdle;
+    }
+
+    /**
+     * Sets a SAX feature on the parsers created from now on.
+     * 
+     * @param name
+     *            is the SAX feature name
+     * @param value
+     *            is the value of the SAX feature
+     */
+    public void setFeature(String name, boolean value) {
+        features.put(name, Boolean.valueOf(value));
+    }
+
+    /**
+     * Sets a SAX property on the parsers created from now on.
+     * 
+     * @param name
+     *            is the SAX property name
+     * @param value
+     *            is the value of the SAX property, which is shared by all the
+     *            parsers
+     */
+    public void setProperty(String name, Object value) {
+        properties.put(name, value);
+    }
+
+    public DocumentFactory getDocumentFactory() {
+        return factory;
+    }
+
+    /**
+     * Returns the number of readers waiting to be reused.
+     * 
+     * @return the number of idle readers
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * Takes a reader out of the pool, creating one if none is idle. The reader
+     * must be used by one thread at a time and should be passed to
+     * {@link #release(SAXReader)}once it is no longer needed.
+     * 
+     * @return a configured reader
+     * 
+     * @throws DocumentException
+     *             if a parser could not be created or configured
+     */
+    public SAXReader borrow() throws DocumentException {
+        PooledReader pooled = idleReaders.poll();
+
+        if (pooled != null) {
+            idleCount.decrementAndGet();
+        } else {
+            try {
+                pooled = new PooledReader(createSAXReader());
+            } catch (SAXException e) {
+                throw new DocumentException(e.getMessage(), e);
+            }
+        }
+
+        borrowedReaders.put(pooled.reader, pooled);
+
+        return pooled.reader;
+    }
+
+    /**
+     * Resets a reader taken from this pool and makes it available again.
+     * 
+     * @param reader
+     *            the reader to return, which must not be used afterwards
+     * 
+     * @throws IllegalArgumentException
+     *             if the reader was not borrowed from this pool or has
+     *             already been released
+     */
+    public void release(SAXReader reader) {
+        if (reader == null) {
+            return;
+        }
+
+        PooledReader pooled = borrowedReaders.remove(reader);
+
+        if (pooled == null) {
+            throw new IllegalArgumentException("The reader was not borrowed "
+                    + "from this pool or has already been released");
+        }
+
+        if (!pooled.isUnchanged() || !reset(reader)) {
+            return;
+        }
+
+        if (idleCount.incrementAndGet() <= maximumIdle) {
+            idleReaders.offer(pooled);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reads a Document with a pooled reader.
+     * 
+     * @param in
+     *            <code>InputSource</code> to read from.
+     * 
+     * @return the newly created Document instance
+     * 
+     * @throws DocumentException
+     *             if an error occurs during parsing.
+     */
+    public Document read(InputSource in) throws DocumentException {
+        SAXReader reader = borrow();
+
+        try {
+            return reader.read(in);
+        } finally {
+            release(reader);
+        }
+    }
+
+    public Document read(InputStream in) throws DocumentException {
+        SAXReader reader = borrow();
+
+        try {
+            return reader.read(in);
+        } finally {
+            release(reader);
+        }
+    }
+
+    public Document read(Reader in) throws DocumentException {
+        SAXReader reader = borrow();
+
+        try {
+            return reader.read(in);
+        } finally {
+            release(reader);
+        }
+    }
+
+    public Document read(File file) throws DocumentException {
+        SAXReader reader = borrow();
+
+        try {
+            return reader.read(file);
+        } finally {
+            release(reader);
+        }
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Factory Method to create a new reader with the settings of this pool
+     * 
+     * @return a new reader
+     * 
+     * @throws SAXException
+     *             if the parser could not be created or configured
+     */
+    protected SAXReader createSAXReader() throws SAXException {
+        SAXReader reader = new SAXReader(xmlReaderClassName, validating);
+        configure(reader);
+
+        // creates the parser now rather than on first use
+        XMLReader xmlReader = reader.getXMLReader();
+
+        for (Map.Entry<String, Boolean> entry : features.entrySet()) {
+            xmlReader.setFeature(entry.getKey(), entry.getValue()
+                    .booleanValue());
+        }
+
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            xmlReader.setProperty(entry.getKey(), entry.getValue());
+        }
+
+        return reader;
+    }
+
+    /**
+     * Applies the settings copied from the template to the given reader.
+     * 
+     * @param reader
+     *            the reader to configure
+     */
+    private void configure(SAXReader reader) {
+        reader.setDocumentFactory(factory);
+        reader.setValidation(validating);
+        reader.setEntityResolver(entityResolver);
+        reader.setErrorHandler(errorHandler);
+        reader.setEncoding(encoding);
+        reader.setStringInternEnabled(stringInternEnabled);
+        reader.setIncludeInternalDTDDeclarations(
+                includeInternalDTDDeclarations);
+        reader.setIncludeExternalDTDDeclarations(
+                includeExternalDTDDeclarations);
+        reader.setMergeAdjacentText(mergeAdjacentText);
+        reader.setStripWhitespaceText(stripWhitespaceText);
+        reader.setIgnoreComments(ignoreComments);
+        reader.setReadBufferSize(readBufferSize);
+        reader.setMemoryMappingThreshold(memoryMappingThreshold);
+    }
+
+    /**
+     * Copies the entity and DTD handling settings reported by the template's
+     * parser, which may have been configured directly.
+     * 
+     * @param templateReader
+     *            the parser of the template
+     */
+    private void copyTemplateSettings(XMLReader templateReader) {
+        for (int i = 0; i < TEMPLATE_FEATURES.length; i++) {
+            try {
+                features.put(TEMPLATE_FEATURES[i], Boolean
+                        .valueOf(templateReader.getFeature(TEMPLATE_FEATURES[i])));
+            } catch (SAXNotRecognizedException e) {
+                // not known to this parser
+            } catch (SAXNotSupportedException e) {
+                // not known to this parser
+            }
+        }
+
+        for (int i = 0; i < TEMPLATE_PROPERTIES.length; i++) {
+            try {
+                Object value = templateReader.getProperty(TEMPLATE_PROPERTIES[i]);
+
+                if (value != null) {
+                    properties.put(TEMPLATE_PROPERTIES[i], value);
+                }
+            } catch (SAXNotRecognizedException e) {
+                // not known to this parser
+            } catch (SAXNotSupportedException e) {
+                // not known to this parser
+            }
+        }
+    }
+
+    /**
+     * Puts a reader back into the state it was created in.
+     * 
+     * @return false if the reader could not be reset and must be discarded
+     */
+    protected boolean reset(SAXReader reader) {
+        // features and properties can not be read back from every parser
+        if (!reader.getFeatures().isEmpty()
+                || !reader.getProperties().isEmpty()
+                || (reader.isXMLReaderSupplied() != (xmlReaderClassName != null))
+                || !Objects.equals(reader.getXMLReaderClassName(),
+                        xmlReaderClassName)) {
+            return false;
+        }
+
+        reader.resetHandlers();
+        reader.setXMLFilter(null);
+
+        // SAXReader caches a resolver for the system id of the first document
+        configure(reader);
+
+        try {
+            XMLReader xmlReader = reader.getXMLReader();
+            xmlReader.setContentHandler(NO_HANDLER);
+            xmlReader.setErrorHandler(NO_HANDLER);
+            xmlReader.setEntityResolver(NO_HANDLER);
+            SAXHelper.setParserProperty(xmlReader, SAX_LEXICAL_HANDLER,
+                    NO_HANDLER);
+
+            if (includeInternalDTDDeclarations
+                    || includeExternalDTDDeclarations) {
+                SAXHelper.setParserProperty(xmlReader, SAX_DECL_HANDLER,
+                        NO_HANDLER);
+            }
+        } catch (SAXException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * A reader of this pool together with the entity and DTD handling
+     * settings its parser reported when it was created, limited to those the
+     * parser recognises
+     */
+    private static class PooledReader {
+        private final SAXReader reader;
+
+        private final Map<String, Boolean> features;
+
+        private final Map<String, Object> properties;
+
+        PooledReader(SAXReader reader) throws SAXException {
+            this.reader = reader;
+            this.features = new HashMap<String, Boolean>();
+            this.properties = new HashMap<String, Object>();
+
+            XMLReader xmlReader = reader.getXMLReader();
+
+            for (int i = 0; i < TEMPLATE_FEATURES.length; i++) {
+                try {
+                    boolean value = xmlReader.getFeature(TEMPLATE_FEATURES[i]);
+                    features.put(TEMPLATE_FEATURES[i], Boolean.valueOf(value));
+                } catch (SAXException e) {
+                    // not known to this parser
+                }
+            }
+
+            for (int i = 0; i < TEMPLATE_PROPERTIES.length; i++) {
+                try {
+                    properties.put(TEMPLATE_PROPERTIES[i], xmlReader
+                            .getProperty(TEMPLATE_PROPERTIES[i]));
+                } catch (SAXException e) {
+                    // not known to this parser
+                }
+            }
+        }
+
+        /**
+         * Returns whether the parser still reports the settings it was
+         * created with, as it may have been changed through
+         * {@link SAXReader#getXMLReader()}.
+         */
+        boolean isUnchanged() {
+            try {
+                XMLReader xmlReader = reader.getXMLReader();
+
+                for (Map.Entry<String, Boolean> entry : features.entrySet()) {
+                    if (xmlReader.getFeature(entry.getKey()) != entry
+                            .getValue().booleanValue()) {
+                        return false;
+                    }
+                }
+
+                for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                    if (!Objects.equals(xmlReader.getProperty(entry.getKey()),
+                            entry.getValue())) {
+                        return false;
+                    }
+                }
+            } catch (SAXException e) {
+                return false;
+            }
+
+            return true;
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
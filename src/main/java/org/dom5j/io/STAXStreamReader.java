@@ -0,0 +1,475 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.InputStream;
+import java.io.Reader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.dom5j.Document;
+import org.dom5j.DocumentFactory;
+import org.dom5j.Element;
+import org.dom5j.Node;
+import org.dom5j.QName;
+
+/**
+ * <p>
+ * Reads a DOM4J {@link Document}, or single elements, from the cursor API of
+ * StAX, {@link XMLStreamReader}. Unlike {@link STAXEventReader} no event
+ * objects are created: names, attributes and namespaces are read by index
+ * from the cursor and copied once, into the DOM4J nodes.
+ * </p>
+ *
+ * <p>
+ * {@link #readElement(XMLStreamReader)} reads the element at the cursor and
+ * leaves the cursor on its end tag, so records can be pulled out of a large
+ * stream one at a time:
+ * </p>
+ *
+ * <pre>
+ * while (reader.hasNext()) {
+ *     if ((reader.next() == XMLStreamConstants.START_ELEMENT)
+ *             &amp;&amp; &quot;entry&quot;.equals(reader.getLocalName())) {
+ *         Element entry = staxReader.readElement(reader);
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * <p>
+ * Adjacent character events are merged into one text node.
+ * </p>
+ */
+public class STAXStreamReader {
+    /** Reference to the DocumentFactory used to build DOM4J nodes. */
+    private DocumentFactory factory;
+
+    /** Asks the JDK parser to report CDATA sections rather than characters */
+    private static final String REPORT_CDATA = 
+            "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    /** A StAX input factory, used to construct streams from IO streams. */
+    private XMLInputFactory inputFactory = createInputFactory();
+
+    /** Collects the text of adjacent character events */
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * Constructs a default <code>STAXStreamReader</code> instance with a
+     * default {@link DocumentFactory}.
+     */
+    public STAXStreamReader() {
+        this.factory = DocumentFactory.getInstance();
+    }
+
+    /**
+     * Constructs a <code>STAXStreamReader</code> instance that uses the
+     * specified {@link DocumentFactory}to construct DOM4J {@link Node}s.
+     *
+     * @param factory
+     *            The DocumentFactory to use when constructing DOM4J nodes, or
+     *            <code>null</code> if a default should be used.
+     */
+    public STAXStreamReader(DocumentFactory factory) {
+        setDocumentFactory(factory);
+    }
+
+    /**
+     * Sets the DocumentFactory to be used when constructing DOM4J nodes.
+     *
+     * @param documentFactory
+     *            The DocumentFactory to use when constructing DOM4J nodes, or
+     *            <code>null</code> if a default should be used.
+     */
+    public void setDocumentFactory(DocumentFactory documentFactory) {
+        if (documentFactory != null) {
+            this.factory = documentFactory;
+        } else {
+            this.factory = DocumentFactory.getInstance();
+        }
+    }
+
+    /**
+     * Constructs a StAX stream from the provided I/O stream and reads a DOM4J
+     * document from it.
+     *
+     * @param is
+     *            The I/O stream from which the Document will be read.
+     *
+     * @return The Document that was read from the stream.
+     *
+     * @throws XMLStreamException
+     *             If an error occurs reading content from the stream.
+     */
+    public Document readDocument(InputStream is) throws XMLStreamException {
+        return readDocument(is, null);
+    }
+
+    /**
+     * Constructs a StAX stream from the provided I/O character stream and
+     * reads a DOM4J document from it.
+     *
+     * @param reader
+     *            The character stream from which the Document will be read.
+     *
+     * @return The Document that was read from the stream.
+     *
+     * @throws XMLStreamException
+     *             If an error occurs reading content from the stream.
+     */
+    public Document readDocument(Reader reader) throws XMLStreamException {
+        return readDocument(reader, null);
+    }
+
+    /**
+     * Constructs a StAX stream from the provided I/O stream and reads a DOM4J
+     * document from it.
+     *
+     * @param is
+     *            The I/O stream from which the Document will be read.
+     * @param systemId
+     *            A system id used to resolve entities.
+     *
+     * @return The Document that was read from the stream.
+     *
+     * @throws XMLStreamException
+     *             If an error occurs reading content from the stream.
+     */
+    public Document readDocument(InputStream is, String systemId)
+            throws XMLStreamException {
+        XMLStreamReader streamReader = inputFactory.createXMLStreamReader(
+                systemId, is);
+
+        try {
+            return readDocument(streamReader);
+        } finally {
+            streamReader.close();
+        }
+    }
+
+    /**
+     * Constructs a StAX stream from the provided I/O character stream and
+     * reads a DOM4J document from it.
+     *
+     * @param reader
+     *            The character stream from which the Document will be read.
+     * @param systemId
+     *            A system id used to resolve entities.
+     *
+     * @return The Document that was read from the stream.
+     *
+     * @throws XMLStreamException
+     *             If an error occurs reading content from the stream.
+     */
+    public Document readDocument(Reader reader, String systemId)
+            throws XMLStreamException {
+        XMLStreamReader streamReader = inputFactory.createXMLStreamReader(
+                systemId, reader);
+
+        try {
+            return readDocument(streamReader);
+        } finally {
+            streamReader.close();
+        }
+    }
+
+    /**
+     * Reads a DOM4J {@link Document}from the provided stream. The stream
+     * should be positioned at the start of a document, in which case the whole
+     * document is read, or at a start tag, in which case the element becomes
+     * the root of the document.
+     *
+     * @param reader
+     *            The stream from which to read the {@link Document}.
+     *
+     * @return The {@link Document}that was read from the stream.
+     *
+     * @throws XMLStreamException
+     *             If an error occurs reading from the stream.
+     */
+    public Document readDocument(XMLStreamReader reader)
+            throws XMLStreamException {
+        int type = reader.getEventType();
+
+        if (type == XMLStreamConstants.START_ELEMENT) {
+            return factory.createDocument(readElement(reader));
+        } else if (type != XMLStreamConstants.START_DOCUMENT) {
+            throw new XMLStreamException("Expected StartDocument event, "
+                    + "found: " + eventName(type), reader.getLocation());
+        }
+
+        Document doc = factory.createDocument(reader
+                .getCharacterEncodingScheme());
+
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    doc.add(readElement(reader));
+
+                    break;
+
+                case XMLStreamConstants.COMMENT:
+                    doc.addComment(reader.getText());
+
+                    break;
+
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    doc.addProcessingInstruction(reader.getPITarget(),
+                            piData(reader));
+
+                    break;
+
+                default:
+
+                    // skip the DTD and space outside the root element
+                    break;
+            }
+        }
+
+        return doc;
+    }
+
+    /**
+     * Reads a DOM4J Element from the provided stream. The stream must be
+     * positioned at a start tag. The element and all its content up to its
+     * end tag are read, leaving the stream positioned at the end tag.
+     *
+     * @param reader
+     *            The stream from which to read the Element.
+     *
+     * @return The Element that was read from the stream.
+     *
+     * @throws XMLStreamException
+     *             If an error occured reading from the stream, or the stream
+     *             was not positioned at a start tag.
+     */
+    public Element readElement(XMLStreamReader reader)
+            throws XMLStreamException {
+        int type = reader.getEventType();
+
+        if (type != XMLStreamConstants.START_ELEMENT) {
+            throw new XMLStreamException("Expected Element event, found: "
+                    + eventName(type), reader.getLocation());
+        }
+
+        Element root = createElement(reader);
+        Element current = root;
+        int depth = 1;
+        text.setLength(0);
+
+        while (depth > 0) {
+            if (!reader.hasNext()) {
+                throw new XMLStreamException("Unexpected end of stream while "
+                        + "reading element content", reader.getLocation());
+            }
+
+            type = reader.next();
+
+            switch (type) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getTextCharacters(), reader
+                            .getTextStart(), reader.getTextLength());
+
+                    break;
+
+                case XMLStreamConstants.START_ELEMENT:
+                    addText(current);
+
+                    Element child = createElement(reader);
+                    current.add(child);
+                    current = child;
+                    depth++;
+
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    addText(current);
+
+                    if (--depth > 0) {
+                        current = current.getParent();
+                    }
+
+                    break;
+
+                case XMLStreamConstants.CDATA:
+                    addText(current);
+                    current.addCDATA(reader.getText());
+
+                    break;
+
+                case XMLStreamConstants.COMMENT:
+                    addText(current);
+                    current.addComment(reader.getText());
+
+                    break;
+
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    addText(current);
+                    current.addProcessingInstruction(reader.getPITarget(),
+                            piData(reader));
+
+                    break;
+
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    addText(current);
+                    current.add(factory.createEntity(reader.getLocalName(),
+                            reader.getText()));
+
+                    break;
+
+                default:
+                    throw new XMLStreamException("Unexpected event: "
+                            + eventName(type), reader.getLocation());
+            }
+        }
+
+        return root;
+    }
+
+    /**
+     * Creates an element with the name, namespaces and attributes of the
+     * start tag the stream is positioned at.
+     *
+     * @param reader
+     *            The stream positioned at a start tag.
+     *
+     * @return The element, without content.
+     */
+    public Element createElement(XMLStreamReader reader) {
+        Element elem = factory.createElement(createQName(reader
+                .getLocalName(), reader.getPrefix(), reader
+                .getNamespaceURI()));
+
+        for (int i = 0, size = reader.getNamespaceCount(); i < size; i++) {
+            elem.add(factory.createNamespace(nonNull(reader
+                    .getNamespacePrefix(i)), nonNull(reader
+                    .getNamespaceURI(i))));
+        }
+
+        for (int i = 0, size = reader.getAttributeCount(); i < size; i++) {
+            QName name = createQName(reader.getAttributeLocalName(i), reader
+                    .getAttributePrefix(i), reader.getAttributeNamespace(i));
+            elem.add(factory.createAttribute(elem, name, reader
+                    .getAttributeValue(i)));
+        }
+
+        return elem;
+    }
+
+    /**
+     * Constructs a DOM4J QName from the parts reported by the stream, any of
+     * which may be null.
+     *
+     * @param localName
+     *            DOCUMENT ME!
+     * @param prefix
+     *            DOCUMENT ME!
+     * @param uri
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public QName createQName(String localName, String prefix, String uri) {
+        return factory.createQName(localName, nonNull(prefix), nonNull(uri));
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private void addText(Element element) {
+        if (text.length() > 0) {
+            element.addText(text.toString());
+            text.setLength(0);
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory answer = XMLInputFactory.newInstance();
+
+        try {
+            answer.setProperty(REPORT_CDATA, Boolean.TRUE);
+        } catch (IllegalArgumentException e) {
+            // CDATA sections will be read as text
+        }
+
+        return answer;
+    }
+
+    private static String piData(XMLStreamReader reader) {
+        String data = reader.getPIData();
+
+        return (data != null) ? data : "";
+    }
+
+    private static String nonNull(String value) {
+        return (value != null) ? value : "";
+    }
+
+    private static String eventName(int type) {
+        switch (type) {
+            case XMLStreamConstants.START_ELEMENT:
+                return "StartElement";
+
+            case XMLStreamConstants.END_ELEMENT:
+                return "EndElement";
+
+            case XMLStreamConstants.START_DOCUMENT:
+                return "StartDocument";
+
+            case XMLStreamConstants.END_DOCUMENT:
+                return "EndDocument";
+
+            case XMLStreamConstants.DTD:
+                return "DTD";
+
+            default:
+                return "event type " + type;
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
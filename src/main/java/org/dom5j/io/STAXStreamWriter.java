@@ -0,0 +1,510 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.io;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.dom5j.Attribute;
+import org.dom5j.Branch;
+import org.dom5j.CDATA;
+import org.dom5j.Comment;
+import org.dom5j.Document;
+import org.dom5j.DocumentType;
+import org.dom5j.Element;
+import org.dom5j.Entity;
+import org.dom5j.Namespace;
+import org.dom5j.Node;
+import org.dom5j.ProcessingInstruction;
+import org.dom5j.QName;
+import org.dom5j.Text;
+import org.dom5j.tree.NamespaceStack;
+
+/**
+ * <p>
+ * Writes DOM4J {@link Node}s to the cursor API of StAX, {@link
+ * XMLStreamWriter}. Unlike {@link STAXEventWriter} no event objects or
+ * attribute and namespace iterators are created; names, attributes and text
+ * are handed to the stream writer as they are found in the tree.
+ * </p>
+ *
+ * <p>
+ * Namespaces are declared as {@link XMLWriter} declares them: the namespaces
+ * declared by an element, and the namespaces of the element and its
+ * attributes unless they are already in scope. The stream writer should not
+ * repair namespaces itself.
+ * </p>
+ *
+ * <p>
+ * {@link #writeOpen(Element)} and {@link #writeClose(Element)} write a start
+ * and end tag separately, so a large document can be written a record at a
+ * time.
+ * </p>
+ */
+public class STAXStreamWriter {
+    /** The stream to which the nodes are written. */
+    private XMLStreamWriter writer;
+
+    private XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    /** The namespaces in scope */
+    private NamespaceStack namespaceStack = new NamespaceStack();
+
+    /** The size of the namespace stack before each element opened */
+    private int[] openMarks = new int[16];
+
+    private int openCount;
+
+    public STAXStreamWriter() {
+        namespaceStack.push(Namespace.NO_NAMESPACE);
+    }
+
+    /**
+     * Constructs a <code>STAXStreamWriter</code> that writes to a file.
+     *
+     * @param file
+     *            DOCUMENT ME!
+     *
+     * @throws XMLStreamException
+     *             DOCUMENT ME!
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    public STAXStreamWriter(File file) throws XMLStreamException, IOException {
+        this(new FileWriter(file));
+    }
+
+    /**
+     * Constructs a <code>STAXStreamWriter</code> that writes to a character
+     * stream.
+     *
+     * @param writer
+     *            DOCUMENT ME!
+     *
+     * @throws XMLStreamException
+     *             DOCUMENT ME!
+     */
+    public STAXStreamWriter(Writer writer) throws XMLStreamException {
+        this();
+        this.writer = outputFactory.createXMLStreamWriter(writer);
+    }
+
+    /**
+     * Constructs a <code>STAXStreamWriter</code> that writes to a byte
+     * stream.
+     *
+     * @param stream
+     *            DOCUMENT ME!
+     *
+     * @throws XMLStreamException
+     *             DOCUMENT ME!
+     */
+    public STAXStreamWriter(OutputStream stream) throws XMLStreamException {
+        this();
+        this.writer = outputFactory.createXMLStreamWriter(stream);
+    }
+
+    /**
+     * Constructs a <code>STAXStreamWriter</code> that writes to the given
+     * stream writer.
+     *
+     * @param writer
+     *            DOCUMENT ME!
+     */
+    public STAXStreamWriter(XMLStreamWriter writer) {
+        this();
+        this.writer = writer;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return the stream to which the nodes are written
+     */
+    public XMLStreamWriter getXMLStreamWriter() {
+        return writer;
+    }
+
+    /**
+     * Sets the stream to which the nodes are written, forgetting the
+     * namespaces and elements opened on the previous stream.
+     *
+     * @param writer
+     *            DOCUMENT ME!
+     */
+    public void setXMLStreamWriter(XMLStreamWriter writer) {
+        this.writer = writer;
+        namespaceStack.clear();
+        namespaceStack.push(Namespace.NO_NAMESPACE);
+        openCount = 0;
+    }
+
+    /**
+     * Writes a DOM4J {@link Node}to the stream.
+     *
+     * @param n
+     *            DOCUMENT ME!
+     *
+     * @throws XMLStreamException
+     *             DOCUMENT ME!
+     */
+    public void writeNode(Node n) throws XMLStreamException {
+        switch (n.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeElement((Element) n);
+
+                break;
+
+            case Node.TEXT_NODE:
+                writeText((Text) n);
+
+                break;
+
+            case Node.ATTRIBUTE_NODE:
+                writeAttribute((Attribute) n);
+
+                break;
+
+            case Node.NAMESPACE_NODE:
+                writeNamespace((Namespace) n);
+
+                break;
+
+            case Node.COMMENT_NODE:
+                writeComment((Comment) n);
+
+                break;
+
+            case Node.CDATA_SECTION_NODE:
+                writeCDATA((CDATA) n);
+
+                break;
+
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                writeProcessingInstruction((ProcessingInstruction) n);
+
+                break;
+
+            case Node.ENTITY_REFERENCE_NODE:
+                writeEntity((Entity) n);
+
+                break;
+
+            case Node.DOCUMENT_NODE:
+                writeDocument((Document) n);
+
+                break;
+
+            case Node.DOCUMENT_TYPE_NODE:
+                writeDocumentType((DocumentType) n);
+
+                break;
+
+            default:
+                throw new XMLStreamException("Unsupported DOM4J Node: " + n);
+        }
+    }
+
+    /**
+     * Writes the child nodes of the given {@link Branch}, leaving out the
+     * namespaces declared by an element.
+     *
+     * @param branch
+     *            DOCUMENT ME!
+     *
+     * @throws XMLStreamException
+     *             DOCUMENT ME!
+     */
+    public void writeChildNodes(Branch branch) throws XMLStreamException {
+        for (int i = 0, size = branch.nodeCount(); i < size; i++) {
+            Node node = branch.node(i);
+
+            if (!(node instanceof Namespace)) {
+                writeNode(node);
+            }
+        }
+    }
+
+    /**
+     * Writes a DOM4J {@link Element}and its content.
+     *
+     * @param elem
+     *            DOCUMENT ME!
+     *
+     * @throws XMLStreamException
+     *             DOCUMENT ME!
+     */
+    public void writeElement(Element elem) throws XMLStreamException {
+        int previouslyDeclaredNamespaces = namespaceStack.size();
+        boolean empty = true;
+
+        for (int i = 0, size = elem.nodeCount(); empty && (i < size); i++) {
+            empty = elem.node(i) instanceof Namespace;
+        }
+
+        writeStartTag(elem, empty);
+
+        if (!empty) {
+            writeChildNodes(elem);
+            writer.writeEndElement();
+        }
+
+        while (namespaceStack.size() > previouslyDeclaredNamespaces) {
+            namespaceStack.pop();
+        }
+    }
+
+    /**
+     * Writes the start tag of an {@link Element}, including its namespaces
+     * and attributes but without its content. The element stays open until
+     * {@link #writeClose(Element)} is called.
+     *
+     * @param element
+     *            <code>Element</code> to output.
+     *
+     * @throws XMLStreamException
+     *             DOCUMENT ME!
+     */
+    public void writeOpen(Element element) throws XMLStreamException {
+        if (openCount == openMarks.length) {
+            int[] marks = new int[openCount * 2];
+            System.arraycopy(openMarks, 0, marks, 0, openCount);
+            openMarks = marks;
+        }
+
+        openMarks[openCount++] = namespaceStack.size();
+        writeStartTag(element, false);
+    }
+
+    /**
+     * Writes the end tag of the {@link Element}last opened by {@link
+     * #writeOpen(Element)}.
+     *
+     * @param element
+     *            <code>Element</code> to output.
+     *
+     * @throws XMLStreamException
+     *             DOCUMENT ME!
+     */
+    public void writeClose(Element element) throws XMLStreamException {
+        if (openCount == 0) {
+            throw new XMLStreamException("No element is open to close: "
+                    + element.getQualifiedName());
+        }
+
+        writer.writeEndElement();
+
+        int previouslyDeclaredNamespaces = openMarks[--openCount];
+
+        while (namespaceStack.size() > previouslyDeclaredNamespaces) {
+            namespaceStack.pop();
+        }
+    }
+
+    /**
+     * Writes a DOM4J {@link Attribute}. The stream must be within a start
+     * tag.
+     *
+     * @param attr
+     *            DOCUMENT ME!
+     *
+     * @throws XMLStreamException
+     *             DOCUMENT ME!
+     */
+    public void writeAttribute(Attribute attr) throws XMLStreamException {
+        QName qName = attr.getQName();
+        String uri = qName.getNamespaceURI();
+
+        if (uri.length() == 0) {
+            writer.writeAttribute(qName.getName(), attr.getValue());
+        } else {
+            writer.writeAttribute(qName.getNamespacePrefix(), uri, qName
+                    .getName(), attr.getValue());
+        }
+    }
+
+    /**
+     * Writes a DOM4J {@link Namespace}declaration. The stream must be within
+     * a start tag.
+     *
+     * @param ns
+     *            DOCUMENT ME!
+     *
+     * @throws XMLStreamException
+     *             DOCUMENT ME!
+     */
+    public void writeNamespace(Namespace ns) throws XMLStreamException {
+        String prefix = ns.getPrefix();
+
+        if ((prefix == null) || (prefix.length() == 0)) {
+            writer.writeDefaultNamespace(ns.getURI());
+        } else {
+            writer.writeNamespace(prefix, ns.getURI());
+        }
+    }
+
+    public void writeText(Text text) throws XMLStreamException {
+        writer.writeCharacters(text.getText());
+    }
+
+    public void writeCDATA(CDATA cdata) throws XMLStreamException {
+        writer.writeCData(cdata.getText());
+    }
+
+    public void writeComment(Comment comment) throws XMLStreamException {
+        writer.writeComment(comment.getText());
+    }
+
+    public void writeProcessingInstruction(ProcessingInstruction pi)
+            throws XMLStreamException {
+        String data = pi.getText();
+
+        if ((data == null) || (data.length() == 0)) {
+            writer.writeProcessingInstruction(pi.getTarget());
+        } else {
+            writer.writeProcessingInstruction(pi.getTarget(), data);
+        }
+    }
+
+    public void writeEntity(Entity entity) throws XMLStreamException {
+        writer.writeEntityRef(entity.getName());
+    }
+
+    public void writeDocumentType(DocumentType docType)
+            throws XMLStreamException {
+        StringWriter decl = new StringWriter();
+
+        try {
+            docType.write(decl);
+        } catch (IOException e) {
+            throw new XMLStreamException("Error writing DTD", e);
+        }
+
+        writer.writeDTD(decl.toString());
+    }
+
+    /**
+     * Writes a DOM4J {@link Document}, from its XML declaration to the end of
+     * the document.
+     *
+     * @param doc
+     *            DOCUMENT ME!
+     *
+     * @throws XMLStreamException
+     *             DOCUMENT ME!
+     */
+    public void writeDocument(Document doc) throws XMLStreamException {
+        String encoding = doc.getXMLEncoding();
+
+        if (encoding != null) {
+            writer.writeStartDocument(encoding, "1.0");
+        } else {
+            writer.writeStartDocument();
+        }
+
+        writeChildNodes(doc);
+        writer.writeEndDocument();
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private void writeStartTag(Element element, boolean empty)
+            throws XMLStreamException {
+        QName qName = element.getQName();
+        String prefix = qName.getNamespacePrefix();
+        String uri = qName.getNamespaceURI();
+
+        if (empty) {
+            writer.writeEmptyElement(prefix, qName.getName(), uri);
+        } else {
+            writer.writeStartElement(prefix, qName.getName(), uri);
+        }
+
+        Namespace ns = element.getNamespace();
+
+        if (isNamespaceDeclaration(ns)) {
+            namespaceStack.push(ns);
+            writeNamespace(ns);
+        }
+
+        for (int i = 0, size = element.nodeCount(); i < size; i++) {
+            Node node = element.node(i);
+
+            if (node instanceof Namespace) {
+                Namespace additional = (Namespace) node;
+
+                if (isNamespaceDeclaration(additional)) {
+                    namespaceStack.push(additional);
+                    writeNamespace(additional);
+                }
+            }
+        }
+
+        for (int i = 0, size = element.attributeCount(); i < size; i++) {
+            Attribute attribute = element.attribute(i);
+            ns = attribute.getNamespace();
+
+            if ((ns != Namespace.NO_NAMESPACE) && isNamespaceDeclaration(ns)) {
+                namespaceStack.push(ns);
+                writeNamespace(ns);
+            }
+
+            writeAttribute(attribute);
+        }
+    }
+
+    private boolean isNamespaceDeclaration(Namespace ns) {
+        return (ns != null) && (ns != Namespace.XML_NAMESPACE)
+                && (ns.getURI() != null) && !namespaceStack.contains(ns);
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -13,11 +13,14 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 import org.dom5j.Attribute;
 import org.dom5j.CDATA;
@@ -63,6 +66,15 @@ import org.xml.sax.helpers.XMLFilterImpl;
  * UTF8, we recommend using the method that takes an OutputStream instead.
  * </p>
  * 
+ * <p>
+ * Text and attribute values are escaped through per-character tables built
+ * from the maximum allowed character and the attribute quote character, and
+ * written straight to the <code>Writer</code> without building escaped
+ * copies. Subclasses overriding {@link #escapeElementEntities(String)},
+ * {@link #escapeAttributeEntities(String)}or {@link #shouldEncodeChar(char)}
+ * are escaped through those methods instead.
+ * </p>
+ * 
  * @author <a href="mailto:jstrachan@apache.org">James Strachan </a>
  * @author Joseph Bowbeer
  * @version $Revision: 1.83.2.2 $
@@ -76,6 +88,24 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
 
     protected static final OutputFormat DEFAULT_FORMAT = new OutputFormat();
 
+    /** The size of the escape tables, which covers US-ASCII and ISO-8859-1 */
+    private static final int ESCAPE_TABLE_SIZE = 256;
+
+    /**
+     * Whether a class overrides one of the methods which escape text, in
+     * which case those methods are used rather than the escape tables
+     */
+    private static final ClassValue<Boolean> CUSTOM_ESCAPING =
+            new ClassValue<Boolean>() {
+        protected Boolean computeValue(Class<?> type) {
+            return Boolean.valueOf(overrides(type, "escapeElementEntities",
+                    String.class)
+                    || overrides(type, "escapeAttributeEntities",
+                            String.class)
+                    || overrides(type, "shouldEncodeChar", char.class));
+        }
+    };
+
     /** Should entityRefs by resolved when writing ? */
     private boolean resolveEntityRefs = true;
 
@@ -147,6 +177,25 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
      */
     private int maximumAllowedCharacter;
 
+    /** Whether text is escaped by the overridden escaping methods */
+    private final boolean customEscaping = CUSTOM_ESCAPING.get(getClass())
+            .booleanValue();
+
+    /** The escape of each character in text or null if it is written as is */
+    private char[][] textEscapes;
+
+    /** The escape of each character in attribute values or null */
+    private char[][] attributeEscapes;
+
+    /** The maximum allowed character the escape tables were built for */
+    private int escapesMaximum;
+
+    /** The quote character the attribute escape table was built for */
+    private char escapesQuote;
+
+    /** Holds numeric character references while they are written */
+    private final char[] reference = new char[12];
+
     public XMLWriter(Writer writer) {
         this(writer, DEFAULT_FORMAT);
     }
@@ -179,6 +228,14 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
         namespaceStack.push(Namespace.NO_NAMESPACE);
     }
 
+    public XMLWriter(WritableByteChannel channel, OutputFormat format)
+            throws UnsupportedEncodingException {
+        this.format = format;
+        this.writer = createWriter(channel, format.getEncoding());
+        this.autoFlush = true;
+        namespaceStack.push(Namespace.NO_NAMESPACE);
+    }
+
     public XMLWriter(OutputFormat format) throws UnsupportedEncodingException {
         this.format = format;
         this.writer = createWriter(System.out, format.getEncoding());
@@ -737,12 +794,6 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
              * would cause unwanted spaces to be added in between these chunks
              * of character arrays.
              */
-            String string = String.valueOf(ch, start, length);
-
-            if (escapeText) {
-                string = escapeElementEntities(string);
-            }
-
             if (format.isTrimText()) {
                 if ((lastOutputNodeType == Node.TEXT_NODE) && !charsAdded) {
                     writer.write(' ');
@@ -754,16 +805,36 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
                     writer.write(PAD_TEXT);
                 }
 
-                String delim = "";
-                StringTokenizer tokens = new StringTokenizer(string);
+                int end = start + length;
+                int tokenEnd = start;
+                boolean first = true;
+
+                while (true) {
+                    int tokenStart = tokenEnd;
+
+                    while ((tokenStart < end) && isDelimiter(ch[tokenStart])) {
+                        tokenStart++;
+                    }
+
+                    if (tokenStart == end) {
+                        break;
+                    }
+
+                    tokenEnd = tokenStart + 1;
+
+                    while ((tokenEnd < end) && !isDelimiter(ch[tokenEnd])) {
+                        tokenEnd++;
+                    }
 
-                while (tokens.hasMoreTokens()) {
-                    writer.write(delim);
-                    writer.write(tokens.nextToken());
-                    delim = " ";
+                    if (!first) {
+                        writer.write(' ');
+                    }
+
+                    writeText(ch, tokenStart, tokenEnd);
+                    first = false;
                 }
             } else {
-                writer.write(string);
+                writeText(ch, start, start + length);
             }
 
             charsAdded = true;
@@ -1147,13 +1218,18 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
     }
 
     protected void writeCDATA(String text) throws IOException {
-        writer.write("<![CDATA[");
+        if ((text != null)
+                && (encodableMaximum() < Character.MAX_CODE_POINT)) {
+            writeSplitCDATA(text);
+        } else {
+            writer.write("<![CDATA[");
 
-        if (text != null) {
-            writer.write(text);
-        }
+            if (text != null) {
+                writer.write(text);
+            }
 
-        writer.write("]]>");
+            writer.write("]]>");
+        }
 
         lastOutputNodeType = Node.CDATA_SECTION_NODE;
     }
@@ -1230,10 +1306,6 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
 
     protected void writeString(String text) throws IOException {
         if ((text != null) && (text.length() > 0)) {
-            if (escapeText) {
-                text = escapeElementEntities(text);
-            }
-
             // if (format.isPadText()) {
             // if (lastOutputNodeType == Node.ELEMENT_NODE) {
             // writer.write(PAD_TEXT);
@@ -1241,10 +1313,27 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
             // }
             if (format.isTrimText()) {
                 boolean first = true;
-                StringTokenizer tokenizer = new StringTokenizer(text);
+                int size = text.length();
+                int tokenEnd = 0;
+
+                while (true) {
+                    int tokenStart = tokenEnd;
+
+                    while ((tokenStart < size)
+                            && isDelimiter(text.charAt(tokenStart))) {
+                        tokenStart++;
+                    }
+
+                    if (tokenStart == size) {
+                        break;
+                    }
+
+                    tokenEnd = tokenStart + 1;
 
-                while (tokenizer.hasMoreTokens()) {
-                    String token = tokenizer.nextToken();
+                    while ((tokenEnd < size)
+                            && !isDelimiter(text.charAt(tokenEnd))) {
+                        tokenEnd++;
+                    }
 
                     if (first) {
                         first = false;
@@ -1256,14 +1345,14 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
                         writer.write(" ");
                     }
 
-                    writer.write(token);
+                    writeText(text, tokenStart, tokenEnd);
                     lastOutputNodeType = Node.TEXT_NODE;
-                    lastChar = token.charAt(token.length() - 1);
+                    lastChar = lastWrittenChar(text.charAt(tokenEnd - 1));
                 }
             } else {
                 lastOutputNodeType = Node.TEXT_NODE;
-                writer.write(text);
-                lastChar = text.charAt(text.length() - 1);
+                writeText(text, 0, text.length());
+                lastChar = lastWrittenChar(text.charAt(text.length() - 1));
             }
         }
     }
@@ -1282,13 +1371,9 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
         String text = node.getText();
 
         if ((text != null) && (text.length() > 0)) {
-            if (escapeText) {
-                text = escapeElementEntities(text);
-            }
-
             lastOutputNodeType = Node.TEXT_NODE;
-            writer.write(text);
-            lastChar = text.charAt(text.length() - 1);
+            writeText(text, 0, text.length());
+            lastChar = lastWrittenChar(text.charAt(text.length() - 1));
         }
     }
 
@@ -1550,7 +1635,9 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
     }
 
     /**
-     * Get an OutputStreamWriter, use preferred encoding.
+     * Get a Writer for the stream, use preferred encoding. UTF-8, ISO-8859-1
+     * and US-ASCII are encoded straight into bytes by a
+     * {@link ByteEncodingWriter}, other encodings use an OutputStreamWriter.
      * 
      * @param outStream
      *            DOCUMENT ME!
@@ -1564,9 +1651,41 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
      */
     protected Writer createWriter(OutputStream outStream, String encoding)
             throws UnsupportedEncodingException {
+        if (ByteEncodingWriter.isSupported(encoding)) {
+            return new ByteEncodingWriter(outStream, encoding);
+        }
+
         return new BufferedWriter(new OutputStreamWriter(outStream, encoding));
     }
 
+    /**
+     * Get a Writer for the channel, use preferred encoding.
+     * 
+     * @param channel
+     *            DOCUMENT ME!
+     * @param encoding
+     *            DOCUMENT ME!
+     * 
+     * @return DOCUMENT ME!
+     * 
+     * @throws UnsupportedEncodingException
+     *             DOCUMENT ME!
+     */
+    protected Writer createWriter(WritableByteChannel channel, String encoding)
+            throws UnsupportedEncodingException {
+        if (ByteEncodingWriter.isSupported(encoding)) {
+            return new ByteEncodingWriter(channel, encoding);
+        }
+
+        try {
+            return new BufferedWriter(Channels.newWriter(channel, encoding));
+        } catch (IllegalCharsetNameException e) {
+            throw new UnsupportedEncodingException(encoding);
+        } catch (UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(encoding);
+        }
+    }
+
     /**
      * <p>
      * This will write the declaration to the given Writer. Assumes XML version
@@ -1715,8 +1834,11 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
 
     protected void writeEscapeAttributeEntities(String txt) throws IOException {
         if (txt != null) {
-            String escapedText = escapeAttributeEntities(txt);
-            writer.write(escapedText);
+            if (customEscaping) {
+                writer.write(escapeAttributeEntities(txt));
+            } else {
+                writeEscaped(txt, 0, txt.length(), attributeEscapes());
+            }
         }
     }
 
@@ -1819,6 +1941,318 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
         return answer;
     }
 
+    /**
+     * Writes a range of text, escaping it if required. Unless a subclass
+     * customises escaping the characters are written straight to the writer
+     * without building an escaped copy.
+     * 
+     * @param text
+     *            the text to write
+     * @param start
+     *            the index of the first character to write
+     * @param end
+     *            the index after the last character to write
+     * 
+     * @throws IOException
+     *             DOCUMENT ME!
+     */
+    private void writeText(String text, int start, int end)
+            throws IOException {
+        if (!escapeText) {
+            writer.write(text, start, end - start);
+        } else if (customEscaping) {
+            writer.write(escapeElementEntities(text.substring(start, end)));
+        } else {
+            writeEscaped(text, start, end, textEscapes());
+        }
+    }
+
+    private void writeText(char[] ch, int start, int end) throws IOException {
+        if (!escapeText) {
+            writer.write(ch, start, end - start);
+        } else if (customEscaping) {
+            writer.write(escapeElementEntities(new String(ch, start, end
+                    - start)));
+        } else {
+            writeEscaped(ch, start, end, textEscapes());
+        }
+    }
+
+    private void writeEscaped(String text, int start, int end,
+            char[][] escapes) throws IOException {
+        int max = escapesMaximum;
+        int last = start;
+
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+
+            if (c < ESCAPE_TABLE_SIZE) {
+                char[] escape = escapes[c];
+
+                if (escape != null) {
+                    if (i > last) {
+                        writer.write(text, last, i - last);
+                    }
+
+                    writer.write(escape);
+                    last = i + 1;
+                }
+            } else if ((max > 0) && (c > max)) {
+                if (i > last) {
+                    writer.write(text, last, i - last);
+                }
+
+                if (Character.isHighSurrogate(c) && (i + 1 < end)
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    writeReference(Character.toCodePoint(c, text
+                            .charAt(++i)));
+                } else {
+                    writeReference(c);
+                }
+
+                last = i + 1;
+            }
+        }
+
+        if (end > last) {
+            writer.write(text, last, end - last);
+        }
+    }
+
+    private void writeEscaped(char[] ch, int start, int end, char[][] escapes)
+            throws IOException {
+        int max = escapesMaximum;
+        int last = start;
+
+        for (int i = start; i < end; i++) {
+            char c = ch[i];
+
+            if (c < ESCAPE_TABLE_SIZE) {
+                char[] escape = escapes[c];
+
+                if (escape != null) {
+                    if (i > last) {
+                        writer.write(ch, last, i - last);
+                    }
+
+                    writer.write(escape);
+                    last = i + 1;
+                }
+            } else if ((max > 0) && (c > max)) {
+                if (i > last) {
+                    writer.write(ch, last, i - last);
+                }
+
+                if (Character.isHighSurrogate(c) && (i + 1 < end)
+                        && Character.isLowSurrogate(ch[i + 1])) {
+                    writeReference(Character.toCodePoint(c, ch[++i]));
+                } else {
+                    writeReference(c);
+                }
+
+                last = i + 1;
+            }
+        }
+
+        if (end > last) {
+            writer.write(ch, last, end - last);
+        }
+    }
+
+    /**
+     * Writes a numeric character reference such as <code>&amp;#233;</code>
+     */
+    private void writeReference(int c) throws IOException {
+        int index = reference.length;
+        reference[--index] = ';';
+
+        do {
+            reference[--index] = (char) ('0' + (c % 10));
+            c /= 10;
+        } while (c > 0);
+
+        reference[--index] = '#';
+        reference[--index] = '&';
+        writer.write(reference, index, reference.length - index);
+    }
+
+    /**
+     * Writes CDATA for a writer which cannot encode every character. As a
+     * CDATA section cannot contain character references, those characters
+     * are written as references between sections.
+     */
+    private void writeSplitCDATA(String text) throws IOException {
+        int max = encodableMaximum();
+        int size = text.length();
+        int last = 0;
+
+        for (int i = 0; i < size;) {
+            int c = text.codePointAt(i);
+            int next = i + Character.charCount(c);
+
+            // unpaired surrogates are left to the writer
+            if ((c > max) && ((next - i == 2) || !Character.isSurrogate(text
+                    .charAt(i)))) {
+                if (i > last) {
+                    writeCDATASection(text, last, i);
+                }
+
+                writeReference(c);
+                last = next;
+            }
+
+            i = next;
+        }
+
+        if ((last < size) || (size == 0)) {
+            writeCDATASection(text, last, size);
+        }
+    }
+
+    private void writeCDATASection(String text, int start, int end)
+            throws IOException {
+        writer.write("<![CDATA[");
+        writer.write(text, start, end - start);
+        writer.write("]]>");
+    }
+
+    /**
+     * Returns the highest code point the writer can encode, which is only
+     * known for a {@link ByteEncodingWriter}.
+     */
+    private int encodableMaximum() {
+        if (writer instanceof ByteEncodingWriter) {
+            return ((ByteEncodingWriter) writer).getMaximumCodePoint();
+        }
+
+        return Character.MAX_CODE_POINT;
+    }
+
+    /**
+     * Returns the maximum character written unescaped in text and attribute
+     * values, lowered to the highest code point the writer can encode.
+     */
+    private int escapeMaximum() {
+        int max = getMaximumAllowedCharacter();
+        int limit = encodableMaximum();
+
+        if ((limit < Character.MAX_CODE_POINT)
+                && ((max <= 0) || (max > limit))) {
+            return limit;
+        }
+
+        return max;
+    }
+
+    private char[][] textEscapes() {
+        int max = escapeMaximum();
+
+        if ((textEscapes == null) || (escapesMaximum != max)) {
+            if (escapesMaximum != max) {
+                attributeEscapes = null;
+                escapesMaximum = max;
+            }
+
+            textEscapes = createEscapes(max, (char) 0);
+        }
+
+        return textEscapes;
+    }
+
+    private char[][] attributeEscapes() {
+        int max = escapeMaximum();
+        char quote = format.getAttributeQuoteCharacter();
+
+        if ((attributeEscapes == null) || (escapesMaximum != max)
+                || (escapesQuote != quote)) {
+            if (escapesMaximum != max) {
+                textEscapes = null;
+                escapesMaximum = max;
+            }
+
+            escapesQuote = quote;
+            attributeEscapes = createEscapes(max, quote);
+        }
+
+        return attributeEscapes;
+    }
+
+    /**
+     * Creates the table of escapes used by {@link #escapeElementEntities}and,
+     * given the quote character, {@link #escapeAttributeEntities}.
+     */
+    private static char[][] createEscapes(int max, char quote) {
+        char[][] answer = new char[ESCAPE_TABLE_SIZE][];
+
+        for (int c = 0; c < ESCAPE_TABLE_SIZE; c++) {
+            boolean control = (c < 32) && (c != '\t') && (c != '\n')
+                    && (c != '\r');
+
+            if (control || ((max > 0) && (c > max))) {
+                answer[c] = ("&#" + c + ";").toCharArray();
+            }
+        }
+
+        answer['<'] = "&lt;".toCharArray();
+        answer['>'] = "&gt;".toCharArray();
+        answer['&'] = "&amp;".toCharArray();
+
+        if (quote == '\"') {
+            answer['\"'] = "&quot;".toCharArray();
+        } else if (quote == '\'') {
+            answer['\''] = "&apos;".toCharArray();
+        }
+
+        return answer;
+    }
+
+    /**
+     * Returns the last character written for the given character, which is
+     * the end of its escape if it is escaped.
+     */
+    private char lastWrittenChar(char c) {
+        if (escapeText && !customEscaping) {
+            char[][] escapes = textEscapes();
+
+            if (c < ESCAPE_TABLE_SIZE) {
+                return (escapes[c] != null) ? ';' : c;
+            }
+
+            return ((escapesMaximum > 0) && (c > escapesMaximum)) ? ';' : c;
+        } else if (escapeText) {
+            String escaped = escapeElementEntities(String.valueOf(c));
+
+            return escaped.charAt(escaped.length() - 1);
+        }
+
+        return c;
+    }
+
+    /**
+     * Whether the given character separates the words of trimmed text. Form
+     * feeds are escaped in escaped text so they do not separate words there.
+     */
+    private boolean isDelimiter(char c) {
+        return (c == ' ') || (c == '\t') || (c == '\n') || (c == '\r')
+                || ((c == '\f') && !escapeText);
+    }
+
+    private static boolean overrides(Class<?> type, String name,
+            Class<?> parameterType) {
+        for (Class<?> c = type; (c != null) && (c != XMLWriter.class); c = c
+                .getSuperclass()) {
+            try {
+                c.getDeclaredMethod(name, parameterType);
+
+                return true;
+            } catch (NoSuchMethodException e) {
+                // try the superclass
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Should the given character be escaped. This depends on the encoding of
      * the document.
@@ -1829,7 +2263,7 @@ public class XMLWriter extends XMLFilterImpl implements LexicalHandler {
      * @return boolean
      */
     protected boolean shouldEncodeChar(char c) {
-        int max = getMaximumAllowedCharacter();
+        int max = escapeMaximum();
 
         return (max > 0) && (c > max);
     }
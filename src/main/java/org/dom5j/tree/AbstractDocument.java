@@ -247,6 +247,10 @@ public abstract class AbstractDocument extends AbstractBranch implements
     public void setXMLEncoding(String enc) {
         this.encoding = enc;
     }
+
+    public Document freeze() {
+        return new FrozenDocument(this);
+    }
 }
 
 /*
@@ -1567,17 +1567,47 @@ public abstract class AbstractElement extends AbstractBranch implements
     protected void childAdded(Node node) {
         if (node != null) {
             node.setParent(this);
+
+            Document document = getDocument();
+
+            if ((document instanceof DefaultDocument)
+                    && ((DefaultDocument) document).isTracking()) {
+                indexAdded((DefaultDocument) document, node);
+            }
         }
     }
 
     protected void childRemoved(Node node) {
         if (node != null) {
+            Document document = getDocument();
+
+            if ((document instanceof DefaultDocument)
+                    && ((DefaultDocument) document).isTracking()) {
+                indexRemoved((DefaultDocument) document, node);
+            }
+
             node.setParent(null);
 
             node.setDocument(null);
         }
     }
 
+    private void indexAdded(DefaultDocument document, Node node) {
+        if (node instanceof Attribute) {
+            document.attributeAdded(this, (Attribute) node);
+        } else {
+            document.nodeAdded(node);
+        }
+    }
+
+    private void indexRemoved(DefaultDocument document, Node node) {
+        if (node instanceof Attribute) {
+            document.attributeRemoved(this, (Attribute) node);
+        } else {
+            document.nodeRemoved(node);
+        }
+    }
+
     /**
      * DOCUMENT ME!
      * 
@@ -155,13 +155,13 @@ public abstract class AbstractNode implements Node, Cloneable, Serializable {
 
     // XPath methods
     public Object selectObject(String xpathExpression) {
-        XPath xpath = createXPath(xpathExpression);
+        XPath xpath = getCachedXPath(xpathExpression);
 
         return xpath.evaluate(this);
     }
 
     public List<Node> selectNodes(String xpathExpression) {
-        XPath xpath = createXPath(xpathExpression);
+        XPath xpath = getCachedXPath(xpathExpression);
 
         return xpath.selectNodes(this);
     }
@@ -173,26 +173,28 @@ public abstract class AbstractNode implements Node, Cloneable, Serializable {
 
     public List<Node> selectNodes(String xpathExpression,
             String comparisonXPathExpression, boolean removeDuplicates) {
-        XPath xpath = createXPath(xpathExpression);
-        XPath sortBy = createXPath(comparisonXPathExpression);
+        XPath xpath = getCachedXPath(xpathExpression);
+        XPath sortBy = getCachedXPath(comparisonXPathExpression);
+        List<Node> answer = xpath.selectNodes(this);
+        sortBy.sort(answer, removeDuplicates);
 
-        return xpath.selectNodes(this, sortBy, removeDuplicates);
+        return answer;
     }
 
     public Node selectSingleNode(String xpathExpression) {
-        XPath xpath = createXPath(xpathExpression);
+        XPath xpath = getCachedXPath(xpathExpression);
 
         return xpath.selectSingleNode(this);
     }
 
     public String valueOf(String xpathExpression) {
-        XPath xpath = createXPath(xpathExpression);
+        XPath xpath = getCachedXPath(xpathExpression);
 
         return xpath.valueOf(this);
     }
 
     public Number numberValueOf(String xpathExpression) {
-        XPath xpath = createXPath(xpathExpression);
+        XPath xpath = getCachedXPath(xpathExpression);
 
         return xpath.numberValueOf(this);
     }
@@ -227,6 +229,20 @@ public abstract class AbstractNode implements Node, Cloneable, Serializable {
         return DOCUMENT_FACTORY;
     }
 
+    /**
+     * Returns the shared compiled expression used by the methods taking the
+     * text of an XPath expression, except {@link #matches(String)}which uses
+     * {@link #createXPathFilter(String)}.
+     * 
+     * @param xpathExpression
+     *            DOCUMENT ME!
+     * 
+     * @return DOCUMENT ME!
+     */
+    protected XPath getCachedXPath(String xpathExpression) {
+        return getDocumentFactory().getCachedXPath(xpathExpression);
+    }
+
     protected Node createXPathResult(Element parent) {
         throw new RuntimeException("asXPathResult() not yet implemented fully "
                 + "for: " + this);
@@ -10,6 +10,8 @@ package org.dom5j.tree;
 import java.util.Iterator;
 import java.util.List;
 
+import org.dom5j.Attribute;
+import org.dom5j.Branch;
 import org.dom5j.Document;
 import org.dom5j.DocumentFactory;
 import org.dom5j.DocumentType;
@@ -29,7 +31,6 @@ import org.xml.sax.EntityResolver;
  * @version $Revision: 1.34 $
  */
 public class DefaultDocument extends AbstractDocument {
-
     /** The name of the document */
     private String name;
 
@@ -50,6 +51,15 @@ public class DefaultDocument extends AbstractDocument {
     /** The resolver of URIs */
     private transient EntityResolver entityResolver;
 
+    /** The lazily built index used by {@link #elementByID(String)} */
+    private transient volatile ElementIDIndex idIndex;
+
+    /** The ID attribute names used by {@link #elementID(Element)} */
+    private transient volatile ElementIDNames idNames;
+
+    /** The lazily built numbering returned by {@link #getDocumentOrder()} */
+    private transient volatile DocumentOrder documentOrder;
+
     public DefaultDocument() {
     }
 
@@ -95,6 +105,8 @@ public class DefaultDocument extends AbstractDocument {
 
     public void setDocType(DocumentType docType) {
         this.docType = docType;
+        idNames = null;
+        idIndex = null;
     }
 
     public Document addDocType(String docTypeName, String publicId,
@@ -121,6 +133,9 @@ public class DefaultDocument extends AbstractDocument {
         DefaultDocument document = (DefaultDocument) super.clone();
         document.rootElement = null;
         document.content = null;
+        document.idIndex = null;
+        document.idNames = null;
+        document.documentOrder = null;
         document.appendContent(this);
 
         return document;
@@ -204,6 +219,8 @@ public class DefaultDocument extends AbstractDocument {
     public void setContent(List<Node> content) {
         rootElement = null;
         contentRemoved();
+        idIndex = null;
+        dropDocumentOrder();
 
         if (content instanceof ContentListFacade) {
             content = ((ContentListFacade<Node>) content).getBackingList();
@@ -250,6 +267,54 @@ public class DefaultDocument extends AbstractDocument {
         contentRemoved();
         content = null;
         rootElement = null;
+        idIndex = null;
+        dropDocumentOrder();
+    }
+
+    /**
+     * <p>
+     * Looks the element up in an index of ID values which is built on the
+     * first call and then kept up to date as elements and attributes are
+     * added to or removed from this document. The ID of an element is given
+     * by {@link #elementID(Element)}.
+     * </p>
+     * 
+     * <p>
+     * An element found in the index is only returned if it still belongs to
+     * this document and has the given ID. Otherwise, for example after the
+     * value of an ID attribute has been changed in place, the tree is walked
+     * as by {@link AbstractBranch#elementByID(String)}and the index updated
+     * with the element found.
+     * </p>
+     * 
+     * @param elementID
+     *            the ID value to look up
+     * 
+     * @return the element with the given ID or null if there is none
+     */
+    public Element elementByID(String elementID) {
+        ElementIDIndex index = idIndex;
+
+        if (index == null) {
+            index = createIDIndex();
+        }
+
+        Element element = index.get(elementID);
+
+        if ((element != null) && (element.getDocument() == this)
+                && elementID.equals(elementID(element))) {
+            return element;
+        }
+
+        element = findElementByID(this, elementID);
+
+        if (element != null) {
+            index.put(elementID, element);
+        } else {
+            index.remove(elementID);
+        }
+
+        return element;
     }
 
     public void setDocumentFactory(DocumentFactory documentFactory) {
@@ -258,6 +323,28 @@ public class DefaultDocument extends AbstractDocument {
 
     // Implementation methods
     // -------------------------------------------------------------------------
+
+    /**
+     * Returns the ID of the given element: the value of its first attribute
+     * declared with type <code>ID</code> in the DTD or, if there is no such
+     * declaration, of its attribute named <code>ID</code> or <code>id</code>.
+     * 
+     * @param element
+     *            the element whose ID is required
+     * 
+     * @return the ID of the element or null if it has none
+     */
+    protected String elementID(Element element) {
+        ElementIDNames names = idNames;
+
+        if (names == null) {
+            names = new ElementIDNames(docType);
+            idNames = names;
+        }
+
+        return names.elementID(element);
+    }
+
     protected List<Node> contentList() {
         if (content == null) {
             content = createContentList();
@@ -321,6 +408,149 @@ public class DefaultDocument extends AbstractDocument {
         element.setDocument(this);
     }
 
+    protected void childAdded(Node node) {
+        super.childAdded(node);
+        nodeAdded(node);
+    }
+
+    protected void childRemoved(Node node) {
+        nodeRemoved(node);
+        super.childRemoved(node);
+    }
+
+    /**
+     * Returns the document order numbering of this document, building it if
+     * the content has changed since it was last requested.
+     * 
+     * @return the current numbering of this document
+     */
+    DocumentOrder getDocumentOrder() {
+        DocumentOrder order = documentOrder;
+
+        if (order == null) {
+            order = new DocumentOrder(this);
+            documentOrder = order;
+        }
+
+        return order;
+    }
+
+    /**
+     * Returns whether this document keeps an ID index or a document order,
+     * which its elements must then tell about the nodes added to or removed
+     * from them.
+     * 
+     * @return true if the add and remove hooks must report to this document
+     */
+    boolean isTracking() {
+        return (idIndex != null) || (documentOrder != null);
+    }
+
+    /**
+     * Called by the elements of this document when a node has been added to
+     * them or to this document so that the ID index and the document order
+     * stay up to date.
+     * 
+     * @param node
+     *            the node added to this document or one of its elements
+     */
+    void nodeAdded(Node node) {
+        dropDocumentOrder();
+
+        ElementIDIndex index = idIndex;
+
+        if ((index != null) && (node instanceof Element)) {
+            index.addElement((Element) node);
+        }
+    }
+
+    /**
+     * Called by the elements of this document before a node is removed from
+     * them or from this document so that the ID index and the document order
+     * stay up to date.
+     * 
+     * @param node
+     *            the node removed from this document or one of its elements
+     */
+    void nodeRemoved(Node node) {
+        dropDocumentOrder();
+
+        ElementIDIndex index = idIndex;
+
+        if ((index != null) && (node instanceof Element)) {
+            index.removeElement((Element) node);
+        }
+    }
+
+    void attributeAdded(Element element, Attribute attribute) {
+        dropDocumentOrder();
+
+        ElementIDIndex index = idIndex;
+
+        if (index != null) {
+            index.addAttribute(element);
+        }
+    }
+
+    void attributeRemoved(Element element, Attribute attribute) {
+        dropDocumentOrder();
+
+        ElementIDIndex index = idIndex;
+
+        if (index != null) {
+            index.removeAttribute(element, attribute);
+        }
+    }
+
+    private ElementIDIndex createIDIndex() {
+        // the declarations of the document type may have been changed
+        idNames = null;
+
+        ElementIDIndex index = new ElementIDIndex(this);
+        index.addContent(this);
+        idIndex = index;
+
+        return index;
+    }
+
+    private void dropDocumentOrder() {
+        if (documentOrder != null) {
+            documentOrder = null;
+        }
+    }
+
+    /**
+     * Walks the given branch for the first element with the given ID.
+     * 
+     * @param branch
+     *            the branch to search
+     * @param elementID
+     *            the ID value to look up
+     * 
+     * @return the element found or null if there is none
+     */
+    private Element findElementByID(Branch branch, String elementID) {
+        for (int i = 0, size = branch.nodeCount(); i < size; i++) {
+            Node node = branch.node(i);
+
+            if (node instanceof Element) {
+                Element element = (Element) node;
+
+                if (elementID.equals(elementID(element))) {
+                    return element;
+                }
+
+                element = findElementByID(element, elementID);
+
+                if (element != null) {
+                    return element;
+                }
+            }
+        }
+
+        return null;
+    }
+
     protected DocumentFactory getDocumentFactory() {
         return documentFactory;
     }
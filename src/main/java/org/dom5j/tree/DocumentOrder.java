@@ -0,0 +1,206 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.tree;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.dom5j.Attribute;
+import org.dom5j.Branch;
+import org.dom5j.Document;
+import org.dom5j.Element;
+import org.dom5j.Node;
+
+/**
+ * <p>
+ * <code>DocumentOrder</code> numbers the nodes of a document in document
+ * order so that the relative position of two nodes can be found in constant
+ * time rather than by walking their ancestors.
+ * </p>
+ *
+ * <p>
+ * A branch gets the number after the node preceding it, its attributes the
+ * numbers directly after the branch and its content the numbers after its
+ * attributes. Attributes are not stored but located through their parent,
+ * so attribute views such as those of <code>CompactElement</code> are
+ * numbered too.
+ * </p>
+ *
+ * <p>
+ * A numbering is a snapshot; it does not follow later changes to the
+ * document. {@link DefaultDocument} and {@link FrozenDocument} cache one
+ * which is available through {@link #getInstance(Document)};
+ * <code>DefaultDocument</code> drops it whenever its content changes.
+ * </p>
+ */
+public class DocumentOrder {
+    /** Returned by {@link #position(Node)} for nodes outside the numbering */
+    public static final int UNKNOWN = -1;
+
+    /** The position of each numbered branch and content node */
+    private final Map<Node, Integer> positions;
+
+    /** The branch which has been numbered */
+    private final Branch root;
+
+    public DocumentOrder(Branch root) {
+        this.root = root;
+        this.positions = new IdentityHashMap<Node, Integer>();
+        number(root, 0);
+    }
+
+    /**
+     * Returns the cached numbering of the given document, building it on
+     * demand.
+     *
+     * @param document
+     *            the document whose numbering is required
+     *
+     * @return the numbering or null if the document does not cache one
+     */
+    public static DocumentOrder getInstance(Document document) {
+        if (document instanceof DefaultDocument) {
+            return ((DefaultDocument) document).getDocumentOrder();
+        } else if (document instanceof FrozenDocument) {
+            return ((FrozenDocument) document).getDocumentOrder();
+        }
+
+        return null;
+    }
+
+    public Branch getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the position of the given node in document order.
+     *
+     * @param node
+     *            DOCUMENT ME!
+     *
+     * @return the position or {@link #UNKNOWN} if the node was not part of
+     *         the branch when it was numbered
+     */
+    public int position(Node node) {
+        if (node instanceof Attribute) {
+            return attributePosition((Attribute) node);
+        }
+
+        Integer position = positions.get(node);
+
+        return (position != null) ? position.intValue() : UNKNOWN;
+    }
+
+    /**
+     * Compares two nodes by their position in document order, nodes which are
+     * not numbered coming last.
+     *
+     * @param n1
+     *            DOCUMENT ME!
+     * @param n2
+     *            DOCUMENT ME!
+     *
+     * @return a negative integer, zero, or a positive integer as the first
+     *         node comes before, is the same as, or comes after the second
+     */
+    public int compare(Node n1, Node n2) {
+        int p1 = position(n1);
+        int p2 = position(n2);
+
+        if (p1 == p2) {
+            return 0;
+        } else if (p1 == UNKNOWN) {
+            return 1;
+        } else if (p2 == UNKNOWN) {
+            return -1;
+        }
+
+        return (p1 < p2) ? (-1) : 1;
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private int number(Branch branch, int next) {
+        positions.put(branch, Integer.valueOf(next++));
+
+        if (branch instanceof Element) {
+            next += ((Element) branch).attributeCount();
+        }
+
+        for (int i = 0, size = branch.nodeCount(); i < size; i++) {
+            Node node = branch.node(i);
+
+            if (node instanceof Branch) {
+                next = number((Branch) node, next);
+            } else {
+                positions.put(node, Integer.valueOf(next++));
+            }
+        }
+
+        return next;
+    }
+
+    private int attributePosition(Attribute attribute) {
+        Element parent = attribute.getParent();
+
+        if (parent != null) {
+            Integer position = positions.get(parent);
+
+            if (position != null) {
+                for (int i = 0, size = parent.attributeCount(); i < size; i++) {
+                    Attribute candidate = parent.attribute(i);
+
+                    if ((candidate == attribute)
+                            || candidate.getQName().equals(
+                                    attribute.getQName())) {
+                        return position.intValue() + 1 + i;
+                    }
+                }
+            }
+        }
+
+        return UNKNOWN;
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.tree;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dom5j.Attribute;
+import org.dom5j.Branch;
+import org.dom5j.Element;
+import org.dom5j.Node;
+
+/**
+ * <p>
+ * <code>ElementIDIndex</code> maps ID values to the elements of a
+ * {@link DefaultDocument} so that {@link DefaultDocument#elementByID(String)}
+ * does not have to walk the whole tree.
+ * </p>
+ *
+ * <p>
+ * The IDs are those returned by the <code>elementID(Element)</code> method
+ * of the document. The index is a cache: an entry may be out of date after
+ * an ID attribute has been changed in place, so the document checks each
+ * element found against its current ID and walks the tree when the index
+ * has no valid entry.
+ * </p>
+ */
+class ElementIDIndex {
+    /** The document whose elements are indexed */
+    private final DefaultDocument document;
+
+    /** The indexed elements keyed by their ID value */
+    private final Map<String, Element> elementsByID;
+
+    ElementIDIndex(DefaultDocument document) {
+        this.document = document;
+        this.elementsByID = new ConcurrentHashMap<String, Element>();
+    }
+
+    /**
+     * Indexes all elements of the given branch in document order.
+     *
+     * @param branch
+     *            the branch to index
+     */
+    void addContent(Branch branch) {
+        for (int i = 0, size = branch.nodeCount(); i < size; i++) {
+            Node node = branch.node(i);
+
+            if (node instanceof Element) {
+                addElement((Element) node);
+            }
+        }
+    }
+
+    /**
+     * Indexes the given element and its descendants. When several elements
+     * share an ID value the one indexed first is kept.
+     *
+     * @param element
+     *            the element to index
+     */
+    void addElement(Element element) {
+        addID(element);
+        addContent(element);
+    }
+
+    /**
+     * Removes the given element and its descendants from the index.
+     *
+     * @param element
+     *            the element to remove
+     */
+    void removeElement(Element element) {
+        String id = document.elementID(element);
+
+        if (id != null) {
+            elementsByID.remove(id, element);
+        }
+
+        for (int i = 0, size = element.nodeCount(); i < size; i++) {
+            Node node = element.node(i);
+
+            if (node instanceof Element) {
+                removeElement((Element) node);
+            }
+        }
+    }
+
+    /**
+     * Indexes the element again after an attribute has been added to it.
+     *
+     * @param element
+     *            the element owning the attribute
+     */
+    void addAttribute(Element element) {
+        addID(element);
+    }
+
+    /**
+     * Removes the element from the entry of the value of an attribute
+     * removed from it.
+     *
+     * @param element
+     *            the element owning the attribute
+     * @param attribute
+     *            the attribute removed
+     */
+    void removeAttribute(Element element, Attribute attribute) {
+        String value = attribute.getValue();
+
+        if (value != null) {
+            elementsByID.remove(value, element);
+        }
+    }
+
+    Element get(String id) {
+        return elementsByID.get(id);
+    }
+
+    void put(String id, Element element) {
+        elementsByID.put(id, element);
+    }
+
+    void remove(String id) {
+        elementsByID.remove(id);
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private void addID(Element element) {
+        String id = document.elementID(element);
+
+        if (id != null) {
+            elementsByID.putIfAbsent(id, element);
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dom5j.DocumentType;
+import org.dom5j.Element;
+import org.dom5j.dtd.AttributeDecl;
+
+/**
+ * <p>
+ * <code>ElementIDNames</code> holds the names of the ID attributes of the
+ * elements of a document, so that {@link DefaultDocument} and
+ * {@link FrozenDocument} find the same elements by ID.
+ * </p>
+ *
+ * <p>
+ * The ID attributes of an element are the attributes declared with type
+ * <code>ID</code> by an {@link AttributeDecl} of the document type. Elements
+ * without such a declaration use an attribute named <code>ID</code> or
+ * <code>id</code>. Instances are immutable.
+ * </p>
+ */
+final class ElementIDNames {
+    /** The attribute names used when the DTD declares no ID attribute */
+    private static final String[] DEFAULT_ID_NAMES = {"ID", "id"};
+
+    /** The declared ID attribute names keyed by qualified element name */
+    private final Map<String, String[]> declaredIDNames;
+
+    ElementIDNames(DocumentType docType) {
+        this.declaredIDNames = createDeclaredIDNames(docType);
+    }
+
+    /**
+     * Returns the ID of the given element, that is the value of its first ID
+     * attribute.
+     *
+     * @param element
+     *            the element whose ID is required
+     *
+     * @return the ID of the element or null if it has none
+     */
+    String elementID(Element element) {
+        String[] names = DEFAULT_ID_NAMES;
+
+        if (!declaredIDNames.isEmpty()) {
+            String[] declared = declaredIDNames.get(element.getQualifiedName());
+
+            if (declared != null) {
+                names = declared;
+            }
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            String id = element.attributeValue(names[i]);
+
+            if (id != null) {
+                return id;
+            }
+        }
+
+        return null;
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private static Map<String, String[]> createDeclaredIDNames(
+            DocumentType docType) {
+        Map<String, String[]> answer = new HashMap<String, String[]>();
+
+        if (docType != null) {
+            Map<String, List<String>> names = new HashMap<String, List<String>>();
+            addDeclaredIDNames(names, docType.getInternalDeclarations());
+            addDeclaredIDNames(names, docType.getExternalDeclarations());
+
+            for (Map.Entry<String, List<String>> entry : names.entrySet()) {
+                List<String> list = entry.getValue();
+                answer.put(entry.getKey(), list.toArray(new String[list.size()]));
+            }
+        }
+
+        return answer;
+    }
+
+    private static void addDeclaredIDNames(Map<String, List<String>> names,
+            List<?> declarations) {
+        if (declarations == null) {
+            return;
+        }
+
+        for (Object declaration : declarations) {
+            if (declaration instanceof AttributeDecl) {
+                AttributeDecl decl = (AttributeDecl) declaration;
+
+                if ("ID".equals(decl.getType())) {
+                    List<String> list = names.get(decl.getElementName());
+
+                    if (list == null) {
+                        list = new ArrayList<String>(1);
+                        names.put(decl.getElementName(), list);
+                    }
+
+                    if (!list.contains(decl.getAttributeName())) {
+                        list.add(decl.getAttributeName());
+                    }
+                }
+            }
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
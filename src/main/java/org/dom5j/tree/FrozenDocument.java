@@ -0,0 +1,606 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.tree;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dom5j.Branch;
+import org.dom5j.Document;
+import org.dom5j.DocumentFactory;
+import org.dom5j.DocumentType;
+import org.dom5j.Element;
+import org.dom5j.Node;
+import org.dom5j.ProcessingInstruction;
+import org.dom5j.dtd.AttributeDecl;
+import org.dom5j.dtd.DTDDeclaration;
+import org.dom5j.dtd.ElementDecl;
+import org.dom5j.dtd.ExternalEntityDecl;
+import org.dom5j.dtd.InternalEntityDecl;
+import org.dom5j.io.OutputFormat;
+import org.dom5j.io.XMLWriter;
+import org.xml.sax.EntityResolver;
+
+/**
+ * <p>
+ * <code>FrozenDocument</code> is an immutable copy of a document which is
+ * returned by {@link Document#freeze()}. The whole tree is built in the
+ * constructor and is only reachable through final fields, so once the
+ * document has been handed to other threads they may call methods such as
+ * <code>selectNodes</code>, <code>element()</code> and
+ * <code>elements()</code> concurrently without any locking. Any attempt to
+ * modify the document or one of its nodes throws an
+ * <code>UnsupportedOperationException</code>. This includes the document
+ * type and its declarations, which are copied when the document is frozen.
+ * </p>
+ * 
+ * <p>
+ * {@link #elementByID(String)} finds the same elements as
+ * {@link DefaultDocument} would, through an index built on the first call.
+ * </p>
+ * 
+ * <p>
+ * <code>getRootElement().createCopy()</code> returns a mutable copy of the
+ * content again.
+ * </p>
+ * 
+ * @see FrozenElement
+ */
+public class FrozenDocument extends AbstractDocument {
+    private static final String READ_ONLY = "This node cannot be modified";
+
+    private final String name;
+
+    private final Element rootElement;
+
+    private final List<Node> content;
+
+    private final DocumentType docType;
+
+    private final String xmlEncoding;
+
+    private final DocumentFactory documentFactory;
+
+    private final transient EntityResolver entityResolver;
+
+    /** The ID attribute names used by {@link #elementID(Element)} */
+    private final transient ElementIDNames idNames;
+
+    /** The numbering returned by {@link #getDocumentOrder()} */
+    private transient volatile DocumentOrder documentOrder;
+
+    /** The index built by {@link #elementByID(String)} */
+    private transient volatile Map<String, Element> idIndex;
+
+    /**
+     * Creates a frozen copy of the given document.
+     * 
+     * @param source
+     *            the document to copy
+     */
+    public FrozenDocument(Document source) {
+        this.name = source.getName();
+        this.xmlEncoding = source.getXMLEncoding();
+        this.entityResolver = source.getEntityResolver();
+        this.docType = freezeDocType(source.getDocType());
+        this.idNames = new ElementIDNames(docType);
+
+        DocumentFactory factory = DocumentFactory.getInstance();
+
+        if (source instanceof AbstractBranch) {
+            factory = ((AbstractBranch) source).getDocumentFactory();
+        }
+
+        this.documentFactory = factory;
+
+        Element root = null;
+        int size = source.nodeCount();
+        Node[] array = new Node[size];
+
+        for (int i = 0; i < size; i++) {
+            array[i] = FrozenElement.freeze(this, source.node(i));
+
+            if (array[i] instanceof Element) {
+                root = (Element) array[i];
+            }
+        }
+
+        this.rootElement = root;
+        this.content = Collections.unmodifiableList(Arrays.asList(array));
+    }
+
+    public Document freeze() {
+        return this;
+    }
+
+    /**
+     * Returns the document order numbering of this document. As the content
+     * never changes it is built once and then shared by all threads.
+     * 
+     * @return the numbering of this document
+     */
+    DocumentOrder getDocumentOrder() {
+        DocumentOrder order = documentOrder;
+
+        if (order == null) {
+            order = new DocumentOrder(this);
+            documentOrder = order;
+        }
+
+        return order;
+    }
+
+    /**
+     * Looks the element up in an index of the ID values of this document,
+     * which is built on the first call. IDs are found as by
+     * {@link DefaultDocument}; when several elements share an ID the first
+     * one in document order is returned.
+     * 
+     * @param elementID
+     *            the ID value to look up
+     * 
+     * @return the element with the given ID or null if there is none
+     */
+    public Element elementByID(String elementID) {
+        Map<String, Element> index = idIndex;
+
+        if (index == null) {
+            index = new HashMap<String, Element>();
+            indexIDs(this, index);
+            idIndex = index;
+        }
+
+        return index.get(elementID);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    public Element getRootElement() {
+        return rootElement;
+    }
+
+    public void setRootElement(Element rootElement) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public DocumentType getDocType() {
+        return docType;
+    }
+
+    public void setDocType(DocumentType docType) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public Document addDocType(String docTypeName, String publicId,
+            String systemId) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public String getXMLEncoding() {
+        return xmlEncoding;
+    }
+
+    public void setXMLEncoding(String enc) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public EntityResolver getEntityResolver() {
+        return entityResolver;
+    }
+
+    public void setEntityResolver(EntityResolver entityResolver) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public String asXML() {
+        try {
+            StringWriter out = new StringWriter();
+            write(out);
+
+            return out.toString();
+        } catch (IOException e) {
+            throw new RuntimeException("IOException while generating textual "
+                    + "representation: " + e.getMessage());
+        }
+    }
+
+    public void write(Writer out) throws IOException {
+        OutputFormat format = new OutputFormat();
+        format.setEncoding(xmlEncoding);
+
+        XMLWriter writer = new XMLWriter(out, format);
+        writer.write(this);
+        writer.flush();
+    }
+
+    public void normalize() {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public List<ProcessingInstruction> processingInstructions() {
+        BackedList<ProcessingInstruction> answer = createResultList();
+
+        for (int i = 0, size = content.size(); i < size; i++) {
+            Node node = content.get(i);
+
+            if (node instanceof ProcessingInstruction) {
+                answer.addLocal((ProcessingInstruction) node);
+            }
+        }
+
+        return answer;
+    }
+
+    public List<ProcessingInstruction> processingInstructions(String target) {
+        BackedList<ProcessingInstruction> answer = createResultList();
+
+        for (int i = 0, size = content.size(); i < size; i++) {
+            Node node = content.get(i);
+
+            if (node instanceof ProcessingInstruction
+                    && target.equals(node.getName())) {
+                answer.addLocal((ProcessingInstruction) node);
+            }
+        }
+
+        return answer;
+    }
+
+    public ProcessingInstruction processingInstruction(String target) {
+        for (int i = 0, size = content.size(); i < size; i++) {
+            Node node = content.get(i);
+
+            if (node instanceof ProcessingInstruction
+                    && target.equals(node.getName())) {
+                return (ProcessingInstruction) node;
+            }
+        }
+
+        return null;
+    }
+
+    public boolean removeProcessingInstruction(String target) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public void setContent(List<Node> content) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public void clearContent() {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    protected List<Node> contentList() {
+        return content;
+    }
+
+    protected void addNode(Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected void addNode(int index, Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected boolean removeNode(Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected void childAdded(Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected void childRemoved(Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected void rootElementAdded(Element element) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected DocumentFactory getDocumentFactory() {
+        return documentFactory;
+    }
+
+    /**
+     * Returns the ID of the given element, found by the same rule as
+     * {@link DefaultDocument#elementID(Element)}.
+     * 
+     * @param element
+     *            the element whose ID is required
+     * 
+     * @return the ID of the element or null if it has none
+     */
+    protected String elementID(Element element) {
+        return idNames.elementID(element);
+    }
+
+    private void indexIDs(Branch branch, Map<String, Element> index) {
+        for (int i = 0, size = branch.nodeCount(); i < size; i++) {
+            Node node = branch.node(i);
+
+            if (node instanceof Element) {
+                Element element = (Element) node;
+                String id = elementID(element);
+
+                if ((id != null) && !index.containsKey(id)) {
+                    index.put(id, element);
+                }
+
+                indexIDs(element, index);
+            }
+        }
+    }
+
+    private static DocumentType freezeDocType(DocumentType source) {
+        if (source == null) {
+            return null;
+        }
+
+        return new FrozenDocumentType(source.getElementName(), source
+                .getPublicID(), source.getSystemID(),
+                freezeDeclarations(source.getInternalDeclarations()),
+                freezeDeclarations(source.getExternalDeclarations()));
+    }
+
+    private static List<DTDDeclaration> freezeDeclarations(
+            List<DTDDeclaration> declarations) {
+        if (declarations == null) {
+            return null;
+        }
+
+        List<DTDDeclaration> answer = new ArrayList<DTDDeclaration>(
+                declarations.size());
+
+        for (DTDDeclaration declaration : declarations) {
+            answer.add(freezeDeclaration(declaration));
+        }
+
+        return Collections.unmodifiableList(answer);
+    }
+
+    private static DTDDeclaration freezeDeclaration(DTDDeclaration source) {
+        if (source instanceof AttributeDecl) {
+            AttributeDecl decl = (AttributeDecl) source;
+
+            return new FrozenAttributeDecl(decl.getElementName(), decl
+                    .getAttributeName(), decl.getType(), decl
+                    .getValueDefault(), decl.getValue());
+        } else if (source instanceof ElementDecl) {
+            ElementDecl decl = (ElementDecl) source;
+
+            return new FrozenElementDecl(decl.getName(), decl.getModel());
+        } else if (source instanceof InternalEntityDecl) {
+            InternalEntityDecl decl = (InternalEntityDecl) source;
+
+            return new FrozenInternalEntityDecl(decl.getName(), decl
+                    .getValue());
+        } else if (source instanceof ExternalEntityDecl) {
+            ExternalEntityDecl decl = (ExternalEntityDecl) source;
+
+            return new FrozenExternalEntityDecl(decl.getName(), decl
+                    .getPublicID(), decl.getSystemID());
+        }
+
+        // an unknown kind of declaration is shared as it is
+        return source;
+    }
+
+    /**
+     * A document type which cannot be modified.
+     */
+    protected static class FrozenDocumentType extends AbstractDocumentType {
+        private final String elementName;
+
+        private final String publicID;
+
+        private final String systemID;
+
+        private final List<DTDDeclaration> internalDeclarations;
+
+        private final List<DTDDeclaration> externalDeclarations;
+
+        public FrozenDocumentType(String elementName, String publicID,
+                String systemID, List<DTDDeclaration> internalDeclarations,
+                List<DTDDeclaration> externalDeclarations) {
+            this.elementName = elementName;
+            this.publicID = publicID;
+            this.systemID = systemID;
+            this.internalDeclarations = internalDeclarations;
+            this.externalDeclarations = externalDeclarations;
+        }
+
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        public String getElementName() {
+            return elementName;
+        }
+
+        public void setElementName(String elementName) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public String getPublicID() {
+            return publicID;
+        }
+
+        public void setPublicID(String publicID) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public String getSystemID() {
+            return systemID;
+        }
+
+        public void setSystemID(String systemID) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public List<DTDDeclaration> getInternalDeclarations() {
+            return internalDeclarations;
+        }
+
+        public void setInternalDeclarations(
+                List<DTDDeclaration> declarations) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public List<DTDDeclaration> getExternalDeclarations() {
+            return externalDeclarations;
+        }
+
+        public void setExternalDeclarations(
+                List<DTDDeclaration> declarations) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+
+    /**
+     * An attribute declaration which cannot be modified.
+     */
+    private static class FrozenAttributeDecl extends AttributeDecl {
+        FrozenAttributeDecl(String elementName, String attributeName,
+                String type, String valueDefault, String value) {
+            super(elementName, attributeName, type, valueDefault, value);
+        }
+
+        public void setElementName(String elementName) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setAttributeName(String attributeName) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setType(String type) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setValue(String value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setValueDefault(String valueDefault) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+
+    /**
+     * An element declaration which cannot be modified.
+     */
+    private static class FrozenElementDecl extends ElementDecl {
+        FrozenElementDecl(String name, String model) {
+            super(name, model);
+        }
+
+        public void setName(String name) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setModel(String model) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+
+    /**
+     * An internal entity declaration which cannot be modified.
+     */
+    private static class FrozenInternalEntityDecl extends InternalEntityDecl {
+        FrozenInternalEntityDecl(String name, String value) {
+            super(name, value);
+        }
+
+        public void setName(String name) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setValue(String value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+
+    /**
+     * An external entity declaration which cannot be modified.
+     */
+    private static class FrozenExternalEntityDecl extends ExternalEntityDecl {
+        FrozenExternalEntityDecl(String name, String publicID, String systemID) {
+            super(name, publicID, systemID);
+        }
+
+        public void setName(String name) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setPublicID(String publicID) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setSystemID(String systemID) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
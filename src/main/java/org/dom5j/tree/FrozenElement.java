@@ -0,0 +1,564 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.tree;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.dom5j.Attribute;
+import org.dom5j.Branch;
+import org.dom5j.CDATA;
+import org.dom5j.Comment;
+import org.dom5j.Document;
+import org.dom5j.DocumentFactory;
+import org.dom5j.Element;
+import org.dom5j.Entity;
+import org.dom5j.Namespace;
+import org.dom5j.Node;
+import org.dom5j.ProcessingInstruction;
+import org.dom5j.QName;
+import org.dom5j.Text;
+import org.xml.sax.Attributes;
+
+/**
+ * <p>
+ * <code>FrozenElement</code> is a read-only element which is created by
+ * {@link Document#freeze()}. All of its state is held in final fields and is
+ * fully built by the constructor, so a frozen tree can be read by any number
+ * of threads without synchronization once it has been published. Any attempt
+ * to modify it throws an <code>UnsupportedOperationException</code>.
+ * </p>
+ * 
+ * <p>
+ * Every copied node keeps a final reference to its parent, so navigating
+ * upwards from character data, comments and processing instructions works as
+ * it does in the mutable tree.
+ * </p>
+ * 
+ * @see FrozenDocument
+ */
+public class FrozenElement extends AbstractElement {
+    private static final String READ_ONLY = "This node cannot be modified";
+
+    /** The <code>QName</code> for this element */
+    private final QName qname;
+
+    /** The parent element or document of this element */
+    private final Branch parentBranch;
+
+    /** The child nodes as an unmodifiable list */
+    private final List<Node> content;
+
+    /** The attributes as an unmodifiable list */
+    private final List<Attribute> attributes;
+
+    /**
+     * Creates a frozen copy of the given element and all of its content.
+     * 
+     * @param parent
+     *            the frozen element or document which will contain this
+     *            element
+     * @param source
+     *            the element to copy
+     */
+    protected FrozenElement(Branch parent, Element source) {
+        this.qname = source.getQName();
+        this.parentBranch = parent;
+
+        int attributeCount = source.attributeCount();
+
+        if (attributeCount > 0) {
+            Attribute[] array = new Attribute[attributeCount];
+
+            for (int i = 0; i < attributeCount; i++) {
+                Attribute attribute = source.attribute(i);
+                array[i] = new FrozenAttribute(this, attribute.getQName(),
+                        attribute.getValue());
+            }
+
+            this.attributes = Collections.unmodifiableList(Arrays
+                    .asList(array));
+        } else {
+            this.attributes = Collections.emptyList();
+        }
+
+        int nodeCount = source.nodeCount();
+
+        if (nodeCount > 0) {
+            Node[] array = new Node[nodeCount];
+
+            for (int i = 0; i < nodeCount; i++) {
+                array[i] = freeze(this, source.node(i));
+            }
+
+            this.content = Collections.unmodifiableList(Arrays.asList(array));
+        } else {
+            this.content = Collections.emptyList();
+        }
+    }
+
+    public Element getParent() {
+        return parentElement(parentBranch);
+    }
+
+    public void setParent(Element parent) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public Document getDocument() {
+        return document(parentBranch);
+    }
+
+    public void setDocument(Document document) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public boolean supportsParent() {
+        return true;
+    }
+
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    /**
+     * Frozen elements still clone deeply so that {@link #createCopy()} and
+     * <code>appendContent()</code> produce a mutable, detached copy. Their
+     * text, comment and other leaf nodes clone into new mutable nodes too.
+     *
+     * @return a mutable deep copy of this element
+     */
+    public Object clone() {
+        return createCopy();
+    }
+
+    public QName getQName() {
+        return qname;
+    }
+
+    public void setQName(QName name) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public void setContent(List<Node> content) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public void clearContent() {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public void setAttributes(List<Attribute> attributes) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public void setAttributes(Attributes attributes,
+            NamespaceStack namespaceStack, boolean noNamespaceAttributes) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public Element addAttribute(String name, String value) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public Element addAttribute(QName qName, String value) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public void add(Attribute attribute) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public boolean remove(Attribute attribute) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public void setText(String text) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    public void normalize() {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Creates the frozen form of a child node.
+     * 
+     * @param parent
+     *            the frozen branch the copy will belong to
+     * @param node
+     *            the node to copy
+     * 
+     * @return a read-only copy of the node, or the node itself if it is
+     *         already immutable
+     */
+    protected static Node freeze(Branch parent, Node node) {
+        switch (node.getNodeType()) {
+            case ELEMENT_NODE:
+                return new FrozenElement(parent, (Element) node);
+
+            case TEXT_NODE:
+                return new FrozenText(parent, ((Text) node).getText());
+
+            case CDATA_SECTION_NODE:
+                return new FrozenCDATA(parent, ((CDATA) node).getText());
+
+            case COMMENT_NODE:
+                return new FrozenComment(parent, ((Comment) node).getText());
+
+            case ENTITY_REFERENCE_NODE:
+
+                Entity entity = (Entity) node;
+
+                return new FrozenEntity(parent, entity.getName(), entity
+                        .getText());
+
+            case PROCESSING_INSTRUCTION_NODE:
+
+                ProcessingInstruction pi = (ProcessingInstruction) node;
+
+                return new FrozenProcessingInstruction(parent, pi.getTarget(),
+                        pi.getText());
+
+            case NAMESPACE_NODE:
+
+                Namespace namespace = (Namespace) node;
+
+                return Namespace.get(namespace.getPrefix(), namespace
+                        .getURI());
+
+            default:
+                throw new UnsupportedOperationException(
+                        "Cannot freeze node: " + node);
+        }
+    }
+
+    /**
+     * Returns the factory used for the mutable copies of frozen nodes, that
+     * of the frozen document if there is one.
+     * 
+     * @param parent
+     *            the frozen parent of the node copied
+     * 
+     * @return the factory creating the copy
+     */
+    private static DocumentFactory documentFactory(Branch parent) {
+        Document document = document(parent);
+
+        if (document instanceof AbstractBranch) {
+            return ((AbstractBranch) document).getDocumentFactory();
+        }
+
+        return DocumentFactory.getInstance();
+    }
+
+    private static Element parentElement(Branch parent) {
+        return (parent instanceof Element) ? (Element) parent : null;
+    }
+
+    private static Document document(Branch parent) {
+        if (parent instanceof Document) {
+            return (Document) parent;
+        } else if (parent instanceof Element) {
+            return ((Element) parent).getDocument();
+        }
+
+        return null;
+    }
+
+    protected List<Node> contentList() {
+        return content;
+    }
+
+    protected List<Attribute> attributeList() {
+        return attributes;
+    }
+
+    protected List<Attribute> attributeList(int attributeCount) {
+        return attributes;
+    }
+
+    protected void addNode(Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected void addNode(int index, Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected void addNewNode(Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected void addNewNode(int index, Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected boolean removeNode(Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected void childAdded(Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    protected void childRemoved(Node node) {
+        throw new UnsupportedOperationException(READ_ONLY);
+    }
+
+    /**
+     * An attribute which knows its frozen parent element.
+     */
+    protected static class FrozenAttribute extends FlyweightAttribute {
+        private final Element parent;
+
+        public FrozenAttribute(Element parent, QName qname, String value) {
+            super(qname, value);
+            this.parent = parent;
+        }
+
+        public Element getParent() {
+            return parent;
+        }
+
+        public boolean supportsParent() {
+            return true;
+        }
+
+        /**
+         * Returns a mutable attribute without a parent, so that copies of
+         * frozen elements can be added to other elements.
+         * 
+         * @return a new mutable copy of this attribute
+         */
+        public Object clone() {
+            return documentFactory(parent).createAttribute(null, getQName(),
+                    getValue());
+        }
+    }
+
+    /**
+     * A text node which knows its frozen parent.
+     */
+    protected static class FrozenText extends FlyweightText {
+        private final Branch parent;
+
+        public FrozenText(Branch parent, String text) {
+            super(text);
+            this.parent = parent;
+        }
+
+        public Element getParent() {
+            return parentElement(parent);
+        }
+
+        public Document getDocument() {
+            return document(parent);
+        }
+
+        public boolean supportsParent() {
+            return true;
+        }
+
+        /**
+         * Returns a mutable text node without a parent, so that copies of
+         * frozen elements can be added to other branches.
+         * 
+         * @return a new mutable copy of this node
+         */
+        public Object clone() {
+            return documentFactory(parent).createText(getText());
+        }
+    }
+
+    /**
+     * A CDATA section which knows its frozen parent.
+     */
+    protected static class FrozenCDATA extends FlyweightCDATA {
+        private final Branch parent;
+
+        public FrozenCDATA(Branch parent, String text) {
+            super(text);
+            this.parent = parent;
+        }
+
+        public Element getParent() {
+            return parentElement(parent);
+        }
+
+        public Document getDocument() {
+            return document(parent);
+        }
+
+        public boolean supportsParent() {
+            return true;
+        }
+
+        /**
+         * Returns a mutable CDATA section without a parent, so that copies of
+         * frozen elements can be added to other branches.
+         * 
+         * @return a new mutable copy of this node
+         */
+        public Object clone() {
+            return documentFactory(parent).createCDATA(getText());
+        }
+    }
+
+    /**
+     * A comment which knows its frozen parent.
+     */
+    protected static class FrozenComment extends FlyweightComment {
+        private final Branch parent;
+
+        public FrozenComment(Branch parent, String text) {
+            super(text);
+            this.parent = parent;
+        }
+
+        public Element getParent() {
+            return parentElement(parent);
+        }
+
+        public Document getDocument() {
+            return document(parent);
+        }
+
+        public boolean supportsParent() {
+            return true;
+        }
+
+        /**
+         * Returns a mutable comment without a parent, so that copies of
+         * frozen elements can be added to other branches.
+         * 
+         * @return a new mutable copy of this node
+         */
+        public Object clone() {
+            return documentFactory(parent).createComment(getText());
+        }
+    }
+
+    /**
+     * A processing instruction which knows its frozen parent.
+     */
+    protected static class FrozenProcessingInstruction extends
+            FlyweightProcessingInstruction {
+        private final Branch parent;
+
+        public FrozenProcessingInstruction(Branch parent, String target,
+                String text) {
+            super(target, text);
+            this.parent = parent;
+        }
+
+        public Element getParent() {
+            return parentElement(parent);
+        }
+
+        public Document getDocument() {
+            return document(parent);
+        }
+
+        public boolean supportsParent() {
+            return true;
+        }
+
+        /**
+         * Returns a mutable processing instruction without a parent, so that copies of
+         * frozen elements can be added to other branches.
+         * 
+         * @return a new mutable copy of this node
+         */
+        public Object clone() {
+            return documentFactory(parent).createProcessingInstruction(
+                    getTarget(), getText());
+        }
+    }
+
+    /**
+     * An entity reference which knows its frozen parent and, unlike
+     * {@link FlyweightEntity}, cannot have its text replaced.
+     */
+    protected static class FrozenEntity extends FlyweightEntity {
+        private final Branch parent;
+
+        public FrozenEntity(Branch parent, String name, String text) {
+            super(name, text);
+            this.parent = parent;
+        }
+
+        public Element getParent() {
+            return parentElement(parent);
+        }
+
+        public Document getDocument() {
+            return document(parent);
+        }
+
+        public boolean supportsParent() {
+            return true;
+        }
+
+        /**
+         * Returns a mutable entity reference without a parent, so that copies of
+         * frozen elements can be added to other branches.
+         * 
+         * @return a new mutable copy of this node
+         */
+        public Object clone() {
+            return documentFactory(parent).createEntity(getName(),
+                    getText());
+        }
+
+        public void setText(String text) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -8,8 +8,12 @@
 package org.dom5j.tree;
 
 import java.lang.ref.WeakReference;
-import java.lang.reflect.Constructor;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.dom5j.Namespace;
 
@@ -20,50 +24,53 @@ import org.dom5j.Namespace;
  * documents.
  * </p>
  * 
+ * <p>
+ * Namespaces are held by weak references in a concurrent map so lookups take
+ * no locks. The number of cached namespaces is limited to
+ * {@link #getMaximumSize()}, which defaults to the value of the
+ * <code>org.dom5j.namespaceCache.maximumSize</code> system property or
+ * {@link #DEFAULT_MAXIMUM_SIZE}. Beyond it the namespaces which have been
+ * garbage collected and then arbitrary others are evicted; an evicted
+ * namespace remains valid and equal to the one which replaces it.
+ * {@link Namespace#NO_NAMESPACE}and {@link Namespace#XML_NAMESPACE}are
+ * never evicted.
+ * </p>
+ * 
  * @author <a href="mailto:james.strachan@metastuff.com">James Strachan </a>
  * @author Maarten Coene
  * @author Brett Finnell
  * @version $Revision: 1.15 $
  */
 public class NamespaceCache {
-    private static final String CONCURRENTREADERHASHMAP_CLASS
-            = "EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap";
+    /** The maximum size used if the system property is not set */
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
 
     /**
-     * Cache of {@link Map}instances indexed by URI which contain caches of
-     * {@link Namespace}for each prefix
+     * Cache of weak references to {@link Namespace}instances indexed by
+     * prefix and URI
      */
-    protected static Map cache;
+    protected final ConcurrentMap<Key, WeakReference<Namespace>> cache =
+            new ConcurrentHashMap<Key, WeakReference<Namespace>>();
 
-    /**
-     * Cache of {@link Namespace}instances indexed by URI for default
-     * namespaces with no prefixes
-     */
-    protected static Map noPrefixCache;
+    /** The number of entries above which namespaces are evicted */
+    private volatile int maximumSize;
 
-    static {
-        /* Try the java.util.concurrent.ConcurrentHashMap first. */
-        try {
-            Class clazz = Class
-                    .forName("java.util.concurrent.ConcurrentHashMap");
-            Constructor construct = clazz.getConstructor(new Class[] {
-                    Integer.TYPE, Float.TYPE, Integer.TYPE });
-            cache = (Map) construct.newInstance(new Object[] {new Integer(11),
-                    new Float(0.75f), new Integer(1) });
-            noPrefixCache = (Map) construct.newInstance(new Object[] {
-                    new Integer(11), new Float(0.75f), new Integer(1) });
-        } catch (Throwable t1) {
-            /* Try to use the util.concurrent library (if in classpath) */
-            try {
-                Class clazz = Class.forName(CONCURRENTREADERHASHMAP_CLASS);
-                cache = (Map) clazz.newInstance();
-                noPrefixCache = (Map) clazz.newInstance();
-            } catch (Throwable t2) {
-                /* If previous implementations fail, use internal one */
-                cache = new ConcurrentReaderHashMap();
-                noPrefixCache = new ConcurrentReaderHashMap();
-            }
-        }
+    /** Set while a thread is evicting entries */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    public NamespaceCache() {
+        this(Integer.getInteger("org.dom5j.namespaceCache.maximumSize",
+                DEFAULT_MAXIMUM_SIZE).intValue());
+    }
+
+    public NamespaceCache(int maximumSize) {
+        setMaximumSize(maximumSize);
     }
 
     /**
@@ -77,30 +84,42 @@ public class NamespaceCache {
      * @return the namespace for the given prefix and uri
      */
     public Namespace get(String prefix, String uri) {
-        Map uriCache = getURICache(uri);
-        WeakReference ref = (WeakReference) uriCache.get(prefix);
-        Namespace answer = null;
+        Key key = new Key(prefix, uri);
+        WeakReference<Namespace> ref = cache.get(key);
+        Namespace answer = (ref != null) ? ref.get() : null;
 
-        if (ref != null) {
-            answer = (Namespace) ref.get();
+        if (answer != null) {
+            hitCount.increment();
+
+            return answer;
         }
 
-        if (answer == null) {
-            synchronized (uriCache) {
-                ref = (WeakReference) uriCache.get(prefix);
+        missCount.increment();
+        answer = createNamespace(key.prefix, key.uri);
 
-                if (ref != null) {
-                    answer = (Namespace) ref.get();
-                }
+        WeakReference<Namespace> newRef = new WeakReference<Namespace>(answer);
 
-                if (answer == null) {
-                    answer = createNamespace(prefix, uri);
-                    uriCache.put(prefix, new WeakReference(answer));
+        while (true) {
+            ref = cache.putIfAbsent(key, newRef);
+
+            if (ref == null) {
+                if (cache.size() > maximumSize) {
+                    evict();
                 }
+
+                return answer;
             }
-        }
 
-        return answer;
+            Namespace existing = ref.get();
+
+            if (existing != null) {
+                return existing;
+            }
+
+            if (cache.replace(key, ref, newRef)) {
+                return answer;
+            }
+        }
     }
 
     /**
@@ -112,55 +131,74 @@ public class NamespaceCache {
      * @return the name model for the given name and namepsace
      */
     public Namespace get(String uri) {
-        WeakReference ref = (WeakReference) noPrefixCache.get(uri);
-        Namespace answer = null;
-
-        if (ref != null) {
-            answer = (Namespace) ref.get();
-        }
+        return get("", uri);
+    }
 
-        if (answer == null) {
-            synchronized (noPrefixCache) {
-                ref = (WeakReference) noPrefixCache.get(uri);
+    /**
+     * DOCUMENT ME!
+     * 
+     * @return the number of namespaces currently cached, including those
+     *         which have been garbage collected but not yet evicted
+     */
+    public int size() {
+        return cache.size();
+    }
 
-                if (ref != null) {
-                    answer = (Namespace) ref.get();
-                }
+    public int getMaximumSize() {
+        return maximumSize;
+    }
 
-                if (answer == null) {
-                    answer = createNamespace("", uri);
-                    noPrefixCache.put(uri, new WeakReference(answer));
-                }
-            }
+    public void setMaximumSize(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: "
+                    + maximumSize);
         }
 
-        return answer;
+        this.maximumSize = maximumSize;
     }
 
     /**
      * DOCUMENT ME!
      * 
-     * @param uri
-     *            DOCUMENT ME!
+     * @return the number of lookups which found a cached namespace
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * DOCUMENT ME!
      * 
-     * @return the cache for the given namespace URI. If one does not currently
-     *         exist it is created.
+     * @return the number of lookups which had to create a namespace
      */
-    protected Map getURICache(String uri) {
-        Map answer = (Map) cache.get(uri);
+    public long getMissCount() {
+        return missCount.sum();
+    }
 
-        if (answer == null) {
-            synchronized (cache) {
-                answer = (Map) cache.get(uri);
+    /**
+     * DOCUMENT ME!
+     * 
+     * @return the number of entries removed to keep within the maximum size
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
 
-                if (answer == null) {
-                    answer = new ConcurrentReaderHashMap();
-                    cache.put(uri, answer);
-                }
+    /**
+     * Removes all namespaces except the predefined ones and resets the
+     * statistics.
+     */
+    public void clear() {
+        for (Iterator<Map.Entry<Key, WeakReference<Namespace>>> iter = cache
+                .entrySet().iterator(); iter.hasNext();) {
+            if (!isPinned(iter.next().getValue().get())) {
+                iter.remove();
             }
         }
 
-        return answer;
+        hitCount.reset();
+        missCount.reset();
+        evictionCount.reset();
     }
 
     /**
@@ -176,6 +214,79 @@ public class NamespaceCache {
     protected Namespace createNamespace(String prefix, String uri) {
         return new Namespace(prefix, uri);
     }
+
+    /**
+     * Brings the cache back within its maximum size, first removing the
+     * namespaces which have been garbage collected. Only one thread evicts at
+     * a time; others carry on without waiting.
+     */
+    protected void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            for (Iterator<Map.Entry<Key, WeakReference<Namespace>>> iter = cache
+                    .entrySet().iterator(); iter.hasNext();) {
+                if (iter.next().getValue().get() == null) {
+                    iter.remove();
+                    evictionCount.increment();
+                }
+            }
+
+            for (Iterator<Map.Entry<Key, WeakReference<Namespace>>> iter = cache
+                    .entrySet().iterator(); (cache.size() > maximumSize)
+                    && iter.hasNext();) {
+                if (!isPinned(iter.next().getValue().get())) {
+                    iter.remove();
+                    evictionCount.increment();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static boolean isPinned(Namespace namespace) {
+        // identity comparisons with these constants must keep working
+        return (namespace != null)
+                && ((namespace == Namespace.NO_NAMESPACE)
+                        || (namespace == Namespace.XML_NAMESPACE));
+    }
+
+    /**
+     * The key of a cached namespace
+     */
+    protected static final class Key {
+        private final String prefix;
+
+        private final String uri;
+
+        private final int hashCode;
+
+        Key(String prefix, String uri) {
+            this.prefix = (prefix != null) ? prefix : "";
+            this.uri = (uri != null) ? uri : "";
+            this.hashCode = (31 * this.prefix.hashCode()) + this.uri.hashCode();
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            } else if (object instanceof Key) {
+                Key that = (Key) object;
+
+                return (hashCode == that.hashCode)
+                        && prefix.equals(that.prefix) && uri.equals(that.uri);
+            }
+
+            return false;
+        }
+    }
 }
 
 /*
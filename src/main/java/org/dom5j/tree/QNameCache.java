@@ -8,11 +8,10 @@
 package org.dom5j.tree;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.dom5j.DocumentFactory;
 import org.dom5j.Namespace;
@@ -22,6 +21,14 @@ import org.dom5j.QName;
  * <p>
  * <code>QNameCache</code> caches instances of <code>QName</code> for reuse
  * both across documents and within documents.
+ * </p>
+ * 
+ * <p>
+ * Lookups of cached names take no locks, so parser threads do not contend
+ * on a monitor or pin virtual threads. Each map of the cache, including the
+ * map of namespaces, is limited to {@link #getMaximumSize()}entries; beyond
+ * that arbitrary entries are evicted. An evicted QName remains valid and
+ * equal to the one which replaces it.
  * </p>< < < < < < < QNameCache.java
  * 
  * @author <a href="mailto:james.strachan@metastuff.com">James Strachan </a>
@@ -31,16 +38,26 @@ import org.dom5j.QName;
  * @version $Revision: 1.16 $ >>>>>>> 1.15
  */
 public class QNameCache {
+    /**
+     * The default for the maximum number of entries in each of the maps of
+     * this cache
+     */
+    public static final int DEFAULT_MAXIMUM_SIZE = 4096;
+
     /** Cache of {@link QName}instances with no namespace */
-    protected Map<String,QName> noNamespaceCache = Collections
-            .synchronizedMap(new WeakHashMap<String,QName>());
+    protected Map<String,QName> noNamespaceCache = createMap();
 
     /**
      * Cache of {@link Map}instances indexed by namespace which contain caches
      * of {@link QName}for each name
      */
-    protected Map<Namespace,Map<String,QName>> namespaceCache = Collections
-            .synchronizedMap(new WeakHashMap<Namespace,Map<String,QName>>());
+    protected Map<Namespace,Map<String,QName>> namespaceCache = createMap();
+
+    /**
+     * The number of entries above which a map of this cache evicts entries.
+     * The same limit applies to the number of namespaces.
+     */
+    private final int maximumSize;
 
     /**
      * The document factory associated with new QNames instances in this cache
@@ -49,10 +66,25 @@ public class QNameCache {
     private DocumentFactory documentFactory;
 
     public QNameCache() {
+        this(null, DEFAULT_MAXIMUM_SIZE);
     }
 
     public QNameCache(DocumentFactory documentFactory) {
+        this(documentFactory, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public QNameCache(DocumentFactory documentFactory, int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: "
+                    + maximumSize);
+        }
+
         this.documentFactory = documentFactory;
+        this.maximumSize = maximumSize;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
     }
 
     /**
@@ -91,7 +123,7 @@ public class QNameCache {
         if (answer == null) {
             answer = createQName(name);
             answer.setDocumentFactory(documentFactory);
-            noNamespaceCache.put(name, answer);
+            answer = putIfAbsent(noNamespaceCache, name, answer);
         }
 
         return answer;
@@ -120,7 +152,7 @@ public class QNameCache {
         if (answer == null) {
             answer = createQName(name, namespace);
             answer.setDocumentFactory(documentFactory);
-            cache.put(name, answer);
+            answer = putIfAbsent(cache, name, answer);
         }
 
         return answer;
@@ -151,7 +183,7 @@ public class QNameCache {
         if (answer == null) {
             answer = createQName(localName, namespace, qName);
             answer.setDocumentFactory(documentFactory);
-            cache.put(localName, answer);
+            answer = putIfAbsent(cache, localName, answer);
         }
 
         return answer;
@@ -194,31 +226,78 @@ public class QNameCache {
      *         exist it is created.
      */
     protected Map<String,QName> getNamespaceCache(Namespace namespace) {
-        if (namespace == Namespace.NO_NAMESPACE) {
+        if ((namespace == Namespace.NO_NAMESPACE) || (namespace == null)) {
             return noNamespaceCache;
         }
 
-        Map<String,QName> answer = null;
-
-        if (namespace != null) {
-            answer = namespaceCache.get(namespace);
-        }
+        Map<String,QName> answer = namespaceCache.get(namespace);
 
         if (answer == null) {
-            answer = createMap();
-            namespaceCache.put(namespace, answer);
+            answer = putIfAbsent(namespaceCache, namespace,
+                    this.<String,QName>createMap());
         }
 
         return answer;
     }
 
     /**
-     * A factory method
+     * A factory method. The returned map must be safe for concurrent use
+     * without external synchronization.
      * 
      * @return a newly created {@link Map}instance.
      */
     protected <K,V> Map<K,V> createMap() {
-        return Collections.synchronizedMap(new HashMap<K,V>());
+        return new ConcurrentHashMap<K,V>();
+    }
+
+    /**
+     * Adds the value unless another thread has added one for the same key
+     * first, evicting entries if the map has grown beyond the maximum size.
+     * Evicted QNames stay valid; they are just no longer shared with new
+     * lookups.
+     * 
+     * @param map
+     *            DOCUMENT ME!
+     * @param key
+     *            DOCUMENT ME!
+     * @param value
+     *            DOCUMENT ME!
+     * 
+     * @return the value now held by the map for the key
+     */
+    protected <K,V> V putIfAbsent(Map<K,V> map, K key, V value) {
+        V answer = map.putIfAbsent(key, value);
+
+        if (answer != null) {
+            return answer;
+        }
+
+        if (map.size() > maximumSize) {
+            evict(map, key);
+        }
+
+        return value;
+    }
+
+    /**
+     * Removes arbitrary entries other than the one just added until the map
+     * is back within its maximum size.
+     * 
+     * @param map
+     *            DOCUMENT ME!
+     * @param added
+     *            the key just added
+     */
+    protected <K,V> void evict(Map<K,V> map, K added) {
+        Iterator<K> iter = map.keySet().iterator();
+
+        while ((map.size() > maximumSize) && iter.hasNext()) {
+            K key = iter.next();
+
+            if (!key.equals(added)) {
+                iter.remove();
+            }
+        }
     }
 
     /**
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.util;
+
+import org.dom5j.DocumentFactory;
+import org.dom5j.Element;
+import org.dom5j.QName;
+
+/**
+ * <p>
+ * <code>CompactDocumentFactory</code> is a factory of XML objects which
+ * builds {@link CompactElement} instances. These keep their children and
+ * attributes in exactly sized arrays, which makes them a good choice for very
+ * large documents made of many small elements.
+ * </p>
+ * 
+ * <p>
+ * Compared to the elements of {@link DocumentFactory}, they save the
+ * <code>ArrayList</code> objects and their spare capacity, and no
+ * {@link org.dom5j.Attribute} is created per attribute until one is asked
+ * for. In return, adding or removing nodes in the middle of a large
+ * element costs an array copy.
+ * </p>
+ */
+public class CompactDocumentFactory extends DocumentFactory {
+    /** The Singleton instance */
+    protected static transient CompactDocumentFactory singleton
+            = new CompactDocumentFactory();
+
+    /**
+     * <p>
+     * Access to the singleton instance of this factory.
+     * </p>
+     * 
+     * @return the default singleon instance
+     */
+    public static DocumentFactory getInstance() {
+        return singleton;
+    }
+
+    // DocumentFactory methods
+    // -------------------------------------------------------------------------
+    public Element createElement(QName qname) {
+        return new CompactElement(qname);
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -0,0 +1,1133 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.util;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.dom5j.Attribute;
+import org.dom5j.Branch;
+import org.dom5j.Document;
+import org.dom5j.Element;
+import org.dom5j.IllegalAddException;
+import org.dom5j.Namespace;
+import org.dom5j.Node;
+import org.dom5j.QName;
+import org.dom5j.tree.AbstractAttribute;
+import org.dom5j.tree.AbstractElement;
+import org.dom5j.tree.DefaultAttribute;
+import org.dom5j.tree.NamespaceStack;
+import org.xml.sax.Attributes;
+
+/**
+ * <p>
+ * <code>CompactElement</code> is an implementation of {@link Element} which
+ * trades some mutation speed for a small memory footprint. Child nodes are
+ * kept in a plain <code>Node[]</code> rather than in a <code>List</code> and
+ * attributes are kept as parallel <code>QName[]</code> and
+ * <code>String[]</code> arrays. As in {@link
+ * org.dom5j.tree.DefaultElement} a single child or a single attribute is
+ * stored directly without any array at all. {@link Attribute} instances are
+ * only created when they are asked for and are live views onto the arrays.
+ * </p>
+ *
+ * <p>
+ * Content arrays are sized exactly while they are small. Once an element has
+ * more than {@link #EXACT_CONTENT_LIMIT} children the array grows by half its
+ * size to keep appends cheap and the unused tail is left as <code>null</code>;
+ * {@link #trimToSize()} may be used to release it once the element is built.
+ * </p>
+ *
+ * <p>
+ * Note that {@link #add(Attribute)} copies the name and value of the given
+ * attribute, so later changes to that instance are not reflected in this
+ * element. Use {@link #attribute(QName)} to get a live view. A view is created
+ * the first time an attribute is asked for and is then kept until that
+ * attribute is removed, so repeated lookups return the same instance. Code
+ * which only needs values should prefer {@link #attributeValue(QName)}, which
+ * never creates a view.
+ * </p>
+ *
+ * @see CompactDocumentFactory
+ */
+public class CompactElement extends AbstractElement {
+    /** Number of children up to which content arrays are sized exactly */
+    protected static final int EXACT_CONTENT_LIMIT = 8;
+
+    /** The <code>QName</code> for this element */
+    private QName qname;
+
+    /**
+     * Stores the parent branch of this node which is either a Document if this
+     * element is the root element in a document, or another Element if it is a
+     * child of the root document, or null if it has not been added to a
+     * document yet.
+     */
+    private Branch parentBranch;
+
+    /**
+     * Stores null for no content, a Node for a single content node or a
+     * <code>Node[]</code>, possibly followed by a <code>null</code> tail, for
+     * multiple content nodes.
+     */
+    private Object content;
+
+    /** Stores null, a single <code>QName</code> or a <code>QName[]</code> */
+    private Object attributeNames;
+
+    /**
+     * Stores null, a single <code>String</code> or a <code>String[]</code>
+     * parallel to <code>attributeNames</code>
+     */
+    private Object attributeValues;
+
+    /**
+     * Stores null, a single {@link Attribute} or an <code>Attribute[]</code>
+     * of the views handed out so far, in no particular order
+     */
+    private transient Object attributeViews;
+
+    public CompactElement(String name) {
+        this.qname = getDocumentFactory().createQName(name);
+    }
+
+    public CompactElement(QName qname) {
+        this.qname = qname;
+    }
+
+    public CompactElement(String name, Namespace namespace) {
+        this.qname = getDocumentFactory().createQName(name, namespace);
+    }
+
+    public Element getParent() {
+        Element result = null;
+
+        if (parentBranch instanceof Element) {
+            result = (Element) parentBranch;
+        }
+
+        return result;
+    }
+
+    public void setParent(Element parent) {
+        if (parentBranch instanceof Element || (parent != null)) {
+            parentBranch = parent;
+        }
+    }
+
+    public Document getDocument() {
+        if (parentBranch instanceof Document) {
+            return (Document) parentBranch;
+        } else if (parentBranch instanceof Element) {
+            Element parent = (Element) parentBranch;
+
+            return parent.getDocument();
+        }
+
+        return null;
+    }
+
+    public void setDocument(Document document) {
+        if (parentBranch instanceof Document || (document != null)) {
+            parentBranch = document;
+        }
+    }
+
+    public boolean supportsParent() {
+        return true;
+    }
+
+    public QName getQName() {
+        return qname;
+    }
+
+    public void setQName(QName name) {
+        this.qname = name;
+    }
+
+    public Object clone() {
+        CompactElement answer = (CompactElement) super.clone();
+
+        if (answer != this) {
+            answer.content = null;
+            answer.attributeNames = null;
+            answer.attributeValues = null;
+            answer.attributeViews = null;
+
+            answer.appendAttributes(this);
+            answer.appendContent(this);
+        }
+
+        return answer;
+    }
+
+    /**
+     * Releases any unused capacity at the end of the content array.
+     */
+    public void trimToSize() {
+        final Object contentShadow = content;
+
+        if (contentShadow instanceof Node[]) {
+            Node[] array = (Node[]) contentShadow;
+            int size = contentSize();
+
+            if (size < array.length) {
+                Node[] newContent = new Node[size];
+                System.arraycopy(array, 0, newContent, 0, size);
+                content = newContent;
+            }
+        }
+    }
+
+    // Content methods
+    // -------------------------------------------------------------------------
+    public Node node(int index) {
+        if ((index >= 0) && (index < contentSize())) {
+            return nodeAt(index);
+        }
+
+        return null;
+    }
+
+    public int indexOf(Node node) {
+        final Object contentShadow = content;
+
+        if (contentShadow instanceof Node[]) {
+            Node[] array = (Node[]) contentShadow;
+
+            for (int i = 0, size = contentSize(); i < size; i++) {
+                if (array[i] == node) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        return ((contentShadow != null) && (contentShadow == node)) ? 0 : (-1);
+    }
+
+    public int nodeCount() {
+        return contentSize();
+    }
+
+    public Iterator<Node> nodeIterator() {
+        return contentList().iterator();
+    }
+
+    public String getText() {
+        final Object contentShadow = content;
+
+        if (contentShadow instanceof Node) {
+            return getContentAsText(contentShadow);
+        }
+
+        return super.getText();
+    }
+
+    public Element element(String name) {
+        for (int i = 0, size = contentSize(); i < size; i++) {
+            Node node = nodeAt(i);
+
+            if (node instanceof Element) {
+                Element element = (Element) node;
+
+                if (name.equals(element.getName())) {
+                    return element;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public Element element(QName qName) {
+        for (int i = 0, size = contentSize(); i < size; i++) {
+            Node node = nodeAt(i);
+
+            if (node instanceof Element) {
+                Element element = (Element) node;
+
+                if (qName.equals(element.getQName())) {
+                    return element;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public void setContent(List<Node> newContent) {
+        // copy first as the given list may be a view onto our own content
+        Node[] array = null;
+        int count = 0;
+
+        if (newContent != null) {
+            array = new Node[newContent.size()];
+
+            for (int i = 0; i < array.length; i++) {
+                Node node = newContent.get(i);
+
+                if (node != null) {
+                    Element parent = node.getParent();
+
+                    if ((parent != null) && (parent != this)) {
+                        node = (Node) node.clone();
+                    }
+
+                    array[count++] = node;
+                }
+            }
+        }
+
+        contentRemoved();
+
+        if (count == 0) {
+            content = null;
+        } else if (count == 1) {
+            content = array[0];
+        } else if (count < array.length) {
+            Node[] trimmed = new Node[count];
+            System.arraycopy(array, 0, trimmed, 0, count);
+            content = trimmed;
+        } else {
+            content = array;
+        }
+
+        for (int i = 0; i < count; i++) {
+            childAdded(array[i]);
+        }
+    }
+
+    public void clearContent() {
+        if (content != null) {
+            contentRemoved();
+
+            content = null;
+        }
+    }
+
+    // Attribute methods
+    // -------------------------------------------------------------------------
+    public Iterator<Attribute> attributeIterator() {
+        return attributeList().iterator();
+    }
+
+    public Attribute attribute(int index) {
+        if ((index >= 0) && (index < attributeCount())) {
+            return attributeView(index);
+        }
+
+        return null;
+    }
+
+    public int attributeCount() {
+        final Object names = attributeNames;
+
+        if (names instanceof QName[]) {
+            return ((QName[]) names).length;
+        }
+
+        return (names != null) ? 1 : 0;
+    }
+
+    public Attribute attribute(String name) {
+        int index = attributeIndex(name);
+
+        return (index >= 0) ? attributeView(index) : null;
+    }
+
+    public Attribute attribute(QName qName) {
+        int index = attributeIndex(qName);
+
+        return (index >= 0) ? attributeView(index) : null;
+    }
+
+    public String attributeValue(String name) {
+        int index = attributeIndex(name);
+
+        return (index >= 0) ? attributeValueAt(index) : null;
+    }
+
+    public String attributeValue(QName qName) {
+        int index = attributeIndex(qName);
+
+        return (index >= 0) ? attributeValueAt(index) : null;
+    }
+
+    public Element addAttribute(String name, String value) {
+        int index = attributeIndex(name);
+
+        if (index >= 0) {
+            if (value != null) {
+                setAttributeValueAt(index, value);
+            } else {
+                removeAttributeAt(index);
+            }
+
+            return this;
+        }
+
+        return super.addAttribute(name, value);
+    }
+
+    public Element addAttribute(QName qName, String value) {
+        int index = attributeIndex(qName);
+
+        if (index >= 0) {
+            if (value != null) {
+                setAttributeValueAt(index, value);
+            } else {
+                removeAttributeAt(index);
+            }
+
+            return this;
+        }
+
+        return super.addAttribute(qName, value);
+    }
+
+    public void add(Attribute attribute) {
+        if (attribute.getParent() != null) {
+            String message = "The Attribute already has an existing parent \""
+                    + attribute.getParent().getQualifiedName() + "\"";
+
+            throw new IllegalAddException(this, attribute, message);
+        }
+
+        if (attribute.getValue() == null) {
+            // try remove a previous attribute with the same
+            // name since adding an attribute with a null value
+            // is equivalent to removing it.
+            int index = attributeIndex(attribute.getQName());
+
+            if (index >= 0) {
+                removeAttributeAt(index);
+            }
+        } else {
+            int index = attributeCount();
+            insertAttribute(index, attribute.getQName(), attribute.getValue());
+
+            attributeAdded(index);
+        }
+    }
+
+    public boolean remove(Attribute attribute) {
+        int index = attributeIndex(attribute.getQName());
+
+        if (index >= 0) {
+            removeAttributeAt(index);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    public void setAttributes(List<Attribute> attributes) {
+        // copy first as the given list may be a view onto our own attributes
+        Attribute[] array = (attributes != null) ? attributes
+                .toArray(new Attribute[attributes.size()]) : null;
+
+        attributeList().clear();
+
+        if (array != null) {
+            for (int i = 0; i < array.length; i++) {
+                insertAttribute(i, array[i].getQName(), array[i].getValue());
+            }
+
+            if (array.length > 0) {
+                attributeAdded(0);
+            }
+        }
+    }
+
+    /**
+     * Fills the attribute arrays straight from the SAX attributes without
+     * creating any {@link Attribute} instances.
+     *
+     * @param attributes
+     *            the SAX attributes
+     * @param namespaceStack
+     *            used to resolve the attribute names
+     * @param noNamespaceAttributes
+     *            whether <code>xmlns</code> attributes should be kept
+     */
+    public void setAttributes(Attributes attributes,
+            NamespaceStack namespaceStack, boolean noNamespaceAttributes) {
+        int size = attributes.getLength();
+
+        if (size == 0) {
+            return;
+        }
+
+        if (attributeNames != null) {
+            attributeList().clear();
+        }
+
+        QName[] names = new QName[size];
+        String[] values = new String[size];
+        int count = 0;
+
+        for (int i = 0; i < size; i++) {
+            String attributeName = attributes.getQName(i);
+
+            if (noNamespaceAttributes || !attributeName.startsWith("xmlns")) {
+                names[count] = namespaceStack.getAttributeQName(attributes
+                        .getURI(i), attributes.getLocalName(i), attributeName);
+                values[count] = attributes.getValue(i);
+                count++;
+            }
+        }
+
+        if (count == 1) {
+            attributeNames = names[0];
+            attributeValues = values[0];
+        } else if (count > 1) {
+            if (count < size) {
+                QName[] trimmedNames = new QName[count];
+                String[] trimmedValues = new String[count];
+                System.arraycopy(names, 0, trimmedNames, 0, count);
+                System.arraycopy(values, 0, trimmedValues, 0, count);
+                names = trimmedNames;
+                values = trimmedValues;
+            }
+
+            attributeNames = names;
+            attributeValues = values;
+        }
+
+        if (count > 0) {
+            attributeAdded(0);
+        }
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    protected void addNewNode(Node node) {
+        insertNode(contentSize(), node);
+
+        childAdded(node);
+    }
+
+    protected void addNewNode(int index, Node node) {
+        checkIndex(index, contentSize() + 1);
+
+        insertNode(index, node);
+
+        childAdded(node);
+    }
+
+    protected boolean removeNode(Node node) {
+        int index = indexOf(node);
+
+        if (index >= 0) {
+            deleteNode(index);
+
+            childRemoved(node);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    protected List<Node> contentList() {
+        return new ContentList();
+    }
+
+    protected List<Attribute> attributeList() {
+        return new AttributeList();
+    }
+
+    protected List<Attribute> attributeList(int attributeCount) {
+        return attributeList();
+    }
+
+    /**
+     * Factory method to create a live view onto the attribute with the given
+     * name. Views handed out by this element are kept, so this is called
+     * once per attribute until that attribute is removed.
+     *
+     * @param attributeName
+     *            the name of the attribute
+     *
+     * @return a new view of the attribute
+     */
+    protected Attribute createAttributeView(QName attributeName) {
+        return new CompactAttribute(this, attributeName);
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return the number of child nodes, which may be less than the length of
+     *         the content array
+     */
+    protected int contentSize() {
+        final Object contentShadow = content;
+
+        if (!(contentShadow instanceof Node[])) {
+            return (contentShadow != null) ? 1 : 0;
+        }
+
+        Node[] array = (Node[]) contentShadow;
+        int high = array.length;
+
+        if (array[high - 1] != null) {
+            return high;
+        }
+
+        // the unused tail is null so we can search for where it starts
+        int low = 0;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (array[mid] != null) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    protected int attributeIndex(String name) {
+        for (int i = 0, size = attributeCount(); i < size; i++) {
+            if (name.equals(attributeNameAt(i).getName())) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    protected int attributeIndex(QName qName) {
+        for (int i = 0, size = attributeCount(); i < size; i++) {
+            if (qName.equals(attributeNameAt(i))) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private Node nodeAt(int index) {
+        final Object contentShadow = content;
+
+        if (contentShadow instanceof Node[]) {
+            return ((Node[]) contentShadow)[index];
+        }
+
+        return (Node) contentShadow;
+    }
+
+    private void setNodeAt(int index, Node node) {
+        if (content instanceof Node[]) {
+            ((Node[]) content)[index] = node;
+        } else {
+            content = node;
+        }
+    }
+
+    private void insertNode(int index, Node node) {
+        final Object contentShadow = content;
+
+        if (contentShadow == null) {
+            content = node;
+        } else if (contentShadow instanceof Node[]) {
+            Node[] array = (Node[]) contentShadow;
+            int size = contentSize();
+            Node[] newContent = array;
+
+            if (size == array.length) {
+                int capacity = (size < EXACT_CONTENT_LIMIT) ? (size + 1)
+                        : (size + (size >> 1));
+                newContent = new Node[capacity];
+                System.arraycopy(array, 0, newContent, 0, index);
+            }
+
+            System.arraycopy(array, index, newContent, index + 1, size - index);
+            newContent[index] = node;
+            content = newContent;
+        } else {
+            Node[] newContent = new Node[2];
+            newContent[index] = node;
+            newContent[1 - index] = (Node) contentShadow;
+            content = newContent;
+        }
+    }
+
+    private void deleteNode(int index) {
+        final Object contentShadow = content;
+
+        if (!(contentShadow instanceof Node[])) {
+            content = null;
+
+            return;
+        }
+
+        Node[] array = (Node[]) contentShadow;
+        int size = contentSize();
+
+        if (size == 2) {
+            content = array[1 - index];
+        } else if (size <= EXACT_CONTENT_LIMIT) {
+            Node[] newContent = new Node[size - 1];
+            System.arraycopy(array, 0, newContent, 0, index);
+            System.arraycopy(array, index + 1, newContent, index, size
+                    - index - 1);
+            content = newContent;
+        } else {
+            System.arraycopy(array, index + 1, array, index, size - index - 1);
+            array[size - 1] = null;
+        }
+    }
+
+    private QName attributeNameAt(int index) {
+        final Object names = attributeNames;
+
+        if (names instanceof QName[]) {
+            return ((QName[]) names)[index];
+        }
+
+        return (QName) names;
+    }
+
+    private String attributeValueAt(int index) {
+        final Object values = attributeValues;
+
+        if (values instanceof String[]) {
+            return ((String[]) values)[index];
+        }
+
+        return (String) values;
+    }
+
+    private void setAttributeAt(int index, QName name, String value) {
+        if (attributeNames instanceof QName[]) {
+            ((QName[]) attributeNames)[index] = name;
+            ((String[]) attributeValues)[index] = value;
+        } else {
+            attributeNames = name;
+            attributeValues = value;
+        }
+    }
+
+    private void setAttributeValueAt(int index, String value) {
+        setAttributeAt(index, attributeNameAt(index), value);
+    }
+
+    private void insertAttribute(int index, QName name, String value) {
+        int size = attributeCount();
+
+        if (size == 0) {
+            attributeNames = name;
+            attributeValues = value;
+
+            return;
+        }
+
+        QName[] names = new QName[size + 1];
+        String[] values = new String[size + 1];
+
+        for (int i = 0, j = 0; i <= size; i++) {
+            if (i == index) {
+                names[i] = name;
+                values[i] = value;
+            } else {
+                names[i] = attributeNameAt(j);
+                values[i] = attributeValueAt(j);
+                j++;
+            }
+        }
+
+        attributeNames = names;
+        attributeValues = values;
+    }
+
+    private void removeAttribute(int index) {
+        int size = attributeCount();
+
+        if (size == 1) {
+            attributeNames = null;
+            attributeValues = null;
+        } else if (size == 2) {
+            QName name = attributeNameAt(1 - index);
+            String value = attributeValueAt(1 - index);
+            attributeNames = name;
+            attributeValues = value;
+        } else {
+            QName[] oldNames = (QName[]) attributeNames;
+            String[] oldValues = (String[]) attributeValues;
+            QName[] names = new QName[size - 1];
+            String[] values = new String[size - 1];
+            System.arraycopy(oldNames, 0, names, 0, index);
+            System.arraycopy(oldValues, 0, values, 0, index);
+            System.arraycopy(oldNames, index + 1, names, index, size - index
+                    - 1);
+            System.arraycopy(oldValues, index + 1, values, index, size - index
+                    - 1);
+            attributeNames = names;
+            attributeValues = values;
+        }
+    }
+
+    /**
+     * Removes the attribute at the given index and tells the document about
+     * it, as {@link org.dom5j.tree.DefaultElement} does.
+     *
+     * @param index
+     *            the index of the attribute to remove
+     *
+     * @return the removed attribute, detached from this element
+     */
+    private Attribute removeAttributeAt(int index) {
+        Attribute old = detachAttribute(index);
+        removeAttribute(index);
+
+        childRemoved(old);
+
+        return old;
+    }
+
+    /**
+     * Tells the document about the attribute which was just stored at the
+     * given index. The view passed on is not kept, so nothing is retained by
+     * this element.
+     */
+    private void attributeAdded(int index) {
+        childAdded(new CompactAttribute(this, attributeNameAt(index)));
+    }
+
+    /**
+     * Captures the attribute at the given index before it is overwritten or
+     * removed. A view which has been handed out is detached with its current
+     * value, otherwise a new {@link DefaultAttribute} is created.
+     */
+    private Attribute detachAttribute(int index) {
+        QName name = attributeNameAt(index);
+        Attribute view = dropAttributeView(name);
+
+        if (view != null) {
+            view.setParent(null);
+
+            return view;
+        }
+
+        return new DefaultAttribute(name, attributeValueAt(index));
+    }
+
+    private Attribute attributeView(int index) {
+        QName name = attributeNameAt(index);
+        final Object views = attributeViews;
+
+        if (views instanceof Attribute[]) {
+            Attribute[] array = (Attribute[]) views;
+
+            for (int i = 0; i < array.length; i++) {
+                if ((array[i] != null) && name.equals(array[i].getQName())) {
+                    return array[i];
+                }
+            }
+
+            Attribute view = createAttributeView(name);
+
+            for (int i = 0; i < array.length; i++) {
+                if (array[i] == null) {
+                    array[i] = view;
+
+                    return view;
+                }
+            }
+
+            Attribute[] newViews = new Attribute[array.length + 1];
+            System.arraycopy(array, 0, newViews, 0, array.length);
+            newViews[array.length] = view;
+            attributeViews = newViews;
+
+            return view;
+        } else if (views != null) {
+            Attribute single = (Attribute) views;
+
+            if (name.equals(single.getQName())) {
+                return single;
+            }
+
+            Attribute view = createAttributeView(name);
+            attributeViews = new Attribute[] {single, view};
+
+            return view;
+        }
+
+        Attribute view = createAttributeView(name);
+        attributeViews = view;
+
+        return view;
+    }
+
+    private Attribute dropAttributeView(QName name) {
+        final Object views = attributeViews;
+
+        if (views instanceof Attribute[]) {
+            Attribute[] array = (Attribute[]) views;
+
+            for (int i = 0; i < array.length; i++) {
+                if ((array[i] != null) && name.equals(array[i].getQName())) {
+                    Attribute view = array[i];
+                    array[i] = null;
+
+                    return view;
+                }
+            }
+        } else if ((views != null)
+                && name.equals(((Attribute) views).getQName())) {
+            attributeViews = null;
+
+            return (Attribute) views;
+        }
+
+        return null;
+    }
+
+    private static void checkIndex(int index, int size) {
+        if ((index < 0) || (index >= size)) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + size);
+        }
+    }
+
+    /**
+     * A <code>List</code> view onto the content which is handed out by
+     * {@link CompactElement#contentList()}.
+     */
+    private class ContentList extends AbstractList<Node> implements
+            RandomAccess {
+        public Node get(int index) {
+            checkIndex(index, contentSize());
+
+            return nodeAt(index);
+        }
+
+        public int size() {
+            return contentSize();
+        }
+
+        public Node set(int index, Node node) {
+            Node old = get(index);
+            setNodeAt(index, node);
+
+            return old;
+        }
+
+        public void add(int index, Node node) {
+            checkIndex(index, contentSize() + 1);
+            insertNode(index, node);
+            modCount++;
+        }
+
+        public Node remove(int index) {
+            Node old = get(index);
+            deleteNode(index);
+            modCount++;
+
+            return old;
+        }
+
+        public int indexOf(Object object) {
+            return (object instanceof Node) ? CompactElement.this
+                    .indexOf((Node) object) : (-1);
+        }
+
+        public void clear() {
+            content = null;
+            modCount++;
+        }
+    }
+
+    /**
+     * A <code>List</code> view onto the attributes which is handed out by
+     * {@link CompactElement#attributeList()}.
+     */
+    private class AttributeList extends AbstractList<Attribute> implements
+            RandomAccess {
+        public Attribute get(int index) {
+            checkIndex(index, attributeCount());
+
+            return attributeView(index);
+        }
+
+        public int size() {
+            return attributeCount();
+        }
+
+        public Attribute set(int index, Attribute attribute) {
+            checkIndex(index, attributeCount());
+
+            Attribute old = detachAttribute(index);
+            setAttributeAt(index, attribute.getQName(), attribute.getValue());
+
+            childRemoved(old);
+            attributeAdded(index);
+
+            return old;
+        }
+
+        public void add(int index, Attribute attribute) {
+            checkIndex(index, attributeCount() + 1);
+            insertAttribute(index, attribute.getQName(), attribute.getValue());
+            modCount++;
+
+            attributeAdded(index);
+        }
+
+        public Attribute remove(int index) {
+            checkIndex(index, attributeCount());
+
+            Attribute old = removeAttributeAt(index);
+            modCount++;
+
+            return old;
+        }
+
+        public int indexOf(Object object) {
+            if (object instanceof Attribute) {
+                return attributeIndex(((Attribute) object).getQName());
+            }
+
+            return -1;
+        }
+
+        public void clear() {
+            int size = attributeCount();
+            Attribute[] old = new Attribute[size];
+
+            for (int i = 0; i < size; i++) {
+                old[i] = detachAttribute(i);
+            }
+
+            attributeNames = null;
+            attributeValues = null;
+            attributeViews = null;
+            modCount++;
+
+            for (int i = 0; i < size; i++) {
+                childRemoved(old[i]);
+            }
+        }
+    }
+
+    /**
+     * An {@link Attribute} which reads and writes its value through the
+     * element that owns it. Once removed from that element it keeps the last
+     * value it had.
+     */
+    protected static class CompactAttribute extends AbstractAttribute {
+        private final QName qname;
+
+        private CompactElement element;
+
+        private String value;
+
+        public CompactAttribute(CompactElement element, QName qname) {
+            this.element = element;
+            this.qname = qname;
+        }
+
+        public QName getQName() {
+            return qname;
+        }
+
+        public String getValue() {
+            if (element != null) {
+                int index = element.attributeIndex(qname);
+
+                if (index >= 0) {
+                    return element.attributeValueAt(index);
+                }
+            }
+
+            return value;
+        }
+
+        public void setValue(String value) {
+            if (element != null) {
+                int index = element.attributeIndex(qname);
+
+                if (index >= 0) {
+                    element.setAttributeValueAt(index, value);
+
+                    return;
+                }
+            }
+
+            this.value = value;
+        }
+
+        public Element getParent() {
+            return element;
+        }
+
+        public void setParent(Element parent) {
+            if (parent != element) {
+                this.value = getValue();
+                this.element = (parent instanceof CompactElement)
+                        ? (CompactElement) parent : null;
+            }
+        }
+
+        public boolean supportsParent() {
+            return true;
+        }
+
+        public boolean isReadOnly() {
+            return false;
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
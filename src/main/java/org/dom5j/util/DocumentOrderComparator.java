@@ -0,0 +1,321 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.util;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.dom5j.Attribute;
+import org.dom5j.Branch;
+import org.dom5j.Document;
+import org.dom5j.Element;
+import org.dom5j.Node;
+import org.dom5j.QName;
+import org.dom5j.tree.DocumentOrder;
+
+/**
+ * <p>
+ * <code>DocumentOrderComparator</code> is a {@link Comparator}of Node
+ * instances which orders nodes by their position in the document.
+ * </p>
+ *
+ * <p>
+ * Nodes of a document which caches a {@link DocumentOrder}are compared in
+ * constant time. Other nodes, such as those of a detached tree, are compared
+ * by walking their ancestors. Nodes of different documents or trees are
+ * grouped by document in an arbitrary but consistent order, which never
+ * treats two different trees as equal.
+ * </p>
+ *
+ * <p>
+ * Nodes which do not know their document, such as the shared text of a
+ * {@link org.dom5j.tree.FrozenDocument}, can only be numbered when the
+ * document is given to the constructor. Apart from the order of distinct
+ * roots which share an identity hash code, which is kept under the lock of
+ * the instance, nothing is remembered between comparisons, so one instance
+ * may be shared between threads.
+ * </p>
+ */
+public class DocumentOrderComparator implements Comparator<Node>, Serializable {
+    /** Returned by {@link #siblingIndex(Node, Node)} for a missing node */
+    private static final int NOT_FOUND = Integer.MIN_VALUE;
+
+    /** The document of nodes which do not know their own document */
+    private final transient Document document;
+
+    /**
+     * The roots which share an identity hash code, by hash code, in the order
+     * in which this comparator first told them apart
+     */
+    private transient Map<Integer, List<WeakReference<Node>>> tiedRoots;
+
+    public DocumentOrderComparator() {
+        this(null);
+    }
+
+    /**
+     * Creates a comparator which numbers the given document for nodes which
+     * do not know their own document.
+     *
+     * @param document
+     *            the document being sorted, which may be null
+     */
+    public DocumentOrderComparator(Document document) {
+        this.document = document;
+    }
+
+    public int compare(Node n1, Node n2) {
+        if (n1 == n2) {
+            return 0;
+        } else if (n1 == null) {
+            // null is less
+            return -1;
+        } else if (n2 == null) {
+            return 1;
+        }
+
+        // nodes at the top level of a document may not know their document
+        Document doc = n1.getDocument();
+
+        if (doc == null) {
+            doc = n2.getDocument();
+
+            if (doc == null) {
+                doc = document;
+            }
+        }
+
+        DocumentOrder order = (doc != null) ? DocumentOrder.getInstance(doc)
+                : null;
+
+        if (order != null) {
+            int p1 = order.position(n1);
+            int p2 = order.position(n2);
+
+            if ((p1 != DocumentOrder.UNKNOWN)
+                    && (p2 != DocumentOrder.UNKNOWN)) {
+                return (p1 < p2) ? (-1) : ((p1 == p2) ? 0 : 1);
+            }
+        }
+
+        return compareAncestors(n1, n2);
+    }
+
+    /**
+     * Compares two nodes by finding the point where their ancestor chains
+     * diverge.
+     *
+     * @param n1
+     *            DOCUMENT ME!
+     * @param n2
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    protected int compareAncestors(Node n1, Node n2) {
+        List<Node> path1 = ancestors(n1);
+        List<Node> path2 = ancestors(n2);
+        int i1 = path1.size() - 1;
+        int i2 = path2.size() - 1;
+
+        if (path1.get(i1) != path2.get(i2)) {
+            return compareRoots(path1.get(i1), path2.get(i2));
+        }
+
+        while ((i1 > 0) && (i2 > 0)
+                && (path1.get(i1 - 1) == path2.get(i2 - 1))) {
+            i1--;
+            i2--;
+        }
+
+        if (i1 == 0) {
+            // n1 is an ancestor of n2
+            return -1;
+        } else if (i2 == 0) {
+            return 1;
+        }
+
+        return compareSiblings(path1.get(i1), path1.get(i1 - 1), path2
+                .get(i2 - 1));
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private static List<Node> ancestors(Node node) {
+        List<Node> answer = new ArrayList<Node>();
+
+        while (node != null) {
+            answer.add(node);
+
+            Node parent = node.getParent();
+
+            if ((parent == null) && !(node instanceof Document)) {
+                parent = node.getDocument();
+            }
+
+            node = parent;
+        }
+
+        return answer;
+    }
+
+    /**
+     * Orders the roots of two different trees by identity hash code, breaking
+     * ties by the order in which this comparator first compared the roots.
+     *
+     * @param r1
+     *            the root of the first tree
+     * @param r2
+     *            the root of the second tree
+     *
+     * @return a negative or positive integer, never zero
+     */
+    private int compareRoots(Node r1, Node r2) {
+        int h1 = System.identityHashCode(r1);
+        int h2 = System.identityHashCode(r2);
+
+        if (h1 != h2) {
+            return (h1 < h2) ? (-1) : 1;
+        }
+
+        return compareTiedRoots(Integer.valueOf(h1), r1, r2);
+    }
+
+    private synchronized int compareTiedRoots(Integer hash, Node r1, Node r2) {
+        if (tiedRoots == null) {
+            tiedRoots = new HashMap<Integer, List<WeakReference<Node>>>();
+        }
+
+        List<WeakReference<Node>> roots = tiedRoots.get(hash);
+
+        if (roots == null) {
+            roots = new ArrayList<WeakReference<Node>>(2);
+            tiedRoots.put(hash, roots);
+        }
+
+        int index1 = -1;
+        int index2 = -1;
+        int index = 0;
+
+        // dropping collected roots keeps the order of the others
+        for (Iterator<WeakReference<Node>> iter = roots.iterator(); iter
+                .hasNext();) {
+            Node root = iter.next().get();
+
+            if (root == null) {
+                iter.remove();
+
+                continue;
+            } else if (root == r1) {
+                index1 = index;
+            } else if (root == r2) {
+                index2 = index;
+            }
+
+            index++;
+        }
+
+        if (index1 < 0) {
+            index1 = roots.size();
+            roots.add(new WeakReference<Node>(r1));
+        }
+
+        if (index2 < 0) {
+            index2 = roots.size();
+            roots.add(new WeakReference<Node>(r2));
+        }
+
+        return (index1 < index2) ? (-1) : 1;
+    }
+
+    private int compareSiblings(Node parent, Node s1, Node s2) {
+        int index1 = siblingIndex(parent, s1);
+        int index2 = siblingIndex(parent, s2);
+
+        if ((index1 == NOT_FOUND) && (index2 == NOT_FOUND)) {
+            // neither is really part of the tree any more
+            return compareRoots(s1, s2);
+        }
+
+        return (index1 < index2) ? (-1) : ((index1 == index2) ? 0 : 1);
+    }
+
+    /**
+     * Returns the index of a node among the children of its parent. Attributes
+     * get negative indices, as they come before the content of their element,
+     * and a node which is missing from its parent comes before both.
+     *
+     * @param parent
+     *            the parent of the node
+     * @param node
+     *            the node to look for
+     *
+     * @return the index or {@link #NOT_FOUND}
+     */
+    private static int siblingIndex(Node parent, Node node) {
+        if (node instanceof Attribute) {
+            Element element = (Element) parent;
+            QName name = ((Attribute) node).getQName();
+
+            for (int i = 0, size = element.attributeCount(); i < size; i++) {
+                if (element.attribute(i).getQName().equals(name)) {
+                    return i - size;
+                }
+            }
+
+            return NOT_FOUND;
+        }
+
+        int index = ((Branch) parent).indexOf(node);
+
+        return (index >= 0) ? index : NOT_FOUND;
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -9,24 +9,32 @@ package org.dom5j.xpath;
 
 import java.io.Serializable;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.dom5j.InvalidXPathException;
 import org.dom5j.Node;
 import org.dom5j.NodeFilter;
 import org.dom5j.XPathException;
+import org.jaxen.BaseXPath;
+import org.jaxen.Context;
+import org.jaxen.ContextSupport;
 import org.jaxen.FunctionContext;
 import org.jaxen.JaxenException;
 import org.jaxen.NamespaceContext;
 import org.jaxen.SimpleNamespaceContext;
 import org.jaxen.VariableContext;
 import org.jaxen.XPath;
-import org.jaxen.dom4j.Dom4jXPath;
+import org.jaxen.function.NumberFunction;
+import org.jaxen.function.StringFunction;
 
 /**
  * <p>
@@ -34,16 +42,46 @@ import org.jaxen.dom4j.Dom4jXPath;
  * href="http://jaxen.org">Jaxen </a> project.
  * </p>
  * 
+ * <p>
+ * Once configured, an instance may be shared and evaluated by several
+ * threads at once: the compiled expression is never modified by an
+ * evaluation, which builds its own <code>Context</code> holding the node
+ * set and the namespace context of the node it is evaluated on. The
+ * setters configure the expression itself, so they must be called before
+ * the instance is shared.
+ * </p>
+ * 
+ * <p>
+ * Simple location paths are evaluated on a node by a {@link NativePath}
+ * walking the tree directly; Jaxen evaluates all other expressions.
+ * </p>
+ * 
  * @author bob mcwhirter
  * @author <a href="mailto:jstrachan@apache.org">James Strachan </a>
  */
 public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
+    /**
+     * Whether a class overrides {@link #sort(List, Map)}or {@link
+     * #removeDuplicates(List, Map)}, in which case sorting goes through them
+     * rather than a {@link NodeSorter}
+     */
+    private static final ClassValue<Boolean> SORT_OVERRIDDEN =
+            new ClassValue<Boolean>() {
+        protected Boolean computeValue(Class<?> type) {
+            return Boolean.valueOf(overrides(type, "sort")
+                    || overrides(type, "removeDuplicates"));
+        }
+    };
+
     private String text;
 
     private XPath xpath;
 
     private NamespaceContext namespaceContext;
 
+    /** The expression compiled for direct evaluation, if it is supported */
+    private NativePath nativePath;
+
     /**
      * Construct an XPath
      * 
@@ -56,6 +94,10 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
     public DefaultXPath(String text) throws InvalidXPathException {
         this.text = text;
         this.xpath = parse(text);
+        this.nativePath = NativePath.compile(text);
+
+        // creates the shared context support before the instance is published
+        xpath.getFunctionContext();
     }
 
     public String toString() {
@@ -91,7 +133,6 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
 
     public void setNamespaceContext(NamespaceContext namespaceContext) {
         this.namespaceContext = namespaceContext;
-        xpath.setNamespaceContext(namespaceContext);
     }
 
     public VariableContext getVariableContext() {
@@ -104,9 +145,11 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
 
     public Object evaluate(Object context) {
         try {
-            setNSContext(context);
+            List<?> answer = selectNative(context);
 
-            List<?> answer = xpath.selectNodes(context);
+            if (answer == null) {
+                answer = xpath.selectNodes(getContext(context));
+            }
 
             if ((answer != null) && (answer.size() == 1)) {
                 return answer.get(0);
@@ -127,9 +170,13 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
     @SuppressWarnings("unchecked")
     public List<Node> selectNodes(Object context) {
         try {
-            setNSContext(context);
+            List<Node> answer = selectNative(context);
 
-            return (List<Node>)xpath.selectNodes(context);
+            if (answer != null) {
+                return answer;
+            }
+
+            return (List<Node>)xpath.selectNodes(getContext(context));
         } catch (JaxenException e) {
             handleJaxenException(e);
 
@@ -154,9 +201,13 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
 
     public Node selectSingleNode(Object context) {
         try {
-            setNSContext(context);
+            List<Node> nodes = selectFirstNative(context);
+
+            if (nodes != null) {
+                return nodes.isEmpty() ? null : nodes.get(0);
+            }
 
-            Object answer = xpath.selectSingleNode(context);
+            Object answer = xpath.selectSingleNode(getContext(context));
 
             if (answer instanceof Node) {
                 return (Node) answer;
@@ -178,9 +229,14 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
 
     public String valueOf(Object context) {
         try {
-            setNSContext(context);
+            List<Node> nodes = selectFirstNative(context);
+
+            if (nodes != null) {
+                return StringFunction.evaluate(nodes, DocumentNavigator
+                        .getInstance());
+            }
 
-            return xpath.stringValueOf(context);
+            return xpath.stringValueOf(getContext(context));
         } catch (JaxenException e) {
             handleJaxenException(e);
 
@@ -190,9 +246,14 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
 
     public Number numberValueOf(Object context) {
         try {
-            setNSContext(context);
+            List<Node> nodes = selectFirstNative(context);
 
-            return xpath.numberValueOf(context);
+            if (nodes != null) {
+                return NumberFunction.evaluate(nodes, DocumentNavigator
+                        .getInstance());
+            }
+
+            return xpath.numberValueOf(getContext(context));
         } catch (JaxenException e) {
             handleJaxenException(e);
 
@@ -202,9 +263,13 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
 
     public boolean booleanValueOf(Object context) {
         try {
-            setNSContext(context);
+            List<Node> nodes = selectFirstNative(context);
+
+            if (nodes != null) {
+                return !nodes.isEmpty();
+            }
 
-            return xpath.booleanValueOf(context);
+            return xpath.booleanValueOf(getContext(context));
         } catch (JaxenException e) {
             handleJaxenException(e);
 
@@ -212,6 +277,23 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
         }
     }
 
+    public Iterator<Node> iterate(Object context) {
+        Iterator<Node> answer = iterateNative(context);
+
+        if (answer != null) {
+            return answer;
+        }
+
+        return selectNodes(context).iterator();
+    }
+
+    public Stream<Node> stream(Object context) {
+        Spliterator<Node> spliterator = Spliterators.spliteratorUnknownSize(
+                iterate(context), Spliterator.ORDERED | Spliterator.NONNULL);
+
+        return StreamSupport.stream(spliterator, false);
+    }
+
     /**
      * <p>
      * <code>sort</code> sorts the given List of Nodes using this XPath
@@ -229,6 +311,12 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
      * <p>
      * <code>sort</code> sorts the given List of Nodes using this XPath
      * expression as a {@link Comparator}and optionally removing duplicates.
+     * Nodes with equal values keep their order in the list, so the node
+     * retained for a duplicate value is the first one in the list. The
+     * values returned by {@link #getCompareValue(Node)} are compared by a
+     * {@link NodeSorter}, unless a subclass overrides
+     * {@link #sort(List, Map)}or {@link #removeDuplicates(List, Map)}in
+     * which case those methods are used.
      * </p>
      * 
      * @param list
@@ -238,34 +326,41 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
      *            comparisions) will be removed from the List
      */
     public void sort(List<Node> list, boolean distinct) {
-        if ((list != null) && !list.isEmpty()) {
-            int size = list.size();
-            HashMap<Node,Object> sortValues = new HashMap<Node,Object>(size);
+        if (isSortOverridden()) {
+            if ((list != null) && !list.isEmpty()) {
+                int size = list.size();
+                HashMap<Node,Object> sortValues = new HashMap<Node,Object>(size);
+
+                for (int i = 0; i < size; i++) {
+                    Node node = list.get(i);
+                    sortValues.put(node, getCompareValue(node));
+                }
 
-            for (int i = 0; i < size; i++) {
-                Object object = list.get(i);
+                sort(list, sortValues);
 
-                if (object instanceof Node) {
-                    Node node = (Node) object;
-                    Object expression = getCompareValue(node);
-                    sortValues.put(node, expression);
+                if (distinct) {
+                    removeDuplicates(list, sortValues);
                 }
             }
 
-            sort(list, sortValues);
+            return;
+        }
 
-            if (distinct) {
-                removeDuplicates(list, sortValues);
+        new NodeSorter(this, NodeSorter.VALUE, null) {
+            protected Object getSortKey(Node node) {
+                return getCompareValue(node);
             }
-        }
+        }.sort(list, distinct);
     }
 
     @SuppressWarnings("unchecked")
     public boolean matches(Node node) {
         try {
-            setNSContext(node);
+            List<Node> answer = selectNative(node);
 
-            List<Node> answer = (List<Node>) xpath.selectNodes(node);
+            if (answer == null) {
+                answer = (List<Node>) xpath.selectNodes(getContext(node));
+            }
 
             if ((answer != null) && (answer.size() > 0)) {
                 Object item = answer.get(0);
@@ -286,7 +381,9 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
     }
 
     /**
-     * Sorts the list based on the sortValues for each node
+     * Sorts the list based on the sortValues for each node. This is only
+     * called by {@link #sort(List, boolean)}when a subclass overrides it or
+     * {@link #removeDuplicates(List, Map)}.
      * 
      * @param list
      *            DOCUMENT ME!
@@ -320,7 +417,9 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
     // Implementation methods
 
     /**
-     * Removes items from the list which have duplicate values
+     * Removes items from the list which have duplicate values. This is only
+     * called by {@link #sort(List, boolean)}when a subclass overrides it or
+     * {@link #sort(List, Map)}.
      * 
      * @param list
      *            DOCUMENT ME!
@@ -355,9 +454,28 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
         return valueOf(node);
     }
 
+    private boolean isSortOverridden() {
+        return SORT_OVERRIDDEN.get(getClass()).booleanValue();
+    }
+
+    private static boolean overrides(Class<?> type, String name) {
+        for (Class<?> c = type; (c != null) && (c != DefaultXPath.class); c = c
+                .getSuperclass()) {
+            try {
+                c.getDeclaredMethod(name, List.class, Map.class);
+
+                return true;
+            } catch (NoSuchMethodException e) {
+                // try the superclass
+            }
+        }
+
+        return false;
+    }
+
     protected static XPath parse(String text) {
         try {
-            return new Dom4jXPath(text);
+            return new BaseXPath(text, DocumentNavigator.getInstance());
         } catch (JaxenException e) {
             throw new InvalidXPathException(text, e.getMessage());
         } catch (Throwable t) {
@@ -365,10 +483,92 @@ public class DefaultXPath implements org.dom5j.XPath, NodeFilter, Serializable {
         }
     }
 
-    protected void setNSContext(Object context) {
-        if (namespaceContext == null) {
-            xpath.setNamespaceContext(DefaultNamespaceContext.create(context));
+    /**
+     * Evaluates the expression on a node without Jaxen if it is supported by
+     * a {@link NativePath}.
+     * 
+     * @param context
+     *            DOCUMENT ME!
+     * 
+     * @return the selected nodes, or null if Jaxen should evaluate the
+     *         expression
+     */
+    protected List<Node> selectNative(Object context) {
+        if ((nativePath != null) && (context instanceof Node)) {
+            return nativePath.selectNodes((Node) context, namespaceContext);
+        }
+
+        return null;
+    }
+
+    /**
+     * Iterates lazily over the results of the expression on a node without
+     * Jaxen if it is supported by a {@link NativePath}.
+     * 
+     * @param context
+     *            DOCUMENT ME!
+     * 
+     * @return an iterator over the selected nodes, or null if Jaxen should
+     *         evaluate the expression
+     */
+    protected Iterator<Node> iterateNative(Object context) {
+        if ((nativePath != null) && (context instanceof Node)) {
+            return nativePath.iterate((Node) context, namespaceContext);
         }
+
+        return null;
+    }
+
+    /**
+     * Returns the first node the expression selects natively, without
+     * walking the tree any further
+     * 
+     * @param context
+     *            DOCUMENT ME!
+     * 
+     * @return a list of the first node or an empty list, or null if Jaxen
+     *         should evaluate the expression
+     */
+    private List<Node> selectFirstNative(Object context) {
+        Iterator<Node> iter = iterateNative(context);
+
+        if (iter == null) {
+            return null;
+        } else if (iter.hasNext()) {
+            return Collections.singletonList(iter.next());
+        }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * Creates the context of a single evaluation, resolving prefixes with
+     * the namespace context of this XPath if one was set or otherwise with
+     * the namespaces in scope of the given node.
+     * 
+     * @param node
+     *            is the node or list of nodes the expression is evaluated on
+     * 
+     * @return DOCUMENT ME!
+     */
+    protected Context getContext(Object node) {
+        NamespaceContext nsContext = namespaceContext;
+
+        if (nsContext == null) {
+            nsContext = DefaultNamespaceContext.create(node);
+        }
+
+        Context context = new Context(new ContextSupport(nsContext, xpath
+                .getFunctionContext(), xpath.getVariableContext(),
+                DocumentNavigator.getInstance()));
+
+        if (node instanceof List) {
+            context.setNodeSet((List<?>) node);
+        } else {
+            context.setNodeSet(Collections.singletonList(node));
+        }
+
+        return context;
     }
 
     protected void handleJaxenException(JaxenException exception)
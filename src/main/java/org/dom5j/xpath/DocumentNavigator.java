@@ -0,0 +1,436 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.xpath;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.dom5j.Attribute;
+import org.dom5j.Branch;
+import org.dom5j.CDATA;
+import org.dom5j.Comment;
+import org.dom5j.Document;
+import org.dom5j.DocumentException;
+import org.dom5j.Element;
+import org.dom5j.Namespace;
+import org.dom5j.Node;
+import org.dom5j.ProcessingInstruction;
+import org.dom5j.QName;
+import org.dom5j.Text;
+import org.dom5j.io.SAXReader;
+import org.jaxen.BaseXPath;
+import org.jaxen.DefaultNavigator;
+import org.jaxen.FunctionCallException;
+import org.jaxen.JaxenConstants;
+import org.jaxen.NamedAccessNavigator;
+import org.jaxen.Navigator;
+import org.jaxen.XPath;
+import org.jaxen.saxpath.SAXPathException;
+import org.jaxen.util.SingleObjectIterator;
+
+/**
+ * <p>
+ * <code>DocumentNavigator</code> is the Jaxen <code>Navigator</code> over
+ * DOM4J trees, through which {@link DefaultXPath} evaluates expressions.
+ * It holds no state, so one instance is shared by all evaluations.
+ * </p>
+ */
+public class DocumentNavigator extends DefaultNavigator implements
+        NamedAccessNavigator {
+    private static final long serialVersionUID = 1;
+
+    private static final DocumentNavigator INSTANCE = new DocumentNavigator();
+
+    public DocumentNavigator() {
+    }
+
+    public static Navigator getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isElement(Object obj) {
+        return obj instanceof Element;
+    }
+
+    public boolean isComment(Object obj) {
+        return obj instanceof Comment;
+    }
+
+    public boolean isText(Object obj) {
+        return (obj instanceof Text) || (obj instanceof CDATA);
+    }
+
+    public boolean isAttribute(Object obj) {
+        return obj instanceof Attribute;
+    }
+
+    public boolean isProcessingInstruction(Object obj) {
+        return obj instanceof ProcessingInstruction;
+    }
+
+    public boolean isDocument(Object obj) {
+        return obj instanceof Document;
+    }
+
+    public boolean isNamespace(Object obj) {
+        return obj instanceof Namespace;
+    }
+
+    public String getElementName(Object obj) {
+        return ((Element) obj).getName();
+    }
+
+    public String getElementNamespaceUri(Object obj) {
+        return ((Element) obj).getNamespaceURI();
+    }
+
+    public String getElementQName(Object obj) {
+        return ((Element) obj).getQualifiedName();
+    }
+
+    public String getAttributeName(Object obj) {
+        return ((Attribute) obj).getName();
+    }
+
+    public String getAttributeNamespaceUri(Object obj) {
+        return ((Attribute) obj).getNamespaceURI();
+    }
+
+    public String getAttributeQName(Object obj) {
+        return ((Attribute) obj).getQualifiedName();
+    }
+
+    public Iterator<?> getChildAxisIterator(Object contextNode) {
+        if (contextNode instanceof Element) {
+            return new ChildIterator(((Element) contextNode).nodeIterator());
+        } else if (contextNode instanceof Branch) {
+            return ((Branch) contextNode).nodeIterator();
+        }
+
+        return JaxenConstants.EMPTY_ITERATOR;
+    }
+
+    public Iterator<?> getChildAxisIterator(Object contextNode,
+            String localName, String namespacePrefix, String namespaceURI) {
+        if (contextNode instanceof Element) {
+            return ((Element) contextNode).elementIterator(QName.get(
+                    localName, namespacePrefix, namespaceURI));
+        }
+
+        if (contextNode instanceof Document) {
+            Element root = ((Document) contextNode).getRootElement();
+
+            if ((root == null) || !root.getName().equals(localName)) {
+                return JaxenConstants.EMPTY_ITERATOR;
+            }
+
+            if ((namespaceURI != null)
+                    && !namespaceURI.equals(root.getNamespaceURI())) {
+                return JaxenConstants.EMPTY_ITERATOR;
+            }
+
+            return new SingleObjectIterator(root);
+        }
+
+        return JaxenConstants.EMPTY_ITERATOR;
+    }
+
+    public Iterator<?> getParentAxisIterator(Object contextNode) {
+        if ((contextNode instanceof Document)
+                || !(contextNode instanceof Node)) {
+            return JaxenConstants.EMPTY_ITERATOR;
+        }
+
+        Object parent = getParentNode(contextNode);
+
+        if (parent == null) {
+            return JaxenConstants.EMPTY_ITERATOR;
+        }
+
+        return new SingleObjectIterator(parent);
+    }
+
+    public Iterator<?> getAttributeAxisIterator(Object contextNode) {
+        if (contextNode instanceof Element) {
+            return ((Element) contextNode).attributeIterator();
+        }
+
+        return JaxenConstants.EMPTY_ITERATOR;
+    }
+
+    public Iterator<?> getAttributeAxisIterator(Object contextNode,
+            String localName, String namespacePrefix, String namespaceURI) {
+        if (contextNode instanceof Element) {
+            Attribute attribute = ((Element) contextNode).attribute(QName
+                    .get(localName, namespacePrefix, namespaceURI));
+
+            if (attribute != null) {
+                return new SingleObjectIterator(attribute);
+            }
+        }
+
+        return JaxenConstants.EMPTY_ITERATOR;
+    }
+
+    /**
+     * Returns the namespaces in scope of an element, each as a node whose
+     * parent is the element, followed by the XML namespace.
+     *
+     * @param contextNode
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public Iterator<?> getNamespaceAxisIterator(Object contextNode) {
+        if (!(contextNode instanceof Element)) {
+            return JaxenConstants.EMPTY_ITERATOR;
+        }
+
+        Element element = (Element) contextNode;
+        List<Node> answer = new ArrayList<Node>();
+        Set<String> prefixes = new HashSet<String>();
+
+        for (Element context = element; context != null; context = context
+                .getParent()) {
+            List<Namespace> declared = new ArrayList<Namespace>(context
+                    .declaredNamespaces());
+            declared.add(context.getNamespace());
+
+            for (Iterator<Attribute> iter = context.attributeIterator(); iter
+                    .hasNext();) {
+                declared.add(iter.next().getNamespace());
+            }
+
+            for (Namespace namespace : declared) {
+                if ((namespace != Namespace.NO_NAMESPACE)
+                        && prefixes.add(namespace.getPrefix())) {
+                    answer.add(namespace.asXPathResult(element));
+                }
+            }
+        }
+
+        answer.add(Namespace.XML_NAMESPACE.asXPathResult(element));
+
+        return answer.iterator();
+    }
+
+    public Object getDocumentNode(Object contextNode) {
+        if (contextNode instanceof Document) {
+            return contextNode;
+        } else if (contextNode instanceof Node) {
+            return ((Node) contextNode).getDocument();
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the compiled form of an expression used by the
+     * <code>document()</code> and other functions which evaluate text.
+     *
+     * @param xpath
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     *
+     * @throws SAXPathException
+     *             DOCUMENT ME!
+     */
+    public XPath parseXPath(String xpath) throws SAXPathException {
+        return new BaseXPath(xpath, this);
+    }
+
+    public Object getParentNode(Object contextNode) {
+        if (contextNode instanceof Node) {
+            Node node = (Node) contextNode;
+            Object answer = node.getParent();
+
+            if (answer == null) {
+                answer = node.getDocument();
+
+                if (answer == contextNode) {
+                    return null;
+                }
+            }
+
+            return answer;
+        }
+
+        return null;
+    }
+
+    public String getTextStringValue(Object obj) {
+        return ((Node) obj).getText();
+    }
+
+    public String getElementStringValue(Object obj) {
+        return ((Node) obj).getStringValue();
+    }
+
+    public String getAttributeStringValue(Object obj) {
+        return ((Node) obj).getStringValue();
+    }
+
+    public String getNamespaceStringValue(Object obj) {
+        return ((Namespace) obj).getURI();
+    }
+
+    public String getNamespacePrefix(Object obj) {
+        return ((Namespace) obj).getPrefix();
+    }
+
+    public String getCommentStringValue(Object obj) {
+        return ((Comment) obj).getText();
+    }
+
+    public String translateNamespacePrefixToUri(String prefix, Object context) {
+        Element element = null;
+
+        if (context instanceof Element) {
+            element = (Element) context;
+        } else if (context instanceof Node) {
+            element = ((Node) context).getParent();
+        }
+
+        if (element != null) {
+            Namespace namespace = element.getNamespaceForPrefix(prefix);
+
+            if (namespace != null) {
+                return namespace.getURI();
+            }
+        }
+
+        return null;
+    }
+
+    public short getNodeType(Object node) {
+        if (node instanceof Node) {
+            return ((Node) node).getNodeType();
+        }
+
+        return 0;
+    }
+
+    public Object getDocument(String uri) throws FunctionCallException {
+        try {
+            return new SAXReader().read(uri);
+        } catch (DocumentException e) {
+            throw new FunctionCallException("Failed to parse document for URI: "
+                    + uri, e);
+        }
+    }
+
+    public String getProcessingInstructionTarget(Object obj) {
+        return ((ProcessingInstruction) obj).getTarget();
+    }
+
+    public String getProcessingInstructionData(Object obj) {
+        return ((ProcessingInstruction) obj).getText();
+    }
+
+    public Object getElementById(Object contextNode, String elementId) {
+        Object document = getDocumentNode(contextNode);
+
+        if (document instanceof Document) {
+            Element root = ((Document) document).getRootElement();
+
+            if (root != null) {
+                return root.elementByID(elementId);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Iterates over the content of an element leaving out the namespace
+     * declarations, which are not children in the XPath data model.
+     */
+    private static final class ChildIterator implements Iterator<Node> {
+        private final Iterator<Node> content;
+
+        private Node next;
+
+        ChildIterator(Iterator<Node> content) {
+            this.content = content;
+            this.next = findNext();
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Node next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+
+            Node answer = next;
+            next = findNext();
+
+            return answer;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Node findNext() {
+            while (content.hasNext()) {
+                Node node = content.next();
+
+                if (!(node instanceof Namespace)) {
+                    return node;
+                }
+            }
+
+            return null;
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -0,0 +1,1297 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.xpath;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.dom5j.Attribute;
+import org.dom5j.Branch;
+import org.dom5j.CDATA;
+import org.dom5j.Comment;
+import org.dom5j.Document;
+import org.dom5j.Element;
+import org.dom5j.Namespace;
+import org.dom5j.Node;
+import org.dom5j.ProcessingInstruction;
+import org.dom5j.QName;
+import org.dom5j.Text;
+import org.dom5j.util.DocumentOrderComparator;
+import org.jaxen.NamespaceContext;
+
+/**
+ * <p>
+ * <code>NativePath</code> evaluates the location paths most expressions
+ * consist of by walking a DOM4J tree directly, without going through the
+ * Jaxen navigator. {@link DefaultXPath} uses it for the expressions it
+ * supports and Jaxen for all others.
+ * </p>
+ *
+ * <p>
+ * The supported expressions are relative or absolute location paths, such as
+ * <code>/a/b[2]</code> or <code>//p:item[@id='x']/@name</code>, whose steps
+ * use the abbreviations <code>.</code>, <code>..</code>, <code>@</code> and
+ * <code>//</code> or the <code>child</code>, <code>descendant</code>,
+ * <code>descendant-or-self</code>, <code>attribute</code>, <code>self</code>
+ * and <code>parent</code> axes, with name tests, <code>*</code>,
+ * <code>prefix:*</code>, <code>node()</code>, <code>text()</code>,
+ * <code>comment()</code> or <code>processing-instruction()</code>. Each
+ * step may be followed by predicates which are either a position such as
+ * <code>[1]</code>, or test an attribute, a child element, the text or the
+ * node itself against a string literal, as in <code>[@a='v']</code>,
+ * <code>[b="v"]</code>, <code>[text()='v']</code> and <code>[.='v']</code>,
+ * or for existence, as in <code>[@a]</code> and <code>[b]</code>.
+ * </p>
+ *
+ * <p>
+ * A <code>//</code> followed by a step without positional predicates is
+ * evaluated as a single walk of the descendants. Results are in document
+ * order without duplicates, as with Jaxen, and may be iterated over as the
+ * tree is walked. Instances are immutable and may be evaluated by several
+ * threads at once.
+ * </p>
+ *
+ * <p>
+ * Through {@link #iterate(Node, NamespaceContext)} the tree is only walked
+ * as far as the results are taken, so looking for the first match stops at
+ * it and counting the results does not hold them in a list.
+ * </p>
+ */
+public final class NativePath implements Serializable {
+    private static final long serialVersionUID = 1;
+
+    static final int CHILD = 0;
+
+    static final int DESCENDANT = 1;
+
+    static final int DESCENDANT_OR_SELF = 2;
+
+    static final int ATTRIBUTE = 3;
+
+    static final int SELF = 4;
+
+    static final int PARENT = 5;
+
+    private static final String[] AXIS_NAMES = {"child", "descendant",
+            "descendant-or-self", "attribute", "self", "parent"};
+
+    private static final String[] NO_URIS = new String[0];
+
+    /** The text of the expression */
+    private final String text;
+
+    /** Whether the path starts at the document of the context node */
+    private final boolean absolute;
+
+    final Step[] steps;
+
+    /** The prefixes used by name tests, resolved on each evaluation */
+    final String[] prefixes;
+
+    private NativePath(String text, boolean absolute, List<Step> steps,
+            List<String> prefixes) {
+        this.text = text;
+        this.absolute = absolute;
+        this.steps = steps.toArray(new Step[steps.size()]);
+        this.prefixes = prefixes.toArray(new String[prefixes.size()]);
+    }
+
+    /**
+     * Compiles an expression if it is one of the supported location paths.
+     *
+     * @param text
+     *            is the XPath expression
+     *
+     * @return the compiled path, or null if the expression is not supported
+     *         or is invalid
+     */
+    public static NativePath compile(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        return new Parser(text).parsePath();
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Selects the nodes the path leads to from the given node.
+     *
+     * @param context
+     *            is the node the path is evaluated on
+     * @param namespaceContext
+     *            resolves the prefixes of name tests, or null to use the
+     *            namespaces in scope of the context node
+     *
+     * @return the nodes in document order, or null if a prefix could not be
+     *         resolved
+     */
+    public List<Node> selectNodes(Node context,
+            NamespaceContext namespaceContext) {
+        String[] uris = resolve(context, namespaceContext);
+
+        if (uris == null) {
+            return null;
+        }
+
+        List<Node> nodes = new ArrayList<Node>();
+        Node start = getStart(context);
+
+        if (start == null) {
+            return nodes;
+        }
+
+        nodes.add(start);
+
+        // whether no node of the set is an ancestor of another
+        boolean flat = true;
+
+        for (int i = 0; (i < steps.length) && !nodes.isEmpty(); i++) {
+            Step step = steps[i];
+            List<Node> answer = step.evaluate(nodes, uris);
+
+            if (step.needsSort(flat) && (nodes.size() > 1)
+                    && (answer.size() > 1)) {
+                sortUnique(answer);
+            }
+
+            flat = step.keepsFlat(flat);
+            nodes = answer;
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Iterates over the nodes the path leads to from the given node as the
+     * tree is walked, so that stopping early stops the walk. The nodes are
+     * in document order. Only a step which could otherwise select nodes out
+     * of order, such as a <code>..</code> after a step selecting several
+     * nodes, waits for all the nodes of the previous step.
+     *
+     * @param context
+     *            is the node the path is evaluated on
+     * @param namespaceContext
+     *            resolves the prefixes of name tests, or null to use the
+     *            namespaces in scope of the context node
+     *
+     * @return the nodes in document order, or null if a prefix could not be
+     *         resolved
+     */
+    public Iterator<Node> iterate(Node context,
+            NamespaceContext namespaceContext) {
+        String[] uris = resolve(context, namespaceContext);
+
+        if (uris == null) {
+            return null;
+        }
+
+        Node start = getStart(context);
+
+        if (start == null) {
+            return Collections.<Node>emptyList().iterator();
+        }
+
+        Iterator<Node> nodes = Collections.singletonList(start).iterator();
+        boolean flat = true;
+
+        // whether the set holds one node at most
+        boolean single = true;
+
+        for (Step step : steps) {
+            if (!single && step.needsSort(flat)) {
+                List<Node> list = new ArrayList<Node>();
+
+                while (nodes.hasNext()) {
+                    list.add(nodes.next());
+                }
+
+                List<Node> answer = step.evaluate(list, uris);
+
+                if ((list.size() > 1) && (answer.size() > 1)) {
+                    sortUnique(answer);
+                }
+
+                nodes = answer.iterator();
+            } else {
+                nodes = new StepIterator(step, nodes, uris);
+            }
+
+            flat = step.keepsFlat(flat);
+            single &= (step.axis == SELF) || (step.axis == PARENT);
+        }
+
+        return nodes;
+    }
+
+    public String toString() {
+        return "[NativePath: " + text + "]";
+    }
+
+    private Node getStart(Node context) {
+        if (!absolute) {
+            return context;
+        } else if (context instanceof Document) {
+            return context;
+        }
+
+        return context.getDocument();
+    }
+
+    private String[] resolve(Node context, NamespaceContext namespaceContext) {
+        if (prefixes.length == 0) {
+            return NO_URIS;
+        }
+
+        NamespaceContext nsContext = namespaceContext;
+
+        if (nsContext == null) {
+            nsContext = DefaultNamespaceContext.create(context);
+
+            if (nsContext == null) {
+                return null;
+            }
+        }
+
+        String[] uris = new String[prefixes.length];
+
+        for (int i = 0; i < prefixes.length; i++) {
+            uris[i] = nsContext.translateNamespacePrefixToUri(prefixes[i]);
+
+            if (uris[i] == null) {
+                return null;
+            }
+        }
+
+        return uris;
+    }
+
+    /**
+     * Puts the nodes in document order and removes duplicates
+     *
+     * @param nodes
+     *            is the list of nodes to sort in place
+     */
+    private static void sortUnique(List<Node> nodes) {
+        Set<Node> seen = Collections
+                .newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        Document document = null;
+        int size = 0;
+
+        for (int i = 0, count = nodes.size(); i < count; i++) {
+            Node node = nodes.get(i);
+
+            if (seen.add(node)) {
+                nodes.set(size++, node);
+
+                if (document == null) {
+                    document = node.getDocument();
+                }
+            }
+        }
+
+        nodes.subList(size, nodes.size()).clear();
+        Collections.sort(nodes, new DocumentOrderComparator(document));
+    }
+
+    private static boolean contains(Node ancestor, Node node) {
+        for (Element parent = node.getParent(); parent != null; parent = parent
+                .getParent()) {
+            if (parent == ancestor) {
+                return true;
+            }
+        }
+
+        return (ancestor instanceof Document)
+                && (node.getDocument() == ancestor);
+    }
+
+    /**
+     * A step of the path
+     */
+    static final class Step implements Serializable {
+        private static final long serialVersionUID = 1;
+
+        final int axis;
+
+        final NodeTest test;
+
+        final Predicate[] predicates;
+
+        /** Whether a predicate depends on the position of the node */
+        private final boolean positional;
+
+        /** The number of nodes to select from each context node at most */
+        private final int limit;
+
+        Step(int axis, NodeTest test, List<Predicate> predicates) {
+            this.axis = axis;
+            this.test = test;
+            this.predicates = predicates
+                    .toArray(new Predicate[predicates.size()]);
+
+            boolean hasPosition = false;
+
+            for (Predicate predicate : predicates) {
+                hasPosition |= (predicate.kind == Predicate.POSITION);
+            }
+
+            this.positional = hasPosition;
+
+            if ((this.predicates.length > 0)
+                    && (this.predicates[0].kind == Predicate.POSITION)) {
+                this.limit = this.predicates[0].position;
+            } else {
+                this.limit = Integer.MAX_VALUE;
+            }
+        }
+
+        /**
+         * Returns whether the nodes selected from a set of several nodes may
+         * be out of document order or contain duplicates
+         */
+        boolean needsSort(boolean flat) {
+            switch (axis) {
+                case CHILD:
+                    return !flat;
+
+                case DESCENDANT:
+                case DESCENDANT_OR_SELF:
+                    return positional && !flat;
+
+                case PARENT:
+                    return true;
+
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Returns whether no node selected is an ancestor of another
+         */
+        boolean keepsFlat(boolean flat) {
+            return flat && ((axis == CHILD) || (axis == ATTRIBUTE)
+                    || (axis == SELF));
+        }
+
+        /**
+         * Returns the nodes selected from one context node, walking the tree
+         * as they are iterated over unless predicates depend on positions
+         */
+        Iterator<Node> select(Node node, String[] uris) {
+            if (!positional
+                    && ((axis == CHILD) || (axis == DESCENDANT)
+                            || (axis == DESCENDANT_OR_SELF))) {
+                return new AxisIterator(this, node, uris);
+            }
+
+            List<Node> answer = new ArrayList<Node>();
+            collect(node, answer, uris);
+
+            if (positional) {
+                filter(answer, 0, uris);
+            }
+
+            return answer.iterator();
+        }
+
+        List<Node> evaluate(List<Node> nodes, String[] uris) {
+            List<Node> answer = new ArrayList<Node>();
+            boolean descendants = (axis == DESCENDANT)
+                    || (axis == DESCENDANT_OR_SELF);
+            Node last = null;
+
+            for (int i = 0, size = nodes.size(); i < size; i++) {
+                Node node = nodes.get(i);
+
+                if (descendants && !positional) {
+                    // the descendants of a node inside the last one walked
+                    // have been selected already
+                    if ((last != null) && contains(last, node)) {
+                        continue;
+                    }
+
+                    last = node;
+                }
+
+                int start = answer.size();
+                collect(node, answer, uris);
+
+                if (positional) {
+                    filter(answer, start, uris);
+                }
+            }
+
+            return answer;
+        }
+
+        private void collect(Node node, List<Node> answer, String[] uris) {
+            switch (axis) {
+                case CHILD:
+                    if (node instanceof Branch) {
+                        Branch branch = (Branch) node;
+                        int start = answer.size();
+
+                        // positional predicates need no more than the first
+                        // nodes selected
+                        for (int i = 0, count = branch.nodeCount(); (i < count)
+                                && ((answer.size() - start) < limit); i++) {
+                            Node child = branch.node(i);
+
+                            if (!(child instanceof Namespace)) {
+                                add(child, answer, uris);
+                            }
+                        }
+                    }
+
+                    break;
+
+                case DESCENDANT_OR_SELF:
+                case DESCENDANT:
+                    if (axis == DESCENDANT_OR_SELF) {
+                        add(node, answer, uris);
+                    }
+
+                    if (node instanceof Branch) {
+                        collectDescendants((Branch) node, answer, uris);
+                    }
+
+                    break;
+
+                case ATTRIBUTE:
+                    if (node instanceof Element) {
+                        Element element = (Element) node;
+
+                        for (int i = 0, count = element.attributeCount();
+                                i < count; i++) {
+                            add(element.attribute(i), answer, uris);
+                        }
+                    }
+
+                    break;
+
+                case SELF:
+                    add(node, answer, uris);
+
+                    break;
+
+                case PARENT:
+                    Node parent = node.getParent();
+
+                    if ((parent == null) && !(node instanceof Document)) {
+                        parent = node.getDocument();
+                    }
+
+                    if (parent != null) {
+                        add(parent, answer, uris);
+                    }
+
+                    break;
+
+                default:
+                    throw new IllegalStateException("Unknown axis: " + axis);
+            }
+        }
+
+        private void collectDescendants(Branch branch, List<Node> answer,
+                String[] uris) {
+            for (int i = 0, count = branch.nodeCount(); i < count; i++) {
+                Node child = branch.node(i);
+
+                if (child instanceof Namespace) {
+                    continue;
+                }
+
+                add(child, answer, uris);
+
+                if (child instanceof Element) {
+                    collectDescendants((Element) child, answer, uris);
+                }
+            }
+        }
+
+        private void add(Node node, List<Node> answer, String[] uris) {
+            if (accepts(node, uris)) {
+                answer.add(node);
+            }
+        }
+
+        /**
+         * Tests a node of the axis, and against the predicates unless they
+         * depend on positions
+         */
+        boolean accepts(Node node, String[] uris) {
+            if (!test.matches(node, axis, uris)) {
+                return false;
+            }
+
+            if (!positional) {
+                for (Predicate predicate : predicates) {
+                    if (!predicate.matches(node, 0, uris)) {
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Applies the predicates in turn to the nodes selected from one
+         * context node, which start at the given index of the list
+         */
+        private void filter(List<Node> answer, int start, String[] uris) {
+            int end = answer.size();
+
+            for (Predicate predicate : predicates) {
+                int size = start;
+
+                for (int i = start, position = 1; i < end; i++, position++) {
+                    Node node = answer.get(i);
+
+                    if (predicate.matches(node, position, uris)) {
+                        answer.set(size++, node);
+                    }
+                }
+
+                answer.subList(size, end).clear();
+                end = size;
+            }
+        }
+    }
+
+    /**
+     * Iterates over the nodes a step selects from each node of the previous
+     * step in turn
+     */
+    private static final class StepIterator implements Iterator<Node> {
+        private final Step step;
+
+        private final Iterator<Node> input;
+
+        private final String[] uris;
+
+        /** The last context node whose descendants were walked */
+        private Node last;
+
+        private Iterator<Node> selected = Collections.<Node>emptyList()
+                .iterator();
+
+        StepIterator(Step step, Iterator<Node> input, String[] uris) {
+            this.step = step;
+            this.input = input;
+            this.uris = uris;
+        }
+
+        public boolean hasNext() {
+            while (!selected.hasNext()) {
+                if (!input.hasNext()) {
+                    return false;
+                }
+
+                Node node = input.next();
+
+                if (((step.axis == DESCENDANT)
+                        || (step.axis == DESCENDANT_OR_SELF))
+                        && !step.positional) {
+                    if ((last != null) && contains(last, node)) {
+                        continue;
+                    }
+
+                    last = node;
+                }
+
+                selected = step.select(node, uris);
+            }
+
+            return true;
+        }
+
+        public Node next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return selected.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Walks the children or descendants of a node in document order,
+     * returning those a step accepts
+     */
+    private static final class AxisIterator implements Iterator<Node> {
+        private final Step step;
+
+        private final String[] uris;
+
+        /** The branches being walked and the index of their next child */
+        private Branch[] branches = new Branch[8];
+
+        private int[] indexes = new int[8];
+
+        private int depth = -1;
+
+        /** The context node itself if it remains to be tested */
+        private Node self;
+
+        private Node next;
+
+        AxisIterator(Step step, Node node, String[] uris) {
+            this.step = step;
+            this.uris = uris;
+
+            if (step.axis == DESCENDANT_OR_SELF) {
+                self = node;
+            }
+
+            if (node instanceof Branch) {
+                push((Branch) node);
+            }
+        }
+
+        public boolean hasNext() {
+            // the walk goes no further than the node last asked for
+            if (next == null) {
+                next = findNext();
+            }
+
+            return next != null;
+        }
+
+        public Node next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            Node answer = next;
+            next = null;
+
+            return answer;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Node findNext() {
+            if (self != null) {
+                Node node = self;
+                self = null;
+
+                if (step.accepts(node, uris)) {
+                    return node;
+                }
+            }
+
+            while (depth >= 0) {
+                Branch branch = branches[depth];
+                int index = indexes[depth];
+
+                if (index >= branch.nodeCount()) {
+                    branches[depth--] = null;
+
+                    continue;
+                }
+
+                indexes[depth] = index + 1;
+
+                Node child = branch.node(index);
+
+                if (child instanceof Namespace) {
+                    continue;
+                }
+
+                // its descendants follow it
+                if ((step.axis != CHILD) && (child instanceof Element)) {
+                    push((Element) child);
+                }
+
+                if (step.accepts(child, uris)) {
+                    return child;
+                }
+            }
+
+            return null;
+        }
+
+        private void push(Branch branch) {
+            if (++depth == branches.length) {
+                branches = Arrays.copyOf(branches, depth * 2);
+                indexes = Arrays.copyOf(indexes, depth * 2);
+            }
+
+            branches[depth] = branch;
+            indexes[depth] = 0;
+        }
+    }
+
+    /**
+     * A node test of a step or predicate
+     */
+    static final class NodeTest implements Serializable {
+        private static final long serialVersionUID = 1;
+
+        static final int NAME = 0;
+
+        static final int ANY_NODE = 1;
+
+        static final int TEXT = 2;
+
+        static final int COMMENT = 3;
+
+        static final int PROCESSING_INSTRUCTION = 4;
+
+        /** Elements and documents, the nodes which may have children */
+        static final int BRANCH = 5;
+
+        /** Matches names in any namespace, for <code>*</code> */
+        static final int ANY_NAMESPACE = -2;
+
+        /** Matches names in no namespace, for unprefixed names */
+        static final int NO_NAMESPACE = -1;
+
+        final int kind;
+
+        /** The local name, or null for any name */
+        final String localName;
+
+        /** The index of the prefix, or one of the constants above */
+        final int namespace;
+
+        NodeTest(int kind) {
+            this(kind, null, ANY_NAMESPACE);
+        }
+
+        NodeTest(int kind, String localName, int namespace) {
+            this.kind = kind;
+            this.localName = localName;
+            this.namespace = namespace;
+        }
+
+        boolean matches(Node node, int axis, String[] uris) {
+            switch (kind) {
+                case NAME:
+                    QName qname;
+
+                    // the principal node type of the axis
+                    if (axis == ATTRIBUTE) {
+                        if (!(node instanceof Attribute)) {
+                            return false;
+                        }
+
+                        qname = ((Attribute) node).getQName();
+                    } else {
+                        if (!(node instanceof Element)) {
+                            return false;
+                        }
+
+                        qname = ((Element) node).getQName();
+                    }
+
+                    if ((localName != null)
+                            && !localName.equals(qname.getName())) {
+                        return false;
+                    }
+
+                    if (namespace == ANY_NAMESPACE) {
+                        return true;
+                    }
+
+                    String uri = (namespace == NO_NAMESPACE) ? ""
+                            : uris[namespace];
+
+                    return uri.equals(qname.getNamespaceURI());
+
+                case ANY_NODE:
+                    return true;
+
+                case TEXT:
+                    return (node instanceof Text) || (node instanceof CDATA);
+
+                case COMMENT:
+                    return node instanceof Comment;
+
+                case PROCESSING_INSTRUCTION:
+                    return node instanceof ProcessingInstruction;
+
+                case BRANCH:
+                    return (node instanceof Element)
+                            || (node instanceof Document);
+
+                default:
+                    throw new IllegalStateException("Unknown node test: "
+                            + kind);
+            }
+        }
+    }
+
+    /**
+     * A predicate of a step
+     */
+    static final class Predicate implements Serializable {
+        private static final long serialVersionUID = 1;
+
+        static final int POSITION = 0;
+
+        static final int ATTRIBUTE = 1;
+
+        static final int CHILD = 2;
+
+        static final int TEXT = 3;
+
+        static final int SELF = 4;
+
+        final int kind;
+
+        private final int position;
+
+        final NodeTest test;
+
+        /** The value compared with, or null to test for existence */
+        final String value;
+
+        Predicate(int position) {
+            this.kind = POSITION;
+            this.position = position;
+            this.test = null;
+            this.value = null;
+        }
+
+        Predicate(int kind, NodeTest test, String value) {
+            this.kind = kind;
+            this.position = 0;
+            this.test = test;
+            this.value = value;
+        }
+
+        boolean matches(Node node, int nodePosition, String[] uris) {
+            switch (kind) {
+                case POSITION:
+                    return nodePosition == position;
+
+                case ATTRIBUTE:
+                    if (node instanceof Element) {
+                        Element element = (Element) node;
+
+                        for (int i = 0, count = element.attributeCount();
+                                i < count; i++) {
+                            Attribute attribute = element.attribute(i);
+
+                            if (test.matches(attribute, NativePath.ATTRIBUTE,
+                                    uris)
+                                    && ((value == null) || value
+                                            .equals(attribute.getValue()))) {
+                                return true;
+                            }
+                        }
+                    }
+
+                    return false;
+
+                case CHILD:
+                case TEXT:
+                    if (node instanceof Branch) {
+                        Branch branch = (Branch) node;
+
+                        for (int i = 0, count = branch.nodeCount(); i < count;
+                                i++) {
+                            Node child = branch.node(i);
+
+                            if (test.matches(child, NativePath.CHILD, uris)
+                                    && ((value == null) || value
+                                            .equals(child.getStringValue()))) {
+                                return true;
+                            }
+                        }
+                    }
+
+                    return false;
+
+                case SELF:
+                    return value.equals(node.getStringValue());
+
+                default:
+                    throw new IllegalStateException("Unknown predicate: "
+                            + kind);
+            }
+        }
+    }
+
+    /**
+     * Parses the supported expressions, returning null for all others
+     */
+    private static final class Parser {
+        private final String text;
+
+        private final List<String> prefixes = new ArrayList<String>();
+
+        private int pos;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        NativePath parsePath() {
+            List<Step> steps = new ArrayList<Step>();
+            boolean absolute = false;
+            boolean descendants = false;
+
+            skipSpace();
+
+            if (peek() == '/') {
+                absolute = true;
+                descendants = text.startsWith("//", pos);
+                pos += descendants ? 2 : 1;
+                skipSpace();
+
+                if (!descendants && (pos == text.length())) {
+                    return new NativePath(text, true, steps, prefixes);
+                }
+            }
+
+            while (true) {
+                Step step = parseStep();
+
+                if (step == null) {
+                    return null;
+                }
+
+                if (descendants) {
+                    if ((step.axis == CHILD) && !step.positional) {
+                        step = new Step(DESCENDANT, step.test, Arrays
+                                .asList(step.predicates));
+                    } else {
+                        // only branches have children and only elements
+                        // have attributes
+                        NodeTest test;
+
+                        if (step.axis == CHILD) {
+                            test = new NodeTest(NodeTest.BRANCH);
+                        } else if (step.axis == ATTRIBUTE) {
+                            test = new NodeTest(NodeTest.NAME);
+                        } else {
+                            test = new NodeTest(NodeTest.ANY_NODE);
+                        }
+
+                        steps.add(new Step(DESCENDANT_OR_SELF, test,
+                                Collections.<Predicate>emptyList()));
+                    }
+                }
+
+                steps.add(step);
+                skipSpace();
+
+                if (pos == text.length()) {
+                    return new NativePath(text, absolute, steps, prefixes);
+                }
+
+                if (peek() != '/') {
+                    return null;
+                }
+
+                descendants = text.startsWith("//", pos);
+                pos += descendants ? 2 : 1;
+            }
+        }
+
+        private Step parseStep() {
+            List<Predicate> predicates = new ArrayList<Predicate>();
+
+            skipSpace();
+
+            if (text.startsWith("..", pos)) {
+                pos += 2;
+
+                return new Step(PARENT, new NodeTest(NodeTest.ANY_NODE),
+                        predicates);
+            } else if (peek() == '.') {
+                pos++;
+
+                return new Step(SELF, new NodeTest(NodeTest.ANY_NODE),
+                        predicates);
+            }
+
+            int axis = CHILD;
+
+            if (peek() == '@') {
+                pos++;
+                axis = ATTRIBUTE;
+            } else {
+                int start = pos;
+                String name = parseNCName();
+                skipSpace();
+
+                if ((name != null) && text.startsWith("::", pos)) {
+                    axis = Arrays.asList(AXIS_NAMES).indexOf(name);
+
+                    if (axis < 0) {
+                        return null;
+                    }
+
+                    pos += 2;
+                } else {
+                    pos = start;
+                }
+            }
+
+            NodeTest test = parseNodeTest();
+
+            if (test == null) {
+                return null;
+            }
+
+            skipSpace();
+
+            while (peek() == '[') {
+                pos++;
+
+                Predicate predicate = parsePredicate();
+                skipSpace();
+
+                if ((predicate == null) || (peek() != ']')) {
+                    return null;
+                }
+
+                pos++;
+                predicates.add(predicate);
+                skipSpace();
+            }
+
+            return new Step(axis, test, predicates);
+        }
+
+        private NodeTest parseNodeTest() {
+            skipSpace();
+
+            if (peek() == '*') {
+                pos++;
+
+                return new NodeTest(NodeTest.NAME);
+            }
+
+            String name = parseNCName();
+
+            if (name == null) {
+                return null;
+            }
+
+            if ((peek() == ':') && !text.startsWith("::", pos)) {
+                pos++;
+
+                int namespace = prefixes.indexOf(name);
+
+                if (namespace < 0) {
+                    namespace = prefixes.size();
+                    prefixes.add(name);
+                }
+
+                if (peek() == '*') {
+                    pos++;
+
+                    return new NodeTest(NodeTest.NAME, null, namespace);
+                }
+
+                String localName = parseNCName();
+
+                if (localName == null) {
+                    return null;
+                }
+
+                return new NodeTest(NodeTest.NAME, localName, namespace);
+            }
+
+            int end = pos;
+            skipSpace();
+
+            if (peek() != '(') {
+                pos = end;
+
+                return new NodeTest(NodeTest.NAME, name,
+                        NodeTest.NO_NAMESPACE);
+            }
+
+            pos++;
+            skipSpace();
+
+            if (peek() != ')') {
+                return null;
+            }
+
+            pos++;
+
+            if (name.equals("node")) {
+                return new NodeTest(NodeTest.ANY_NODE);
+            } else if (name.equals("text")) {
+                return new NodeTest(NodeTest.TEXT);
+            } else if (name.equals("comment")) {
+                return new NodeTest(NodeTest.COMMENT);
+            } else if (name.equals("processing-instruction")) {
+                return new NodeTest(NodeTest.PROCESSING_INSTRUCTION);
+            }
+
+            // a function call
+            return null;
+        }
+
+        private Predicate parsePredicate() {
+            skipSpace();
+
+            if (Character.isDigit(peek())) {
+                int start = pos;
+
+                while (Character.isDigit(peek())) {
+                    pos++;
+                }
+
+                if ((pos - start) > 9) {
+                    return null;
+                }
+
+                return new Predicate(Integer.parseInt(text.substring(start,
+                        pos)));
+            }
+
+            int kind;
+            NodeTest test = null;
+
+            if (peek() == '@') {
+                pos++;
+                kind = Predicate.ATTRIBUTE;
+                test = parseNodeTest();
+
+                if ((test == null) || (test.kind != NodeTest.NAME)) {
+                    return null;
+                }
+            } else if ((peek() == '.') && !text.startsWith("..", pos)) {
+                pos++;
+                kind = Predicate.SELF;
+            } else {
+                test = parseNodeTest();
+
+                if (test == null) {
+                    return null;
+                } else if (test.kind == NodeTest.NAME) {
+                    kind = Predicate.CHILD;
+                } else if (test.kind == NodeTest.TEXT) {
+                    kind = Predicate.TEXT;
+                } else {
+                    return null;
+                }
+            }
+
+            skipSpace();
+
+            if (peek() != '=') {
+                // [.] is always true, which is not worth supporting
+                return (kind == Predicate.SELF) ? null : new Predicate(kind,
+                        test, null);
+            }
+
+            pos++;
+            skipSpace();
+
+            char quote = peek();
+
+            if ((quote != '\'') && (quote != '"')) {
+                return null;
+            }
+
+            int end = text.indexOf(quote, pos + 1);
+
+            if (end < 0) {
+                return null;
+            }
+
+            String value = text.substring(pos + 1, end);
+            pos = end + 1;
+
+            return new Predicate(kind, test, value);
+        }
+
+        private String parseNCName() {
+            int start = pos;
+            char c = peek();
+
+            if (!Character.isLetter(c) && (c != '_')) {
+                return null;
+            }
+
+            do {
+                pos++;
+                c = peek();
+            } while (Character.isLetterOrDigit(c) || (c == '_') || (c == '-')
+                    || (c == '.'));
+
+            return text.substring(start, pos);
+        }
+
+        private void skipSpace() {
+            while ((pos < text.length())
+                    && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char peek() {
+            return (pos < text.length()) ? text.charAt(pos) : '\0';
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.xpath;
+
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ListIterator;
+
+import org.dom5j.Node;
+import org.dom5j.XPath;
+
+/**
+ * <p>
+ * <code>NodeSorter</code> sorts a <code>List</code> of nodes by the value
+ * of an XPath expression for each node. The expression is evaluated once per
+ * node and the values are held in an array together with the node, so
+ * comparisons need no lookups. The sort is stable: nodes with equal values
+ * keep their order in the list and, when duplicates are removed, the first
+ * of them in the list is retained for each value.
+ * </p>
+ *
+ * <p>
+ * The values may be compared as {@link #TEXT}, by their characters or with
+ * a {@link Collator}, or as a {@link #NUMBER}, in which case
+ * <code>NaN</code> sorts before all other numbers as in XSLT. Lists of at
+ * least {@link #PARALLEL_THRESHOLD} nodes are sorted with
+ * {@link Arrays#parallelSort(Object[], Comparator)}. Instances hold no
+ * state of their own and may be used by several threads at once.
+ * </p>
+ */
+public class NodeSorter {
+    /** Compares the string values of the expression */
+    public static final int TEXT = 1;
+
+    /** Compares the number values of the expression */
+    public static final int NUMBER = 2;
+
+    /** Compares the values returned by {@link #getSortKey(Node)} */
+    protected static final int VALUE = 0;
+
+    /** The size of list from which the sort is done in parallel */
+    public static final int PARALLEL_THRESHOLD = 8192;
+
+    /** Orders entries by their key */
+    private static final Comparator<Entry> KEY_ORDER = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            int answer = Long.compareUnsigned(e1.prefix, e2.prefix);
+
+            return (answer != 0) ? answer : compareKeys(e1.key, e2.key);
+        }
+    };
+
+    /** Orders entries by their number */
+    private static final Comparator<Entry> NUMBER_ORDER =
+            new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            return compareNumbers(e1.number, e2.number);
+        }
+    };
+
+    /** The expression evaluated for each node */
+    private final XPath xpath;
+
+    private final int dataType;
+
+    private final Collator collator;
+
+    /**
+     * Creates a sorter comparing the string values of the given expression
+     * character by character.
+     *
+     * @param xpath
+     *            DOCUMENT ME!
+     */
+    public NodeSorter(XPath xpath) {
+        this(xpath, TEXT, null);
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @param xpath
+     *            DOCUMENT ME!
+     * @param dataType
+     *            is {@link #TEXT} or {@link #NUMBER}
+     */
+    public NodeSorter(XPath xpath, int dataType) {
+        this(xpath, dataType, null);
+    }
+
+    /**
+     * Creates a sorter comparing the string values of the given expression
+     * with a collator.
+     *
+     * @param xpath
+     *            DOCUMENT ME!
+     * @param collator
+     *            DOCUMENT ME!
+     */
+    public NodeSorter(XPath xpath, Collator collator) {
+        this(xpath, TEXT, collator);
+    }
+
+    protected NodeSorter(XPath xpath, int dataType, Collator collator) {
+        if ((dataType != VALUE) && (dataType != TEXT)
+                && (dataType != NUMBER)) {
+            throw new IllegalArgumentException("Unknown data type: "
+                    + dataType);
+        }
+
+        this.xpath = xpath;
+        this.dataType = dataType;
+        this.collator = collator;
+    }
+
+    public XPath getXPath() {
+        return xpath;
+    }
+
+    public int getDataType() {
+        return dataType;
+    }
+
+    public Collator getCollator() {
+        return collator;
+    }
+
+    /**
+     * Sorts the given list of nodes.
+     *
+     * @param list
+     *            is the list of Nodes to sort
+     */
+    public void sort(List<Node> list) {
+        sort(list, false);
+    }
+
+    /**
+     * Sorts the given list of nodes and optionally removes the nodes with a
+     * value equal to that of a node before them.
+     *
+     * @param list
+     *            is the list of Nodes to sort
+     * @param distinct
+     *            if true then nodes with duplicate values will be removed
+     */
+    public void sort(List<Node> list, boolean distinct) {
+        if ((list == null) || list.isEmpty()) {
+            return;
+        }
+
+        Entry[] entries = new Entry[list.size()];
+        int count = 0;
+
+        for (Node node : list) {
+            Entry entry = new Entry(node);
+
+            if (dataType == NUMBER) {
+                entry.number = getNumberKey(node);
+            } else {
+                entry.key = getSortKey(node);
+
+                if (entry.key instanceof String) {
+                    entry.prefix = prefix((String) entry.key);
+                }
+            }
+
+            entries[count++] = entry;
+        }
+
+        Comparator<Entry> comparator = (dataType == NUMBER) ? NUMBER_ORDER
+                : KEY_ORDER;
+
+        if (entries.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(entries, comparator);
+        } else {
+            Arrays.sort(entries, comparator);
+        }
+
+        ListIterator<Node> iter = list.listIterator();
+        Entry last = null;
+
+        for (Entry entry : entries) {
+            if (distinct && (last != null) && sameKey(last, entry)) {
+                continue;
+            }
+
+            iter.next();
+            iter.set(entry.node);
+            last = entry;
+        }
+
+        while (iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    // Implementation methods
+
+    /**
+     * Returns the value the given node is sorted by, unless the values are
+     * numbers.
+     *
+     * @param node
+     *            DOCUMENT ME!
+     *
+     * @return the string value of the expression or its collation key
+     */
+    protected Object getSortKey(Node node) {
+        String value = xpath.valueOf(node);
+
+        if (collator != null) {
+            return collator.getCollationKey(value);
+        }
+
+        return value;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @param node
+     *            DOCUMENT ME!
+     *
+     * @return the number value of the expression for the given node
+     */
+    protected double getNumberKey(Node node) {
+        Number value = xpath.numberValueOf(node);
+
+        return (value != null) ? value.doubleValue() : Double.NaN;
+    }
+
+    private boolean sameKey(Entry e1, Entry e2) {
+        if (dataType == NUMBER) {
+            return compareNumbers(e1.number, e2.number) == 0;
+        } else if (e1.key instanceof Comparable) {
+            return compareKeys(e1.key, e2.key) == 0;
+        }
+
+        return (e1.key == null) ? (e2.key == null) : e1.key.equals(e2.key);
+    }
+
+    /**
+     * Compares two keys, nulls sorting last and values which are not
+     * {@link Comparable} being treated as equal.
+     *
+     * @param k1
+     *            DOCUMENT ME!
+     * @param k2
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static int compareKeys(Object k1, Object k2) {
+        if (k1 == k2) {
+            return 0;
+        } else if (k1 == null) {
+            return 1;
+        } else if (k2 == null) {
+            return -1;
+        } else if (k1 instanceof Comparable) {
+            return ((Comparable) k1).compareTo(k2);
+        }
+
+        return 0;
+    }
+
+    private static int compareNumbers(double d1, double d2) {
+        if (d1 == d2) {
+            return 0;
+        } else if (d1 < d2) {
+            return -1;
+        } else if (d1 > d2) {
+            return 1;
+        } else if (Double.isNaN(d1)) {
+            return Double.isNaN(d2) ? 0 : (-1);
+        }
+
+        return 1;
+    }
+
+    /**
+     * Packs the first four characters of a string into a number which
+     * compares, unsigned, as the strings do unless both are equal.
+     *
+     * @param text
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    private static long prefix(String text) {
+        long answer = 0;
+
+        for (int i = 0; i < 4; i++) {
+            answer <<= 16;
+
+            if (i < text.length()) {
+                answer |= text.charAt(i);
+            }
+        }
+
+        return answer;
+    }
+
+    /**
+     * A node and its sort key
+     */
+    private static final class Entry {
+        private final Node node;
+
+        private Object key;
+
+        /** The leading characters of a string key */
+        private long prefix;
+
+        private double number;
+
+        Entry(Node node) {
+            this.node = node;
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
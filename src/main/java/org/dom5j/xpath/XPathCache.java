@@ -0,0 +1,366 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.xpath;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.dom5j.DocumentFactory;
+import org.dom5j.InvalidXPathException;
+import org.dom5j.XPath;
+import org.jaxen.FunctionContext;
+
+/**
+ * <p>
+ * <code>XPathCache</code> caches the compiled <code>XPath</code> instances
+ * of a {@link DocumentFactory}, so that the methods of nodes which take the
+ * text of an expression, such as {@link org.dom5j.Node#selectNodes(String)},
+ * only parse each expression once. Entries are keyed by the text of the
+ * expression together with the namespace URIs and function context of the
+ * factory when it was compiled, so changing either makes later lookups
+ * compile new instances.
+ * </p>
+ *
+ * <p>
+ * Lookups take no locks. The number of cached expressions is limited to
+ * {@link #getMaximumSize()}, which defaults to the value of the
+ * <code>org.dom5j.xpathCache.maximumSize</code> system property or
+ * {@link #DEFAULT_MAXIMUM_SIZE}. Beyond it the least recently used
+ * expressions are evicted, a few more than needed at a time so that the
+ * cost of eviction is spread over many lookups.
+ * </p>
+ *
+ * <p>
+ * The instances returned are shared, so they must not be modified. A
+ * {@link DefaultXPath} keeps the state of each evaluation to itself, so
+ * they may be evaluated by several threads at once.
+ * </p>
+ */
+public class XPathCache {
+    /** The maximum size used if the system property is not set */
+    public static final int DEFAULT_MAXIMUM_SIZE = 512;
+
+    /** Cache of the compiled expressions indexed by text and context */
+    protected final ConcurrentMap<Key, Entry> cache =
+            new ConcurrentHashMap<Key, Entry>();
+
+    /** The factory compiling the expressions */
+    private final DocumentFactory documentFactory;
+
+    /** The number of entries above which expressions are evicted */
+    private volatile int maximumSize;
+
+    /** Set while a thread is evicting entries */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    public XPathCache(DocumentFactory documentFactory) {
+        this(documentFactory, Integer.getInteger(
+                "org.dom5j.xpathCache.maximumSize", DEFAULT_MAXIMUM_SIZE)
+                .intValue());
+    }
+
+    public XPathCache(DocumentFactory documentFactory, int maximumSize) {
+        this.documentFactory = documentFactory;
+        setMaximumSize(maximumSize);
+    }
+
+    /**
+     * Returns the compiled expression for the given text and the current
+     * namespace URIs and function context of the factory, compiling it with
+     * {@link DocumentFactory#createXPath(String)} if it is not cached.
+     *
+     * @param xpathExpression
+     *            is the XPath expression to compile
+     *
+     * @return a shared <code>XPath</code> instance
+     *
+     * @throws InvalidXPathException
+     *             if the XPath expression is invalid
+     */
+    public XPath get(String xpathExpression) throws InvalidXPathException {
+        if (xpathExpression == null) {
+            return createXPath(xpathExpression);
+        }
+
+        Key key = new Key(xpathExpression, documentFactory
+                .getXPathNamespaceURIs(), documentFactory
+                .getXPathFunctionContext());
+        Entry entry = cache.get(key);
+
+        if (entry != null) {
+            hitCount.increment();
+            entry.lastUsed = System.nanoTime();
+
+            return entry.xpath;
+        }
+
+        missCount.increment();
+
+        XPath answer = createXPath(xpathExpression);
+        entry = cache.putIfAbsent(key.copy(), new Entry(answer));
+
+        if (entry != null) {
+            return entry.xpath;
+        }
+
+        if (cache.size() > maximumSize) {
+            evict();
+        }
+
+        return answer;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return the number of expressions currently cached
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public void setMaximumSize(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: "
+                    + maximumSize);
+        }
+
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return the number of lookups which found a compiled expression
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return the number of lookups which had to compile the expression
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return the number of entries removed to keep within the maximum size
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * Removes all expressions and resets the statistics.
+     */
+    public void clear() {
+        cache.clear();
+        hitCount.reset();
+        missCount.reset();
+        evictionCount.reset();
+    }
+
+    /**
+     * A factory method compiling an expression which is not cached
+     *
+     * @param xpathExpression
+     *            DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    protected XPath createXPath(String xpathExpression) {
+        return documentFactory.createXPath(xpathExpression);
+    }
+
+    /**
+     * Brings the cache back within its maximum size by removing the least
+     * recently used expressions, leaving room for an eighth of the maximum
+     * size. Only one thread evicts at a time; others carry on without
+     * waiting.
+     */
+    protected void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            long[] stamps = new long[cache.size()];
+            int count = 0;
+
+            for (Entry entry : cache.values()) {
+                if (count == stamps.length) {
+                    break;
+                }
+
+                stamps[count++] = entry.lastUsed;
+            }
+
+            int target = maximumSize - (maximumSize / 8);
+            int excess = count - target;
+
+            if (excess <= 0) {
+                return;
+            }
+
+            Arrays.sort(stamps, 0, count);
+
+            long cutoff = stamps[excess - 1];
+
+            for (Iterator<Map.Entry<Key, Entry>> iter = cache.entrySet()
+                    .iterator(); (cache.size() > target) && iter.hasNext();) {
+                if (iter.next().getValue().lastUsed <= cutoff) {
+                    iter.remove();
+                    evictionCount.increment();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * A cached expression and the time it was last used
+     */
+    protected static final class Entry {
+        private final XPath xpath;
+
+        private volatile long lastUsed = System.nanoTime();
+
+        Entry(XPath xpath) {
+            this.xpath = xpath;
+        }
+    }
+
+    /**
+     * The key of a cached expression
+     */
+    protected static final class Key {
+        private final String text;
+
+        private final Map<String, String> namespaceURIs;
+
+        private final FunctionContext functionContext;
+
+        private final int hashCode;
+
+        Key(String text, Map<String, String> namespaceURIs,
+                FunctionContext functionContext) {
+            this.text = text;
+            this.namespaceURIs = namespaceURIs;
+            this.functionContext = functionContext;
+
+            int code = text.hashCode();
+
+            if (namespaceURIs != null) {
+                code = (31 * code) + namespaceURIs.hashCode();
+            }
+
+            if (functionContext != null) {
+                code = (31 * code) + functionContext.hashCode();
+            }
+
+            this.hashCode = code;
+        }
+
+        /**
+         * Returns a key holding a copy of the namespace URIs, which the
+         * factory may hold in a map which changes.
+         *
+         * @return DOCUMENT ME!
+         */
+        Key copy() {
+            if (namespaceURIs == null) {
+                return this;
+            }
+
+            return new Key(text, new HashMap<String, String>(namespaceURIs),
+                    functionContext);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            } else if (object instanceof Key) {
+                Key that = (Key) object;
+
+                return (hashCode == that.hashCode) && text.equals(that.text)
+                        && ((namespaceURIs == null)
+                                ? (that.namespaceURIs == null)
+                                : namespaceURIs.equals(that.namespaceURIs))
+                        && ((functionContext == null)
+                                ? (that.functionContext == null)
+                                : functionContext.equals(
+                                        that.functionContext));
+            }
+
+            return false;
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
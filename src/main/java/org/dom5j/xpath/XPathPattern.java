@@ -7,7 +7,7 @@
 
 package org.dom5j.xpath;
 
-import java.util.ArrayList;
+import java.util.Collections;
 
 import org.dom5j.InvalidXPathException;
 import org.dom5j.Node;
@@ -19,7 +19,6 @@ import org.jaxen.SimpleNamespaceContext;
 import org.jaxen.SimpleVariableContext;
 import org.jaxen.VariableContext;
 import org.jaxen.XPathFunctionContext;
-import org.jaxen.dom4j.DocumentNavigator;
 import org.jaxen.pattern.Pattern;
 import org.jaxen.pattern.PatternParser;
 import org.jaxen.saxpath.SAXPathException;
@@ -30,6 +29,11 @@ import org.jaxen.saxpath.SAXPathException;
  * XPath xpath.
  * </p>
  * 
+ * <p>
+ * A pattern may be matched by several threads at once, each match using
+ * its own <code>Context</code>.
+ * </p>
+ * 
  * @author <a href="mailto:jstrachan@apache.org">James Strachan </a>
  * @version $Revision: 1.18.2.1 $
  */
@@ -38,17 +42,17 @@ public class XPathPattern implements org.dom5j.rule.Pattern {
 
     private Pattern pattern;
 
-    private Context context;
+    private ContextSupport contextSupport;
 
     public XPathPattern(Pattern pattern) {
         this.pattern = pattern;
         this.text = pattern.getText();
-        this.context = new Context(getContextSupport());
+        this.contextSupport = getContextSupport();
     }
 
     public XPathPattern(String text) {
         this.text = text;
-        this.context = new Context(getContextSupport());
+        this.contextSupport = getContextSupport();
 
         try {
             this.pattern = PatternParser.parse(text);
@@ -61,9 +65,8 @@ public class XPathPattern implements org.dom5j.rule.Pattern {
 
     public boolean matches(Node node) {
         try {
-            ArrayList<Node> list = new ArrayList<Node>(1);
-            list.add(node);
-            context.setNodeSet(list);
+            Context context = new Context(contextSupport);
+            context.setNodeSet(Collections.singletonList(node));
 
             return pattern.matches(node, context);
         } catch (JaxenException e) {
@@ -107,7 +110,7 @@ public class XPathPattern implements org.dom5j.rule.Pattern {
     }
 
     public void setVariableContext(VariableContext variableContext) {
-        context.getContextSupport().setVariableContext(variableContext);
+        contextSupport.setVariableContext(variableContext);
     }
 
     public String toString() {
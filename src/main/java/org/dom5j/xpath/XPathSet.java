@@ -0,0 +1,1112 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.xpath;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dom5j.Branch;
+import org.dom5j.Document;
+import org.dom5j.DocumentException;
+import org.dom5j.DocumentFactory;
+import org.dom5j.Element;
+import org.dom5j.InvalidXPathException;
+import org.dom5j.Node;
+import org.dom5j.XPath;
+import org.jaxen.function.BooleanFunction;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * <p>
+ * <code>XPathSet</code> evaluates many XPath expressions against a document
+ * in a single traversal, reporting which expressions matched and the nodes
+ * each selected. The expressions are evaluated from the document node, so
+ * relative paths behave as absolute ones.
+ * </p>
+ *
+ * <p>
+ * Location paths made of element steps on the <code>child</code> and
+ * <code>descendant</code> axes, such as <code>/a/b</code>,
+ * <code>//p:item</code> or <code>/a//*</code>, with predicates testing
+ * attributes as in <code>[@id]</code> or <code>[@type='x']</code> and
+ * optionally ending with an attribute step such as <code>/@id</code>, are
+ * compiled into one automaton in which the paths share their common
+ * prefixes. A traversal follows the states of all such paths at once and
+ * skips the subtrees in which none of them can match. Steps which differ
+ * only in the value an attribute is compared with are found by looking up
+ * the value of the attribute. Other expressions are evaluated with an
+ * {@link XPath} of their own after the traversal.
+ * </p>
+ *
+ * <p>
+ * The set can be evaluated on a {@link Document} or, through an
+ * {@link XPathSetHandler}, on the events of a SAX parser, in which case only
+ * the matching elements are built unless some expression needs the whole
+ * document. The prefixes of name tests are resolved with the namespace URIs
+ * given to the set. Expressions should all be added before the set is
+ * evaluated; a set which is no longer modified may be evaluated by several
+ * threads at once.
+ * </p>
+ */
+public class XPathSet {
+    /** The factory creating the nodes and the expressions not compiled */
+    private final DocumentFactory documentFactory;
+
+    /** The namespace URIs the prefixes of the expressions are bound to */
+    private final Map<String, String> namespaceURIs;
+
+    private final List<String> expressions = new ArrayList<String>();
+
+    /** The expressions evaluated on their own, null for compiled ones */
+    private final List<XPath> xpaths = new ArrayList<XPath>();
+
+    /** The number of expressions evaluated on their own */
+    private int fallbackCount;
+
+    /** The state of the automaton at the document node */
+    private final State root = new State(0);
+
+    private int stateCount = 1;
+
+    public XPathSet() {
+        this(DocumentFactory.getInstance(), null);
+    }
+
+    public XPathSet(Map<String, String> namespaceURIs) {
+        this(DocumentFactory.getInstance(), namespaceURIs);
+    }
+
+    public XPathSet(DocumentFactory documentFactory,
+            Map<String, String> namespaceURIs) {
+        this.documentFactory = documentFactory;
+
+        if (namespaceURIs != null) {
+            this.namespaceURIs = new HashMap<String, String>(namespaceURIs);
+        } else {
+            this.namespaceURIs = Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Adds an expression to the set.
+     *
+     * @param expression
+     *            is the XPath expression
+     *
+     * @return the index of the expression in the results
+     *
+     * @throws InvalidXPathException
+     *             if the expression is invalid or uses a prefix which is not
+     *             bound to a namespace URI
+     */
+    public int add(String expression) throws InvalidXPathException {
+        int index = expressions.size();
+        Step[] steps = compile(expression);
+        XPath xpath = null;
+
+        if (steps != null) {
+            insert(steps, index);
+        } else {
+            xpath = documentFactory.createXPath(expression);
+
+            if (!namespaceURIs.isEmpty()) {
+                xpath.setNamespaceURIs(namespaceURIs);
+            }
+
+            fallbackCount++;
+        }
+
+        expressions.add(expression);
+        xpaths.add(xpath);
+
+        return index;
+    }
+
+    /**
+     * Returns the number of expressions added to the set.
+     *
+     * @return the number of expressions in the set
+     */
+    public int size() {
+        return expressions.size();
+    }
+
+    public String getExpression(int index) {
+        return expressions.get(index);
+    }
+
+    /**
+     * Returns whether the expression is evaluated by the automaton of the
+     * set, rather than on its own after the traversal.
+     *
+     * @param index
+     *            is the index of the expression in the set
+     *
+     * @return true if the automaton evaluates the expression
+     */
+    public boolean isCompiled(int index) {
+        return xpaths.get(index) == null;
+    }
+
+    /**
+     * Returns whether all the expressions are evaluated by the automaton, so
+     * that an {@link XPathSetHandler} need not build the document.
+     *
+     * @return true if no expression needs the document built
+     */
+    public boolean isStreamable() {
+        return fallbackCount == 0;
+    }
+
+    public DocumentFactory getDocumentFactory() {
+        return documentFactory;
+    }
+
+    /**
+     * Evaluates all the expressions on the given document.
+     *
+     * @param document
+     *            is the document to evaluate the expressions on
+     *
+     * @return the expressions which matched and their nodes
+     */
+    public Result evaluate(Document document) {
+        Result result = new Result(size());
+        TreeMatcher matcher = new TreeMatcher(this, result);
+
+        if (matcher.isLive()) {
+            matcher.walk(document);
+        }
+
+        evaluateFallbacks(document, result);
+
+        return result;
+    }
+
+    /**
+     * Creates a handler evaluating all the expressions on the events of a
+     * SAX parser.
+     *
+     * @return a new handler for a single parse
+     */
+    public XPathSetHandler createHandler() {
+        return new XPathSetHandler(this);
+    }
+
+    /**
+     * Parses a document with the given reader and evaluates all the
+     * expressions on its events.
+     *
+     * @param reader
+     *            is a namespace aware SAX parser
+     * @param source
+     *            is the source of the document to parse
+     *
+     * @return the expressions which matched and their nodes
+     *
+     * @throws DocumentException
+     *             if the document could not be parsed
+     */
+    public Result evaluate(XMLReader reader, InputSource source)
+            throws DocumentException {
+        XPathSetHandler handler = createHandler();
+        reader.setContentHandler(handler);
+
+        try {
+            reader.setProperty("http://xml.org/sax/properties/lexical-handler",
+                    handler);
+        } catch (SAXException e) {
+            // comments are then left out of the elements built
+        }
+
+        try {
+            reader.parse(source);
+        } catch (IOException e) {
+            throw new DocumentException(e.getMessage(), e);
+        } catch (SAXException e) {
+            throw new DocumentException(e.getMessage(), e);
+        }
+
+        return handler.getResult();
+    }
+
+    // Implementation methods
+
+    /**
+     * Evaluates the expressions not compiled into the automaton. An
+     * expression which does not select nodes matches if its boolean value is
+     * true.
+     *
+     * @param document
+     *            is the document to evaluate the expressions on
+     * @param result
+     *            is the result to add the matches to
+     */
+    void evaluateFallbacks(Document document, Result result) {
+        if (fallbackCount == 0) {
+            return;
+        }
+
+        for (int i = 0, count = xpaths.size(); i < count; i++) {
+            XPath xpath = xpaths.get(i);
+
+            if (xpath == null) {
+                continue;
+            }
+
+            Object value = xpath.evaluate(document);
+
+            if (value instanceof List) {
+                for (Object item : (List<?>) value) {
+                    if (item instanceof Node) {
+                        result.add(i, (Node) item);
+                    }
+                }
+            } else if (value instanceof Node) {
+                result.add(i, (Node) value);
+            } else if (BooleanFunction.evaluate(value, DocumentNavigator
+                    .getInstance()).booleanValue()) {
+                result.matched.set(i);
+            }
+        }
+    }
+
+    State getRoot() {
+        return root;
+    }
+
+    int getStateCount() {
+        return stateCount;
+    }
+
+    /**
+     * Translates an expression into the steps of the automaton.
+     *
+     * @param expression
+     *            is the expression to translate
+     *
+     * @return the steps, or null if the automaton cannot evaluate it
+     */
+    private Step[] compile(String expression) {
+        NativePath path = NativePath.compile(expression);
+
+        if ((path == null) || (path.steps.length == 0)) {
+            return null;
+        }
+
+        String[] uris = new String[path.prefixes.length];
+
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = namespaceURIs.get(path.prefixes[i]);
+
+            if (uris[i] == null) {
+                throw new InvalidXPathException(expression,
+                        "Unresolved prefix: " + path.prefixes[i]);
+            }
+        }
+
+        List<Step> steps = new ArrayList<Step>();
+        NativePath.Step[] pathSteps = path.steps;
+
+        for (int i = 0; i < pathSteps.length; i++) {
+            NativePath.Step step = pathSteps[i];
+            boolean last = i == (pathSteps.length - 1);
+
+            switch (step.axis) {
+                case NativePath.SELF:
+                    if ((step.test.kind != NativePath.NodeTest.ANY_NODE)
+                            || (step.predicates.length > 0)) {
+                        return null;
+                    }
+
+                    break;
+
+                case NativePath.CHILD:
+                case NativePath.DESCENDANT:
+                    if (step.test.kind != NativePath.NodeTest.NAME) {
+                        return null;
+                    }
+
+                    Condition[] conditions =
+                            new Condition[step.predicates.length];
+
+                    for (int j = 0; j < conditions.length; j++) {
+                        NativePath.Predicate predicate = step.predicates[j];
+
+                        if ((predicate.kind != NativePath.Predicate.ATTRIBUTE)
+                                || (predicate.test.kind
+                                        != NativePath.NodeTest.NAME)) {
+                            return null;
+                        }
+
+                        conditions[j] = new Condition(predicate.test, uris,
+                                predicate.value);
+                    }
+
+                    steps.add(new Step(step.axis == NativePath.DESCENDANT,
+                            false, new Condition(step.test, uris, null),
+                            conditions));
+
+                    break;
+
+                case NativePath.DESCENDANT_OR_SELF:
+                    // a // before an attribute step
+                    if (last || (step.predicates.length > 0)
+                            || (pathSteps[i + 1].axis
+                                    != NativePath.ATTRIBUTE)) {
+                        return null;
+                    }
+
+                    break;
+
+                case NativePath.ATTRIBUTE:
+                    if (!last || (step.test.kind != NativePath.NodeTest.NAME)
+                            || (step.predicates.length > 0)) {
+                        return null;
+                    }
+
+                    boolean descendants = (i > 0)
+                            && (pathSteps[i - 1].axis
+                                    == NativePath.DESCENDANT_OR_SELF);
+                    steps.add(new Step(descendants, true, new Condition(
+                            step.test, uris, null), new Condition[0]));
+
+                    break;
+
+                default:
+                    return null;
+            }
+        }
+
+        if (steps.isEmpty()) {
+            return null;
+        }
+
+        return steps.toArray(new Step[steps.size()]);
+    }
+
+    /**
+     * Adds the states leading to the given expression to the automaton,
+     * sharing those of the expressions starting with the same steps.
+     *
+     * @param steps
+     *            are the steps of the expression
+     * @param query
+     *            is the index of the expression in the set
+     */
+    private void insert(Step[] steps, int query) {
+        State state = root;
+
+        for (Step step : steps) {
+            if (step.descendants) {
+                if (state.descendants == null) {
+                    state.descendants = new State(stateCount++);
+                    state.descendants.loop = true;
+                }
+
+                state = state.descendants;
+            }
+
+            if (step.attribute) {
+                state.addAttributeTest(step.test, query);
+
+                return;
+            }
+
+            String key = step.getKey();
+            Transition transition = state.transitions.get(key);
+
+            if (transition == null) {
+                transition = new Transition(step.test.uri, step.conditions,
+                        new State(stateCount++));
+                state.addTransition(key, step.test.localName, transition);
+            }
+
+            state = transition.target;
+        }
+
+        state.accepts = append(state.accepts, query);
+    }
+
+    private static int[] append(int[] array, int value) {
+        int[] answer = Arrays.copyOf(array, array.length + 1);
+        answer[array.length] = value;
+
+        return answer;
+    }
+
+    /**
+     * The expressions which matched and the nodes they selected
+     */
+    public static final class Result {
+        private final List<List<Node>> nodes;
+
+        private final BitSet matched = new BitSet();
+
+        Result(int size) {
+            this.nodes = new ArrayList<List<Node>>(Collections
+                    .<List<Node>>nCopies(size, null));
+        }
+
+        /**
+         * Returns the number of expressions evaluated.
+         *
+         * @return the number of expressions in the set evaluated
+         */
+        public int size() {
+            return nodes.size();
+        }
+
+        /**
+         * Returns whether the expression selected a node or, for an
+         * expression which does not select nodes, whether its value was true.
+         *
+         * @param index
+         *            is the index of the expression in the set
+         *
+         * @return true if the expression matched
+         */
+        public boolean isMatched(int index) {
+            return matched.get(index);
+        }
+
+        /**
+         * Returns the expressions which matched.
+         *
+         * @return the indexes of the expressions which matched, in order
+         */
+        public int[] getMatchedIndexes() {
+            return matched.stream().toArray();
+        }
+
+        public int getMatchedCount() {
+            return matched.cardinality();
+        }
+
+        /**
+         * Returns the nodes an expression selected.
+         *
+         * @param index
+         *            is the index of the expression in the set
+         *
+         * @return the nodes selected by the expression in document order
+         */
+        public List<Node> getNodes(int index) {
+            List<Node> answer = nodes.get(index);
+
+            return (answer != null) ? answer : Collections.<Node>emptyList();
+        }
+
+        void add(int index, Node node) {
+            List<Node> list = nodes.get(index);
+
+            if (list == null) {
+                list = new ArrayList<Node>();
+                nodes.set(index, list);
+                matched.set(index);
+            }
+
+            list.add(node);
+        }
+    }
+
+    /**
+     * Follows the states of the automaton as the elements of a document are
+     * entered and left.
+     */
+    abstract static class Matcher {
+        /** The states of all the levels, the deepest last */
+        private State[] states = new State[32];
+
+        private int size;
+
+        /** The index of the first state of each level */
+        private int[] levels = new int[16];
+
+        private int depth;
+
+        /** The element each state was last added for */
+        private final int[] marks;
+
+        private int stamp;
+
+        /** Whether a state of the current level may lead to a match */
+        private boolean live;
+
+        Matcher(XPathSet set) {
+            marks = new int[set.getStateCount()];
+            stamp++;
+            add(set.getRoot());
+        }
+
+        /**
+         * Enters an element, reporting the expressions it matches.
+         *
+         * @param uri
+         *            is the namespace URI of the element
+         * @param localName
+         *            is the local name of the element
+         *
+         * @return false if no expression can match a descendant of the
+         *         element
+         */
+        boolean start(String uri, String localName) {
+            int from = levels[depth];
+            int to = size;
+
+            if (++depth == levels.length) {
+                levels = Arrays.copyOf(levels, depth * 2);
+            }
+
+            levels[depth] = size;
+            stamp++;
+            live = false;
+
+            for (int i = from; i < to; i++) {
+                State state = states[i];
+
+                if (state.loop) {
+                    add(state);
+                }
+
+                if (state.named != null) {
+                    Transitions transitions = state.named.get(localName);
+
+                    if (transitions != null) {
+                        follow(transitions, uri);
+                    }
+                }
+
+                if (state.wildcards != null) {
+                    follow(state.wildcards, uri);
+                }
+            }
+
+            for (int i = levels[depth]; i < size; i++) {
+                State state = states[i];
+
+                for (int query : state.accepts) {
+                    matchedElement(query);
+                }
+
+                if (state.attributeTests != null) {
+                    matchAttributes(state);
+                }
+            }
+
+            return live;
+        }
+
+        /**
+         * Leaves the element last entered
+         */
+        void end() {
+            size = levels[depth--];
+        }
+
+        /**
+         * Returns whether the traversal should descend into the element.
+         *
+         * @return whether an expression may match a descendant of the node
+         *         last entered
+         */
+        boolean isLive() {
+            return live;
+        }
+
+        abstract int attributeCount();
+
+        /**
+         * Returns the local name of an attribute of the current element.
+         *
+         * @param index
+         *            is the index of the attribute
+         *
+         * @return the local name of the attribute, or null if it declares a
+         *         namespace
+         */
+        abstract String attributeName(int index);
+
+        abstract String attributeURI(int index);
+
+        abstract String attributeValue(int index);
+
+        abstract void matchedElement(int query);
+
+        abstract void matchedAttribute(int query, int index);
+
+        private void follow(Transitions transitions, String uri) {
+            if (transitions.tested != null) {
+                follow(transitions.tested, uri);
+            }
+
+            if (transitions.indexes != null) {
+                for (ValueIndex index : transitions.indexes) {
+                    String value = findValue(index.uri, index.localName);
+
+                    if (value != null) {
+                        Transition[] found = index.transitions.get(value);
+
+                        if (found != null) {
+                            follow(found, uri);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void follow(Transition[] transitions, String uri) {
+            for (Transition transition : transitions) {
+                if (((transition.uri == null) || transition.uri.equals(uri))
+                        && holds(transition.conditions)) {
+                    add(transition.target);
+                }
+            }
+        }
+
+        private boolean holds(Condition[] conditions) {
+            for (Condition condition : conditions) {
+                if (!hasAttribute(condition)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private void matchAttributes(State state) {
+            for (int i = 0, count = attributeCount(); i < count; i++) {
+                for (AttributeTest test : state.attributeTests) {
+                    if (test.condition.matches(this, i)) {
+                        matchedAttribute(test.query, i);
+                    }
+                }
+            }
+        }
+
+        private String findValue(String uri, String localName) {
+            for (int i = 0, count = attributeCount(); i < count; i++) {
+                if (localName.equals(attributeName(i))
+                        && uri.equals(attributeURI(i))) {
+                    return attributeValue(i);
+                }
+            }
+
+            return null;
+        }
+
+        private boolean hasAttribute(Condition condition) {
+            for (int i = 0, count = attributeCount(); i < count; i++) {
+                if (condition.matches(this, i)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void add(State state) {
+            if (marks[state.id] == stamp) {
+                return;
+            }
+
+            marks[state.id] = stamp;
+
+            if (size == states.length) {
+                states = Arrays.copyOf(states, size * 2);
+            }
+
+            states[size++] = state;
+            live |= state.isLive();
+
+            if (state.descendants != null) {
+                add(state.descendants);
+            }
+        }
+    }
+
+    /**
+     * Walks the elements of a document
+     */
+    private static final class TreeMatcher extends Matcher {
+        private final Result result;
+
+        private Element element;
+
+        TreeMatcher(XPathSet set, Result result) {
+            super(set);
+            this.result = result;
+        }
+
+        void walk(Branch branch) {
+            for (int i = 0, count = branch.nodeCount(); i < count; i++) {
+                Node node = branch.node(i);
+
+                if (node instanceof Element) {
+                    element = (Element) node;
+
+                    if (start(element.getNamespaceURI(), element.getName())) {
+                        walk(element);
+                    }
+
+                    end();
+                }
+            }
+        }
+
+        int attributeCount() {
+            return element.attributeCount();
+        }
+
+        String attributeName(int index) {
+            return element.attribute(index).getName();
+        }
+
+        String attributeURI(int index) {
+            return element.attribute(index).getNamespaceURI();
+        }
+
+        String attributeValue(int index) {
+            return element.attribute(index).getValue();
+        }
+
+        void matchedElement(int query) {
+            result.add(query, element);
+        }
+
+        void matchedAttribute(int query, int index) {
+            result.add(query, element.attribute(index));
+        }
+    }
+
+    /**
+     * A state of the automaton
+     */
+    static final class State {
+        private static final int[] NO_QUERIES = new int[0];
+
+        final int id;
+
+        /** Whether the state stays active in all descendants */
+        boolean loop;
+
+        /** The looping state reached through a <code>//</code> */
+        State descendants;
+
+        /** The transitions on element names, by local name */
+        Map<String, Transitions> named;
+
+        /** The transitions on elements of any name */
+        Transitions wildcards;
+
+        /** The expressions whose last element step leads to this state */
+        int[] accepts = NO_QUERIES;
+
+        /** The last steps of expressions selecting attributes */
+        AttributeTest[] attributeTests;
+
+        /** The transitions by the key of their step, to share them */
+        final Map<String, Transition> transitions =
+                new HashMap<String, Transition>();
+
+        State(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Returns whether the state has transitions to follow.
+         *
+         * @return whether the state may lead to a match in a descendant
+         */
+        boolean isLive() {
+            return loop || (named != null) || (wildcards != null);
+        }
+
+        void addTransition(String key, String localName,
+                Transition transition) {
+            transitions.put(key, transition);
+
+            Transitions group;
+
+            if (localName == null) {
+                if (wildcards == null) {
+                    wildcards = new Transitions();
+                }
+
+                group = wildcards;
+            } else {
+                if (named == null) {
+                    named = new HashMap<String, Transitions>();
+                }
+
+                group = named.get(localName);
+
+                if (group == null) {
+                    group = new Transitions();
+                    named.put(localName, group);
+                }
+            }
+
+            group.add(transition);
+        }
+
+        void addAttributeTest(Condition condition, int query) {
+            AttributeTest test = new AttributeTest(condition, query);
+
+            if (attributeTests == null) {
+                attributeTests = new AttributeTest[] {test};
+            } else {
+                attributeTests = Arrays.copyOf(attributeTests,
+                        attributeTests.length + 1);
+                attributeTests[attributeTests.length - 1] = test;
+            }
+        }
+    }
+
+    /**
+     * The transitions on elements of a name, those requiring an attribute
+     * to have a value being found through the value of the attribute
+     */
+    static final class Transitions {
+        /** The transitions whose conditions are tested one by one */
+        Transition[] tested;
+
+        /** The transitions by the value of an attribute they require */
+        ValueIndex[] indexes;
+
+        void add(Transition transition) {
+            Condition condition = null;
+
+            for (Condition c : transition.conditions) {
+                if ((c.localName != null) && (c.uri != null)
+                        && (c.value != null)) {
+                    condition = c;
+
+                    break;
+                }
+            }
+
+            if (condition == null) {
+                tested = append(tested, transition);
+
+                return;
+            }
+
+            ValueIndex index = null;
+
+            if (indexes != null) {
+                for (ValueIndex i : indexes) {
+                    if (i.localName.equals(condition.localName)
+                            && i.uri.equals(condition.uri)) {
+                        index = i;
+
+                        break;
+                    }
+                }
+            }
+
+            if (index == null) {
+                index = new ValueIndex(condition.localName, condition.uri);
+
+                if (indexes == null) {
+                    indexes = new ValueIndex[] {index};
+                } else {
+                    indexes = Arrays.copyOf(indexes, indexes.length + 1);
+                    indexes[indexes.length - 1] = index;
+                }
+            }
+
+            index.transitions.put(condition.value, append(index.transitions
+                    .get(condition.value), transition));
+        }
+
+        private static Transition[] append(Transition[] array,
+                Transition transition) {
+            if (array == null) {
+                return new Transition[] {transition};
+            }
+
+            Transition[] answer = Arrays.copyOf(array, array.length + 1);
+            answer[array.length] = transition;
+
+            return answer;
+        }
+    }
+
+    /**
+     * The transitions requiring an attribute to have a value, by the value
+     */
+    static final class ValueIndex {
+        final String localName;
+
+        final String uri;
+
+        final Map<String, Transition[]> transitions =
+                new HashMap<String, Transition[]>();
+
+        ValueIndex(String localName, String uri) {
+            this.localName = localName;
+            this.uri = uri;
+        }
+    }
+
+    /**
+     * A transition on elements with a name and attributes
+     */
+    static final class Transition {
+        /** The namespace URI of the element, or null for any */
+        final String uri;
+
+        final Condition[] conditions;
+
+        final State target;
+
+        Transition(String uri, Condition[] conditions, State target) {
+            this.uri = uri;
+            this.conditions = conditions;
+            this.target = target;
+        }
+    }
+
+    /**
+     * A test of the name, and optionally the value, of an attribute, or of
+     * the name of an element
+     */
+    static final class Condition {
+        /** The local name, or null for any */
+        final String localName;
+
+        /** The namespace URI, or null for any */
+        final String uri;
+
+        /** The value, or null for any */
+        final String value;
+
+        Condition(NativePath.NodeTest test, String[] uris, String value) {
+            this.localName = test.localName;
+            this.value = value;
+
+            if (test.namespace == NativePath.NodeTest.ANY_NAMESPACE) {
+                this.uri = null;
+            } else if (test.namespace == NativePath.NodeTest.NO_NAMESPACE) {
+                this.uri = "";
+            } else {
+                this.uri = uris[test.namespace];
+            }
+        }
+
+        boolean matches(Matcher matcher, int index) {
+            String name = matcher.attributeName(index);
+
+            return (name != null)
+                    && ((localName == null) || localName.equals(name))
+                    && ((uri == null) || uri.equals(matcher
+                            .attributeURI(index)))
+                    && ((value == null) || value.equals(matcher
+                            .attributeValue(index)));
+        }
+
+        void appendKey(StringBuilder buffer) {
+            buffer.append(uri).append('\u0000').append(localName).append(
+                    '\u0000').append(value).append('\u0000');
+        }
+    }
+
+    /**
+     * The last step of an expression selecting attributes
+     */
+    static final class AttributeTest {
+        final Condition condition;
+
+        final int query;
+
+        AttributeTest(Condition condition, int query) {
+            this.condition = condition;
+            this.query = query;
+        }
+    }
+
+    /**
+     * A step of an expression as compiled into the automaton
+     */
+    private static final class Step {
+        /** Whether the step follows a <code>//</code> */
+        private final boolean descendants;
+
+        /** Whether the step selects attributes rather than elements */
+        private final boolean attribute;
+
+        private final Condition test;
+
+        private final Condition[] conditions;
+
+        Step(boolean descendants, boolean attribute, Condition test,
+                Condition[] conditions) {
+            this.descendants = descendants;
+            this.attribute = attribute;
+            this.test = test;
+            this.conditions = conditions;
+        }
+
+        String getKey() {
+            StringBuilder buffer = new StringBuilder();
+            test.appendKey(buffer);
+
+            for (Condition condition : conditions) {
+                condition.appendKey(buffer);
+            }
+
+            return buffer.toString();
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */
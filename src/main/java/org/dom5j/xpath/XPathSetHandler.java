@@ -0,0 +1,412 @@
+/*
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ *
+ * This software is open source.
+ * See the bottom of this file for the licence.
+ */
+
+package org.dom5j.xpath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dom5j.Document;
+import org.dom5j.DocumentFactory;
+import org.dom5j.Element;
+import org.dom5j.Namespace;
+import org.dom5j.QName;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * <p>
+ * <code>XPathSetHandler</code> evaluates the expressions of an
+ * {@link XPathSet} on the events of a namespace aware SAX parser, without
+ * building the document. An element matched by an expression is built with
+ * its content, and an attribute matched belongs to an element built with
+ * its attributes only; these elements have no parent. If some expression is
+ * not compiled into the automaton of the set, the whole document is built
+ * and the expression evaluated on it at the end of the document.
+ * </p>
+ *
+ * <p>
+ * A handler evaluates one document at a time and is not safe for use by
+ * several threads at once. Comments and CDATA sections are built only if the
+ * handler is also registered as the lexical handler of the parser; otherwise
+ * the text of a CDATA section is merged with the text around it.
+ * </p>
+ */
+public class XPathSetHandler extends DefaultHandler implements LexicalHandler {
+    private final XPathSet set;
+
+    private final DocumentFactory documentFactory;
+
+    private EventMatcher matcher;
+
+    private XPathSet.Result result;
+
+    /** The document being built, or null if only matches are built */
+    private Document document;
+
+    /** The elements built at each depth, if any */
+    private Element[] elements = new Element[16];
+
+    private int depth;
+
+    /** The depth of the element whose content is built, or -1 */
+    private int buildDepth = -1;
+
+    /** The depth of the element below which no expression can match */
+    private int skipDepth = -1;
+
+    /** The namespaces declared by the next element */
+    private final List<Namespace> declaredNamespaces =
+            new ArrayList<Namespace>();
+
+    private final StringBuilder text = new StringBuilder();
+
+    /** Whether the text buffered is the content of a CDATA section */
+    private boolean insideCDATASection;
+
+    public XPathSetHandler(XPathSet set) {
+        this.set = set;
+        this.documentFactory = set.getDocumentFactory();
+    }
+
+    /**
+     * Returns the expressions matched in the document last parsed.
+     *
+     * @return the result of the document last parsed
+     */
+    public XPathSet.Result getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the document built while parsing, if any expression needed it.
+     *
+     * @return the document last parsed, or null if it was not built
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    // ContentHandler interface
+    // -------------------------------------------------------------------------
+    public void startDocument() throws SAXException {
+        result = new XPathSet.Result(set.size());
+        matcher = new EventMatcher();
+        depth = 0;
+        skipDepth = matcher.isLive() ? (-1) : 0;
+        declaredNamespaces.clear();
+        text.setLength(0);
+        insideCDATASection = false;
+
+        if (set.isStreamable()) {
+            document = null;
+            buildDepth = -1;
+        } else {
+            document = documentFactory.createDocument();
+            buildDepth = 0;
+        }
+    }
+
+    public void endDocument() throws SAXException {
+        if (document != null) {
+            set.evaluateFallbacks(document, result);
+        }
+
+        Arrays.fill(elements, null);
+    }
+
+    public void startPrefixMapping(String prefix, String uri)
+            throws SAXException {
+        declaredNamespaces.add(documentFactory.createNamespace(prefix, uri));
+    }
+
+    public void startElement(String namespaceURI, String localName,
+            String qualifiedName, Attributes attributes) throws SAXException {
+        flushText();
+
+        if (++depth == elements.length) {
+            elements = Arrays.copyOf(elements, depth * 2);
+        }
+
+        String name = (localName.length() > 0) ? localName : qualifiedName;
+
+        if (buildDepth >= 0) {
+            Element element = createElement(namespaceURI, name,
+                    qualifiedName, attributes);
+
+            if (depth == 1) {
+                document.add(element);
+            } else {
+                elements[depth - 1].add(element);
+            }
+
+            elements[depth] = element;
+        }
+
+        if (skipDepth < 0) {
+            matcher.begin(namespaceURI, name, qualifiedName, attributes);
+
+            if (!matcher.start(namespaceURI, name)) {
+                skipDepth = depth;
+            }
+
+            if (matcher.elementMatched && (buildDepth < 0)) {
+                buildDepth = depth;
+            }
+        }
+
+        declaredNamespaces.clear();
+    }
+
+    public void endElement(String namespaceURI, String localName,
+            String qName) throws SAXException {
+        flushText();
+
+        if (skipDepth < 0) {
+            matcher.end();
+        } else if (skipDepth == depth) {
+            matcher.end();
+            skipDepth = -1;
+        }
+
+        if (buildDepth == depth) {
+            buildDepth = -1;
+        }
+
+        elements[depth--] = null;
+    }
+
+    public void characters(char[] ch, int start, int length)
+            throws SAXException {
+        if ((buildDepth >= 0) && (depth > 0)) {
+            text.append(ch, start, length);
+        }
+    }
+
+    public void processingInstruction(String target, String data)
+            throws SAXException {
+        if (buildDepth >= 0) {
+            flushText();
+
+            if (depth == 0) {
+                document.addProcessingInstruction(target, data);
+            } else {
+                elements[depth].addProcessingInstruction(target, data);
+            }
+        }
+    }
+
+    // LexicalHandler interface
+    // -------------------------------------------------------------------------
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        if (buildDepth >= 0) {
+            flushText();
+
+            String comment = new String(ch, start, length);
+
+            if (depth == 0) {
+                document.addComment(comment);
+            } else {
+                elements[depth].addComment(comment);
+            }
+        }
+    }
+
+    public void startDTD(String name, String publicId, String systemId)
+            throws SAXException {
+    }
+
+    public void endDTD() throws SAXException {
+    }
+
+    public void startEntity(String name) throws SAXException {
+    }
+
+    public void endEntity(String name) throws SAXException {
+    }
+
+    public void startCDATA() throws SAXException {
+        if ((buildDepth >= 0) && (depth > 0)) {
+            flushText();
+            insideCDATASection = true;
+        }
+    }
+
+    public void endCDATA() throws SAXException {
+        if (insideCDATASection) {
+            insideCDATASection = false;
+            elements[depth].addCDATA(text.toString());
+            text.setLength(0);
+        }
+    }
+
+    // Implementation methods
+    // -------------------------------------------------------------------------
+    private void flushText() {
+        if (text.length() > 0) {
+            elements[depth].addText(text.toString());
+            text.setLength(0);
+        }
+    }
+
+    private Element createElement(String namespaceURI, String localName,
+            String qualifiedName, Attributes attributes) {
+        Element element = documentFactory.createElement(createQName(
+                namespaceURI, localName, qualifiedName));
+
+        for (Namespace namespace : declaredNamespaces) {
+            element.add(namespace);
+        }
+
+        for (int i = 0, count = attributes.getLength(); i < count; i++) {
+            String qName = attributes.getQName(i);
+
+            if (!isDeclaration(qName)) {
+                String name = attributes.getLocalName(i);
+
+                element.addAttribute(createQName(attributes.getURI(i),
+                        (name.length() > 0) ? name : qName, qName),
+                        attributes.getValue(i));
+            }
+        }
+
+        return element;
+    }
+
+    private QName createQName(String namespaceURI, String localName,
+            String qualifiedName) {
+        int index = qualifiedName.indexOf(':');
+        String prefix = (index > 0) ? qualifiedName.substring(0, index) : "";
+
+        return documentFactory.createQName(localName, prefix, namespaceURI);
+    }
+
+    private static boolean isDeclaration(String qualifiedName) {
+        return qualifiedName.startsWith("xmlns")
+                && ((qualifiedName.length() == 5)
+                        || (qualifiedName.charAt(5) == ':'));
+    }
+
+    /**
+     * Follows the automaton of the set through the elements parsed
+     */
+    private final class EventMatcher extends XPathSet.Matcher {
+        private String namespaceURI;
+
+        private String localName;
+
+        private String qualifiedName;
+
+        private Attributes attributes;
+
+        /** Whether the element entered matched an expression */
+        private boolean elementMatched;
+
+        EventMatcher() {
+            super(set);
+        }
+
+        void begin(String uri, String name, String qName, Attributes atts) {
+            this.namespaceURI = uri;
+            this.localName = name;
+            this.qualifiedName = qName;
+            this.attributes = atts;
+            this.elementMatched = false;
+        }
+
+        int attributeCount() {
+            return attributes.getLength();
+        }
+
+        String attributeName(int index) {
+            String qName = attributes.getQName(index);
+
+            if (isDeclaration(qName)) {
+                return null;
+            }
+
+            String name = attributes.getLocalName(index);
+
+            return (name.length() > 0) ? name : qName;
+        }
+
+        String attributeURI(int index) {
+            return attributes.getURI(index);
+        }
+
+        String attributeValue(int index) {
+            return attributes.getValue(index);
+        }
+
+        void matchedElement(int query) {
+            elementMatched = true;
+            result.add(query, getElement());
+        }
+
+        void matchedAttribute(int query, int index) {
+            result.add(query, getElement().attribute(
+                    createQName(attributes.getURI(index),
+                            attributeName(index), attributes.getQName(index))));
+        }
+
+        /**
+         * Returns the element entered, building it if it is not part of the
+         * content being built
+         */
+        private Element getElement() {
+            Element element = elements[depth];
+
+            if (element == null) {
+                element = createElement(namespaceURI, localName,
+                        qualifiedName, attributes);
+                elements[depth] = element;
+            }
+
+            return element;
+        }
+    }
+}
+
+/*
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided that the
+ * following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain copyright statements and
+ * notices. Redistributions must also contain a copy of this document.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. The name "DOM4J" must not be used to endorse or promote products derived
+ * from this Software without prior written permission of MetaStuff, Ltd. For
+ * written permission, please contact dom4j-info@metastuff.com.
+ * 
+ * 4. Products derived from this Software may not be called "DOM4J" nor may
+ * "DOM4J" appear in their names without prior written permission of MetaStuff,
+ * Ltd. DOM4J is a registered trademark of MetaStuff, Ltd.
+ * 
+ * 5. Due credit should be given to the DOM4J Project - http://www.dom4j.org
+ * 
+ * THIS SOFTWARE IS PROVIDED BY METASTUFF, LTD. AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL METASTUFF, LTD. OR ITS CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * Copyright 2001-2005 (C) MetaStuff, Ltd. All Rights Reserved.
+ */